@@ -5,14 +5,30 @@ import com.turn.ttorrent.TorrentDefaults;
 import jetbrains.buildServer.NetworkUtil;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.artifacts.ArtifactCacheProvider;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.torrent.seeder.FileLink;
+import jetbrains.buildServer.torrent.seeder.RetentionPolicies;
 import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.torrent.DownloadStallPolicy;
+import jetbrains.buildServer.torrent.torrent.TeamcityTorrentClient;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * User: Victory.Bedrosova
@@ -23,6 +39,23 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
   private final static Logger LOG = Logger.getInstance(AgentTorrentsManager.class.getName());
 
   public static final String TORRENT_FOLDER_NAME = "torrents";
+  public static final String PUBLISHED_TORRENTS_FOLDER_NAME = "torrents-published";
+  /**
+   * Disabled by default: the agent keeps a copy of each published artifact above the size threshold
+   * until its link is evicted from the torrents storage, which needs as much disk space as the artifacts
+   */
+  public static final String SEED_PUBLISHED = "teamcity.torrent.seed.published.enabled";
+  public static final String RETENTION_POLICY = "teamcity.torrent.agent.retention.policy";
+  public static final String MAX_SEEDED_SIZE_MB = "teamcity.torrent.agent.max.seeded.size.mb";
+  public static final String MAX_CONCURRENT_DOWNLOADS = "teamcity.torrent.download.threads";
+  public static final String DOWNLOAD_TIMEOUT = "teamcity.torrent.download.timeout";
+  public static final String HASHING_THREADS = "teamcity.torrent.hashing.threads";
+  public static final String HASHING_MAX_READ_MB = "teamcity.torrent.hashing.max.read.mb";
+  public static final String DOWNLOAD_FIRST_PIECE_TIMEOUT = "teamcity.torrent.download.first.piece.timeout";
+  public static final String DOWNLOAD_SPEED_WINDOW = "teamcity.torrent.download.speed.window";
+  public static final String DOWNLOAD_MIN_SPEED_KB = "teamcity.torrent.download.min.speed.kb";
+
+  private static final String PUBLISHED_LINKS_DIR = "published";
 
   @NotNull
   private final TorrentConfiguration myTrackerManager;
@@ -36,6 +69,14 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
   private boolean myTorrentClientStarted = false;
   @Nullable
   private final ArtifactCacheProvider myArtifactCacheProvider;
+  @NotNull
+  private final File myPublishedTorrentsDir;
+  @Nullable
+  private final TorrentArtifactCacheListener myCacheListener;
+  private final List<PublishedArtifact> myPublishedArtifacts = new CopyOnWriteArrayList<PublishedArtifact>();
+  private final List<PublishedArtifact> myRunningBuildArtifacts = new CopyOnWriteArrayList<PublishedArtifact>();
+  private final Set<File> myNotCopiedTorrents = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private final ExecutorService myCopyExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent published artifacts copying", 1);
 
   public AgentTorrentsManager(@NotNull final BuildAgentConfiguration agentConfiguration,
                               @NotNull final EventDispatcher<AgentLifeCycleListener> eventDispatcher,
@@ -46,12 +87,37 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
     File torrentsStorage = agentConfiguration.getCacheDirectory(TORRENT_FOLDER_NAME);
     myTrackerManager = trackerManager;
     myTorrentsDirectorySeeder = new TorrentsDirectorySeeder(torrentsStorage, -1, 0);
+    myPublishedTorrentsDir = agentConfiguration.getCacheDirectory(PUBLISHED_TORRENTS_FOLDER_NAME);
+    myTorrentsDirectorySeeder.setRetentionPolicy(RetentionPolicies.byName(TeamCityProperties.getProperty(RETENTION_POLICY, RetentionPolicies.FREQUENCY)));
+    final int maxSeededSizeMb = TeamCityProperties.getInteger(MAX_SEEDED_SIZE_MB, -1);
+    myTorrentsDirectorySeeder.setMaxSeededBytes(maxSeededSizeMb < 0 ? -1 : maxSeededSizeMb * 1024L * 1024L);
+    myTorrentsDirectorySeeder.getTorrentSeeder().setMaxConcurrentDownloads(
+            TeamCityProperties.getInteger(MAX_CONCURRENT_DOWNLOADS, TeamcityTorrentClient.DEFAULT_MAX_CONCURRENT_DOWNLOADS));
+    myTorrentsDirectorySeeder.getTorrentSeeder().setStallPolicy(createStallPolicy());
+    TorrentHashingService.getInstance().setThreadsCount(TeamCityProperties.getInteger(HASHING_THREADS, -1));
+    TorrentHashingService.getInstance().setMaxReadBytesPerSec(TeamCityProperties.getLong(HASHING_MAX_READ_MB, -1) * 1024 * 1024);
     myArtifactCacheProvider = artifactsCacheProvider;
     if (artifactsCacheProvider != null){
-      artifactsCacheProvider.addListener(new TorrentArtifactCacheListener(myTorrentsDirectorySeeder, currentBuildTracker, trackerManager, this));
+      myCacheListener = new TorrentArtifactCacheListener(myTorrentsDirectorySeeder, currentBuildTracker, trackerManager, this);
+      artifactsCacheProvider.addListener(myCacheListener);
+    } else {
+      myCacheListener = null;
     }
   }
 
+  /**
+   * A download is aborted when it gets no data within the download timeout, no complete piece within the first piece
+   * timeout or when its speed over the window drops below the minimum
+   */
+  @NotNull
+  private static DownloadStallPolicy createStallPolicy() {
+    return new DownloadStallPolicy(
+            TeamCityProperties.getLong(DOWNLOAD_TIMEOUT, 10) * 1000,
+            TeamCityProperties.getLong(DOWNLOAD_FIRST_PIECE_TIMEOUT, 60) * 1000,
+            TeamCityProperties.getLong(DOWNLOAD_SPEED_WINDOW, 30) * 1000,
+            TeamCityProperties.getLong(DOWNLOAD_MIN_SPEED_KB, 16) * 1024);
+  }
+
   private boolean updateSettings() {
     try {
       String announceUrl = myTrackerManager.getAnnounceUrl();
@@ -61,6 +127,8 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
       myAnnounceIntervalSec = myTrackerManager.getAnnounceIntervalSec();
       myTorrentsDirectorySeeder.setAnnounceInterval(myAnnounceIntervalSec);
       myTorrentTransportEnabled = myTrackerManager.isTransportEnabled();
+      // the agents must create the same torrents as the server to join its swarms
+      TorrentHashingService.getInstance().setHybridTorrents(myTrackerManager.isHybridTorrentsEnabled());
       boolean enabledNow = myTrackerManager.isTorrentEnabled();
       if (myTorrentEnabled != enabledNow){
         myTorrentEnabled = enabledNow;
@@ -90,6 +158,136 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
   public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
     checkReady();
     myBuild = runningBuild;
+    removeEvictedPublishedArtifacts();
+  }
+
+  /**
+   * @return directory for the torrents of the artifacts published by the build
+   */
+  @NotNull
+  public File getPublishedTorrentsDir(long buildId) {
+    return new File(myPublishedTorrentsDir, String.valueOf(buildId));
+  }
+
+  /**
+   * Seeds the artifact published by the build running on this agent, so that the swarm of a new artifact
+   * starts with the agent and the server. The artifact itself is seeded while the build runs, it is copied
+   * next to its torrent in background after the build finishes, see {@link #seedCopy(PublishedArtifact)}.
+   */
+  public void seedPublishedArtifact(@NotNull final File artifact, @NotNull final File torrentFile) {
+    if (!myTorrentClientStarted || myTorrentsDirectorySeeder.isStopped() || !TeamCityProperties.getBoolean(SEED_PUBLISHED)) {
+      return;
+    }
+    if (FileUtil.getRelativePath(myPublishedTorrentsDir, torrentFile.getParentFile()) == null) {
+      LOG.warn("Torrent " + torrentFile.getAbsolutePath() + " is not in " + myPublishedTorrentsDir.getAbsolutePath() + ", won't seed " + artifact.getAbsolutePath());
+      return;
+    }
+    try {
+      // the torrent has just been created from the artifact
+      myTorrentsDirectorySeeder.getTorrentSeeder().markVerified(torrentFile, artifact);
+      if (myTorrentsDirectorySeeder.getTorrentSeeder().seedTorrent(torrentFile, artifact)) {
+        myNotCopiedTorrents.add(torrentFile);
+        myRunningBuildArtifacts.add(new PublishedArtifact(artifact, torrentFile));
+        LOG.debug("Seeding published artifact " + artifact.getAbsolutePath());
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to seed published artifact " + artifact.getAbsolutePath() + ": " + e.toString());
+    }
+  }
+
+  @Override
+  public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+    for (final PublishedArtifact published : myRunningBuildArtifacts) {
+      myRunningBuildArtifacts.remove(published);
+      try {
+        myCopyExecutor.submit(new Runnable() {
+          public void run() {
+            seedCopy(published);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        myTorrentsDirectorySeeder.getTorrentSeeder().stopSeeding(published.myTorrentFile);
+        myNotCopiedTorrents.remove(published.myTorrentFile);
+      }
+    }
+  }
+
+  /**
+   * Replaces the artifact seeded during the build with its copy next to the torrent, as the next builds
+   * may change the checkout directory. The copy is linked from the torrents storage, so it counts against
+   * the limits of seeded torrents, and it is deleted after its link is evicted.
+   */
+  private void seedCopy(@NotNull PublishedArtifact published) {
+    final File artifact = published.myFile;
+    final File torrentFile = published.myTorrentFile;
+    final String relativeDir = FileUtil.getRelativePath(myPublishedTorrentsDir, torrentFile.getParentFile());
+    final File copy = new File(torrentFile.getParentFile(), artifact.getName());
+    try {
+      myTorrentsDirectorySeeder.getTorrentSeeder().stopSeeding(torrentFile);
+      if (relativeDir == null || myTorrentsDirectorySeeder.isStopped()) return;
+      FileUtil.copy(artifact, copy);
+      if (!published.isUnchanged()) {
+        LOG.debug("Published artifact " + artifact.getAbsolutePath() + " has changed, won't seed it");
+        FileUtil.delete(copy);
+        return;
+      }
+      final File linkDir = new File(new File(myTorrentsDirectorySeeder.getStorageDirectory(), PUBLISHED_LINKS_DIR), relativeDir);
+      linkDir.mkdirs();
+      FileLink.createLink(copy, torrentFile, linkDir);
+      myTorrentsDirectorySeeder.getTorrentSeeder().markVerified(torrentFile, copy);
+      if (myTorrentsDirectorySeeder.getTorrentSeeder().seedTorrent(torrentFile, copy)) {
+        myPublishedArtifacts.add(new PublishedArtifact(copy, torrentFile));
+        LOG.debug("Seeding copy of published artifact " + artifact.getAbsolutePath());
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to seed copy of published artifact " + artifact.getAbsolutePath() + ": " + e.toString());
+    } finally {
+      myNotCopiedTorrents.remove(torrentFile);
+    }
+  }
+
+  public int getNumberOfSeededPublishedArtifacts() {
+    return myPublishedArtifacts.size();
+  }
+
+  /**
+   * Deletes the copies of the published artifacts whose links were evicted from the torrents storage,
+   * the torrent of an evicted link is deleted by the directory seeder
+   */
+  private void removeEvictedPublishedArtifacts() {
+    for (PublishedArtifact published : myPublishedArtifacts) {
+      if (!published.myTorrentFile.isFile() || !published.myFile.isFile()) {
+        myTorrentsDirectorySeeder.getTorrentSeeder().stopSeeding(published.myTorrentFile);
+        myPublishedArtifacts.remove(published);
+      }
+    }
+    final File[] buildDirs = myPublishedTorrentsDir.listFiles();
+    if (buildDirs == null) return;
+    for (File buildDir : buildDirs) {
+      removeUnseededFiles(buildDir);
+    }
+  }
+
+  /**
+   * Removes the copies without torrents and the torrents without copies, e.g. of the artifacts published
+   * while seeding them was disabled. The torrents of the artifacts not copied yet are kept.
+   */
+  private void removeUnseededFiles(@NotNull File dir) {
+    final File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        removeUnseededFiles(file);
+      } else if (file.getName().endsWith(TorrentUtil.TORRENT_FILE_SUFFIX)) {
+        final String name = file.getName();
+        if (!new File(dir, name.substring(0, name.length() - TorrentUtil.TORRENT_FILE_SUFFIX.length())).isFile() && !myNotCopiedTorrents.contains(file)) {
+          FileUtil.delete(file);
+        }
+      } else if (!new File(dir, file.getName() + TorrentUtil.TORRENT_FILE_SUFFIX).isFile()) {
+        FileUtil.delete(file);
+      }
+    }
+    FileUtil.deleteIfEmpty(dir);
   }
 
   public void startIfNecessary() throws IOException {
@@ -107,6 +305,10 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
 
   @Override
   public void agentShutdown() {
+    myCopyExecutor.shutdownNow();
+    if (myCacheListener != null) {
+      myCacheListener.dispose();
+    }
     stopIfNecessary();
   }
 
@@ -121,4 +323,33 @@ public class AgentTorrentsManager extends AgentLifeCycleAdapter {
   public boolean isTorrentEnabled() {
     return myTorrentEnabled;
   }
+
+  @Nullable
+  public URI getTrackerAnnounceUrl() {
+    return myTrackerAnnounceUrl;
+  }
+
+  public int getFileSizeThresholdMb() {
+    return myFileSizeThresholdMb;
+  }
+
+  private static final class PublishedArtifact {
+    @NotNull
+    private final File myFile;
+    @NotNull
+    private final File myTorrentFile;
+    private final long myLength;
+    private final long myLastModified;
+
+    private PublishedArtifact(@NotNull File file, @NotNull File torrentFile) {
+      myFile = file;
+      myTorrentFile = torrentFile;
+      myLength = file.length();
+      myLastModified = file.lastModified();
+    }
+
+    private boolean isUnchanged() {
+      return myFile.length() == myLength && myFile.lastModified() == myLastModified;
+    }
+  }
 }
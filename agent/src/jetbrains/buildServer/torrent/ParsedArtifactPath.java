@@ -25,6 +25,18 @@ public class ParsedArtifactPath {
   @Nullable
   private final String myBranch;
 
+  private ParsedArtifactPath(@NotNull final String serverUrl,
+                             @NotNull final String module,
+                             @NotNull final String revision,
+                             @NotNull final String artifactPath,
+                             @Nullable final String branch) {
+    myServerUrl = serverUrl;
+    myModule = module;
+    myRevision = revision;
+    myArtifactPath = artifactPath;
+    myBranch = branch;
+  }
+
   ParsedArtifactPath(@NotNull final String artifactUrl) throws IllegalArgumentException{
     final Matcher matcher = FILE_PATH_PATTERN.matcher(artifactUrl);
     if (!matcher.matches()){
@@ -52,6 +64,30 @@ public class ParsedArtifactPath {
     return myBranch;
   }
 
+  /**
+   * @return path of another artifact of the same build
+   */
+  @NotNull
+  public ParsedArtifactPath withArtifactPath(@NotNull final String artifactPath) {
+    return new ParsedArtifactPath(myServerUrl, myModule, myRevision, artifactPath, myBranch);
+  }
+
+  /**
+   * @return key of the build the artifact belongs to, the same artifact path of different builds has different content
+   */
+  @NotNull
+  public String getBuildUrl() {
+    return String.format("%s/repository/download/%s/%s%s",
+            myServerUrl, myModule, myRevision,
+            myBranch == null ? "" : myBranch);
+  }
+
+  public String getArtifactUrl(){
+    return String.format("%s/repository/download/%s/%s/%s%s",
+            myServerUrl, myModule, myRevision, myArtifactPath,
+            myBranch == null ? "" : myBranch);
+  }
+
   public String getTorrentUrl(){
     return String.format("%s/repository/download/%s/%s/%s%s",
             myServerUrl, myModule, myRevision, getTorrentPath(),
@@ -8,12 +8,17 @@ import jetbrains.buildServer.artifacts.ArtifactCacheProvider;
 import jetbrains.buildServer.artifacts.ArtifactsCacheListener;
 import jetbrains.buildServer.torrent.seeder.FileLink;
 import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
 import jetbrains.buildServer.torrent.torrent.TorrentUtil;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Sergey.Pak
@@ -28,6 +33,8 @@ public class TorrentArtifactCacheListener implements ArtifactsCacheListener {
   private ArtifactCacheProvider myArtifactCacheProvider;
   private final TorrentConfiguration myConfiguration;
   private final AgentTorrentsManager myTorrentsManager;
+  private final ConcurrentMap<File, FileState> myPendingFiles = new ConcurrentHashMap<File, FileState>();
+  private final ExecutorService myCreationExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent artifacts cache hashing", 1);
 
   public TorrentArtifactCacheListener(@NotNull final TorrentsDirectorySeeder torrentsDirectorySeeder,
                                       @NotNull final CurrentBuildTracker currentBuildTracker,
@@ -49,7 +56,7 @@ public class TorrentArtifactCacheListener implements ArtifactsCacheListener {
     myTorrentsDirectorySeeder.getTorrentSeeder().stopSeedingByPath(file);
   }
 
-  public void onAfterAddOrUpdate(@NotNull File file) {
+  public void onAfterAddOrUpdate(@NotNull final File file) {
     final String absolutePath = file.getAbsolutePath();
     if (!myTorrentsManager.isTorrentEnabled()){
       LOG.debug("Torrent plugin disabled. Won't seed " + absolutePath);
@@ -63,6 +70,24 @@ public class TorrentArtifactCacheListener implements ArtifactsCacheListener {
       LOG.debug("Won't create torrent for " + absolutePath + ". Artifact is too small: " + file.length());
       return;
     }
+    if (myPendingFiles.put(file, new FileState(file)) == null) {
+      myCreationExecutor.submit(new Runnable() {
+        public void run() {
+          createTorrentAndSeed(file);
+        }
+      });
+    } else {
+      LOG.debug("Torrent creation for " + absolutePath + " is already queued");
+    }
+  }
+
+  /**
+   * Creates the torrent for the state of the file of the last event. The torrent is dropped if the file
+   * was replaced while it was hashed, the event of the replacement queues another creation.
+   */
+  private void createTorrentAndSeed(@NotNull final File file) {
+    final FileState state = myPendingFiles.remove(file);
+    if (state == null || !state.isCurrent() || myTorrentsDirectorySeeder.isSeedingByPath(file)) return;
     final String relativePath = FileUtil.getRelativePath(myArtifactCacheProvider.getCacheDir(), file);
     if (relativePath == null)
       return;
@@ -73,7 +98,13 @@ public class TorrentArtifactCacheListener implements ArtifactsCacheListener {
     try {
       final Torrent torrent;
       if (!torrentFile.exists()) {
-        torrent = Torrent.create(file, URI.create(myConfiguration.getAnnounceUrl()), "teamcity torrent plugin");
+        torrent = TorrentHashingService.getInstance().createTorrent(
+                file, URI.create(myConfiguration.getAnnounceUrl()), "teamcity torrent plugin", TorrentHashingService.Priority.BACKGROUND);
+        final FileState pending = myPendingFiles.get(file);
+        if (!state.isCurrent() || pending != null && !pending.isSameAs(state)) {
+          LOG.debug("Artifact " + file.getAbsolutePath() + " was replaced while its torrent was created");
+          return;
+        }
         torrentFile.getParentFile().mkdirs();
         torrent.save(torrentFile);
         final File linkDir = new File(myTorrentsDirectorySeeder.getStorageDirectory(), artifactPath.getRelativeLinkPath()).getParentFile();
@@ -84,14 +115,25 @@ public class TorrentArtifactCacheListener implements ArtifactsCacheListener {
       } else {
         torrent = Torrent.load(torrentFile);
       }
-      log2Build("Started seeding " + file.getAbsolutePath());
       myTorrentsDirectorySeeder.getTorrentSeeder().seedTorrent(torrent, file);
+      log2Build("Started seeding " + file.getAbsolutePath());
+    } catch (InterruptedException e) {
+      LOG.debug("Torrent creation for " + file.getAbsolutePath() + " has been interrupted");
     } catch (Exception e) {
-      e.printStackTrace();
+      LOG.warn("Failed to create torrent for " + file.getAbsolutePath() + ": " + e.toString());
     }
   }
 
+  /**
+   * Cancels the queued torrent creations
+   */
+  public void dispose() {
+    myCreationExecutor.shutdownNow();
+    myPendingFiles.clear();
+  }
+
   public void onBeforeDelete(@NotNull File file) {
+    myPendingFiles.remove(file);
     if (!myTorrentsManager.isTorrentEnabled())
       return;
     myTorrentsDirectorySeeder.getTorrentSeeder().stopSeedingByPath(file);
@@ -101,7 +143,38 @@ public class TorrentArtifactCacheListener implements ArtifactsCacheListener {
   }
 
   private void log2Build(String msg){
-    final BuildProgressLogger buildLogger = myBuildTracker.getCurrentBuild().getBuildLogger();
+    final BuildProgressLogger buildLogger;
+    try {
+      buildLogger = myBuildTracker.getCurrentBuild().getBuildLogger();
+    } catch (RuntimeException e) {
+      // torrents are created in background, the build may be finished already
+      LOG.info(msg);
+      return;
+    }
     TorrentUtil.log2Build(msg, buildLogger);
   }
+
+  /**
+   * Size and modification time of the file when the event came
+   */
+  private static final class FileState {
+    @NotNull
+    private final File myFile;
+    private final long myLength;
+    private final long myLastModified;
+
+    private FileState(@NotNull File file) {
+      myFile = file;
+      myLength = file.length();
+      myLastModified = file.lastModified();
+    }
+
+    private boolean isCurrent() {
+      return myFile.isFile() && myFile.length() == myLength && myFile.lastModified() == myLastModified;
+    }
+
+    private boolean isSameAs(@NotNull FileState state) {
+      return myLength == state.myLength && myLastModified == state.myLastModified;
+    }
+  }
 }
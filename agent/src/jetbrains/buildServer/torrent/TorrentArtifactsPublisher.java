@@ -0,0 +1,90 @@
+package jetbrains.buildServer.torrent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.agent.ArtifactPublishingFailedException;
+import jetbrains.buildServer.agent.ArtifactsPublisher;
+import jetbrains.buildServer.agent.ArtifactsWatcher;
+import jetbrains.buildServer.agent.CurrentBuildTracker;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Creates the torrents of large artifacts on the agent while they are published, the agent has the
+ * artifacts on its local disk. The .torrent files are published to the hidden torrents directory of
+ * the build where the server validates and seeds them instead of hashing the artifacts itself. The agent
+ * seeds the published artifacts as well.
+ */
+public class TorrentArtifactsPublisher implements ArtifactsPublisher {
+  private final static Logger LOG = Logger.getInstance(TorrentArtifactsPublisher.class.getName());
+
+  public static final String PUBLISH_TORRENTS = "teamcity.torrent.publish.enabled";
+
+  @NotNull
+  private final AgentTorrentsManager myTorrentsManager;
+  @NotNull
+  private final CurrentBuildTracker myBuildTracker;
+  @NotNull
+  private final ArtifactsWatcher myArtifactsWatcher;
+
+  public TorrentArtifactsPublisher(@NotNull final AgentTorrentsManager torrentsManager,
+                                   @NotNull final CurrentBuildTracker currentBuildTracker,
+                                   @NotNull final ArtifactsWatcher artifactsWatcher) {
+    myTorrentsManager = torrentsManager;
+    myBuildTracker = currentBuildTracker;
+    myArtifactsWatcher = artifactsWatcher;
+  }
+
+  public int publishFiles(@NotNull final Map<File, String> filePathMap) throws ArtifactPublishingFailedException {
+    final URI announceURI = myTorrentsManager.getTrackerAnnounceUrl();
+    if (!myTorrentsManager.isTorrentEnabled() || announceURI == null || !TeamCityProperties.getBooleanOrTrue(PUBLISH_TORRENTS)) {
+      return 0;
+    }
+    final File torrentsDir = myTorrentsManager.getPublishedTorrentsDir(myBuildTracker.getCurrentBuild().getBuildId());
+    for (Map.Entry<File, String> entry : filePathMap.entrySet()) {
+      final File file = entry.getKey();
+      final String targetDir = normalizeTargetDir(entry.getValue());
+      if (targetDir == null || !file.isFile() || file.length() < myTorrentsManager.getFileSizeThresholdMb() * 1024L * 1024L) {
+        continue;
+      }
+      try {
+        final Torrent torrent = TorrentHashingService.getInstance().createTorrent(
+                file, announceURI, "TeamCity", TorrentHashingService.Priority.INTERACTIVE);
+        final File torrentFile = new File(new File(torrentsDir, targetDir), file.getName() + TorrentUtil.TORRENT_FILE_SUFFIX);
+        torrentFile.getParentFile().mkdirs();
+        torrent.save(torrentFile);
+        final String torrentTargetDir = TorrentsDirectorySeeder.TORRENTS_DIT_PATH + (targetDir.length() == 0 ? "" : "/" + targetDir);
+        myArtifactsWatcher.addNewArtifactsPath(torrentFile.getAbsolutePath() + " => " + torrentTargetDir);
+        myTorrentsManager.seedPublishedArtifact(file, torrentFile);
+        LOG.debug("Created torrent for artifact " + file.getAbsolutePath());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return 0;
+      } catch (Exception e) {
+        LOG.warn("Failed to create torrent for " + file.getAbsolutePath() + ", the server will create it: " + e.toString());
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return target directory with forward slashes or null for targets the torrents are not created for:
+   * paths inside archives and the hidden artifacts
+   */
+  @Nullable
+  static String normalizeTargetDir(@Nullable final String targetDir) {
+    String dir = targetDir == null ? "" : targetDir.trim().replace('\\', '/');
+    while (dir.startsWith("/")) dir = dir.substring(1);
+    while (dir.endsWith("/")) dir = dir.substring(0, dir.length() - 1);
+    if (dir.contains("!") || dir.startsWith(".teamcity")) return null;
+    return dir;
+  }
+}
@@ -41,6 +41,10 @@ public class TorrentManagerProxy implements TorrentConfiguration {
     return call("isTorrentEnabled", TorrentConfiguration.DEFAULT_TORRENT_ENABLED);
   }
 
+  public boolean isHybridTorrentsEnabled() {
+    return call("isHybridTorrentsEnabled", TorrentConfiguration.DEFAULT_HYBRID_TORRENTS);
+  }
+
   @NotNull
   private <T> T call(@NotNull String methodName, @NotNull final T defaultValue) {
     try {
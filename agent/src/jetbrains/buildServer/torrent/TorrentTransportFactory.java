@@ -6,19 +6,23 @@ import com.turn.ttorrent.common.Torrent;
 import com.turn.ttorrent.tracker.TrackerHelper;
 import jetbrains.buildServer.ArtifactsConstants;
 import jetbrains.buildServer.NetworkUtil;
-import jetbrains.buildServer.agent.BuildProgressLogger;
-import jetbrains.buildServer.agent.CurrentBuildTracker;
+import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.artifacts.DependencyResolverContext;
 import jetbrains.buildServer.artifacts.TransportFactoryExtension;
 import jetbrains.buildServer.artifacts.URLContentRetriever;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.torrent.seeder.FileLink;
 import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.torrent.MultiFileTorrents;
 import jetbrains.buildServer.torrent.torrent.TeamcityTorrentClient;
+import jetbrains.buildServer.torrent.torrent.TorrentDownload;
 import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import jetbrains.buildServer.torrent.torrent.TrackerScrape;
 import jetbrains.buildServer.http.HttpUtil;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.apache.commons.httpclient.*;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -34,10 +38,8 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathFactory;
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -57,17 +59,51 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
 
   public static final String TEAMCITY_ARTIFACTS_TRANSPORT = "teamcity.artifacts.transport";
 
+  public static final String PREFETCH_THREADS = "teamcity.torrent.prefetch.threads";
+  public static final int DEFAULT_PREFETCH_THREADS = 4;
+
+  public static final String WEB_SEED_ENABLED = "teamcity.torrent.webseed.enabled";
+
+  private static final String MULTI_FILE_STAGING_DIR = "multi";
+  private static final String PREFETCH_STAGING_DIR = "prefetch";
+
 
   private final AgentTorrentsManager myAgentTorrentsManager;
   private final CurrentBuildTracker myBuildTracker;
   private final TorrentConfiguration myConfiguration;
+  private final List<TorrentTransport> myBuildTransports = new CopyOnWriteArrayList<TorrentTransport>();
 
   public TorrentTransportFactory(@NotNull final AgentTorrentsManager agentTorrentsManager,
                                  @NotNull final CurrentBuildTracker currentBuildTracker,
-                                 @NotNull final TorrentConfiguration configuration) {
+                                 @NotNull final TorrentConfiguration configuration,
+                                 @NotNull final EventDispatcher<AgentLifeCycleListener> eventDispatcher) {
     myAgentTorrentsManager = agentTorrentsManager;
     myBuildTracker = currentBuildTracker;
     myConfiguration = configuration;
+    // the artifacts prefetched before the agent restart are neither seeded nor linked
+    FileUtil.delete(getPrefetchStagingDir(agentTorrentsManager.getTorrentsDirectorySeeder().getStorageDirectory()));
+    eventDispatcher.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        for (TorrentTransport transport : myBuildTransports) {
+          transport.interrupt();
+        }
+        myBuildTransports.clear();
+      }
+    });
+  }
+
+  /**
+   * @return directory the artifacts are downloaded to before they are requested
+   */
+  @NotNull
+  private static File getPrefetchStagingDir(@NotNull final File storage) {
+    return new File(getStagingDir(storage), PREFETCH_STAGING_DIR);
+  }
+
+  @NotNull
+  private static File getStagingDir(@NotNull final File storage) {
+    return new File(storage.getParentFile(), storage.getName() + ".staging");
   }
 
   private HttpClient createHttpClient(@NotNull final DependencyResolverContext context) {
@@ -105,9 +141,13 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
       return null;
     }
 
-    return new TorrentTransport(myAgentTorrentsManager.getTorrentsDirectorySeeder(),
+    final TorrentTransport transport = new TorrentTransport(myAgentTorrentsManager.getTorrentsDirectorySeeder(),
             createHttpClient(context),
-            buildLogger);
+            buildLogger,
+            TeamCityProperties.getInteger(PREFETCH_THREADS, DEFAULT_PREFETCH_THREADS));
+    // the prefetched artifacts not requested by the build are discarded when it finishes
+    myBuildTransports.add(transport);
+    return transport;
   }
 
   private boolean shouldUseTorrentTransport() {
@@ -119,25 +159,51 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
   }
 
   protected static class TorrentTransport implements URLContentRetriever {
+    private static final long SCRAPE_MISS_TTL_MS = 10 * 1000;
 
     private final HttpClient myClient;
     private final TeamcityTorrentClient mySeeder;
     private final TorrentsDirectorySeeder myDirectorySeeder;
     private final BuildProgressLogger myBuildLogger;
-    private final AtomicReference<Thread> myCurrentDownload;
+    private final AtomicReference<TorrentDownload> myCurrentDownload;
     private final AtomicBoolean myInterrupted;
 
-    private final Map<String, String> myTorrentsForArtifacts;
+    private final ConcurrentMap<String, Map<String, String>> myTorrentsForArtifacts;
+    private final ConcurrentMap<String, Set<String>> myMultiFileTorrentPaths;
+    private final ConcurrentMap<String, Future<File>> myMultiFileDownloads;
+    private final ConcurrentMap<String, Torrent> myTorrents;
+    private final ConcurrentMap<String, Integer> mySeedersCounts;
+    private final ConcurrentMap<String, Long> myScrapeMisses;
+    private final int myPrefetchThreads;
+    private final ConcurrentMap<String, Future<PrefetchedArtifact>> myPrefetchedArtifacts;
+    private volatile ExecutorService myPrefetchExecutor;
 
     protected TorrentTransport(@NotNull final TorrentsDirectorySeeder directorySeeder,
                                @NotNull final HttpClient client,
                                @NotNull final BuildProgressLogger buildLogger) {
+      this(directorySeeder, client, buildLogger, 0);
+    }
+
+    /**
+     * @param prefetchThreads number of artifacts downloaded in advance at the same time, 0 disables prefetching
+     */
+    protected TorrentTransport(@NotNull final TorrentsDirectorySeeder directorySeeder,
+                               @NotNull final HttpClient client,
+                               @NotNull final BuildProgressLogger buildLogger,
+                               final int prefetchThreads) {
+      myPrefetchThreads = prefetchThreads;
+      myPrefetchedArtifacts = new ConcurrentHashMap<String, Future<PrefetchedArtifact>>();
       myDirectorySeeder = directorySeeder;
       mySeeder = myDirectorySeeder.getTorrentSeeder();
       myClient = client;
       myBuildLogger = buildLogger;
-      myTorrentsForArtifacts = new HashMap<String, String>();
-      myCurrentDownload = new AtomicReference<Thread>();
+      myTorrentsForArtifacts = new ConcurrentHashMap<String, Map<String, String>>();
+      myMultiFileTorrentPaths = new ConcurrentHashMap<String, Set<String>>();
+      myMultiFileDownloads = new ConcurrentHashMap<String, Future<File>>();
+      myTorrents = new ConcurrentHashMap<String, Torrent>();
+      mySeedersCounts = new ConcurrentHashMap<String, Integer>();
+      myScrapeMisses = new ConcurrentHashMap<String, Long>();
+      myCurrentDownload = new AtomicReference<TorrentDownload>();
       myInterrupted = new AtomicBoolean(false);
     }
 
@@ -146,24 +212,31 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
       ParsedArtifactPath parsedArtifactUrl = new ParsedArtifactPath(urlString);
       if (urlString.endsWith(TEAMCITY_IVY)){
         // downloading teamcity-ivy.xml and parsing it:
-        final String digest = parseArtifactsList(urlString, target);
+        final String digest = parseArtifactsList(urlString, parsedArtifactUrl, target);
+        if (digest != null) {
+          startPrefetch(parsedArtifactUrl);
+        }
         return digest;
       }
 
+      final String prefetchedDigest = takePrefetched(parsedArtifactUrl, target);
+      if (prefetchedDigest != null) {
+        return prefetchedDigest;
+      }
+
       Torrent torrent = downloadTorrent(parsedArtifactUrl);
       if (torrent == null) {
-        return null;
+        return downloadFromMultiFileTorrent(parsedArtifactUrl, target);
       }
 
       try {
         myBuildLogger.progressStarted("Downloading " + target.getName() + " via torrent.");
-        if (TrackerHelper.getSeedersCount(torrent) == 0) {
+        if (getSeedersCount(parsedArtifactUrl, torrent) == 0) {
           log2Build("no seeders for " + urlString);
-          return null;
+          return downloadFromWebSeed(parsedArtifactUrl, torrent, target);
         }
         final long startTime = System.currentTimeMillis();
 
-        final AtomicReference<Exception> occuredException = new AtomicReference<Exception>();
         if (mySeeder.isSeeding(torrent)){
           log2Build(String.format("Already seeding torrent (name: %s, hash: %s)", torrent.getName(), torrent.getHexInfoHash()));
           if (!target.exists()){
@@ -180,28 +253,23 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
             mySeeder.stopSeeding(torrent);
           }
         }
-        Thread th = mySeeder.downloadAndShareOrFailAsync(
-                torrent, target, target.getParentFile(), getDownloadTimeoutSec(), MIN_SEEDERS_COUNT_TO_TRY, myInterrupted, occuredException);
-        myCurrentDownload.set(th);
-        th.join();
-        myCurrentDownload.set(null);
-        if (occuredException.get() != null){
-          throw occuredException.get();
+        final TorrentDownload download = mySeeder.downloadAndShareOrFailAsync(
+                torrent, target, target.getParentFile(), getDownloadTimeoutSec(), MIN_SEEDERS_COUNT_TO_TRY, myInterrupted);
+        myCurrentDownload.set(download);
+        try {
+          download.get();
+        } catch (IOException e) {
+          if (myInterrupted.get()) throw e;
+          log2Build(String.format("Unable to download %s from peers: %s", urlString, e.getMessage()));
+          return downloadFromWebSeed(parsedArtifactUrl, torrent, target);
+        } finally {
+          myCurrentDownload.set(null);
         }
 
         final long took = System.currentTimeMillis() - startTime + 1; // to avoid division by zero
         final long fileSize = target.length();
         log2Build(String.format("Download successfull. Avg speed %d kb/s. Saving torrent..", fileSize/took));
-        File parentDir = getRealParentDir(target, parsedArtifactUrl.getArtifactPath());
-        File torrentFile = new File(parentDir, parsedArtifactUrl.getTorrentPath());
-        torrentFile.getParentFile().mkdirs();
-        torrent.save(torrentFile);
-
-
-        final File linkDir = new File(myDirectorySeeder.getStorageDirectory(), parsedArtifactUrl.getRelativeLinkPath()).getParentFile();
-        linkDir.mkdirs();
-
-        FileLink.createLink(target, torrentFile, linkDir);
+        saveTorrentAndLink(parsedArtifactUrl, torrent, target);
         return torrent.getHexInfoHash();
 
       } catch (IOException e) {
@@ -226,18 +294,49 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
     public String getDigest(@NotNull final String urlString) throws IOException {
       ParsedArtifactPath parsedArtifactUrl = new ParsedArtifactPath(urlString);
       Torrent torrent = downloadTorrent(parsedArtifactUrl);
-      return torrent == null ? null : torrent.getHexInfoHash();
+      if (torrent == null) {
+        final MultiFileArtifact artifact = findMultiFileArtifact(parsedArtifactUrl);
+        return artifact == null ? null : artifact.getDigest();
+      }
+      return torrent.getHexInfoHash();
     }
 
     public void interrupt() {
-      final Thread thread = myCurrentDownload.get();
-      if (thread != null){
-        thread.interrupt();
-      }
       myInterrupted.set(true);
+      discardPrefetched();
+      final TorrentDownload download = myCurrentDownload.get();
+      if (download != null){
+        download.cancel();
+      }
+    }
+
+    /**
+     * Stops the prefetches and deletes the prefetched artifacts which were not requested, e.g. the ones
+     * excluded by the dependency rules
+     */
+    private void discardPrefetched() {
+      final ExecutorService prefetchExecutor = myPrefetchExecutor;
+      if (prefetchExecutor != null) {
+        prefetchExecutor.shutdownNow();
+      }
+      for (String artifactUrl : myPrefetchedArtifacts.keySet()) {
+        final Future<PrefetchedArtifact> prefetch = myPrefetchedArtifacts.remove(artifactUrl);
+        if (prefetch == null || prefetch.cancel(true)) continue;
+        try {
+          final PrefetchedArtifact artifact = prefetch.get();
+          if (artifact != null) {
+            mySeeder.stopSeeding(artifact.myTorrent);
+            FileUtil.delete(artifact.myStagingFile);
+          }
+        } catch (Exception e) {
+          // a failed prefetch deletes its file itself
+        }
+      }
     }
 
-    private String parseArtifactsList(@NotNull final String teamcityIvyUrl, @NotNull final File target) {
+    private String parseArtifactsList(@NotNull final String teamcityIvyUrl,
+                                      @NotNull final ParsedArtifactPath ivyPath,
+                                      @NotNull final File target) {
       try {
         byte[] ivyData = download(teamcityIvyUrl);
         XPath xpath = XPathFactory.newInstance().newXPath();
@@ -255,14 +354,22 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
           }
         }
 
+        // the same artifact paths of different builds have different torrents
+        final Map<String, String> torrentsForArtifacts = new HashMap<String, String>();
+        final Set<String> multiFileTorrentPaths = new HashSet<String>();
         for (String s : artifactsSet) {
+          if (MultiFileTorrents.getGroupOfTorrent(s) != null) {
+            multiFileTorrentPaths.add(s);
+          }
           if (s.startsWith(ArtifactsConstants.TEAMCITY_ARTIFACTS_DIR))
             continue;
           String proposedTorrentName = String.format("%s%s.torrent", TEAMCITY_TORRENTS, s);
           if (artifactsSet.contains(proposedTorrentName)){
-            myTorrentsForArtifacts.put(s, proposedTorrentName);
+            torrentsForArtifacts.put(s, proposedTorrentName);
           }
         }
+        myTorrentsForArtifacts.put(ivyPath.getBuildUrl(), torrentsForArtifacts);
+        myMultiFileTorrentPaths.put(ivyPath.getBuildUrl(), multiFileTorrentPaths);
 
         final NodeList info = (NodeList) xpath.evaluate("ivy-module/info",
                 new InputSource(new ByteArrayInputStream(ivyData)), XPathConstants.NODESET);
@@ -281,19 +388,403 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
       return null;
     }
 
+    private void saveTorrentAndLink(@NotNull final ParsedArtifactPath parsedArtifactUrl,
+                                    @NotNull final Torrent torrent,
+                                    @NotNull final File target) throws IOException {
+      File parentDir = getRealParentDir(target, parsedArtifactUrl.getArtifactPath());
+      File torrentFile = new File(parentDir, parsedArtifactUrl.getTorrentPath());
+      torrentFile.getParentFile().mkdirs();
+      torrent.save(torrentFile);
+
+      final File linkDir = new File(myDirectorySeeder.getStorageDirectory(), parsedArtifactUrl.getRelativeLinkPath()).getParentFile();
+      linkDir.mkdirs();
+
+      FileLink.createLink(target, torrentFile, linkDir);
+    }
+
+    /**
+     * Downloads the artifact from the server by pieces and starts seeding it
+     * @return digest of the artifact or null if the artifact should be downloaded over plain HTTP
+     */
+    @Nullable
+    private String downloadFromWebSeed(@NotNull final ParsedArtifactPath parsedArtifactUrl,
+                                       @NotNull final Torrent torrent,
+                                       @NotNull final File target) throws IOException, InterruptedException {
+      if (!TeamCityProperties.getBooleanOrTrue(WEB_SEED_ENABLED)) return null;
+      final String url = parsedArtifactUrl.getArtifactUrl();
+      final long startTime = System.currentTimeMillis();
+      try {
+        if (!new WebSeedDownloader(myClient, myInterrupted).download(torrent, url, target)) {
+          FileUtil.delete(target);
+          return null;
+        }
+      } catch (IOException e) {
+        log2Build(String.format("Unable to download %s from web seed: %s", url, e.getMessage()));
+        FileUtil.delete(target);
+        return null;
+      } catch (InterruptedException e) {
+        FileUtil.delete(target);
+        throw e;
+      }
+      final long took = System.currentTimeMillis() - startTime + 1; // to avoid division by zero
+      log2Build(String.format("Downloaded from web seed. Avg speed %d kb/s. Saving torrent..", target.length()/took));
+      mySeeder.seedTorrent(torrent, target);
+      saveTorrentAndLink(parsedArtifactUrl, torrent, target);
+      return torrent.getHexInfoHash();
+    }
+
+    /**
+     * Starts downloading all torrent-backed artifacts of the build of the ivy file into the staging directory,
+     * at most {@link #myPrefetchThreads} at a time. The artifacts which are not requested are discarded
+     * when the transport is interrupted.
+     */
+    private void startPrefetch(@NotNull final ParsedArtifactPath ivyPath) {
+      final Map<String, String> torrentsForArtifacts = myTorrentsForArtifacts.get(ivyPath.getBuildUrl());
+      if (myPrefetchThreads <= 0 || torrentsForArtifacts == null || torrentsForArtifacts.isEmpty()) return;
+      if (myPrefetchExecutor == null || myPrefetchExecutor.isShutdown()) {
+        myPrefetchExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent artifacts prefetch", myPrefetchThreads);
+      }
+      final List<ParsedArtifactPath> artifactUrls = new ArrayList<ParsedArtifactPath>();
+      final List<FutureTask<PrefetchedArtifact>> tasks = new ArrayList<FutureTask<PrefetchedArtifact>>();
+      for (final String artifactPath : torrentsForArtifacts.keySet()) {
+        final ParsedArtifactPath artifactUrl = ivyPath.withArtifactPath(artifactPath);
+        if (myPrefetchedArtifacts.containsKey(artifactUrl.getArtifactUrl())) continue;
+        final FutureTask<PrefetchedArtifact> task = new FutureTask<PrefetchedArtifact>(new Callable<PrefetchedArtifact>() {
+          public PrefetchedArtifact call() throws Exception {
+            return prefetch(artifactUrl);
+          }
+        });
+        myPrefetchedArtifacts.put(artifactUrl.getArtifactUrl(), task);
+        artifactUrls.add(artifactUrl);
+        tasks.add(task);
+      }
+      final ExecutorService executor = myPrefetchExecutor;
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            checkAvailability(ivyPath.getServerUrl(), artifactUrls);
+          } finally {
+            for (FutureTask<PrefetchedArtifact> task : tasks) {
+              try {
+                executor.execute(task);
+              } catch (RejectedExecutionException e) {
+                task.cancel(false);
+              }
+            }
+          }
+        }
+      });
+    }
+
+    /**
+     * Fetches the torrents of the artifacts and gets their seeders from the tracker in a single scrape request
+     */
+    private void checkAvailability(@NotNull final String serverUrl, @NotNull final Collection<ParsedArtifactPath> artifactUrls) {
+      final List<Torrent> torrents = new ArrayList<Torrent>();
+      for (ParsedArtifactPath artifactUrl : artifactUrls) {
+        if (myInterrupted.get()) return;
+        final Torrent torrent = downloadTorrent(artifactUrl);
+        if (torrent != null && !mySeedersCounts.containsKey(torrent.getHexInfoHash()) && !isRecentScrapeMiss(torrent.getHexInfoHash())) {
+          torrents.add(torrent);
+        }
+      }
+      scrape(serverUrl, torrents);
+    }
+
+    private int getSeedersCount(@NotNull final ParsedArtifactPath artifactUrl, @NotNull final Torrent torrent) {
+      final String hash = torrent.getHexInfoHash();
+      Integer count = mySeedersCounts.get(hash);
+      if (count == null && !isRecentScrapeMiss(hash)) {
+        scrape(artifactUrl.getServerUrl(), Collections.singletonList(torrent));
+        count = mySeedersCounts.get(hash);
+      }
+      if (count != null) return count;
+      return isRecentScrapeMiss(hash) ? 0 : TrackerHelper.getSeedersCount(torrent);
+    }
+
+    private boolean isRecentScrapeMiss(@NotNull final String hash) {
+      final Long missTime = myScrapeMisses.get(hash);
+      return missTime != null && System.currentTimeMillis() - missTime < SCRAPE_MISS_TTL_MS;
+    }
+
+    /**
+     * Asks the server tracker for the seeders of the torrents, torrents unknown to the tracker have no seeders.
+     * A torrent unknown to the tracker may be announced soon, so it is scraped again after {@link #SCRAPE_MISS_TTL_MS}.
+     * Does nothing if the server does not support scrape requests.
+     */
+    private void scrape(@NotNull final String serverUrl, @NotNull final Collection<Torrent> torrents) {
+      if (torrents.isEmpty()) return;
+      final List<String> hashes = new ArrayList<String>();
+      for (Torrent torrent : torrents) {
+        hashes.add(torrent.getHexInfoHash());
+      }
+      final GetMethod getMethod = new GetMethod(serverUrl + TrackerScrape.PATH + "?" + TrackerScrape.buildQuery(hashes));
+      InputStream in = null;
+      try {
+        myClient.executeMethod(getMethod);
+        if (getMethod.getStatusCode() != HttpStatus.SC_OK) {
+          LOG.debug(String.format("Scrape is not available at %s: [%d]", serverUrl, getMethod.getStatusCode()));
+          return;
+        }
+        in = getMethod.getResponseBodyAsStream();
+        final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        StreamUtil.copyStreamContent(in, bOut);
+        final Map<String, TrackerScrape.Stats> stats = TrackerScrape.decodeResponse(bOut.toByteArray());
+        for (String hash : hashes) {
+          final TrackerScrape.Stats hashStats = stats.get(hash);
+          if (hashStats == null) {
+            myScrapeMisses.put(hash, System.currentTimeMillis());
+          } else {
+            myScrapeMisses.remove(hash);
+            mySeedersCounts.put(hash, hashStats.getComplete());
+          }
+        }
+      } catch (IOException e) {
+        LOG.debug("Failed to scrape " + serverUrl + ": " + e.toString());
+      } finally {
+        FileUtil.close(in);
+        getMethod.releaseConnection();
+      }
+    }
+
+    @Nullable
+    private PrefetchedArtifact prefetch(@NotNull final ParsedArtifactPath artifactUrl) throws Exception {
+      if (myInterrupted.get()) return null;
+      final Torrent torrent = downloadTorrent(artifactUrl);
+      if (torrent == null || mySeeder.isSeeding(torrent) || getSeedersCount(artifactUrl, torrent) < MIN_SEEDERS_COUNT_TO_TRY) {
+        return null;
+      }
+      final File stagingFile = new File(getPrefetchStagingDir(myDirectorySeeder.getStorageDirectory()), artifactUrl.getRelativeLinkPath());
+      FileUtil.delete(stagingFile);
+      final TorrentDownload download = mySeeder.downloadAndShareOrFailAsync(
+              torrent, stagingFile, stagingFile.getParentFile(), getDownloadTimeoutSec(), MIN_SEEDERS_COUNT_TO_TRY, myInterrupted);
+      try {
+        download.get();
+      } catch (Exception e) {
+        LOG.debug("Failed to prefetch " + artifactUrl.getArtifactUrl() + ": " + e.toString());
+        FileUtil.delete(stagingFile);
+        throw e;
+      }
+      if (myInterrupted.get()) {
+        mySeeder.stopSeeding(torrent);
+        FileUtil.delete(stagingFile);
+        return null;
+      }
+      return new PrefetchedArtifact(torrent, stagingFile);
+    }
+
+    /**
+     * Moves the prefetched artifact to the target and seeds it from there
+     * @return digest of the artifact or null if the artifact was not prefetched
+     */
+    @Nullable
+    private String takePrefetched(@NotNull final ParsedArtifactPath artifactUrl, @NotNull final File target) throws IOException {
+      final Future<PrefetchedArtifact> prefetch = myPrefetchedArtifacts.remove(artifactUrl.getArtifactUrl());
+      if (prefetch == null) return null;
+      final ExecutorService prefetchExecutor = myPrefetchExecutor;
+      if (myPrefetchedArtifacts.isEmpty() && prefetchExecutor != null) {
+        prefetchExecutor.shutdown();
+      }
+      final PrefetchedArtifact artifact;
+      try {
+        artifact = prefetch.get();
+      } catch (InterruptedException e) {
+        throw new IOException("Torrent download has been interrupted " + artifactUrl.getArtifactUrl(), e);
+      } catch (Exception e) {
+        return null;
+      }
+      if (artifact == null || !artifact.myStagingFile.isFile()) return null;
+
+      final Torrent torrent = artifact.myTorrent;
+      mySeeder.stopSeeding(torrent);
+      target.getParentFile().mkdirs();
+      FileUtil.delete(target);
+      if (!artifact.myStagingFile.renameTo(target)) {
+        FileUtil.copy(artifact.myStagingFile, target);
+        FileUtil.delete(artifact.myStagingFile);
+      }
+      log2Build(String.format("Using prefetched artifact %s (hash: %s)", target.getName(), torrent.getHexInfoHash()));
+      mySeeder.seedTorrent(torrent, target);
+      saveTorrentAndLink(artifactUrl, torrent, target);
+      return torrent.getHexInfoHash();
+    }
+
+    /**
+     * Downloads the multi-file torrent the artifact is packaged into and copies the artifact from it.
+     * The torrent is downloaded once into the staging directory and is seeded from there, the other
+     * artifacts of the torrent are copied from the same download.
+     * @return digest of the artifact or null if the artifact should be downloaded over plain HTTP
+     */
+    @Nullable
+    private String downloadFromMultiFileTorrent(@NotNull final ParsedArtifactPath artifactUrl,
+                                                @NotNull final File target) throws IOException {
+      final MultiFileArtifact artifact = findMultiFileArtifact(artifactUrl);
+      if (artifact == null) return null;
+      try {
+        myBuildLogger.progressStarted("Downloading " + target.getName() + " via multi-file torrent.");
+        final File dir = getMultiFileDownload(artifactUrl, artifact);
+        final File srcFile = dir == null ? null : new File(dir, artifact.myPathInTorrent);
+        if (srcFile == null || !srcFile.isFile()) return null;
+        target.getParentFile().mkdirs();
+        FileUtil.copy(srcFile, target);
+        log2Build(String.format("Copied %s from multi-file torrent (name: %s, hash: %s)",
+                target.getName(), artifact.myTorrent.getName(), artifact.myTorrent.getHexInfoHash()));
+        return artifact.getDigest();
+      } catch (InterruptedException e) {
+        throw new IOException("Torrent download has been interrupted " + artifactUrl.getArtifactUrl(), e);
+      } finally {
+        myBuildLogger.progressFinished();
+      }
+    }
+
+    @Nullable
+    private MultiFileArtifact findMultiFileArtifact(@NotNull final ParsedArtifactPath artifactUrl) {
+      final Set<String> multiFileTorrentPaths = myMultiFileTorrentPaths.get(artifactUrl.getBuildUrl());
+      for (String torrentPath : MultiFileTorrents.getCandidateTorrentPaths(artifactUrl.getArtifactPath())) {
+        final String group = MultiFileTorrents.getGroupOfTorrent(torrentPath);
+        if (group == null || multiFileTorrentPaths == null || !multiFileTorrentPaths.contains(torrentPath)) continue;
+        final Torrent torrent = downloadTorrent(artifactUrl.withArtifactPath(torrentPath).getArtifactUrl());
+        if (torrent == null) continue;
+        final String pathInTorrent = MultiFileTorrents.getPathInTorrent(group, torrent, artifactUrl.getArtifactPath());
+        if (pathInTorrent != null) {
+          return new MultiFileArtifact(torrent, pathInTorrent);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return directory the torrent is downloaded to or null if it can not be downloaded from peers
+     */
+    @Nullable
+    private File getMultiFileDownload(@NotNull final ParsedArtifactPath artifactUrl,
+                                      @NotNull final MultiFileArtifact artifact) throws InterruptedException {
+      final Torrent torrent = artifact.myTorrent;
+      if (mySeeder.isSeeding(torrent)) {
+        final File folder = mySeeder.findSeedingTorrentFolder(torrent);
+        if (folder != null) return folder;
+      }
+      final FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+        public File call() throws Exception {
+          return downloadMultiFileTorrent(artifactUrl, artifact);
+        }
+      });
+      final Future<File> existing = myMultiFileDownloads.putIfAbsent(torrent.getHexInfoHash(), task);
+      if (existing == null) {
+        task.run();
+      }
+      try {
+        return (existing == null ? task : existing).get();
+      } catch (ExecutionException e) {
+        return null;
+      }
+    }
+
+    @Nullable
+    private File downloadMultiFileTorrent(@NotNull final ParsedArtifactPath artifactUrl,
+                                          @NotNull final MultiFileArtifact artifact) throws Exception {
+      final Torrent torrent = artifact.myTorrent;
+      if (getSeedersCount(artifactUrl, torrent) < MIN_SEEDERS_COUNT_TO_TRY) {
+        log2Build("not enough seeders for multi-file torrent " + torrent.getName());
+        return null;
+      }
+      final File multiFileDir = new File(getStagingDir(), MULTI_FILE_STAGING_DIR);
+      deleteNotSeededDownloads(multiFileDir);
+      final File dir = new File(multiFileDir, torrent.getHexInfoHash());
+      final long startTime = System.currentTimeMillis();
+      final TorrentDownload download = mySeeder.downloadAndShareOrFailAsync(
+              torrent, new File(dir, artifact.myPathInTorrent), dir, getDownloadTimeoutSec(), MIN_SEEDERS_COUNT_TO_TRY, myInterrupted);
+      myCurrentDownload.set(download);
+      try {
+        download.get();
+      } catch (IOException e) {
+        if (myInterrupted.get()) throw e;
+        log2Build(String.format("Unable to download multi-file torrent %s from peers: %s", torrent.getName(), e.getMessage()));
+        FileUtil.delete(dir);
+        return null;
+      } finally {
+        myCurrentDownload.set(null);
+      }
+      final long took = System.currentTimeMillis() - startTime + 1; // to avoid division by zero
+      log2Build(String.format("Downloaded multi-file torrent %s. Avg speed %d kb/s", torrent.getName(), torrent.getSize() / took));
+      saveMultiFileTorrentAndLink(torrent, dir);
+      return dir;
+    }
+
+    /**
+     * Links the downloaded directory from the torrents storage, so the download is evicted by the retention
+     * limits of the storage like the downloads of single files
+     */
+    private void saveMultiFileTorrentAndLink(@NotNull final Torrent torrent, @NotNull final File dir) throws IOException {
+      final File torrentFile = getMultiFileTorrentFile(dir);
+      torrent.save(torrentFile);
+
+      final File linkDir = new File(myDirectorySeeder.getStorageDirectory(), MULTI_FILE_STAGING_DIR);
+      linkDir.mkdirs();
+
+      FileLink.createLink(dir, torrentFile, linkDir);
+    }
+
+    /**
+     * Removes the downloads which are not seeded anymore: the downloads evicted from the torrents storage
+     * and the downloads left by the previous runs of the agent
+     */
+    private void deleteNotSeededDownloads(@NotNull final File multiFileDir) {
+      final File[] dirs = multiFileDir.listFiles();
+      if (dirs == null) return;
+      for (File dir : dirs) {
+        if (!dir.isDirectory()) continue;
+        if (!myMultiFileDownloads.containsKey(dir.getName()) && !isSeedingFrom(dir)) {
+          FileUtil.delete(dir);
+          FileUtil.delete(getMultiFileTorrentFile(dir));
+        }
+      }
+    }
+
+    @NotNull
+    private static File getMultiFileTorrentFile(@NotNull final File downloadDir) {
+      return new File(downloadDir.getParentFile(), downloadDir.getName() + TorrentUtil.TORRENT_FILE_SUFFIX);
+    }
+
+    private boolean isSeedingFrom(@NotNull final File downloadDir) {
+      final File[] files = downloadDir.listFiles();
+      if (files == null) return false;
+      for (File file : files) {
+        if (mySeeder.isSeedingByPath(file)) return true;
+      }
+      return false;
+    }
+
+    @NotNull
+    private File getStagingDir() {
+      return TorrentTransportFactory.getStagingDir(myDirectorySeeder.getStorageDirectory());
+    }
+
     private void log2Build(String msg) {
       TorrentUtil.log2Build(msg, myBuildLogger);
     }
 
 
     private Torrent downloadTorrent(@NotNull final ParsedArtifactPath parsedArtifactUrl) {
-      final String torrentRelativePath = myTorrentsForArtifacts.get(parsedArtifactUrl.getArtifactPath());
-      if (torrentRelativePath == null)
+      final Map<String, String> torrentsForArtifacts = myTorrentsForArtifacts.get(parsedArtifactUrl.getBuildUrl());
+      if (torrentsForArtifacts == null || !torrentsForArtifacts.containsKey(parsedArtifactUrl.getArtifactPath()))
         return null;
 
+      return downloadTorrent(parsedArtifactUrl.getTorrentUrl());
+    }
+
+    /**
+     * @param torrentUrl full URL of the torrent, the same artifact path of different builds has different torrents
+     */
+    private Torrent downloadTorrent(@NotNull final String torrentUrl) {
+      final Torrent known = myTorrents.get(torrentUrl);
+      if (known != null) return known;
+
       try {
-        byte[] torrentData = download(parsedArtifactUrl.getTorrentUrl());
-        return new Torrent(torrentData, true);
+        byte[] torrentData = download(torrentUrl);
+        final Torrent torrent = new Torrent(torrentData, true);
+        myTorrents.put(torrentUrl, torrent);
+        return torrent;
       } catch (NoSuchAlgorithmException e) {
         LOG.error("NoSuchAlgorithmException", e);
       } catch (IOException e) {
@@ -330,7 +821,39 @@ public class TorrentTransportFactory implements TransportFactoryExtension {
     }
 
     private long getDownloadTimeoutSec() {
-      return TeamCityProperties.getLong("teamcity.torrent.download.timeout", 10L);
+      return TeamCityProperties.getLong(AgentTorrentsManager.DOWNLOAD_TIMEOUT, 10L);
+    }
+
+    private static final class MultiFileArtifact {
+      @NotNull
+      private final Torrent myTorrent;
+      @NotNull
+      private final String myPathInTorrent;
+
+      private MultiFileArtifact(@NotNull Torrent torrent, @NotNull String pathInTorrent) {
+        myTorrent = torrent;
+        myPathInTorrent = pathInTorrent;
+      }
+
+      /**
+       * Artifacts of the same torrent share the info hash, the digest includes the path of the file
+       */
+      @NotNull
+      private String getDigest() {
+        return myTorrent.getHexInfoHash() + "/" + myPathInTorrent;
+      }
+    }
+
+    private static final class PrefetchedArtifact {
+      @NotNull
+      private final Torrent myTorrent;
+      @NotNull
+      private final File myStagingFile;
+
+      private PrefetchedArtifact(@NotNull Torrent torrent, @NotNull File stagingFile) {
+        myTorrent = torrent;
+        myStagingFile = stagingFile;
+      }
     }
 
   }
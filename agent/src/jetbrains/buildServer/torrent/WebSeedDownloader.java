@@ -0,0 +1,141 @@
+package jetbrains.buildServer.torrent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.torrent.torrent.MerkleVerifier;
+import jetbrains.buildServer.torrent.torrent.PieceVerifier;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uses the HTTP artifact URL as a web seed (BEP 19): downloads the pieces of a single-file torrent
+ * with range requests and checks each of them against the torrent. The pieces of a hybrid torrent
+ * are checked against its v2 piece layer as well.
+ */
+public class WebSeedDownloader {
+  private final static Logger LOG = Logger.getInstance(WebSeedDownloader.class.getName());
+
+  private static final long MAX_RANGE_SIZE = 16 * 1024 * 1024;
+
+  @NotNull
+  private final HttpClient myClient;
+  @NotNull
+  private final AtomicBoolean myInterrupted;
+
+  public WebSeedDownloader(@NotNull final HttpClient client, @NotNull final AtomicBoolean interrupted) {
+    myClient = client;
+    myInterrupted = interrupted;
+  }
+
+  /**
+   * Downloads the pieces missing in the target file. Pieces already present and valid are kept.
+   * @return false if the torrent is not a single-file one or the server does not support range requests
+   * @throws IOException if the server failed the request or returned a piece not matching the torrent
+   */
+  public boolean download(@NotNull final Torrent torrent,
+                          @NotNull final String url,
+                          @NotNull final File target) throws IOException, InterruptedException {
+    final PieceVerifier verifier = PieceVerifier.forTorrent(torrent);
+    if (verifier == null) return false;
+    final MerkleVerifier merkleVerifier = MerkleVerifier.forTorrent(torrent);
+
+    final BitSet present = target.isFile() ? verifier.verify(target) : new BitSet();
+    final int piecesCount = verifier.getPiecesCount();
+    final int piecesPerRange = (int) Math.max(1, MAX_RANGE_SIZE / verifier.getPieceLength());
+
+    FileUtil.createParentDirs(target);
+    RandomAccessFile out = null;
+    try {
+      out = new RandomAccessFile(target, "rw");
+      out.setLength(verifier.getLength());
+      int piece = present.nextClearBit(0);
+      while (piece < piecesCount) {
+        int end = piece;
+        while (end < piecesCount && end - piece < piecesPerRange && !present.get(end)) {
+          end++;
+        }
+        if (!downloadRange(verifier, merkleVerifier, url, piece, end, out, present)) {
+          return false;
+        }
+        for (int i = piece; i < end; i++) {
+          if (present.get(i)) continue;
+          if (!downloadRange(verifier, merkleVerifier, url, i, i + 1, out, present)) {
+            return false;
+          }
+          if (!present.get(i)) {
+            throw new IOException(String.format("Piece %d of %s does not match torrent %s", i, url, torrent.getHexInfoHash()));
+          }
+        }
+        piece = present.nextClearBit(end);
+      }
+    } finally {
+      FileUtil.close(out);
+    }
+    LOG.debug(String.format("Downloaded %s from web seed %s", target.getAbsolutePath(), url));
+    return true;
+  }
+
+  /**
+   * Requests pieces [from, to) in one range and writes the valid ones
+   * @return false if the server ignored the range request
+   * @throws IOException if the server failed the request
+   */
+  private boolean downloadRange(@NotNull final PieceVerifier verifier,
+                                @Nullable final MerkleVerifier merkleVerifier,
+                                @NotNull final String url,
+                                final int from,
+                                final int to,
+                                @NotNull final RandomAccessFile out,
+                                @NotNull final BitSet present) throws IOException, InterruptedException {
+    final long start = verifier.getPieceOffset(from);
+    final long end = verifier.getPieceOffset(to - 1) + verifier.getPieceSize(to - 1) - 1;
+    final GetMethod getMethod = new GetMethod(url);
+    getMethod.setRequestHeader("Range", String.format("bytes=%d-%d", start, end));
+    InputStream in = null;
+    try {
+      myClient.executeMethod(getMethod);
+      if (getMethod.getStatusCode() == HttpStatus.SC_OK) {
+        // the server ignored the range and sends the whole file, plain HTTP download is cheaper then
+        LOG.debug(String.format("Web seed %s does not support range requests", url));
+        return false;
+      }
+      if (getMethod.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+        throw new IOException(String.format("Web seed %s answered [%d] to range request", url, getMethod.getStatusCode()));
+      }
+      in = getMethod.getResponseBodyAsStream();
+      final byte[] buffer = new byte[(int) verifier.getPieceLength()];
+      for (int piece = from; piece < to; piece++) {
+        if (myInterrupted.get()) {
+          throw new InterruptedException("Web seed download of " + url + " has been interrupted");
+        }
+        final int size = verifier.getPieceSize(piece);
+        int read = 0;
+        while (read < size) {
+          final int n = in.read(buffer, read, size - read);
+          if (n < 0) return true;
+          read += n;
+        }
+        if (verifier.isValid(piece, buffer, size) && (merkleVerifier == null || merkleVerifier.isValidPiece(piece, buffer, size))) {
+          out.seek(verifier.getPieceOffset(piece));
+          out.write(buffer, 0, size);
+          present.set(piece);
+        }
+      }
+      return true;
+    } finally {
+      FileUtil.close(in);
+      getMethod.releaseConnection();
+    }
+  }
+}
@@ -61,6 +61,7 @@ public class AgentTorrentsManagerTest extends BaseTestCase {
 
     myConfigurationMock = mock(BuildAgentConfiguration.class);
     myConfigurationMock.stubs().method("getCacheDirectory").will(returnValue(myLinkDir));
+    myConfigurationMock.stubs().method("getCacheDirectory").with(eq(AgentTorrentsManager.PUBLISHED_TORRENTS_FOLDER_NAME)).will(returnValue(createTempDir()));
 
     Mockery m = new Mockery();
     final TorrentConfiguration trackerConfiguration = m.mock(TorrentConfiguration.class);
@@ -162,6 +163,73 @@ public class AgentTorrentsManagerTest extends BaseTestCase {
     }
   }
 
+  public void copy_of_published_artifact_seeded_until_evicted() throws Exception {
+    System.setProperty(AgentTorrentsManager.SEED_PUBLISHED, "true");
+    Tracker tracker = new Tracker(6969);
+    try {
+      tracker.start(true);
+      myTorrentsManager.agentStarted((BuildAgent) mock(BuildAgent.class).proxy());
+      final Mock build = buildStarted();
+
+      final File artifactFile = createTempFile(65535);
+      final File torrentFile = publishTorrent(artifactFile, tracker);
+      final File copy = new File(torrentFile.getParentFile(), artifactFile.getName());
+
+      // the artifact itself is seeded while the build runs
+      myTorrentsManager.seedPublishedArtifact(artifactFile, torrentFile);
+      assertFalse(copy.isFile());
+      assertEquals(0, myTorrentsManager.getNumberOfSeededPublishedArtifacts());
+      new WaitFor(3*1000){
+        @Override
+        protected boolean condition() {
+          return myTorrentsManager.getTorrentsDirectorySeeder().getNumberOfSeededTorrents() == 1;
+        }
+      };
+      assertEquals(1, myTorrentsManager.getTorrentsDirectorySeeder().getNumberOfSeededTorrents());
+
+      // the copy replaces it in background after the build finishes
+      myTorrentsManager.buildFinished((AgentRunningBuild) build.proxy(), BuildFinishedStatus.FINISHED_SUCCESS);
+      new WaitFor(3*1000){
+        @Override
+        protected boolean condition() {
+          return myTorrentsManager.getNumberOfSeededPublishedArtifacts() == 1
+                 && myTorrentsManager.getTorrentsDirectorySeeder().getNumberOfSeededTorrents() == 1;
+        }
+      };
+      assertEquals(1, myTorrentsManager.getNumberOfSeededPublishedArtifacts());
+      assertTrue(copy.isFile());
+      assertEquals(1, myTorrentsManager.getTorrentsDirectorySeeder().getNumberOfSeededTorrents());
+      assertEquals(1, myTorrentsManager.getTorrentsDirectorySeeder().getLinksIndex().getEntries().size());
+
+      // the next build may change the checkout directory, the copy is still seeded
+      assertTrue(artifactFile.delete());
+      buildStarted();
+      assertEquals(1, myTorrentsManager.getNumberOfSeededPublishedArtifacts());
+      assertTrue(torrentFile.isFile());
+      assertTrue(copy.isFile());
+
+      myTorrentsManager.getTorrentsDirectorySeeder().setMaxTorrentsToSeed(1);
+      final File otherArtifact = createTempFile(65535);
+      myTorrentsManager.seedPublishedArtifact(otherArtifact, publishTorrent(otherArtifact, tracker));
+      myTorrentsManager.buildFinished((AgentRunningBuild) build.proxy(), BuildFinishedStatus.FINISHED_SUCCESS);
+      new WaitFor(3*1000){
+        @Override
+        protected boolean condition() {
+          return myTorrentsManager.getTorrentsDirectorySeeder().getLinksIndex().getEntries().size() == 1;
+        }
+      };
+      assertEquals(1, myTorrentsManager.getTorrentsDirectorySeeder().getLinksIndex().getEntries().size());
+
+      buildStarted();
+      assertEquals(1, myTorrentsManager.getNumberOfSeededPublishedArtifacts());
+      assertTrue(copy.isFile() != new File(torrentFile.getParentFile(), otherArtifact.getName()).isFile());
+    } finally {
+      System.clearProperty(AgentTorrentsManager.SEED_PUBLISHED);
+      myTorrentsManager.agentShutdown();
+      tracker.stop();
+    }
+  }
+
   public void test_links_created_when_artifact_is_published() throws Exception {
     throw new SkipException("Temporary skipped");
 /*
@@ -263,6 +331,14 @@ public class AgentTorrentsManagerTest extends BaseTestCase {
 */
   }
 
+  @NotNull
+  private File publishTorrent(@NotNull File artifactFile, @NotNull Tracker tracker) throws Exception {
+    final File torrentFile = new File(myTorrentsManager.getPublishedTorrentsDir(1), artifactFile.getName() + ".torrent");
+    torrentFile.getParentFile().mkdirs();
+    Torrent.create(artifactFile, tracker.getAnnounceURI(), "tc-plugin-test").save(torrentFile);
+    return torrentFile;
+  }
+
   @NotNull
   private Mock buildStarted() throws IOException {
     Mock buildMock = mock(AgentRunningBuild.class);
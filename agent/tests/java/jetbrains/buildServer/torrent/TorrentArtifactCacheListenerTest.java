@@ -8,8 +8,10 @@ import jetbrains.buildServer.artifacts.ArtifactsCacheListener;
 import jetbrains.buildServer.artifacts.impl.DirectoryCacheProviderImpl;
 import jetbrains.buildServer.artifacts.impl.SimpleDigestCalculator;
 import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
 import jetbrains.buildServer.messages.BuildMessage1;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.WaitFor;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
@@ -60,12 +62,14 @@ public class TorrentArtifactCacheListenerTest extends BaseTestCase {
     final CurrentBuildTracker buildTracker = m.mock(CurrentBuildTracker.class);
     final BuildAgentConfiguration buildAgentConf = m.mock(BuildAgentConfiguration.class);
     final ArtifactCacheProvider cacheProvider = m.mock(ArtifactCacheProvider.class);
+    final File publishedDir = createTempDir();
 
     m.checking(new Expectations(){{
       allowing(buildTracker).getCurrentBuild(); will(returnValue(build));
       allowing(build).getBuildLogger(); will(returnValue(logger));
       allowing(build).getAgentConfiguration(); will(returnValue(buildAgentConf));
       allowing(buildAgentConf).getCacheDirectory(AgentTorrentsManager.TORRENT_FOLDER_NAME); will(returnValue(myLinksDir));
+      allowing(buildAgentConf).getCacheDirectory(AgentTorrentsManager.PUBLISHED_TORRENTS_FOLDER_NAME); will(returnValue(publishedDir));
       allowing(cacheProvider).addListener(with(any(ArtifactsCacheListener.class)));
     }});
 
@@ -90,6 +94,10 @@ public class TorrentArtifactCacheListenerTest extends BaseTestCase {
       public boolean isTorrentEnabled() {
         return true;
       }
+
+      public boolean isHybridTorrentsEnabled() {
+        return false;
+      }
     };
 
     AgentTorrentsManager manager = new AgentTorrentsManager(
@@ -110,7 +118,7 @@ public class TorrentArtifactCacheListenerTest extends BaseTestCase {
     File newLocation = new File(myCacheDir, CONTEXT_PATH + file.getName());
     FileUtils.moveFile(file, newLocation);
     myCacheListener.onAfterAddOrUpdate(newLocation);
-    assertEquals(1, mySeeder.getNumberOfSeededTorrents());
+    waitForSeededTorrents(1);
     final SharedTorrent torrent = mySeeder.getSharedTorrents().iterator().next();
     assertEquals(newLocation.getAbsolutePath(), torrent.getParentFile().getAbsolutePath() + File.separatorChar + torrent.getFilenames().get(0));
   }
@@ -121,13 +129,28 @@ public class TorrentArtifactCacheListenerTest extends BaseTestCase {
     File newLocation = new File(myCacheDir, CONTEXT_PATH + file.getName());
     FileUtils.moveFile(file, newLocation);
     myCacheListener.onAfterAddOrUpdate(newLocation);
-    assertEquals(1, mySeeder.getNumberOfSeededTorrents());
+    waitForSeededTorrents(1);
     final SharedTorrent torrent = mySeeder.getSharedTorrents().iterator().next();
     assertEquals(newLocation.getAbsolutePath(), torrent.getParentFile().getAbsolutePath() + File.separatorChar + torrent.getFilenames().get(0));
     myCacheListener.onBeforeDelete(newLocation);
     assertEquals(0, mySeeder.getNumberOfSeededTorrents());
   }
 
+  public void test_repeated_events_coalesced() throws IOException {
+    File file = createTempFile(1024*1025);
+
+    File newLocation = new File(myCacheDir, CONTEXT_PATH + file.getName());
+    FileUtils.moveFile(file, newLocation);
+    final long hashedBytesBefore = TorrentHashingService.getInstance().getHashedBytes();
+    for (int i = 0; i < 5; i++) {
+      myCacheListener.onAfterAddOrUpdate(newLocation);
+    }
+    waitForSeededTorrents(1);
+    assertEquals(1, mySeeder.getNumberOfSeededTorrents());
+    // the events of the unchanged file are coalesced into a single hashing pass
+    assertEquals(newLocation.length(), TorrentHashingService.getInstance().getHashedBytes() - hashedBytesBefore);
+  }
+
   public void test_torrent_like_file() throws IOException {
     File file = createTempFile(Integer.MAX_VALUE+":sourcesUpdated\n" +
             Integer.MAX_VALUE+":runnerFinished:Fetch artifacts (Ant)\n" +
@@ -145,4 +168,14 @@ public class TorrentArtifactCacheListenerTest extends BaseTestCase {
     assertTrue(totalAfter-totalBefore < ONEGB/10);
     assertEquals(0, mySeeder.getNumberOfSeededTorrents());
   }
+
+  private void waitForSeededTorrents(final int count) {
+    new WaitFor(10 * 1000) {
+      @Override
+      protected boolean condition() {
+        return mySeeder.getNumberOfSeededTorrents() == count;
+      }
+    };
+    assertEquals(count, mySeeder.getNumberOfSeededTorrents());
+  }
 }
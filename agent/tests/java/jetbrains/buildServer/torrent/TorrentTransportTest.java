@@ -27,6 +27,7 @@ import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
 import jetbrains.buildServer.messages.BuildMessage1;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.WaitFor;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jetty.server.Server;
@@ -45,6 +46,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.security.NoSuchAlgorithmException;
@@ -342,6 +344,126 @@ public class TorrentTransportTest extends BaseTestCase {
       tracker.stop();
     }
   }
+  public void testPrefetchedArtifactNotUsedForOtherBuild() throws IOException, NoSuchAlgorithmException, InterruptedException {
+    setTorrentTransportEnabled();
+    setDownloadHonestly(true);
+
+    final File storageDir = new File(myTempDir, "storageDir");
+    storageDir.mkdir();
+    final File downloadDir = new File(myTempDir, "downloadDir");
+    downloadDir.mkdir();
+    final File torrentsDir = new File(myTempDir, "torrentsDir");
+    torrentsDir.mkdir();
+    final String fileName = "MyBuild.31.zip";
+    final File artifactFile = new File(storageDir, fileName);
+    createTempFile(20250).renameTo(artifactFile);
+
+    final TorrentTransportFactory.TorrentTransport prefetchingTransport =
+            new TorrentTransportFactory.TorrentTransport(myDirectorySeeder, new HttpClient(), myBuild.getBuildLogger(), 1);
+    final File teamcityIvyFile = new File("agent/tests/resources/" +  TorrentTransportFactory.TEAMCITY_IVY);
+    myDownloadMap.put("/" + TorrentTransportFactory.TEAMCITY_IVY, teamcityIvyFile);
+    Tracker tracker = new Tracker(6969);
+    List<Client> clientList = new ArrayList<Client>();
+    for (int i=0; i< TorrentTransportFactory.MIN_SEEDERS_COUNT_TO_TRY; i++){
+      clientList.add(new Client());
+    }
+    try {
+      tracker.start(true);
+
+      myDirectorySeeder.start(new InetAddress[]{InetAddress.getLocalHost()}, tracker.getAnnounceURI(), 5);
+
+      final Torrent torrent = Torrent.create(artifactFile, tracker.getAnnounceURI(), "testplugin");
+      final File torrentFile = new File(torrentsDir, fileName + ".torrent");
+      torrent.save(torrentFile);
+      myDownloadMap.put("/.teamcity/torrents/" + fileName + ".torrent", torrentFile);
+      for (Client client : clientList) {
+        client.start(InetAddress.getLocalHost());
+        client.addTorrent(SharedTorrent.fromFile(torrentFile, storageDir, true));
+      }
+      prefetchingTransport.downloadUrlTo(SERVER_PATH + TorrentTransportFactory.TEAMCITY_IVY,
+              new File(myTempDir, TorrentTransportFactory.TEAMCITY_IVY));
+
+      // the same artifact path of another build must not be taken from the prefetched artifacts
+      final File otherTargetFile = new File(downloadDir, "other/" + fileName);
+      assertNull(prefetchingTransport.downloadUrlTo(
+              "http://localhost:12345/httpAuth/repository/download/OtherBuild/1.tcbuildid/" + fileName, otherTargetFile));
+      assertFalse(otherTargetFile.exists());
+
+      final File targetFile = new File(downloadDir, fileName);
+      assertEquals(torrent.getHexInfoHash(), prefetchingTransport.downloadUrlTo(SERVER_PATH + fileName, targetFile));
+      assertTrue(FileUtils.contentEquals(artifactFile, targetFile));
+    } finally {
+      prefetchingTransport.interrupt();
+      for (Client client : clientList) {
+        client.stop();
+      }
+      tracker.stop();
+    }
+  }
+
+  public void testNotRequestedPrefetchDiscardedOnInterrupt() throws IOException, NoSuchAlgorithmException, InterruptedException {
+    setTorrentTransportEnabled();
+    setDownloadHonestly(true);
+
+    final File storageDir = new File(myTempDir, "storageDir");
+    storageDir.mkdir();
+    final File torrentsDir = new File(myTempDir, "torrentsDir");
+    torrentsDir.mkdir();
+    final String fileName = "MyBuild.31.zip";
+    final File artifactFile = new File(storageDir, fileName);
+    createTempFile(20250).renameTo(artifactFile);
+
+    final TorrentTransportFactory.TorrentTransport prefetchingTransport =
+            new TorrentTransportFactory.TorrentTransport(myDirectorySeeder, new HttpClient(), myBuild.getBuildLogger(), 1);
+    final File teamcityIvyFile = new File("agent/tests/resources/" +  TorrentTransportFactory.TEAMCITY_IVY);
+    myDownloadMap.put("/" + TorrentTransportFactory.TEAMCITY_IVY, teamcityIvyFile);
+    final File storage = myDirectorySeeder.getStorageDirectory();
+    final File stagingDir = new File(storage.getParentFile(), storage.getName() + ".staging");
+    Tracker tracker = new Tracker(6969);
+    List<Client> clientList = new ArrayList<Client>();
+    for (int i=0; i< TorrentTransportFactory.MIN_SEEDERS_COUNT_TO_TRY; i++){
+      clientList.add(new Client());
+    }
+    try {
+      tracker.start(true);
+
+      myDirectorySeeder.start(new InetAddress[]{InetAddress.getLocalHost()}, tracker.getAnnounceURI(), 5);
+
+      final Torrent torrent = Torrent.create(artifactFile, tracker.getAnnounceURI(), "testplugin");
+      final File torrentFile = new File(torrentsDir, fileName + ".torrent");
+      torrent.save(torrentFile);
+      myDownloadMap.put("/.teamcity/torrents/" + fileName + ".torrent", torrentFile);
+      for (Client client : clientList) {
+        client.start(InetAddress.getLocalHost());
+        client.addTorrent(SharedTorrent.fromFile(torrentFile, storageDir, true));
+      }
+      prefetchingTransport.downloadUrlTo(SERVER_PATH + TorrentTransportFactory.TEAMCITY_IVY,
+              new File(myTempDir, TorrentTransportFactory.TEAMCITY_IVY));
+      new WaitFor(15 * 1000) {
+        @Override
+        protected boolean condition() {
+          return myDirectorySeeder.getTorrentSeeder().isSeeding(torrent);
+        }
+      };
+      assertTrue(myDirectorySeeder.getTorrentSeeder().isSeeding(torrent));
+
+      // the artifact is never requested, e.g. it is excluded by the dependency rules
+      prefetchingTransport.interrupt();
+      assertFalse(myDirectorySeeder.getTorrentSeeder().isSeeding(torrent));
+      assertEquals(0, FileUtil.findFiles(new FileFilter() {
+        public boolean accept(File file) {
+          return file.isFile();
+        }
+      }, stagingDir).size());
+    } finally {
+      prefetchingTransport.interrupt();
+      for (Client client : clientList) {
+        client.stop();
+      }
+      tracker.stop();
+    }
+  }
+
   private void setTorrentTransportEnabled(){
     myAgentParametersMap.put(TorrentTransportFactory.TEAMCITY_ARTIFACTS_TRANSPORT,
             TorrentTransportFactory.TorrentTransport.class.getSimpleName());
@@ -0,0 +1,138 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.torrent.torrent.PieceVerifier;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Test
+public class WebSeedDownloaderTest extends BaseTestCase {
+  private static final int PORT = 12346;
+  private static final String URL = "http://localhost:" + PORT + "/artifact.zip";
+
+  private Server myServer;
+  private byte[] myContent;
+  private boolean myRangeSupported;
+  private int myCorruptedOffset;
+  private List<String> myRanges;
+  private Torrent myTorrent;
+  private PieceVerifier myVerifier;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final File artifact = createTempFile(3 * 512 * 1024 + 100);
+    myContent = FileUtils.readFileToByteArray(artifact);
+    myTorrent = Torrent.create(artifact, new URI("http://localhost:6969/announce"), "test");
+    myVerifier = PieceVerifier.forTorrent(myTorrent);
+    myRangeSupported = true;
+    myCorruptedOffset = -1;
+    myRanges = new ArrayList<String>();
+
+    myServer = new Server(PORT);
+    final WebAppContext handler = new WebAppContext();
+    handler.setResourceBase("/");
+    handler.setContextPath("/");
+    handler.addServlet(new ServletHolder(new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        final byte[] content = myContent.clone();
+        if (myCorruptedOffset >= 0) {
+          content[myCorruptedOffset]++;
+        }
+        final String range = req.getHeader("Range");
+        if (range == null || !myRangeSupported) {
+          resp.getOutputStream().write(content);
+          return;
+        }
+        myRanges.add(range);
+        final String[] bounds = range.substring("bytes=".length()).split("-");
+        final int start = Integer.parseInt(bounds[0]);
+        final int end = Integer.parseInt(bounds[1]);
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader("Content-Range", String.format("bytes %d-%d/%d", start, end, content.length));
+        resp.getOutputStream().write(content, start, end - start + 1);
+      }
+    }), "/*");
+    myServer.setHandler(handler);
+    myServer.start();
+  }
+
+  public void downloads_by_ranges() throws Exception {
+    final File target = new File(createTempDir(), "artifact.zip");
+
+    assertTrue(new WebSeedDownloader(new HttpClient(), new AtomicBoolean()).download(myTorrent, URL, target));
+    assertTrue(Arrays.equals(myContent, FileUtils.readFileToByteArray(target)));
+  }
+
+  public void keeps_valid_pieces_of_target() throws Exception {
+    final File target = new File(createTempDir(), "artifact.zip");
+    final byte[] partial = myContent.clone();
+    partial[partial.length - 1]++;
+    FileUtils.writeByteArrayToFile(target, partial);
+
+    assertTrue(new WebSeedDownloader(new HttpClient(), new AtomicBoolean()).download(myTorrent, URL, target));
+    assertTrue(Arrays.equals(myContent, FileUtils.readFileToByteArray(target)));
+    assertEquals(1, myRanges.size());
+    final long lastPieceOffset = myVerifier.getPieceOffset(myVerifier.getPiecesCount() - 1);
+    assertEquals(String.format("bytes=%d-%d", lastPieceOffset, myContent.length - 1), myRanges.get(0));
+  }
+
+  public void downloads_hybrid_torrent() throws Exception {
+    final File artifact = new File(createTempDir(), "artifact.zip");
+    FileUtils.writeByteArrayToFile(artifact, myContent);
+    final Torrent torrent = new TorrentHashingService(1, -1).createHybridTorrent(artifact,
+            new URI("http://localhost:6969/announce"), "test", TorrentHashingService.Priority.INTERACTIVE);
+    final File target = new File(createTempDir(), "artifact.zip");
+
+    assertTrue(new WebSeedDownloader(new HttpClient(), new AtomicBoolean()).download(torrent, URL, target));
+    assertTrue(Arrays.equals(myContent, FileUtils.readFileToByteArray(target)));
+  }
+
+  public void range_ignored_falls_back() throws Exception {
+    myRangeSupported = false;
+    final File target = new File(createTempDir(), "artifact.zip");
+
+    assertFalse(new WebSeedDownloader(new HttpClient(), new AtomicBoolean()).download(myTorrent, URL, target));
+  }
+
+  public void mismatching_piece_fails() throws Exception {
+    myCorruptedOffset = (int) myVerifier.getPieceLength() + 10;
+    final File target = new File(createTempDir(), "artifact.zip");
+
+    try {
+      new WebSeedDownloader(new HttpClient(), new AtomicBoolean()).download(myTorrent, URL, target);
+      fail("Corrupted piece must not be accepted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Piece 1 "));
+    }
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    myServer.stop();
+    super.tearDown();
+  }
+}
@@ -25,6 +25,22 @@ public interface TorrentConfiguration {
   int DEFAULT_TRACKER_TORRENT_EXPIRE_TIMEOUT = 180;
   String MAX_NUMBER_OF_SEEDED_TORRENTS = "torrent.max.seeded.number";
   int DEFAULT_MAX_NUMBER_OF_SEEDED_TORRENTS = 2000;
+  String MAX_NUMBER_OF_ACTIVE_TORRENTS = "torrent.max.active.number";
+  // negative value means all seeded torrents are kept active
+  int DEFAULT_MAX_NUMBER_OF_ACTIVE_TORRENTS = -1;
+  String MAX_SEEDED_SIZE_MB = "torrent.max.seeded.size.mb";
+  // negative value means no limit
+  int DEFAULT_MAX_SEEDED_SIZE_MB = -1;
+  String RETENTION_POLICY = "torrent.retention.policy";
+  String DEFAULT_RETENTION_POLICY = "recent";
+  String HASHING_THREADS = "torrent.hashing.threads";
+  // non-positive value means half of the cores
+  int DEFAULT_HASHING_THREADS = -1;
+  String HASHING_MAX_READ_MB = "torrent.hashing.max.read.mb";
+  // negative value means no limit
+  int DEFAULT_HASHING_MAX_READ_MB = -1;
+  String HYBRID_TORRENTS = "torrent.hybrid.enabled";
+  boolean DEFAULT_HYBRID_TORRENTS = false;
   String TRACKER_DEDICATED_PORT ="torrent.tracker.dedicated.port";
   boolean DEFAULT_TRACKER_DEDICATED_PORT = false;
   String TORRENT_ENABLED ="torrent.enabled";
@@ -60,4 +76,10 @@ public interface TorrentConfiguration {
    * creation of torrent files)
    */
   boolean isTorrentEnabled();
+
+  /**
+   * Indicates whether the server and the agents create hybrid v1/v2 torrents. The v1 info hash of a hybrid
+   * torrent differs from the one of a v1 torrent, so all of them must use the same setting.
+   */
+  boolean isHybridTorrentsEnabled();
 }
@@ -55,8 +55,17 @@ public class FileLink {
       return new File(split[1]);
   }
 
+  /**
+   * Creates the link file in the specified directory. If the directory belongs to a torrents storage
+   * with an open {@link LinksIndex}, the link is registered in the index as well.
+   */
   @NotNull
   public static File createLink(@NotNull File srcFile, @NotNull final File torrentFile, @NotNull File storageDir) throws IOException {
-    return new FileLink(storageDir, srcFile, torrentFile).save();
+    final File linkFile = new FileLink(storageDir, srcFile, torrentFile).save();
+    final LinksIndex index = LinksIndex.findByLink(linkFile);
+    if (index != null) {
+      index.addLink(linkFile, srcFile, torrentFile);
+    }
+    return linkFile;
   }
 }
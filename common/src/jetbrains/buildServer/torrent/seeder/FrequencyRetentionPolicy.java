@@ -0,0 +1,50 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import jetbrains.buildServer.torrent.torrent.TorrentUsageStats;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Keeps the most frequently requested torrents, in the manner of W-TinyLFU: torrents linked within the admission
+ * window go first so that new artifacts get a chance to gain requests, the rest are ordered by their decayed
+ * request frequency, then by uploaded bytes and recency.
+ */
+public class FrequencyRetentionPolicy implements RetentionPolicy {
+  public static final long DEFAULT_ADMISSION_WINDOW_MS = 24 * 60 * 60 * 1000L;
+
+  private final long myAdmissionWindowMs;
+
+  public FrequencyRetentionPolicy() {
+    this(DEFAULT_ADMISSION_WINDOW_MS);
+  }
+
+  public FrequencyRetentionPolicy(long admissionWindowMs) {
+    myAdmissionWindowMs = admissionWindowMs;
+  }
+
+  public void sortByRetention(@NotNull List<LinksIndex.Entry> links, @NotNull final TorrentUsageStats usageStats) {
+    final long windowStart = System.currentTimeMillis() - myAdmissionWindowMs;
+    final Map<String, Double> frequencies = new HashMap<String, Double>();
+    for (LinksIndex.Entry link : links) {
+      frequencies.put(link.getInfoHash(), usageStats.getFrequency(link.getInfoHash()));
+    }
+    Collections.sort(links, new Comparator<LinksIndex.Entry>() {
+      public int compare(LinksIndex.Entry o1, LinksIndex.Entry o2) {
+        final boolean inWindow1 = o1.getLinkTime() >= windowStart;
+        final boolean inWindow2 = o2.getLinkTime() >= windowStart;
+        if (inWindow1 != inWindow2) {
+          return inWindow1 ? -1 : 1;
+        }
+        if (!inWindow1) {
+          final int byFrequency = Double.compare(frequencies.get(o2.getInfoHash()), frequencies.get(o1.getInfoHash()));
+          if (byFrequency != 0) return byFrequency;
+          final long uploaded1 = usageStats.getUploadedBytes(o1.getInfoHash());
+          final long uploaded2 = usageStats.getUploadedBytes(o2.getInfoHash());
+          if (uploaded1 != uploaded2) return uploaded1 > uploaded2 ? -1 : 1;
+        }
+        return RecentLinksRetentionPolicy.NEWEST_LINKS_FIRST.compare(o1, o2);
+      }
+    });
+  }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.torrent.seeder;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Persistent index of the links kept in a torrents storage directory.
+ * <p/>
+ * Each link is described by a single record holding the link path, the target file, the torrent file,
+ * the torrent info-hash and the size and modification time of the target. This allows enumerating
+ * the storage by reading one file instead of walking the directory tree and reading every link.
+ * <p/>
+ * The index file is an append-only journal, {@link #addLink} and {@link #removeLink} append a record
+ * to it. The journal is compacted when it contains more obsolete records than live ones.
+ *
+ * @see FileLink
+ */
+public class LinksIndex {
+  private final static Logger LOG = Logger.getInstance(LinksIndex.class.getName());
+
+  public static final String INDEX_FILE_NAME = "links.index";
+  private static final String INDEX_FILE_ENCODING = "UTF-8";
+  private static final String ADDED = "+";
+  private static final String REMOVED = "-";
+  private static final String SEPARATOR = "\t";
+
+  private static final ConcurrentMap<File, LinksIndex> ourOpenIndexes = new ConcurrentHashMap<File, LinksIndex>();
+
+  @NotNull
+  private final File myStorageDir;
+  @NotNull
+  private final File myIndexFile;
+  private final Map<File, Entry> myEntries = new HashMap<File, Entry>();
+  private final List<Listener> myListeners = new CopyOnWriteArrayList<Listener>();
+  private int myObsoleteRecords;
+  @Nullable
+  private Writer myJournal;
+
+  private LinksIndex(@NotNull File storageDir) {
+    myStorageDir = storageDir.getAbsoluteFile();
+    myIndexFile = new File(myStorageDir, INDEX_FILE_NAME);
+  }
+
+  /**
+   * Opens the index of the specified storage directory. If the storage has no index file yet,
+   * the index is built from the link files found in the storage.
+   */
+  @NotNull
+  public static LinksIndex open(@NotNull File storageDir) {
+    final LinksIndex index = new LinksIndex(storageDir);
+    if (index.myIndexFile.isFile()) {
+      index.load();
+    } else {
+      index.importLinkFiles();
+    }
+    ourOpenIndexes.put(index.myStorageDir, index);
+    return index;
+  }
+
+  /**
+   * Finds an open index of the storage containing the specified link file
+   * @return see above or null if the link doesn't belong to any opened storage
+   */
+  @Nullable
+  public static LinksIndex findByLink(@NotNull File linkFile) {
+    final String linkPath = linkFile.getAbsolutePath();
+    // there are one or two open storages at most, checking each of them is cheaper than walking up the link parents
+    for (LinksIndex index : ourOpenIndexes.values()) {
+      final String storagePath = index.myStorageDir.getPath();
+      if (linkPath.length() > storagePath.length()
+              && linkPath.startsWith(storagePath)
+              && linkPath.charAt(storagePath.length()) == File.separatorChar) {
+        return index;
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  public File getStorageDirectory() {
+    return myStorageDir;
+  }
+
+  @NotNull
+  public File getIndexFile() {
+    return myIndexFile;
+  }
+
+  /**
+   * Registers the link in the index. Size and modification time of the target file
+   * and the torrent info-hash are recorded at this moment.
+   */
+  @NotNull
+  public Entry addLink(@NotNull File linkFile, @NotNull File targetFile, @NotNull File torrentFile) {
+    final Entry entry = new Entry(linkFile.getAbsoluteFile(),
+            targetFile.getAbsoluteFile(),
+            torrentFile.getAbsoluteFile(),
+            readInfoHash(torrentFile),
+            getTargetSize(targetFile, torrentFile),
+            targetFile.lastModified(),
+            System.currentTimeMillis());
+    addEntry(entry);
+    return entry;
+  }
+
+  public void addEntry(@NotNull Entry entry) {
+    synchronized (this) {
+      if (myEntries.put(entry.getLinkFile(), entry) != null) {
+        myObsoleteRecords++;
+      }
+      appendRecord(formatEntry(entry));
+    }
+    for (Listener listener : myListeners) {
+      try {
+        listener.linkAdded(entry);
+      } catch (Exception e) {
+        LOG.warn("Exception in links index listener: " + e.toString(), e);
+      }
+    }
+  }
+
+  public synchronized void removeLink(@NotNull File linkFile) {
+    final File key = linkFile.getAbsoluteFile();
+    if (myEntries.remove(key) == null) return;
+    myObsoleteRecords += 2;
+    appendRecord(REMOVED + SEPARATOR + getRelativeLinkPath(key));
+  }
+
+  @Nullable
+  public synchronized Entry getEntry(@NotNull File linkFile) {
+    return myEntries.get(linkFile.getAbsoluteFile());
+  }
+
+  /**
+   * @return snapshot of all indexed links
+   */
+  @NotNull
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<Entry>(myEntries.values());
+  }
+
+  public synchronized int size() {
+    return myEntries.size();
+  }
+
+  public void addListener(@NotNull Listener listener) {
+    myListeners.add(listener);
+  }
+
+  public void removeListener(@NotNull Listener listener) {
+    myListeners.remove(listener);
+  }
+
+  /**
+   * Adds to the index link files which were created in the storage bypassing {@link FileLink#createLink}.
+   * Only the files which are not indexed yet are read.
+   * @return number of imported links
+   */
+  public int importUnindexedLinks() {
+    final Collection<File> links = FileUtil.findFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return FileLink.isLink(file) && getEntry(file) == null;
+      }
+    }, myStorageDir);
+    int imported = 0;
+    for (File link : links) {
+      final Entry entry = readLinkFile(link);
+      if (entry != null) {
+        addEntry(entry);
+        imported++;
+      }
+    }
+    return imported;
+  }
+
+  /**
+   * Closes the journal and unregisters the index, so links created afterwards are not added to it.
+   * Such links are found by {@link #importUnindexedLinks()} once the index is {@link #reopen() reopened}.
+   */
+  public void close() {
+    flush();
+    ourOpenIndexes.remove(myStorageDir, this);
+  }
+
+  /**
+   * Registers the closed index again
+   */
+  public void reopen() {
+    ourOpenIndexes.put(myStorageDir, this);
+  }
+
+  /**
+   * Closes the journal writer. The index stays usable, the writer will be reopened on the next update.
+   */
+  public synchronized void flush() {
+    if (myJournal != null) {
+      FileUtil.close(myJournal);
+      myJournal = null;
+    }
+  }
+
+  private void appendRecord(@NotNull String record) {
+    if (myObsoleteRecords > myEntries.size()) {
+      compact();
+      return;
+    }
+    try {
+      if (myJournal == null) {
+        myJournal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(myIndexFile, true), INDEX_FILE_ENCODING));
+      }
+      myJournal.write(record);
+      myJournal.write('\n');
+      myJournal.flush();
+    } catch (IOException e) {
+      LOG.warn("Failed to update links index " + myIndexFile.getAbsolutePath() + ": " + e.toString());
+      flush();
+    }
+  }
+
+  /**
+   * Rewrites the index file so that it contains live records only
+   */
+  synchronized void compact() {
+    flush();
+    final File tmpFile = new File(myStorageDir, INDEX_FILE_NAME + ".tmp");
+    Writer writer = null;
+    try {
+      FileUtil.createParentDirs(tmpFile);
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), INDEX_FILE_ENCODING));
+      for (Entry entry : myEntries.values()) {
+        writer.write(formatEntry(entry));
+        writer.write('\n');
+      }
+      writer.close();
+      writer = null;
+      if (!tmpFile.renameTo(myIndexFile)) {
+        FileUtil.delete(myIndexFile);
+        if (!tmpFile.renameTo(myIndexFile)) {
+          throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + myIndexFile.getAbsolutePath());
+        }
+      }
+      myObsoleteRecords = 0;
+    } catch (IOException e) {
+      LOG.warn("Failed to write links index " + myIndexFile.getAbsolutePath() + ": " + e.toString());
+    } finally {
+      FileUtil.close(writer);
+    }
+  }
+
+  private synchronized void load() {
+    BufferedReader reader = null;
+    int records = 0;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(myIndexFile), INDEX_FILE_ENCODING));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        records++;
+        final String[] parts = line.split(SEPARATOR);
+        if (parts.length == 2 && REMOVED.equals(parts[0])) {
+          myEntries.remove(new File(myStorageDir, parts[1]));
+        } else if (parts.length == 8 && ADDED.equals(parts[0])) {
+          final Entry entry = parseEntry(parts);
+          if (entry != null) {
+            myEntries.put(entry.getLinkFile(), entry);
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read links index " + myIndexFile.getAbsolutePath() + ", will rebuild it: " + e.toString());
+      myEntries.clear();
+      FileUtil.close(reader);
+      reader = null;
+      importLinkFiles();
+      return;
+    } finally {
+      FileUtil.close(reader);
+    }
+    myObsoleteRecords = records - myEntries.size();
+    if (myObsoleteRecords > myEntries.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Builds the index from the link files of the storage. Used to migrate storages created
+   * before the index was introduced.
+   */
+  private synchronized void importLinkFiles() {
+    final Collection<File> links = FileUtil.findFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return FileLink.isLink(file);
+      }
+    }, myStorageDir);
+    if (!links.isEmpty()) {
+      LOG.info("Building links index for " + links.size() + " links in " + myStorageDir.getAbsolutePath());
+    }
+    for (File link : links) {
+      final Entry entry = readLinkFile(link);
+      if (entry != null) {
+        myEntries.put(entry.getLinkFile(), entry);
+      }
+    }
+    compact();
+  }
+
+  @Nullable
+  private static Entry readLinkFile(@NotNull File link) {
+    try {
+      final File targetFile = FileLink.getTargetFile(link);
+      final File torrentFile = FileLink.getTorrentFile(link);
+      if (torrentFile == null) return null;
+      return new Entry(link.getAbsoluteFile(),
+              targetFile.getAbsoluteFile(),
+              torrentFile.getAbsoluteFile(),
+              readInfoHash(torrentFile),
+              getTargetSize(targetFile, torrentFile),
+              targetFile.lastModified(),
+              link.lastModified());
+    } catch (IOException e) {
+      LOG.debug("Unable to read link " + link.getAbsolutePath() + ": " + e.toString());
+      return null;
+    }
+  }
+
+  @NotNull
+  private String formatEntry(@NotNull Entry entry) {
+    return ADDED + SEPARATOR + getRelativeLinkPath(entry.getLinkFile())
+            + SEPARATOR + entry.getTargetFile().getPath()
+            + SEPARATOR + entry.getTorrentFile().getPath()
+            + SEPARATOR + entry.getInfoHash()
+            + SEPARATOR + entry.getSize()
+            + SEPARATOR + entry.getLastModified()
+            + SEPARATOR + entry.getLinkTime();
+  }
+
+  @Nullable
+  private Entry parseEntry(@NotNull String[] parts) {
+    try {
+      return new Entry(new File(myStorageDir, parts[1]),
+              new File(parts[2]),
+              new File(parts[3]),
+              parts[4],
+              Long.parseLong(parts[5]),
+              Long.parseLong(parts[6]),
+              Long.parseLong(parts[7]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private String getRelativeLinkPath(@NotNull File linkFile) {
+    final String relativePath = FileUtil.getRelativePath(myStorageDir, linkFile);
+    return relativePath == null ? linkFile.getPath() : relativePath;
+  }
+
+  /**
+   * @return size of the target file or the total size of the files of the multi-file torrent for a directory
+   */
+  private static long getTargetSize(@NotNull File targetFile, @NotNull File torrentFile) {
+    if (!targetFile.isDirectory()) return targetFile.length();
+    try {
+      return TorrentUtil.loadTorrent(torrentFile).getSize();
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
+  @NotNull
+  private static String readInfoHash(@NotNull File torrentFile) {
+    try {
+      return TorrentUtil.loadTorrent(torrentFile).getHexInfoHash();
+    } catch (Exception e) {
+      return "";
+    }
+  }
+
+  public interface Listener {
+    /**
+     * Called after the link has been added to the index, in the thread which added the link
+     */
+    void linkAdded(@NotNull Entry entry);
+  }
+
+  public static final class Entry {
+    @NotNull
+    private final File myLinkFile;
+    @NotNull
+    private final File myTargetFile;
+    @NotNull
+    private final File myTorrentFile;
+    @NotNull
+    private final String myInfoHash;
+    private final long mySize;
+    private final long myLastModified;
+    private final long myLinkTime;
+
+    public Entry(@NotNull File linkFile,
+                 @NotNull File targetFile,
+                 @NotNull File torrentFile,
+                 @NotNull String infoHash,
+                 long size,
+                 long lastModified,
+                 long linkTime) {
+      myLinkFile = linkFile;
+      myTargetFile = targetFile;
+      myTorrentFile = torrentFile;
+      myInfoHash = infoHash;
+      mySize = size;
+      myLastModified = lastModified;
+      myLinkTime = linkTime;
+    }
+
+    @NotNull
+    public File getLinkFile() {
+      return myLinkFile;
+    }
+
+    @NotNull
+    public File getTargetFile() {
+      return myTargetFile;
+    }
+
+    @NotNull
+    public File getTorrentFile() {
+      return myTorrentFile;
+    }
+
+    /**
+     * @return hex info-hash of the torrent or empty string if the torrent file was unreadable when the link was indexed
+     */
+    @NotNull
+    public String getInfoHash() {
+      return myInfoHash;
+    }
+
+    /**
+     * @return size of the target file at the moment the link was indexed
+     */
+    public long getSize() {
+      return mySize;
+    }
+
+    /**
+     * @return modification time of the target file at the moment the link was indexed
+     */
+    public long getLastModified() {
+      return myLastModified;
+    }
+
+    /**
+     * @return time the link was created
+     */
+    public long getLinkTime() {
+      return myLinkTime;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import jetbrains.buildServer.torrent.torrent.TorrentUsageStats;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the most recently linked torrents
+ */
+public class RecentLinksRetentionPolicy implements RetentionPolicy {
+  static final Comparator<LinksIndex.Entry> NEWEST_LINKS_FIRST = new Comparator<LinksIndex.Entry>() {
+    public int compare(LinksIndex.Entry o1, LinksIndex.Entry o2) {
+      long o1Time = o1.getLinkTime();
+      long o2Time = o2.getLinkTime();
+      if (o1Time == o2Time){
+        return o1.getLinkFile().getAbsolutePath().compareTo(o2.getLinkFile().getAbsolutePath());
+      } else {
+        return (o2Time - o1Time) > 0 ? 1 : -1;
+      }
+    }
+  };
+
+  public void sortByRetention(@NotNull List<LinksIndex.Entry> links, @NotNull TorrentUsageStats usageStats) {
+    Collections.sort(links, NEWEST_LINKS_FIRST);
+  }
+}
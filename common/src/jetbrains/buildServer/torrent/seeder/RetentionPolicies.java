@@ -0,0 +1,26 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates retention policies by their configuration names
+ */
+public final class RetentionPolicies {
+  public static final String RECENT = "recent";
+  public static final String FREQUENCY = "frequency";
+
+  private RetentionPolicies() {
+  }
+
+  /**
+   * @return the policy with the given name or the recent links policy if the name is unknown
+   */
+  @NotNull
+  public static RetentionPolicy byName(@Nullable String name) {
+    if (FREQUENCY.equalsIgnoreCase(name)) {
+      return new FrequencyRetentionPolicy();
+    }
+    return new RecentLinksRetentionPolicy();
+  }
+}
@@ -0,0 +1,16 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import jetbrains.buildServer.torrent.torrent.TorrentUsageStats;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Decides which seeded torrents are kept when the limits of seeded torrents are exceeded
+ */
+public interface RetentionPolicy {
+  /**
+   * Sorts the links so that the ones to keep seeding go first, the links at the end of the list are evicted first
+   */
+  void sortByRetention(@NotNull List<LinksIndex.Entry> links, @NotNull TorrentUsageStats usageStats);
+}
@@ -17,44 +17,84 @@
 package jetbrains.buildServer.torrent.seeder;
 
 import com.turn.ttorrent.client.SharedTorrent;
+import jetbrains.buildServer.torrent.torrent.FastResumeCache;
 import jetbrains.buildServer.torrent.torrent.TeamcityTorrentClient;
+import jetbrains.buildServer.torrent.torrent.TorrentUsageStats;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import jetbrains.buildServer.torrent.torrent.TrackerAvailabilityCache;
 import jetbrains.buildServer.configuration.ChangeListener;
 import jetbrains.buildServer.configuration.FilesWatcher;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class TorrentsDirectorySeeder {
 
   public static final String TORRENTS_DIT_PATH = ".teamcity/torrents";
-  public static final int DIRECTORY_SCAN_INTERVAL_SECONDS = 30;
+  /**
+   * Interval of the full storage reconciliation. New links are processed as soon as they are added
+   * to the {@link LinksIndex}, the full pass only catches removed targets and links created bypassing the index.
+   */
+  public static final int DIRECTORY_SCAN_INTERVAL_SECONDS = 600;
 
-  public static final int TORRENTS_STORAGE_VERSION=2;
+  /**
+   * Interval between background re-verifications of the seeded files, one file is hashed at a time
+   */
+  public static final int SCRUB_INTERVAL_SECONDS = 60;
+
+  private static final int WARM_START_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  public static final int TORRENTS_STORAGE_VERSION=3;
   public static final String TORRENTS_STORAGE_VERSION_FILE = "storage.version";
 
   @NotNull
   private final File myTorrentStorage;
 
+  @NotNull
+  private final LinksIndex myLinksIndex;
+
+  @NotNull
+  private final FastResumeCache myFastResumeCache;
+
   @NotNull
   private final TeamcityTorrentClient myTorrentSeeder = new TeamcityTorrentClient();
   private FilesWatcher myNewLinksWatcher;
+  private volatile ScheduledExecutorService myLinkEventsExecutor;
+  private volatile ExecutorService myWarmStartExecutor;
+  private volatile ScheduledExecutorService myScrubExecutor;
+  @NotNull
+  private volatile WarmStartProgress myWarmStartProgress = new WarmStartProgress();
+  private LinksIndex.Listener myLinksListener;
   private volatile boolean myStopped = true;
   private volatile int myMaxTorrentsToSeed; // no limit by default
+  private volatile long myMaxSeededBytes = -1; // no limit by default
+  @NotNull
+  private volatile RetentionPolicy myRetentionPolicy = new RecentLinksRetentionPolicy();
+  @NotNull
+  private final TorrentUsageStats myUsageStats;
 
   public TorrentsDirectorySeeder(@NotNull File torrentStorage, int maxTorrentsToSeed, int fileSizeThresholdMb) {
     myMaxTorrentsToSeed = maxTorrentsToSeed;
     myTorrentStorage = torrentStorage;
     checkTorrentsStorageVersion();
+    myLinksIndex = LinksIndex.open(myTorrentStorage);
+    myFastResumeCache = new FastResumeCache(new File(myTorrentStorage, FastResumeCache.STATE_FILE_NAME));
+    myTorrentSeeder.setFastResumeCache(myFastResumeCache);
+    myUsageStats = new TorrentUsageStats(new File(myTorrentStorage, TorrentUsageStats.STATE_FILE_NAME));
+    myTorrentSeeder.setUsageStats(myUsageStats);
   }
 
   @NotNull
@@ -63,63 +103,64 @@ public class TorrentsDirectorySeeder {
   }
 
   @NotNull
-  private Collection<File> findAllLinks(int maxLinksNum) {
-    Collection<File> links = FileUtil.findFiles(new FileFilter() {
-      public boolean accept(File file) {
-        if (!FileLink.isLink(file)) return false;
+  private Collection<File> findRetainedLinks() {
+    final List<LinksIndex.Entry> links = findValidLinks();
+    final List<LinksIndex.Entry> kept = links.subList(0, countRetained(links));
+    List<File> result = new ArrayList<File>(kept.size());
+    for (LinksIndex.Entry entry : kept) {
+      result.add(entry.getLinkFile());
+    }
+    return result;
+  }
 
-        File targetFile;
-        try {
-          targetFile = FileLink.getTargetFile(file);
-          return targetFile.isFile();
-        } catch (IOException e) {
-          return false; // cannot read content of the link
-        }
+  /**
+   * @return indexed links having both the link and the target files, sorted by the retention policy
+   */
+  @NotNull
+  private List<LinksIndex.Entry> findValidLinks() {
+    List<LinksIndex.Entry> links = new ArrayList<LinksIndex.Entry>();
+    for (LinksIndex.Entry entry : myLinksIndex.getEntries()) {
+      if (entry.getLinkFile().isFile() && entry.getTargetFile().exists()) {
+        links.add(entry);
       }
-    }, myTorrentStorage);
-
-    if (maxLinksNum < 0 || links.size() <= maxLinksNum) {
-      return links;
     }
+    myRetentionPolicy.sortByRetention(links, myUsageStats);
+    return links;
+  }
 
-    final Map<File, Long> fileTimeMap = new HashMap<File, Long>();
-
-    List<File> sorted = new ArrayList<File>(links);
-    for (File file : sorted) {
-      fileTimeMap.put(file, file.lastModified());
+  /**
+   * @param links links sorted by the retention policy
+   * @return number of the first links fitting the limits of the number and the total size of seeded torrents
+   */
+  private int countRetained(@NotNull List<LinksIndex.Entry> links) {
+    final int maxTorrentsToSeed = myMaxTorrentsToSeed;
+    final long maxSeededBytes = myMaxSeededBytes;
+    int count = 0;
+    long bytes = 0;
+    for (LinksIndex.Entry link : links) {
+      if (maxTorrentsToSeed >= 0 && count >= maxTorrentsToSeed) break;
+      bytes += link.getSize();
+      if (maxSeededBytes >= 0 && bytes > maxSeededBytes) break;
+      count++;
     }
-    Collections.sort(sorted, new Comparator<File>() {
-      public int compare(File o1, File o2) {
-        long o1Time = fileTimeMap.get(o1);
-        long o2Time = fileTimeMap.get(o2);
-        if (o1Time == o2Time){
-          return o1.getAbsolutePath().compareTo(o2.getAbsolutePath());
-        } else {
-          return (o2Time - o1Time) > 0 ? 1 : -1;
-        }
-      }
-    });
-
-    return sorted.subList(0, maxLinksNum);
+    return count;
   }
 
   private void processRemovedLink(@NotNull File removedLink) {
-    try {
-      if (removedLink.exists()) {
-        File torrentFile = FileLink.getTorrentFile(removedLink);
-        if (!torrentFile.exists()) {
-          return;
-        }
-        stopSeedingTorrent(torrentFile);
-        FileUtil.delete(torrentFile);
+    final LinksIndex.Entry entry = myLinksIndex.getEntry(removedLink);
+    if (removedLink.exists() && entry != null) {
+      File torrentFile = entry.getTorrentFile();
+      if (!torrentFile.exists()) {
+        return;
       }
-      cleanupBrokenLink(removedLink);
-    } catch (IOException e) {
-      Loggers.AGENT.warn("Exception during new link removing", e);
+      stopSeedingTorrent(torrentFile);
+      FileUtil.delete(torrentFile);
     }
- }
+    cleanupBrokenLink(removedLink);
+  }
 
   private void cleanupBrokenLink(@NotNull File linkFile) {
+    myLinksIndex.removeLink(linkFile);
     FileUtil.delete(linkFile);
 
     File dir = linkFile.getParentFile();
@@ -130,37 +171,62 @@ public class TorrentsDirectorySeeder {
     }
   }
 
-  private void startSeeding(File linkFile){
+  private boolean startSeeding(@NotNull LinksIndex.Entry entry, @NotNull TrackerAvailabilityCache trackersCache){
     try {
-      File torrentFile = FileLink.getTorrentFile(linkFile);
-      File targetFile = FileLink.getTargetFile(linkFile);
+      File torrentFile = entry.getTorrentFile();
+      File targetFile = entry.getTargetFile();
 
       if (torrentFile.exists() && targetFile.exists()){
-        getTorrentSeeder().seedTorrent(torrentFile, targetFile);
+        if (targetFile.isDirectory()) {
+          // the files of a multi-file torrent are not fast resumed, they are seeded without verification
+          return getTorrentSeeder().seedTorrent(TorrentUtil.loadTorrent(torrentFile), targetFile);
+        }
+        if (entry.getInfoHash().length() > 0 && getTorrentSeeder().addDormantTorrent(entry.getInfoHash(), torrentFile, targetFile)) {
+          return true;
+        }
+        return getTorrentSeeder().seedTorrent(torrentFile, targetFile, trackersCache);
       }
     } catch (IOException e) {
     } catch (NoSuchAlgorithmException e) {
     }
+    return false;
   }
 
   public void processChangedLink(@NotNull File changedLink) {
-    //do nothing
-    try {
-      File torrentFile = FileLink.getTorrentFile(changedLink);
+    final LinksIndex.Entry entry = myLinksIndex.getEntry(changedLink);
+    if (entry == null) return;
 
-      File targetFile = FileLink.getTargetFile(changedLink);
-      if (!targetFile.isFile()) {
-        if (torrentFile.exists()) {
-          stopSeedingTorrent(torrentFile);
-          FileUtil.delete(torrentFile);
-        }
-        cleanupBrokenLink(changedLink);
+    File torrentFile = entry.getTorrentFile();
+    File targetFile = entry.getTargetFile();
+    if (!targetFile.exists()) {
+      if (torrentFile.exists()) {
+        stopSeedingTorrent(torrentFile);
+        FileUtil.delete(torrentFile);
       }
-    } catch (IOException e) {
-      Loggers.AGENT.warn("Exception during new link processing: " + e.toString(), e);
+      cleanupBrokenLink(changedLink);
+    }
+  }
+
+  /**
+   * Removes the links evicted by the retention policy if the indexed links exceed the limits of seeded torrents.
+   * Uses the data of the index only, broken links are left to the periodic reconciliation.
+   */
+  private void enforceRetentionLimits() {
+    if (myMaxTorrentsToSeed < 0 && myMaxSeededBytes < 0) return;
+    final List<LinksIndex.Entry> entries = myLinksIndex.getEntries();
+    myRetentionPolicy.sortByRetention(entries, myUsageStats);
+    final int retained = countRetained(entries);
+    for (LinksIndex.Entry entry : entries.subList(retained, entries.size())) {
+      processRemovedLink(entry.getLinkFile());
     }
   }
 
+  private void processAddedLink(@NotNull File linkFile) {
+    if (myStopped) return;
+    processChangedLink(linkFile);
+    enforceRetentionLimits();
+  }
+
   private void stopSeedingTorrent(@NotNull File torrentFile) {
     myTorrentSeeder.stopSeeding(torrentFile);
   }
@@ -183,9 +249,14 @@ public class TorrentsDirectorySeeder {
                     @Nullable final URI defaultTrackerURI,
                     final int directoryScanIntervalSeconds,
                     final int announceInterval) throws IOException {
+    myLinksIndex.reopen();
     myNewLinksWatcher = new FilesWatcher(new FilesWatcher.WatchedFilesProvider() {
       public File[] getWatchedFiles() throws IOException {
-        final Collection<File> allLinks = findAllLinks(myMaxTorrentsToSeed);
+        final int imported = myLinksIndex.importUnindexedLinks();
+        if (imported > 0) {
+          Loggers.AGENT.info("Found " + imported + " links missing in the links index of " + myTorrentStorage.getAbsolutePath());
+        }
+        final Collection<File> allLinks = findRetainedLinks();
         return allLinks.toArray(new File[allLinks.size()]);
       }
     });
@@ -201,23 +272,89 @@ public class TorrentsDirectorySeeder {
     });
 
     myTorrentSeeder.start(address, defaultTrackerURI, announceInterval);
+    myStopped = false;
 
-    // initialization: scan all existing links and start seeding them
-    final Collection<File> allLinks = findAllLinks(-1);
-    final Collection<File> initialLinks = findAllLinks(myMaxTorrentsToSeed);
-    for (File linkFile: initialLinks) {
-      startSeeding(linkFile);
-    }
-    for (File allLink : allLinks) {
-      if (!initialLinks.contains(allLink)){
-        processRemovedLink(allLink);
-      }
-    }
+    startWarmStart();
 
     myNewLinksWatcher.setSleepingPeriod(directoryScanIntervalSeconds * 1000);
     myNewLinksWatcher.start();
 
-    myStopped = false;
+    myLinkEventsExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent links processor", 1);
+    myLinksListener = new LinksIndex.Listener() {
+      public void linkAdded(@NotNull final LinksIndex.Entry entry) {
+        final ScheduledExecutorService executor = myLinkEventsExecutor;
+        if (executor == null || executor.isShutdown()) return;
+        executor.submit(new Runnable() {
+          public void run() {
+            processAddedLink(entry.getLinkFile());
+          }
+        });
+      }
+    };
+    myLinksIndex.addListener(myLinksListener);
+
+    myScrubExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent files scrubber", 1);
+    myScrubExecutor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        if (myStopped || !myWarmStartProgress.isCompleted()) return;
+        try {
+          myTorrentSeeder.scrubNextTorrent();
+        } finally {
+          myFastResumeCache.save();
+          myUsageStats.save();
+        }
+      }
+    }, SCRUB_INTERVAL_SECONDS, SCRUB_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Starts seeding of the existing links in background. The oldest links exceeding the limit of seeded torrents
+   * are removed first, then the rest are seeded newest first by a bounded pool. Each distinct tracker is checked once.
+   */
+  private void startWarmStart() {
+    final WarmStartProgress progress = new WarmStartProgress();
+    final TrackerAvailabilityCache trackersCache = new TrackerAvailabilityCache();
+    final ExecutorService executor = ExecutorsFactory.newFixedScheduledExecutor("Torrent seeder warm start", WARM_START_THREADS);
+    myWarmStartProgress = progress;
+    myWarmStartExecutor = executor;
+
+    executor.submit(new Runnable() {
+      public void run() {
+        final List<LinksIndex.Entry> allLinks = findValidLinks();
+        final int retained = countRetained(allLinks);
+        final List<LinksIndex.Entry> initialLinks = allLinks.subList(0, retained);
+        final List<LinksIndex.Entry> obsoleteLinks = allLinks.subList(retained, allLinks.size());
+
+        for (LinksIndex.Entry entry : obsoleteLinks) {
+          if (myStopped) return;
+          processRemovedLink(entry.getLinkFile());
+        }
+        progress.setTotal(initialLinks.size());
+        for (final LinksIndex.Entry entry : initialLinks) {
+          executor.submit(new Runnable() {
+            public void run() {
+              if (myStopped) return;
+              boolean seeded = false;
+              try {
+                seeded = startSeeding(entry, trackersCache);
+              } catch (RuntimeException e) {
+                Loggers.AGENT.warn("Failed to seed " + entry.getTargetFile().getAbsolutePath(), e);
+              } finally {
+                // the link is counted in any case, otherwise the warm start never completes
+                progress.linkProcessed(seeded);
+              }
+            }
+          });
+        }
+        executor.shutdown();
+        Loggers.AGENT.debug("Scheduled seeding of " + initialLinks.size() + " torrents, removed " + obsoleteLinks.size() + " obsolete links");
+      }
+    });
+  }
+
+  @NotNull
+  public WarmStartProgress getWarmStartProgress() {
+    return myWarmStartProgress;
   }
 
   public void stop() {
@@ -225,7 +362,26 @@ public class TorrentsDirectorySeeder {
     if (myNewLinksWatcher != null) {
       myNewLinksWatcher.stop();
     }
+    if (myLinksListener != null) {
+      myLinksIndex.removeListener(myLinksListener);
+      myLinksListener = null;
+    }
+    if (myLinkEventsExecutor != null) {
+      myLinkEventsExecutor.shutdownNow();
+      myLinkEventsExecutor = null;
+    }
+    if (myWarmStartExecutor != null) {
+      myWarmStartExecutor.shutdownNow();
+      myWarmStartExecutor = null;
+    }
+    if (myScrubExecutor != null) {
+      myScrubExecutor.shutdownNow();
+      myScrubExecutor = null;
+    }
     myTorrentSeeder.stop();
+    myLinksIndex.close();
+    myFastResumeCache.save();
+    myUsageStats.save();
   }
 
   public boolean isStopped() {
@@ -245,47 +401,49 @@ public class TorrentsDirectorySeeder {
     return myTorrentSeeder;
   }
 
+  @NotNull
+  public LinksIndex getLinksIndex() {
+    return myLinksIndex;
+  }
+
   //for tests only
   FilesWatcher getNewLinksWatcher() {
     return myNewLinksWatcher;
   }
 
   private void checkTorrentsStorageVersion(){
-
-    final File versionFile = new File(myTorrentStorage, TORRENTS_STORAGE_VERSION_FILE);
-    if (versionFile.exists()) {
-      try {
-        final String s = FileUtil.readText(versionFile);
-        if (Integer.parseInt(s) == TORRENTS_STORAGE_VERSION)
-          return;
-        else {
-          Loggers.AGENT.warn("Torrent storage version " + s + " doesn't match expected " + TORRENTS_STORAGE_VERSION);
-          Loggers.AGENT.warn("Torrent storage will be cleaned");
-        }
-      } catch (Exception e) {
-        Loggers.AGENT.warn("IOE during reading storage version. Will clean the storage", e);
-      }
-    } else {
-      Loggers.AGENT.info("No torrent storage version file available. Will clean the storage");
-    }
-    final String[] names = myTorrentStorage.list();
-    for (String name : names) {
-      if (name.equals(TORRENTS_STORAGE_VERSION_FILE))
-        continue;
-      FileUtil.delete(new File(myTorrentStorage, name));
-    }
-
-    try {
-      FileUtil.writeFileAndReportErrors(versionFile, String.valueOf(TORRENTS_STORAGE_VERSION));
-    } catch (IOException e) {
-      Loggers.AGENT.warn("Unable to write versions file. All caches will be cleaned on restart");
-    }
+    new TorrentsStorageMigrator(myTorrentStorage, TORRENTS_STORAGE_VERSION_FILE, TORRENTS_STORAGE_VERSION).migrate();
   }
 
   public void setMaxTorrentsToSeed(int maxTorrentsToSeed) {
     myMaxTorrentsToSeed = maxTorrentsToSeed;
   }
 
+  /**
+   * Sets the limit of the total size of seeded files, negative value means no limit
+   */
+  public void setMaxSeededBytes(long maxSeededBytes) {
+    myMaxSeededBytes = maxSeededBytes;
+  }
+
+  public long getMaxSeededBytes() {
+    return myMaxSeededBytes;
+  }
+
+  public void setRetentionPolicy(@NotNull RetentionPolicy retentionPolicy) {
+    myRetentionPolicy = retentionPolicy;
+  }
+
+  @NotNull
+  public RetentionPolicy getRetentionPolicy() {
+    return myRetentionPolicy;
+  }
+
+  @NotNull
+  public TorrentUsageStats getUsageStats() {
+    return myUsageStats;
+  }
+
   public int getMaxTorrentsToSeed() {
     return myMaxTorrentsToSeed;
   }
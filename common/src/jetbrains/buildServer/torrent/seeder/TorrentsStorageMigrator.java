@@ -0,0 +1,217 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import com.intellij.openapi.util.text.StringUtil;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.torrent.torrent.FastResumeCache;
+import jetbrains.buildServer.torrent.torrent.TorrentUsageStats;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Brings the torrents storage to the current version by applying the migration steps one by one.
+ * The version file is updated after every successful step, so an interrupted migration continues from the last
+ * finished step. The storage is cleaned only if its version is unknown or a step fails.
+ */
+public class TorrentsStorageMigrator {
+
+  /**
+   * Converts the storage from {@link #getFromVersion()} to the next version
+   */
+  public interface Step {
+    int getFromVersion();
+
+    void migrate(@NotNull File storageDir) throws IOException;
+  }
+
+  /**
+   * Storages written before the versioning was introduced are considered to have this version
+   */
+  public static final int UNVERSIONED_STORAGE_VERSION = 1;
+
+  @NotNull
+  private final File myStorageDir;
+  @NotNull
+  private final File myVersionFile;
+  private final int myCurrentVersion;
+  @NotNull
+  private final Map<Integer, Step> mySteps = new HashMap<Integer, Step>();
+
+  public TorrentsStorageMigrator(@NotNull File storageDir, @NotNull String versionFileName, int currentVersion) {
+    myStorageDir = storageDir;
+    myVersionFile = new File(storageDir, versionFileName);
+    myCurrentVersion = currentVersion;
+    addStep(new LinksWithTorrentPathStep());
+    addStep(new StateFilesStep());
+  }
+
+  public void addStep(@NotNull Step step) {
+    mySteps.put(step.getFromVersion(), step);
+  }
+
+  public void migrate() {
+    int version = readVersion();
+    if (version == myCurrentVersion) return;
+
+    while (version >= 0 && version < myCurrentVersion) {
+      final Step step = mySteps.get(version);
+      if (step == null) {
+        Loggers.AGENT.warn("No migration of the torrent storage from version " + version + " is available");
+        version = -1;
+        break;
+      }
+      try {
+        Loggers.AGENT.info("Migrating torrent storage " + myStorageDir.getAbsolutePath() + " from version " + version);
+        step.migrate(myStorageDir);
+        version++;
+        writeVersion(version);
+      } catch (IOException e) {
+        Loggers.AGENT.warn("Failed to migrate torrent storage from version " + version, e);
+        version = -1;
+      }
+    }
+
+    if (version != myCurrentVersion) {
+      Loggers.AGENT.warn("Torrent storage will be cleaned");
+      cleanStorage();
+      writeVersion(myCurrentVersion);
+    }
+  }
+
+  /**
+   * @return version of the storage or -1 if it can't be determined
+   */
+  private int readVersion() {
+    if (!myVersionFile.exists()) {
+      final String[] names = myStorageDir.list();
+      if (names == null || names.length == 0) {
+        writeVersion(myCurrentVersion);
+        return myCurrentVersion;
+      }
+      Loggers.AGENT.info("No torrent storage version file available, the storage is considered to be of version " + UNVERSIONED_STORAGE_VERSION);
+      return UNVERSIONED_STORAGE_VERSION;
+    }
+    try {
+      final int version = Integer.parseInt(FileUtil.readText(myVersionFile).trim());
+      if (version > myCurrentVersion) {
+        Loggers.AGENT.warn("Torrent storage version " + version + " is newer than supported " + myCurrentVersion);
+        return -1;
+      }
+      return version;
+    } catch (Exception e) {
+      Loggers.AGENT.warn("IOE during reading storage version", e);
+      return -1;
+    }
+  }
+
+  private void writeVersion(int version) {
+    try {
+      FileUtil.writeFileAndReportErrors(myVersionFile, String.valueOf(version));
+    } catch (IOException e) {
+      Loggers.AGENT.warn("Unable to write versions file. All caches will be cleaned on restart");
+    }
+  }
+
+  private void cleanStorage() {
+    final String[] names = myStorageDir.list();
+    if (names == null) return;
+    for (String name : names) {
+      if (name.equals(myVersionFile.getName()))
+        continue;
+      FileUtil.delete(new File(myStorageDir, name));
+    }
+  }
+
+  /**
+   * Links of version 1 contain the path of the target file only. The torrent file is looked for next to the link,
+   * such links are rewritten with both paths, links without torrent files and links to missing targets are removed.
+   */
+  static class LinksWithTorrentPathStep implements Step {
+    public int getFromVersion() {
+      return 1;
+    }
+
+    public void migrate(@NotNull File storageDir) throws IOException {
+      final Collection<File> links = FileUtil.findFiles(new FileFilter() {
+        public boolean accept(File file) {
+          return FileLink.isLink(file);
+        }
+      }, storageDir);
+
+      final Set<File> usedTorrents = new HashSet<File>();
+      int converted = 0;
+      int removed = 0;
+      for (File link : links) {
+        final File torrentFile = convertLink(link);
+        if (torrentFile == null) {
+          FileUtil.delete(link);
+          removed++;
+        } else {
+          usedTorrents.add(torrentFile.getAbsoluteFile());
+          converted++;
+        }
+      }
+
+      final Collection<File> storedTorrents = FileUtil.findFiles(new FileFilter() {
+        public boolean accept(File file) {
+          return file.getName().endsWith(TorrentUtil.TORRENT_FILE_SUFFIX);
+        }
+      }, storageDir);
+      for (File torrent : storedTorrents) {
+        if (!usedTorrents.contains(torrent.getAbsoluteFile())) {
+          FileUtil.delete(torrent);
+        }
+      }
+      Loggers.AGENT.info("Kept " + converted + " torrent links, removed " + removed + " links which could not be converted");
+    }
+
+    /**
+     * @return torrent file of the link or null if the link can't be converted
+     */
+    private static File convertLink(@NotNull File link) {
+      try {
+        final String[] lines = StringUtil.splitByLines(FileUtil.readText(link, "UTF-8"));
+        if (lines.length == 0 || StringUtil.isEmptyOrSpaces(lines[0])) return null;
+        final File target = new File(lines[0]);
+        if (!target.isFile()) return null;
+        if (lines.length >= 2) {
+          final File torrentFile = new File(lines[1]);
+          return torrentFile.isFile() ? torrentFile : null;
+        }
+        final String name = link.getName().substring(0, link.getName().length() - FileLink.LINK_FILE_SUFFIX.length());
+        final File torrentFile = new File(link.getParentFile(), name + TorrentUtil.TORRENT_FILE_SUFFIX);
+        if (!torrentFile.isFile()) return null;
+        FileUtil.delete(link);
+        FileLink.createLink(target, torrentFile, link.getParentFile());
+        return torrentFile;
+      } catch (IOException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Version 3 keeps the links index, the fast resume state and the usage statistics next to the links. Such files
+   * left in a storage of version 2, e.g. by a newer agent before a downgrade, may not match the links, so they are
+   * removed: the index is rebuilt from the link files and the seeded files are verified again.
+   */
+  static class StateFilesStep implements Step {
+    public int getFromVersion() {
+      return 2;
+    }
+
+    public void migrate(@NotNull File storageDir) throws IOException {
+      for (String name : new String[]{LinksIndex.INDEX_FILE_NAME, FastResumeCache.STATE_FILE_NAME, TorrentUsageStats.STATE_FILE_NAME}) {
+        final File file = new File(storageDir, name);
+        if (file.exists() && !FileUtil.delete(file)) {
+          throw new IOException("Unable to delete " + file.getAbsolutePath());
+        }
+      }
+    }
+  }
+}
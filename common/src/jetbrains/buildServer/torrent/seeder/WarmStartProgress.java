@@ -0,0 +1,49 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of seeding the existing links after {@link TorrentsDirectorySeeder#start}
+ */
+public class WarmStartProgress {
+  private final AtomicInteger myTotal = new AtomicInteger(-1);
+  private final AtomicInteger mySeeded = new AtomicInteger();
+  private final AtomicInteger myFailed = new AtomicInteger();
+
+  void setTotal(int total) {
+    myTotal.set(total);
+  }
+
+  void linkProcessed(boolean seeded) {
+    if (seeded) {
+      mySeeded.incrementAndGet();
+    } else {
+      myFailed.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return number of links to seed or -1 if the links are not enumerated yet
+   */
+  public int getTotal() {
+    return myTotal.get();
+  }
+
+  public int getSeeded() {
+    return mySeeded.get();
+  }
+
+  public int getFailed() {
+    return myFailed.get();
+  }
+
+  public boolean isCompleted() {
+    final int total = myTotal.get();
+    return total >= 0 && mySeeded.get() + myFailed.get() >= total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d of %d torrents seeded, %d failed", getSeeded(), getTotal(), getFailed());
+  }
+}
@@ -0,0 +1,94 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedList;
+
+/**
+ * Progress-rate rules deciding when a torrent download is stuck. A download is aborted if it receives
+ * no data in time, does not complete its first piece in time or its speed over the sliding window falls
+ * below the minimum. Zero or negative values disable the corresponding rule.
+ */
+public class DownloadStallPolicy {
+  private final long myFirstByteTimeoutMs;
+  private final long myFirstPieceTimeoutMs;
+  private final long myWindowMs;
+  private final long myMinBytesPerSec;
+
+  public DownloadStallPolicy(long firstByteTimeoutMs, long firstPieceTimeoutMs, long windowMs, long minBytesPerSec) {
+    myFirstByteTimeoutMs = firstByteTimeoutMs;
+    myFirstPieceTimeoutMs = firstPieceTimeoutMs;
+    myWindowMs = windowMs;
+    myMinBytesPerSec = minBytesPerSec;
+  }
+
+  public long getFirstByteTimeoutMs() {
+    return myFirstByteTimeoutMs;
+  }
+
+  public long getFirstPieceTimeoutMs() {
+    return myFirstPieceTimeoutMs;
+  }
+
+  public long getWindowMs() {
+    return myWindowMs;
+  }
+
+  public long getMinBytesPerSec() {
+    return myMinBytesPerSec;
+  }
+
+  @NotNull
+  public Detector newDetector(long startTime) {
+    return new Detector(startTime);
+  }
+
+  /**
+   * Tracks the progress of a single download
+   */
+  public class Detector {
+    private final long myStartTime;
+    private final LinkedList<long[]> mySamples = new LinkedList<long[]>();
+    private long myFirstPieceTime = -1;
+
+    private Detector(long startTime) {
+      myStartTime = startTime;
+    }
+
+    /**
+     * @param completedPieces number of the pieces the client has completed and validated
+     * @return reason to abort the download or null if the download is making progress
+     */
+    @Nullable
+    public String check(long now, long downloadedBytes, int completedPieces) {
+      final long elapsed = now - myStartTime;
+      if (downloadedBytes <= 0 && myFirstByteTimeoutMs > 0 && elapsed > myFirstByteTimeoutMs) {
+        return String.format("no data received from peers in %d s", myFirstByteTimeoutMs / 1000);
+      }
+      if (completedPieces <= 0) {
+        if (myFirstPieceTimeoutMs > 0 && elapsed > myFirstPieceTimeoutMs) {
+          return String.format("first piece not received in %d s", myFirstPieceTimeoutMs / 1000);
+        }
+        return null;
+      }
+      if (myFirstPieceTime < 0) {
+        myFirstPieceTime = now;
+      }
+      if (myWindowMs <= 0 || myMinBytesPerSec <= 0) return null;
+
+      mySamples.addLast(new long[]{now, downloadedBytes});
+      while (mySamples.size() > 1 && mySamples.get(1)[0] <= now - myWindowMs) {
+        mySamples.removeFirst();
+      }
+      final long[] oldest = mySamples.getFirst();
+      if (now - myFirstPieceTime < myWindowMs || now - oldest[0] < myWindowMs) return null;
+
+      final long bytesPerSec = (downloadedBytes - oldest[1]) * 1000 / (now - oldest[0]);
+      if (bytesPerSec < myMinBytesPerSec) {
+        return String.format("speed %d B/s over the last %d s is below %d B/s", bytesPerSec, myWindowMs / 1000, myMinBytesPerSec);
+      }
+      return null;
+    }
+  }
+}
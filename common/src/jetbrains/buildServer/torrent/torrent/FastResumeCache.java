@@ -0,0 +1,230 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which pieces of the seeded files were verified, so that a seeded file can be trusted after restart
+ * without rehashing as long as its size and modification time did not change.
+ * <p/>
+ * The state is kept in memory and written to a text file, one line per torrent:
+ * <pre>info-hash  size  mtime  pieces count  verification time  verified pieces bitfield (hex)  torrent file  file</pre>
+ */
+public class FastResumeCache {
+  private final static Logger LOG = Logger.getInstance(FastResumeCache.class.getName());
+
+  public static final String STATE_FILE_NAME = "fast-resume.state";
+  private static final String SEPARATOR = "\t";
+  private static final String STATE_FILE_ENCODING = "UTF-8";
+
+  @NotNull
+  private final File myStateFile;
+  private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean myDirty;
+
+  public FastResumeCache(@NotNull File stateFile) {
+    myStateFile = stateFile;
+    if (myStateFile.isFile()) {
+      load();
+    }
+  }
+
+  /**
+   * @return true if all pieces of the torrent were verified and the file is unchanged since then
+   */
+  public boolean canResume(@NotNull String hexInfoHash, @NotNull File srcFile) {
+    final Entry entry = myEntries.get(hexInfoHash);
+    return entry != null
+            && entry.isComplete()
+            && entry.mySize == srcFile.length()
+            && entry.myLastModified == srcFile.lastModified();
+  }
+
+  public boolean contains(@NotNull String hexInfoHash) {
+    return myEntries.containsKey(hexInfoHash);
+  }
+
+  public void put(@NotNull String hexInfoHash,
+                  @NotNull File torrentFile,
+                  @NotNull File srcFile,
+                  int piecesCount,
+                  @NotNull BitSet verifiedPieces) {
+    put(hexInfoHash, torrentFile, srcFile, piecesCount, verifiedPieces, System.currentTimeMillis());
+  }
+
+  /**
+   * @param verificationTime time the pieces were verified at, the entries verified earlier are scrubbed first
+   */
+  public void put(@NotNull String hexInfoHash,
+                  @NotNull File torrentFile,
+                  @NotNull File srcFile,
+                  int piecesCount,
+                  @NotNull BitSet verifiedPieces,
+                  long verificationTime) {
+    myEntries.put(hexInfoHash, new Entry(srcFile.length(), srcFile.lastModified(), piecesCount,
+            verificationTime, (BitSet) verifiedPieces.clone(), torrentFile, srcFile));
+    myDirty = true;
+  }
+
+  public void remove(@NotNull String hexInfoHash) {
+    if (myEntries.remove(hexInfoHash) != null) {
+      myDirty = true;
+    }
+  }
+
+  @Nullable
+  public File getTorrentFile(@NotNull String hexInfoHash) {
+    final Entry entry = myEntries.get(hexInfoHash);
+    return entry == null ? null : entry.myTorrentFile;
+  }
+
+  @Nullable
+  public File getSourceFile(@NotNull String hexInfoHash) {
+    final Entry entry = myEntries.get(hexInfoHash);
+    return entry == null ? null : entry.mySrcFile;
+  }
+
+  /**
+   * @return hash of the torrent which was verified the longest time ago or null if the cache is empty
+   */
+  @Nullable
+  public String findLeastRecentlyVerified() {
+    String result = null;
+    long oldest = Long.MAX_VALUE;
+    for (Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+      if (entry.getValue().myVerificationTime < oldest) {
+        oldest = entry.getValue().myVerificationTime;
+        result = entry.getKey();
+      }
+    }
+    return result;
+  }
+
+  public int size() {
+    return myEntries.size();
+  }
+
+  /**
+   * Writes the state to disk if it was changed since the last save
+   */
+  public synchronized void save() {
+    if (!myDirty) return;
+    myDirty = false;
+    final File tmpFile = new File(myStateFile.getParentFile(), myStateFile.getName() + ".tmp");
+    Writer writer = null;
+    try {
+      FileUtil.createParentDirs(tmpFile);
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), STATE_FILE_ENCODING));
+      for (Map.Entry<String, Entry> e : myEntries.entrySet()) {
+        final Entry entry = e.getValue();
+        writer.write(e.getKey() + SEPARATOR + entry.mySize + SEPARATOR + entry.myLastModified + SEPARATOR +
+                entry.myPiecesCount + SEPARATOR + entry.myVerificationTime + SEPARATOR + toHex(entry.myVerifiedPieces, entry.myPiecesCount) + SEPARATOR +
+                entry.myTorrentFile.getAbsolutePath() + SEPARATOR + entry.mySrcFile.getAbsolutePath());
+        writer.write('\n');
+      }
+      writer.close();
+      writer = null;
+      if (!tmpFile.renameTo(myStateFile)) {
+        FileUtil.delete(myStateFile);
+        if (!tmpFile.renameTo(myStateFile)) {
+          throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + myStateFile.getAbsolutePath());
+        }
+      }
+    } catch (IOException e) {
+      myDirty = true;
+      LOG.warn("Failed to save fast resume state " + myStateFile.getAbsolutePath() + ": " + e.toString());
+    } finally {
+      FileUtil.close(writer);
+    }
+  }
+
+  private void load() {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(myStateFile), STATE_FILE_ENCODING));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split(SEPARATOR);
+        if (parts.length != 8) continue;
+        try {
+          final int piecesCount = Integer.parseInt(parts[3]);
+          myEntries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), piecesCount,
+                  Long.parseLong(parts[4]), fromHex(parts[5], piecesCount), new File(parts[6]), new File(parts[7])));
+        } catch (NumberFormatException e) {
+          LOG.debug("Skipped malformed fast resume record: " + line);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read fast resume state " + myStateFile.getAbsolutePath() + ": " + e.toString());
+    } finally {
+      FileUtil.close(reader);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull BitSet bits, int size) {
+    final StringBuilder sb = new StringBuilder((size + 3) / 4);
+    for (int i = 0; i < size; i += 4) {
+      int digit = 0;
+      for (int j = 0; j < 4; j++) {
+        if (bits.get(i + j)) digit |= 8 >> j;
+      }
+      sb.append(Character.forDigit(digit, 16));
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private static BitSet fromHex(@NotNull String hex, int size) {
+    final BitSet bits = new BitSet(size);
+    for (int i = 0; i < hex.length(); i++) {
+      final int digit = Character.digit(hex.charAt(i), 16);
+      if (digit < 0) throw new NumberFormatException("Invalid bitfield: " + hex);
+      for (int j = 0; j < 4; j++) {
+        if ((digit & (8 >> j)) != 0 && i * 4 + j < size) bits.set(i * 4 + j);
+      }
+    }
+    return bits;
+  }
+
+  private static final class Entry {
+    private final long mySize;
+    private final long myLastModified;
+    private final int myPiecesCount;
+    private final long myVerificationTime;
+    @NotNull
+    private final BitSet myVerifiedPieces;
+    @NotNull
+    private final File myTorrentFile;
+    @NotNull
+    private final File mySrcFile;
+
+    private Entry(long size,
+                  long lastModified,
+                  int piecesCount,
+                  long verificationTime,
+                  @NotNull BitSet verifiedPieces,
+                  @NotNull File torrentFile,
+                  @NotNull File srcFile) {
+      mySize = size;
+      myLastModified = lastModified;
+      myPiecesCount = piecesCount;
+      myVerificationTime = verificationTime;
+      myVerifiedPieces = verifiedPieces;
+      myTorrentFile = torrentFile;
+      mySrcFile = srcFile;
+    }
+
+    private boolean isComplete() {
+      return myVerifiedPieces.cardinality() == myPiecesCount;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the piece hashes of a file while it is being written. Bytes are fed in the order they appear
+ * in the file, the hash of the current piece is kept in the digest until the piece is complete.
+ * The file is expected to only grow: a file which got shorter or was modified without growing since
+ * the previous call is reported as rewritten.
+ */
+public class IncrementalPieceHasher {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final int myPieceLength;
+  private final MessageDigest myDigest;
+  private final ByteArrayOutputStream myPieces = new ByteArrayOutputStream();
+  private long myLength;
+  private long myLastModified;
+  private int myCurrentPieceSize;
+
+  public IncrementalPieceHasher(int pieceLength) {
+    myPieceLength = pieceLength;
+    try {
+      myDigest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public synchronized void update(@NotNull byte[] data, int offset, int length) {
+    while (length > 0) {
+      final int size = Math.min(length, myPieceLength - myCurrentPieceSize);
+      myDigest.update(data, offset, size);
+      myCurrentPieceSize += size;
+      myLength += size;
+      offset += size;
+      length -= size;
+      if (myCurrentPieceSize == myPieceLength) {
+        completePiece();
+      }
+    }
+  }
+
+  /**
+   * Hashes the bytes appended to the file since the previous call
+   * @return false if the file is shorter than the bytes already hashed or was modified without growing,
+   * i.e. it was rewritten
+   */
+  public synchronized boolean catchUp(@NotNull File file) throws IOException {
+    final long lastModified = file.lastModified();
+    final long fileLength = file.length();
+    if (fileLength < myLength) return false;
+    if (fileLength == myLength) return myLength == 0 || lastModified == myLastModified;
+    final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    RandomAccessFile in = null;
+    try {
+      in = new RandomAccessFile(file, "r");
+      in.seek(myLength);
+      long remaining = fileLength - myLength;
+      while (remaining > 0) {
+        final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) break;
+        update(buffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      FileUtil.close(in);
+    }
+    myLastModified = lastModified;
+    return true;
+  }
+
+  /**
+   * @return number of bytes hashed so far
+   */
+  public synchronized long getLength() {
+    return myLength;
+  }
+
+  /**
+   * Completes the last piece
+   * @return concatenated SHA-1 hashes of all the pieces
+   */
+  @NotNull
+  public synchronized byte[] finish() {
+    if (myCurrentPieceSize > 0) {
+      completePiece();
+    }
+    return myPieces.toByteArray();
+  }
+
+  private void completePiece() {
+    final byte[] hash = myDigest.digest();
+    myPieces.write(hash, 0, hash.length);
+    myCurrentPieceSize = 0;
+  }
+}
@@ -0,0 +1,101 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 merkle trees of BitTorrent v2 (BEP 52). The leaves are the hashes of 16 KiB blocks of a file,
+ * the missing leaves up to the power of two are zero hashes.
+ */
+public final class MerkleTree {
+  public static final int BLOCK_SIZE = 16 * 1024;
+  public static final int HASH_SIZE = 32;
+
+  private MerkleTree() {
+  }
+
+  @NotNull
+  public static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the smallest power of two not less than the value
+   */
+  public static long nextPowerOfTwo(long value) {
+    long result = 1;
+    while (result < value) {
+      result <<= 1;
+    }
+    return result;
+  }
+
+  public static int getBlocksCount(long length) {
+    return (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+  }
+
+  /**
+   * Hashes the remaining bytes of the buffer by blocks, the last block may be shorter
+   * @return concatenated leaf hashes
+   */
+  @NotNull
+  public static byte[] hashBlocks(@NotNull ByteBuffer data, @NotNull MessageDigest sha256) {
+    final int limit = data.limit();
+    final byte[] leaves = new byte[getBlocksCount(data.remaining()) * HASH_SIZE];
+    for (int offset = 0; data.position() < limit; offset += HASH_SIZE) {
+      data.limit(Math.min(limit, data.position() + BLOCK_SIZE));
+      sha256.reset();
+      sha256.update(data);
+      System.arraycopy(sha256.digest(), 0, leaves, offset, HASH_SIZE);
+      data.limit(limit);
+    }
+    return leaves;
+  }
+
+  /**
+   * @return root of a tree of the given width filled with zero leaves
+   */
+  @NotNull
+  public static byte[] getPaddingHash(int width, @NotNull MessageDigest sha256) {
+    byte[] hash = new byte[HASH_SIZE];
+    for (int w = 1; w < width; w <<= 1) {
+      sha256.reset();
+      sha256.update(hash);
+      sha256.update(hash);
+      hash = sha256.digest();
+    }
+    return hash;
+  }
+
+  /**
+   * Computes the root of the tree over the nodes
+   * @param nodes concatenated hashes of a layer of the tree
+   * @param width number of nodes in the layer, a power of two not less than the number of nodes
+   * @param padding hash of the missing nodes of the layer
+   */
+  @NotNull
+  public static byte[] getRoot(@NotNull byte[] nodes, int width, @NotNull byte[] padding, @NotNull MessageDigest sha256) {
+    byte[] layer = new byte[width * HASH_SIZE];
+    System.arraycopy(nodes, 0, layer, 0, nodes.length);
+    for (int offset = nodes.length; offset < layer.length; offset += HASH_SIZE) {
+      System.arraycopy(padding, 0, layer, offset, HASH_SIZE);
+    }
+    while (layer.length > HASH_SIZE) {
+      final byte[] parents = new byte[layer.length / 2];
+      for (int offset = 0; offset < parents.length; offset += HASH_SIZE) {
+        sha256.reset();
+        sha256.update(layer, 2 * offset, 2 * HASH_SIZE);
+        System.arraycopy(sha256.digest(), 0, parents, offset, HASH_SIZE);
+      }
+      layer = parents;
+    }
+    return layer;
+  }
+}
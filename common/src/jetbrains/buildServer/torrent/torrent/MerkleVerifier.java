@@ -0,0 +1,131 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Checks the pieces of a single-file hybrid torrent against the v2 piece layer of the torrent,
+ * the root of the 16 KiB block hashes of each piece
+ */
+public final class MerkleVerifier {
+  private final long myLength;
+  private final int myPieceLength;
+  private final byte[] myPiecesRoot;
+  private final byte[] myPieceLayer;
+  private final MessageDigest mySha256 = MerkleTree.createDigest();
+
+  private MerkleVerifier(long length, int pieceLength, @NotNull byte[] piecesRoot, @NotNull byte[] pieceLayer) {
+    myLength = length;
+    myPieceLength = pieceLength;
+    myPiecesRoot = piecesRoot;
+    myPieceLayer = pieceLayer;
+  }
+
+  /**
+   * @return verifier for the torrent or null if the torrent is not a single-file v2 or hybrid one
+   */
+  @Nullable
+  public static MerkleVerifier forTorrentFile(@NotNull File torrentFile) throws IOException {
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(torrentFile));
+      return fromMetadata(in);
+    } finally {
+      FileUtil.close(in);
+    }
+  }
+
+  /**
+   * @return verifier for the torrent or null if the torrent is not a single-file v2 or hybrid one
+   */
+  @Nullable
+  public static MerkleVerifier forTorrent(@NotNull Torrent torrent) throws IOException {
+    return fromMetadata(new ByteArrayInputStream(torrent.getEncoded()));
+  }
+
+  @Nullable
+  private static MerkleVerifier fromMetadata(@NotNull InputStream in) throws IOException {
+    final Map<String, BEValue> metadata = BDecoder.bdecode(in).getMap();
+    final Map<String, BEValue> info = metadata.get("info").getMap();
+    final BEValue fileTree = info.get("file tree");
+    if (fileTree == null || fileTree.getMap().size() != 1) return null;
+    final BEValue file = fileTree.getMap().values().iterator().next().getMap().get("");
+    if (file == null) return null;
+    final Map<String, BEValue> fileInfo = file.getMap();
+    final BEValue piecesRoot = fileInfo.get("pieces root");
+    if (piecesRoot == null) return null;
+
+    final long length = fileInfo.get("length").getLong();
+    final int pieceLength = info.get("piece length").getInt();
+    final byte[] root = piecesRoot.getBytes();
+    final byte[] pieceLayer;
+    if (length <= pieceLength) {
+      pieceLayer = root;
+    } else {
+      // the key of the layer is the binary root, which is not preserved by the string keys of the decoded map:
+      // a single-file torrent has a single layer, it is checked against the root instead
+      final BEValue layers = metadata.get("piece layers");
+      if (layers == null || layers.getMap().size() != 1) {
+        throw new IOException("Torrent has no piece layer of its file");
+      }
+      pieceLayer = layers.getMap().values().iterator().next().getBytes();
+    }
+    final MerkleVerifier verifier = new MerkleVerifier(length, pieceLength, root, pieceLayer);
+    if (verifier.getPiecesCount() != (length + pieceLength - 1) / pieceLength || !Arrays.equals(root, verifier.computeRoot())) {
+      throw new IOException("Piece layer does not match the pieces root");
+    }
+    return verifier;
+  }
+
+  /**
+   * @return merkle root of the file, identical files have the same root regardless of their names and torrents
+   */
+  @NotNull
+  public byte[] getPiecesRoot() {
+    return myPiecesRoot.clone();
+  }
+
+  public int getPiecesCount() {
+    return myPieceLayer.length / MerkleTree.HASH_SIZE;
+  }
+
+  public int getPieceLength() {
+    return myPieceLength;
+  }
+
+  public int getPieceSize(int piece) {
+    return (int) Math.min(myPieceLength, myLength - (long) piece * myPieceLength);
+  }
+
+  /**
+   * @return true if the first {@code length} bytes of the data are the expected content of the piece
+   */
+  public boolean isValidPiece(int piece, @NotNull byte[] data, int length) {
+    if (length != getPieceSize(piece)) return false;
+    final byte[] leaves = MerkleTree.hashBlocks(ByteBuffer.wrap(data, 0, length), mySha256);
+    final int width = getPiecesCount() == 1
+            ? (int) MerkleTree.nextPowerOfTwo(leaves.length / MerkleTree.HASH_SIZE)
+            : myPieceLength / MerkleTree.BLOCK_SIZE;
+    final byte[] hash = MerkleTree.getRoot(leaves, width, new byte[MerkleTree.HASH_SIZE], mySha256);
+    final int offset = piece * MerkleTree.HASH_SIZE;
+    return Arrays.equals(hash, Arrays.copyOfRange(myPieceLayer, offset, offset + MerkleTree.HASH_SIZE));
+  }
+
+  @NotNull
+  private byte[] computeRoot() {
+    final int piecesCount = getPiecesCount();
+    if (piecesCount == 1) return myPieceLayer;
+    return MerkleTree.getRoot(myPieceLayer, (int) MerkleTree.nextPowerOfTwo(piecesCount),
+            MerkleTree.getPaddingHash(myPieceLength / MerkleTree.BLOCK_SIZE, mySha256), mySha256);
+  }
+}
@@ -0,0 +1,115 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of the multi-file torrents packaging several artifacts of a build. The artifacts are grouped either
+ * into a single torrent of the whole build or into a torrent per top-level directory. The torrents are stored
+ * in the hidden artifacts of the build next to the single-file torrents:
+ * <pre>
+ * .teamcity/torrents.multi/build.torrent       - all the artifacts of the build
+ * .teamcity/torrents.multi/dir/&lt;dir&gt;.torrent - artifacts under the top-level directory
+ * </pre>
+ * The files of a torrent are listed relative to the directory of the group, the name of the torrent is
+ * the name of that directory.
+ */
+public class MultiFileTorrents {
+  public static final String TORRENTS_DIR_PATH = ".teamcity/torrents.multi";
+  public static final String DIRECTORY_TORRENTS_DIR_PATH = TORRENTS_DIR_PATH + "/dir";
+
+  private static final String BUILD_TORRENT_PATH = TORRENTS_DIR_PATH + "/build" + TorrentUtil.TORRENT_FILE_SUFFIX;
+  private static final String DIRECTORY_TORRENTS_PATH = DIRECTORY_TORRENTS_DIR_PATH + "/";
+
+  public enum Mode {
+    OFF, BUILD, DIRECTORY;
+
+    @NotNull
+    public static Mode byName(@Nullable String name) {
+      for (Mode mode : values()) {
+        if (mode.name().equalsIgnoreCase(name == null ? "" : name.trim())) return mode;
+      }
+      return OFF;
+    }
+  }
+
+  /**
+   * @return group of the artifact: empty string for the whole build, the top-level directory otherwise,
+   * or null if the artifact is not packaged in the mode
+   */
+  @Nullable
+  public static String getGroup(@NotNull Mode mode, @NotNull String artifactPath) {
+    switch (mode) {
+      case BUILD:
+        return "";
+      case DIRECTORY:
+        final int idx = artifactPath.indexOf('/');
+        return idx <= 0 ? null : artifactPath.substring(0, idx);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @return path of the torrent of the group relative to the artifacts directory
+   */
+  @NotNull
+  public static String getTorrentPath(@NotNull String group) {
+    return group.length() == 0 ? BUILD_TORRENT_PATH : DIRECTORY_TORRENTS_PATH + group + TorrentUtil.TORRENT_FILE_SUFFIX;
+  }
+
+  /**
+   * @return group of the torrent or null if the path is not a multi-file torrent
+   */
+  @Nullable
+  public static String getGroupOfTorrent(@NotNull String torrentPath) {
+    if (BUILD_TORRENT_PATH.equals(torrentPath)) return "";
+    if (!torrentPath.startsWith(DIRECTORY_TORRENTS_PATH) || !torrentPath.endsWith(TorrentUtil.TORRENT_FILE_SUFFIX)) return null;
+    final String group = torrentPath.substring(DIRECTORY_TORRENTS_PATH.length(), torrentPath.length() - TorrentUtil.TORRENT_FILE_SUFFIX.length());
+    return group.length() == 0 || group.contains("/") ? null : group;
+  }
+
+  /**
+   * @return paths of the torrents the artifact can be packaged into, the directory torrent goes first
+   */
+  @NotNull
+  public static List<String> getCandidateTorrentPaths(@NotNull String artifactPath) {
+    final List<String> paths = new ArrayList<String>(2);
+    final String group = getGroup(Mode.DIRECTORY, artifactPath);
+    if (group != null) {
+      paths.add(getTorrentPath(group));
+    }
+    paths.add(getTorrentPath(""));
+    return paths;
+  }
+
+  /**
+   * @return artifact paths of the files of the torrent in the order of the torrent
+   */
+  @NotNull
+  public static List<String> getArtifactPaths(@NotNull String group, @NotNull Torrent torrent) {
+    final String prefix = torrent.getName() + "/";
+    final List<String> paths = new ArrayList<String>();
+    for (String filename : torrent.getFilenames()) {
+      final String path = filename.replace('\\', '/');
+      if (!path.startsWith(prefix)) continue;
+      final String relativePath = path.substring(prefix.length());
+      paths.add(group.length() == 0 ? relativePath : group + "/" + relativePath);
+    }
+    return paths;
+  }
+
+  /**
+   * @return path of the artifact relative to the directory the torrent is downloaded to, or null if the
+   * torrent does not contain the artifact
+   */
+  @Nullable
+  public static String getPathInTorrent(@NotNull String group, @NotNull Torrent torrent, @NotNull String artifactPath) {
+    if (!getArtifactPaths(group, torrent).contains(artifactPath)) return null;
+    return torrent.getName() + "/" + (group.length() == 0 ? artifactPath : artifactPath.substring(group.length() + 1));
+  }
+}
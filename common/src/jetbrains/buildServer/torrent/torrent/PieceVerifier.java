@@ -0,0 +1,165 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Checks the pieces of a single-file torrent against the file on disk
+ */
+public final class PieceVerifier {
+  private static final int PIECE_HASH_SIZE = 20;
+
+  private final long myPieceLength;
+  private final byte[] myPieceHashes;
+  private final long myLength;
+
+  private PieceVerifier(long pieceLength, @NotNull byte[] pieceHashes, long length) {
+    myPieceLength = pieceLength;
+    myPieceHashes = pieceHashes;
+    myLength = length;
+  }
+
+  /**
+   * @return verifier for the torrent or null if the torrent is not a single-file one
+   */
+  @Nullable
+  public static PieceVerifier forTorrentFile(@NotNull File torrentFile) throws IOException {
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(torrentFile));
+      return fromMetadata(in);
+    } finally {
+      FileUtil.close(in);
+    }
+  }
+
+  /**
+   * @return verifier for the torrent or null if the torrent is not a single-file one
+   */
+  @Nullable
+  public static PieceVerifier forTorrent(@NotNull Torrent torrent) throws IOException {
+    return fromMetadata(new ByteArrayInputStream(torrent.getEncoded()));
+  }
+
+  @Nullable
+  private static PieceVerifier fromMetadata(@NotNull InputStream in) throws IOException {
+    final Map<String, BEValue> info = BDecoder.bdecode(in).getMap().get("info").getMap();
+    final BEValue length = info.get("length");
+    if (length == null || info.containsKey("files")) return null;
+    return new PieceVerifier(info.get("piece length").getLong(), info.get("pieces").getBytes(), length.getLong());
+  }
+
+  public int getPiecesCount() {
+    return myPieceHashes.length / PIECE_HASH_SIZE;
+  }
+
+  public long getLength() {
+    return myLength;
+  }
+
+  public long getPieceLength() {
+    return myPieceLength;
+  }
+
+  public long getPieceOffset(int piece) {
+    return piece * myPieceLength;
+  }
+
+  public int getPieceSize(int piece) {
+    return (int) Math.min(myPieceLength, myLength - getPieceOffset(piece));
+  }
+
+  /**
+   * @return true if the first {@code length} bytes of the data are the expected content of the piece
+   */
+  public boolean isValid(int piece, @NotNull byte[] data, int length) throws IOException {
+    if (length != getPieceSize(piece)) return false;
+    final MessageDigest sha1 = createDigest();
+    sha1.update(data, 0, length);
+    return matches(piece, sha1.digest());
+  }
+
+  /**
+   * Hashes only the given number of evenly spaced pieces including the first and the last ones
+   * @return true if all the hashed pieces match the torrent
+   */
+  public boolean verifySample(@NotNull File file, int samplesCount) throws IOException {
+    if (file.length() != myLength) return false;
+    final int piecesCount = getPiecesCount();
+    if (piecesCount == 0) return true;
+    final int samples = Math.max(1, Math.min(samplesCount, piecesCount));
+    final byte[] buffer = new byte[(int) myPieceLength];
+    RandomAccessFile in = null;
+    try {
+      in = new RandomAccessFile(file, "r");
+      for (int i = 0; i < samples; i++) {
+        final int piece = samples == 1 ? 0 : (int) ((long) i * (piecesCount - 1) / (samples - 1));
+        final int size = getPieceSize(piece);
+        in.seek(getPieceOffset(piece));
+        in.readFully(buffer, 0, size);
+        if (!isValid(piece, buffer, size)) return false;
+      }
+    } finally {
+      FileUtil.close(in);
+    }
+    return true;
+  }
+
+  /**
+   * Hashes the file piece by piece
+   * @return set of the pieces matching the torrent
+   */
+  @NotNull
+  public BitSet verify(@NotNull File file) throws IOException {
+    final BitSet verified = new BitSet(getPiecesCount());
+    if (file.length() != myLength) return verified;
+
+    final MessageDigest sha1 = createDigest();
+    final byte[] buffer = new byte[64 * 1024];
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      for (int piece = 0; piece < getPiecesCount(); piece++) {
+        long remaining = Math.min(myPieceLength, myLength - piece * myPieceLength);
+        sha1.reset();
+        while (remaining > 0) {
+          final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (read < 0) return verified;
+          sha1.update(buffer, 0, read);
+          remaining -= read;
+        }
+        if (matches(piece, sha1.digest())) {
+          verified.set(piece);
+        }
+      }
+    } finally {
+      FileUtil.close(in);
+    }
+    return verified;
+  }
+
+  private boolean matches(int piece, @NotNull byte[] digest) {
+    final int offset = piece * PIECE_HASH_SIZE;
+    return Arrays.equals(digest, Arrays.copyOfRange(myPieceHashes, offset, offset + PIECE_HASH_SIZE));
+  }
+
+  @NotNull
+  private static MessageDigest createDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.toString());
+    }
+  }
+}
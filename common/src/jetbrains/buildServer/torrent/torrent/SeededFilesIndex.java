@@ -0,0 +1,80 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps info-hashes of the seeded torrents to the seeded files and back. Files are looked up by their absolute path,
+ * the canonical path is registered as well, so that a file reached through a symlink is found too.
+ */
+class SeededFilesIndex {
+  private final ConcurrentMap<String, File> myFilesByHash = new ConcurrentHashMap<String, File>();
+  private final ConcurrentMap<File, String> myHashesByPath = new ConcurrentHashMap<File, String>();
+
+  public void add(@NotNull String hexInfoHash, @NotNull File srcFile) {
+    final File absoluteFile = srcFile.getAbsoluteFile();
+    final File previous = myFilesByHash.put(hexInfoHash, absoluteFile);
+    if (previous != null && !previous.equals(absoluteFile)) {
+      removePaths(hexInfoHash, previous);
+    }
+    myHashesByPath.put(absoluteFile, hexInfoHash);
+    final File canonicalFile = canonicalize(absoluteFile);
+    if (!canonicalFile.equals(absoluteFile)) {
+      myHashesByPath.put(canonicalFile, hexInfoHash);
+    }
+  }
+
+  @Nullable
+  public File remove(@NotNull String hexInfoHash) {
+    final File srcFile = myFilesByHash.remove(hexInfoHash);
+    if (srcFile != null) {
+      removePaths(hexInfoHash, srcFile);
+    }
+    return srcFile;
+  }
+
+  public boolean contains(@NotNull String hexInfoHash) {
+    return myFilesByHash.containsKey(hexInfoHash);
+  }
+
+  @Nullable
+  public File getFile(@NotNull String hexInfoHash) {
+    return myFilesByHash.get(hexInfoHash);
+  }
+
+  @Nullable
+  public String findHash(@NotNull File srcFile) {
+    final File absoluteFile = srcFile.getAbsoluteFile();
+    final String hash = myHashesByPath.get(absoluteFile);
+    if (hash != null || myHashesByPath.isEmpty()) return hash;
+    return myHashesByPath.get(canonicalize(absoluteFile));
+  }
+
+  public int size() {
+    return myFilesByHash.size();
+  }
+
+  public void clear() {
+    myFilesByHash.clear();
+    myHashesByPath.clear();
+  }
+
+  private void removePaths(@NotNull String hexInfoHash, @NotNull File srcFile) {
+    myHashesByPath.remove(srcFile, hexInfoHash);
+    myHashesByPath.remove(canonicalize(srcFile), hexInfoHash);
+  }
+
+  @NotNull
+  private static File canonicalize(@NotNull File file) {
+    try {
+      return file.getCanonicalFile();
+    } catch (IOException e) {
+      return file;
+    }
+  }
+}
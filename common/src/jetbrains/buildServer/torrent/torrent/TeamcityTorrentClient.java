@@ -5,7 +5,7 @@ import com.turn.ttorrent.client.Client;
 import com.turn.ttorrent.client.SharedTorrent;
 import com.turn.ttorrent.common.Torrent;
 import com.turn.ttorrent.common.TorrentHash;
-import com.turn.ttorrent.tracker.TrackerHelper;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -14,37 +14,507 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Seeds and downloads torrents.
+ * <p/>
+ * When a {@link TorrentDemandProbe} is set and the number of active torrents is limited, torrents may be kept
+ * dormant: only the info-hash and the file locations are known and nothing is announced. A dormant torrent
+ * becomes a live {@link SharedTorrent} when the probe reports peers looking for it, live torrents which have not
+ * uploaded anything for the idle timeout or exceed the limit of active torrents are demoted back to dormant.
+ */
 public class TeamcityTorrentClient {
   private final static Logger LOG = Logger.getInstance(TeamcityTorrentClient.class.getName());
 
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+  private static final int ACTIVITY_CHECK_INTERVAL_SECONDS = 3;
+  public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 8;
+  private static final long STALL_CHECK_INTERVAL_MS = 500;
+  /**
+   * Timeout passed to the ttorrent client when the stall policy controls the download
+   */
+  private static final long STALL_POLICY_BACKSTOP_TIMEOUT_SEC = TimeUnit.DAYS.toSeconds(1);
+
   private Client myClient;
 
+  private final ConcurrentMap<String, SharedTorrent> myLiveTorrents = new ConcurrentHashMap<String, SharedTorrent>();
+  private final SeededFilesIndex mySeededFiles = new SeededFilesIndex();
+  private final TorrentFileHashCache myTorrentHashes = new TorrentFileHashCache();
+  private final ConcurrentMap<String, TorrentLocation> myDormantTorrents = new ConcurrentHashMap<String, TorrentLocation>();
+  private final ConcurrentMap<String, TorrentActivity> myDemotableTorrents = new ConcurrentHashMap<String, TorrentActivity>();
+  private final ConcurrentMap<String, Set<TorrentLocation>> myTorrentLocations = new ConcurrentHashMap<String, Set<TorrentLocation>>();
+  @Nullable
+  private volatile TorrentDemandProbe myDemandProbe;
+  private volatile int myMaxActiveTorrents = -1;
+  private volatile long myIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+  private ScheduledExecutorService myActivityMonitor;
+  private volatile ExecutorService myDownloadExecutor;
+  private volatile ExecutorService myVerificationExecutor;
+  private final Set<String> myPendingVerifications = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile int myMaxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+  @Nullable
+  private volatile DownloadStallPolicy myStallPolicy;
+  @Nullable
+  private volatile FastResumeCache myFastResumeCache;
+  @Nullable
+  private volatile TorrentUsageStats myUsageStats;
+  private final ConcurrentMap<String, Long> myUploadedSnapshot = new ConcurrentHashMap<String, Long>();
+  private final Set<String> myUploadingTorrents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   public TeamcityTorrentClient() {
     myClient = new Client();
   }
 
   public void start(@NotNull InetAddress[] inetAddresses, @Nullable final URI defaultTrackerURI, final int announceInterval) throws IOException {
     myClient.start(inetAddresses, announceInterval, defaultTrackerURI);
+    myDownloadExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent downloads", myMaxConcurrentDownloads);
+    myVerificationExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent verification", 1);
+    myActivityMonitor = ExecutorsFactory.newFixedScheduledExecutor("Torrent activity monitor", 1);
+    myActivityMonitor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          updateUsageStats();
+          updateDormantTorrents();
+        } catch (Exception e) {
+          LOG.warn("Failed to update torrents activity: " + e.toString(), e);
+        }
+      }
+    }, ACTIVITY_CHECK_INTERVAL_SECONDS, ACTIVITY_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
   }
 
   public void stop() {
+    if (myActivityMonitor != null) {
+      myActivityMonitor.shutdownNow();
+      myActivityMonitor = null;
+    }
+    if (myDownloadExecutor != null) {
+      myDownloadExecutor.shutdownNow();
+      myDownloadExecutor = null;
+    }
+    if (myVerificationExecutor != null) {
+      myVerificationExecutor.shutdownNow();
+      myVerificationExecutor = null;
+    }
     myClient.stop(true);
+    myLiveTorrents.clear();
+    mySeededFiles.clear();
+    myTorrentHashes.clear();
+    myDormantTorrents.clear();
+    myDemotableTorrents.clear();
+    myTorrentLocations.clear();
+    myUploadedSnapshot.clear();
+    myUploadingTorrents.clear();
+    myPendingVerifications.clear();
+  }
+
+  public void setUsageStats(@Nullable TorrentUsageStats usageStats) {
+    myUsageStats = usageStats;
+  }
+
+  /**
+   * Records bytes uploaded by the live torrents since the previous check. Uploading after an idle check
+   * is counted as a new request.
+   */
+  /*package local*/ void updateUsageStats() {
+    final TorrentUsageStats usageStats = myUsageStats;
+    if (usageStats == null) return;
+    final Set<String> liveHashes = new HashSet<String>();
+    for (Map.Entry<String, SharedTorrent> entry : myLiveTorrents.entrySet()) {
+      final String hash = entry.getKey();
+      final SharedTorrent torrent = entry.getValue();
+      liveHashes.add(hash);
+      final long uploaded = torrent.getUploaded();
+      final Long previous = myUploadedSnapshot.put(hash, uploaded);
+      final long delta = previous == null || uploaded < previous ? uploaded : uploaded - previous;
+      if (delta <= 0) {
+        myUploadingTorrents.remove(hash);
+        continue;
+      }
+      if (myUploadingTorrents.add(hash)) {
+        usageStats.recordRequest(hash);
+      }
+      usageStats.recordUpload(hash, delta);
+    }
+    myUploadedSnapshot.keySet().retainAll(liveHashes);
+    myUploadingTorrents.retainAll(liveHashes);
+  }
+
+  public void setDemandProbe(@Nullable TorrentDemandProbe demandProbe) {
+    myDemandProbe = demandProbe;
+  }
+
+  /**
+   * Sets the maximum number of live torrents which were added from torrent files, negative value disables the dormant tier
+   */
+  public void setMaxActiveTorrents(int maxActiveTorrents) {
+    myMaxActiveTorrents = maxActiveTorrents;
+  }
+
+  public void setIdleTimeoutMs(long idleTimeoutMs) {
+    myIdleTimeoutMs = idleTimeoutMs;
+  }
+
+  public boolean isDormantTierEnabled() {
+    return myDemandProbe != null && myMaxActiveTorrents >= 0;
+  }
+
+  /**
+   * Registers the torrent as dormant: it will be activated when requested by peers.
+   * @return false if the dormant tier is disabled, the caller should seed the torrent instead
+   */
+  public boolean addDormantTorrent(@NotNull String hexInfoHash, @NotNull File torrentFile, @NotNull File srcFile) {
+    if (!isDormantTierEnabled()) return false;
+    if (myLiveTorrents.containsKey(hexInfoHash)) return true;
+    myDormantTorrents.put(hexInfoHash, new TorrentLocation(torrentFile, srcFile));
+    mySeededFiles.add(hexInfoHash, srcFile);
+    myTorrentHashes.remember(torrentFile, hexInfoHash);
+    return true;
+  }
+
+  public boolean isDormantTorrent(@NotNull String hexInfoHash) {
+    return myDormantTorrents.containsKey(hexInfoHash);
+  }
+
+  public int getNumberOfPendingVerifications() {
+    return myPendingVerifications.size();
+  }
+
+  public int getNumberOfDormantTorrents() {
+    return myDormantTorrents.size();
+  }
+
+  /**
+   * Activates the requested dormant torrents and demotes the idle ones
+   */
+  /*package local*/ void updateDormantTorrents() {
+    final TorrentDemandProbe demandProbe = myDemandProbe;
+    if (demandProbe == null) return;
+
+    final Set<String> requested = new HashSet<String>(demandProbe.getRequestedTorrents());
+    for (String hash : requested) {
+      if (myDormantTorrents.containsKey(hash)) {
+        activateTorrent(hash);
+      }
+    }
+
+    final long now = System.currentTimeMillis();
+    for (Map.Entry<String, TorrentActivity> entry : myDemotableTorrents.entrySet()) {
+      final String hash = entry.getKey();
+      final TorrentActivity activity = entry.getValue();
+      final SharedTorrent torrent = myLiveTorrents.get(hash);
+      if (torrent == null) {
+        myDemotableTorrents.remove(hash);
+        continue;
+      }
+      final long uploaded = torrent.getUploaded();
+      if (uploaded != activity.myUploaded || requested.contains(hash)) {
+        activity.myUploaded = uploaded;
+        activity.myLastActivityTime = now;
+      } else if (myMaxActiveTorrents >= 0 && now - activity.myLastActivityTime > myIdleTimeoutMs) {
+        demoteTorrent(hash);
+      }
+    }
+
+    final int maxActiveTorrents = myMaxActiveTorrents;
+    if (maxActiveTorrents >= 0 && myDemotableTorrents.size() > maxActiveTorrents) {
+      final List<Map.Entry<String, TorrentActivity>> byActivity = new ArrayList<Map.Entry<String, TorrentActivity>>(myDemotableTorrents.entrySet());
+      Collections.sort(byActivity, new Comparator<Map.Entry<String, TorrentActivity>>() {
+        public int compare(Map.Entry<String, TorrentActivity> o1, Map.Entry<String, TorrentActivity> o2) {
+          final long t1 = o1.getValue().myLastActivityTime;
+          final long t2 = o2.getValue().myLastActivityTime;
+          return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+        }
+      });
+      for (Map.Entry<String, TorrentActivity> entry : byActivity.subList(0, byActivity.size() - maxActiveTorrents)) {
+        demoteTorrent(entry.getKey());
+      }
+    }
+  }
+
+  private boolean activateTorrent(@NotNull String hexInfoHash) {
+    final TorrentLocation location = myDormantTorrents.remove(hexInfoHash);
+    if (location == null) return false;
+    try {
+      final Torrent torrent = loadTorrent(location.myTorrentFile);
+      if (!checkFastResume(hexInfoHash, location.myTorrentFile, location.mySrcFile) || !seedTorrent(torrent, location.mySrcFile)) {
+        mySeededFiles.remove(hexInfoHash);
+        return false;
+      }
+      myDemotableTorrents.put(hexInfoHash, new TorrentActivity(location));
+      final TorrentUsageStats usageStats = myUsageStats;
+      if (usageStats != null) {
+        usageStats.recordRequest(hexInfoHash);
+      }
+      LOG.debug("Activated dormant torrent " + hexInfoHash + " for " + location.mySrcFile.getAbsolutePath());
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Failed to activate torrent " + location.myTorrentFile.getAbsolutePath() + ": " + e.toString());
+      mySeededFiles.remove(hexInfoHash);
+      return false;
+    }
+  }
+
+  private void demoteTorrent(@NotNull String hexInfoHash) {
+    final TorrentActivity activity = myDemotableTorrents.remove(hexInfoHash);
+    if (activity == null) return;
+    myDormantTorrents.put(hexInfoHash, activity.myLocation);
+    final SharedTorrent torrent = myLiveTorrents.remove(hexInfoHash);
+    if (torrent != null) {
+      myClient.removeTorrent(torrent);
+    }
+    LOG.debug("Demoted idle torrent " + hexInfoHash + " to dormant");
   }
 
   public boolean seedTorrent(@NotNull File torrentFile, @NotNull File srcFile) throws IOException, NoSuchAlgorithmException {
-    Torrent torrent = loadTorrent(torrentFile);
-    if (!TrackerHelper.tryTracker(torrent)){
+    return seedTorrent(torrentFile, srcFile, new TrackerAvailabilityCache());
+  }
+
+  /**
+   * Starts seeding the torrent, checks the tracker of the torrent via the specified cache. If the tracker
+   * is not available, the torrent file is rewritten to use the default tracker.
+   * A file which can not be fast resumed is verified in background and seeded once all its pieces match.
+   * @return true if the torrent is seeded or its file is being verified for seeding
+   */
+  public boolean seedTorrent(@NotNull File torrentFile,
+                             @NotNull File srcFile,
+                             @NotNull TrackerAvailabilityCache trackersCache) throws IOException, NoSuchAlgorithmException {
+    final Torrent torrent = loadTorrent(torrentFile);
+    if (joinSwarm(torrent.getHexInfoHash(), torrentFile, srcFile)) return true;
+    if (needsVerification(torrent.getHexInfoHash(), srcFile)) {
+      return scheduleVerification(torrent, torrentFile, srcFile, trackersCache);
+    }
+    return startSeeding(torrent, torrentFile, srcFile, trackersCache);
+  }
+
+  private boolean startSeeding(@NotNull Torrent torrent,
+                               @NotNull File torrentFile,
+                               @NotNull File srcFile,
+                               @NotNull TrackerAvailabilityCache trackersCache) throws IOException {
+    boolean trackerAvailable;
+    try {
+      trackerAvailable = trackersCache.isAvailable(torrent);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    if (!trackerAvailable){
       if (myClient.getDefaultTrackerURI() == null){
         return false;
       }
       torrent = torrent.createWithNewTracker(myClient.getDefaultTrackerURI());
       torrent.save(torrentFile);
     }
-    return seedTorrent(torrent, srcFile);
+    if (!seedTorrent(torrent, srcFile)) return false;
+    myTorrentHashes.remember(torrentFile, torrent.getHexInfoHash());
+    addLocation(torrent.getHexInfoHash(), new TorrentLocation(torrentFile, srcFile));
+    if (isDormantTierEnabled()) {
+      myDemotableTorrents.put(torrent.getHexInfoHash(), new TorrentActivity(new TorrentLocation(torrentFile, srcFile)));
+    }
+    return true;
+  }
+
+  /**
+   * Verifies all pieces of the file in background and starts seeding it if they match the torrent.
+   * The file is verified in place if the client is not started.
+   */
+  private boolean scheduleVerification(@NotNull final Torrent torrent,
+                                       @NotNull final File torrentFile,
+                                       @NotNull final File srcFile,
+                                       @NotNull final TrackerAvailabilityCache trackersCache) throws IOException {
+    final String hash = torrent.getHexInfoHash();
+    final ExecutorService verificationExecutor = myVerificationExecutor;
+    if (verificationExecutor == null) {
+      return checkFastResume(hash, torrentFile, srcFile) && startSeeding(torrent, torrentFile, srcFile, trackersCache);
+    }
+    if (!myPendingVerifications.add(hash)) return true;
+    try {
+      verificationExecutor.submit(new Runnable() {
+        public void run() {
+          try {
+            if (checkFastResume(hash, torrentFile, srcFile) && startSeeding(torrent, torrentFile, srcFile, trackersCache)) {
+              LOG.debug("Verified and seeded " + srcFile.getAbsolutePath());
+            }
+          } catch (Exception e) {
+            LOG.warn("Failed to verify " + srcFile.getAbsolutePath() + ": " + e.toString());
+          } finally {
+            myPendingVerifications.remove(hash);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      myPendingVerifications.remove(hash);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Remembers the file as verified, e.g. when the torrent was just created from it, so it is seeded without hashing
+   */
+  public void markVerified(@NotNull File torrentFile, @NotNull File srcFile) throws IOException, NoSuchAlgorithmException {
+    markVerified(torrentFile, srcFile, System.currentTimeMillis());
+  }
+
+  /**
+   * Trusts the file checked by sampled pieces only, e.g. the one published with its torrent by an agent:
+   * it is seeded without hashing and is the first one re-verified by {@link #scrubNextTorrent()}
+   */
+  public void markSampled(@NotNull File torrentFile, @NotNull File srcFile) throws IOException, NoSuchAlgorithmException {
+    markVerified(torrentFile, srcFile, 0);
+  }
+
+  private void markVerified(@NotNull File torrentFile, @NotNull File srcFile, long verificationTime) throws IOException, NoSuchAlgorithmException {
+    final FastResumeCache fastResume = myFastResumeCache;
+    if (fastResume == null) return;
+    final Torrent torrent = loadTorrent(torrentFile);
+    final PieceVerifier verifier = PieceVerifier.forTorrent(torrent);
+    if (verifier == null || srcFile.length() != verifier.getLength()) return;
+    final BitSet allPieces = new BitSet(verifier.getPiecesCount());
+    allPieces.set(0, verifier.getPiecesCount());
+    fastResume.put(torrent.getHexInfoHash(), torrentFile, srcFile, verifier.getPiecesCount(), allPieces, verificationTime);
+  }
+
+  /**
+   * Another copy of the already seeded file joins the swarm of the seeded one: it is only remembered
+   * and is seeded once the seeded copy is gone
+   * @return true if the torrent is already seeded from another existing file
+   */
+  private boolean joinSwarm(@NotNull String hexInfoHash, @NotNull File torrentFile, @NotNull File srcFile) {
+    if (!myLiveTorrents.containsKey(hexInfoHash)) return false;
+    final File seededFile = mySeededFiles.getFile(hexInfoHash);
+    if (seededFile == null || !seededFile.isFile() || seededFile.equals(srcFile) || seededFile.length() != srcFile.length()) {
+      return false;
+    }
+    myTorrentHashes.remember(torrentFile, hexInfoHash);
+    addLocation(hexInfoHash, new TorrentLocation(torrentFile, srcFile));
+    LOG.debug(String.format("%s joined the swarm of %s (hash: %s)", srcFile.getAbsolutePath(), seededFile.getAbsolutePath(), hexInfoHash));
+    return true;
+  }
+
+  private void addLocation(@NotNull String hexInfoHash, @NotNull TorrentLocation location) {
+    Set<TorrentLocation> locations = myTorrentLocations.get(hexInfoHash);
+    if (locations == null) {
+      final Set<TorrentLocation> created = Collections.newSetFromMap(new ConcurrentHashMap<TorrentLocation, Boolean>());
+      locations = myTorrentLocations.putIfAbsent(hexInfoHash, created);
+      if (locations == null) {
+        locations = created;
+      }
+    }
+    locations.add(location);
+  }
+
+  /**
+   * Forgets the location of the torrent file and keeps the swarm alive if other copies of the file exist
+   * @return true if the torrent is still seeded from another copy
+   */
+  private boolean removeLocation(@NotNull String hexInfoHash, @NotNull File torrentFile) throws IOException {
+    final Set<TorrentLocation> locations = myTorrentLocations.get(hexInfoHash);
+    if (locations == null) return false;
+    final File removedTorrentFile = torrentFile.getAbsoluteFile();
+    for (TorrentLocation location : locations) {
+      if (location.myTorrentFile.getAbsoluteFile().equals(removedTorrentFile)) {
+        locations.remove(location);
+      }
+    }
+    final File seededFile = mySeededFiles.getFile(hexInfoHash);
+    for (TorrentLocation location : locations) {
+      if (location.mySrcFile.equals(seededFile) && location.mySrcFile.isFile()) return true;
+    }
+    for (TorrentLocation location : locations) {
+      if (!location.myTorrentFile.isFile() || !location.mySrcFile.isFile()) {
+        locations.remove(location);
+        continue;
+      }
+      removeTorrent(hexInfoHash);
+      if (checkFastResume(hexInfoHash, location.myTorrentFile, location.mySrcFile)
+              && seedTorrent(loadTorrent(location.myTorrentFile), location.mySrcFile)) {
+        LOG.debug(String.format("Torrent %s is now seeded from %s", hexInfoHash, location.mySrcFile.getAbsolutePath()));
+        return true;
+      }
+      locations.remove(location);
+    }
+    return false;
+  }
+
+  private boolean needsVerification(@NotNull String hexInfoHash, @NotNull File srcFile) {
+    final FastResumeCache fastResume = myFastResumeCache;
+    return fastResume != null && !fastResume.canResume(hexInfoHash, srcFile);
+  }
+
+  /**
+   * Makes sure the file matches the torrent before it is seeded without validation.
+   * The file is hashed unless it was verified and not changed since then.
+   */
+  private boolean checkFastResume(@NotNull String hexInfoHash, @NotNull File torrentFile, @NotNull File srcFile) throws IOException {
+    if (!needsVerification(hexInfoHash, srcFile)) return true;
+    final PieceVerifier verifier = PieceVerifier.forTorrentFile(torrentFile);
+    if (verifier == null) return true;
+    return verifyPieces(hexInfoHash, torrentFile, verifier, srcFile);
+  }
+
+  private boolean verifyPieces(@NotNull String hexInfoHash,
+                               @NotNull File torrentFile,
+                               @NotNull PieceVerifier verifier,
+                               @NotNull File srcFile) throws IOException {
+    final FastResumeCache fastResume = myFastResumeCache;
+    if (fastResume == null) return true;
+    final BitSet verified = verifier.verify(srcFile);
+    fastResume.put(hexInfoHash, torrentFile, srcFile, verifier.getPiecesCount(), verified);
+    if (verified.cardinality() != verifier.getPiecesCount()) {
+      LOG.warn("File " + srcFile.getAbsolutePath() + " does not match its torrent, only " + verified.cardinality() +
+              " of " + verifier.getPiecesCount() + " pieces are valid");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Re-verifies the seeded file which was verified the longest time ago and stops seeding it if it was corrupted
+   * @return false if there is nothing to verify
+   */
+  public boolean scrubNextTorrent() {
+    final FastResumeCache fastResume = myFastResumeCache;
+    if (fastResume == null) return false;
+    final String hash = fastResume.findLeastRecentlyVerified();
+    if (hash == null) return false;
+
+    final File torrentFile = fastResume.getTorrentFile(hash);
+    final File srcFile = fastResume.getSourceFile(hash);
+    if (torrentFile == null || srcFile == null) return true;
+    if (!mySeededFiles.contains(hash)) {
+      fastResume.remove(hash);
+      return true;
+    }
+    try {
+      final PieceVerifier verifier = PieceVerifier.forTorrentFile(torrentFile);
+      if (verifier == null || !verifyPieces(hash, torrentFile, verifier, srcFile)) {
+        LOG.info("Stopped seeding corrupted file " + srcFile.getAbsolutePath());
+        removeTorrent(hash);
+        fastResume.remove(hash);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to verify " + srcFile.getAbsolutePath() + ": " + e.toString());
+      removeTorrent(hash);
+      fastResume.remove(hash);
+    }
+    return true;
+  }
+
+  private void removeTorrent(@NotNull String hexInfoHash) {
+    myDormantTorrents.remove(hexInfoHash);
+    myDemotableTorrents.remove(hexInfoHash);
+    mySeededFiles.remove(hexInfoHash);
+    final SharedTorrent torrent = myLiveTorrents.remove(hexInfoHash);
+    if (torrent != null) {
+      myClient.removeTorrent(torrent);
+    }
+  }
+
+  public void setFastResumeCache(@Nullable FastResumeCache fastResumeCache) {
+    myFastResumeCache = fastResumeCache;
   }
 
   public boolean seedTorrent(@NotNull Torrent torrent, @NotNull File srcFile) {
@@ -52,6 +522,7 @@ public class TeamcityTorrentClient {
     try {
       final SharedTorrent st = new SharedTorrent(torrent, srcFile.getParentFile(), false, true);
       myClient.addTorrent(st);
+      registerLiveTorrent(st, srcFile);
       return true;
     } catch (Exception e) {
       LOG.warn("Failed to seed file: " + srcFile.getName(), e);
@@ -59,33 +530,55 @@ public class TeamcityTorrentClient {
     }
   }
 
+  private void registerLiveTorrent(@NotNull SharedTorrent torrent, @NotNull File srcFile) {
+    final String hash = torrent.getHexInfoHash();
+    myLiveTorrents.put(hash, torrent);
+    myDormantTorrents.remove(hash);
+    mySeededFiles.add(hash, srcFile);
+  }
+
   public void stopSeeding(@NotNull File torrentFile) {
     if (myClient == null) return;
     try {
-      Torrent t = loadTorrent(torrentFile);
-      myClient.removeTorrent(t);
+      final String hash = myTorrentHashes.getHexInfoHash(torrentFile);
+      myTorrentHashes.forget(torrentFile);
+      if (removeLocation(hash, torrentFile)) return;
+      stopSeeding(hash);
     } catch (IOException e) {
       LOG.warn(e.toString());
     } catch (NoSuchAlgorithmException e) {
       LOG.warn(e.toString());
     }
   }
+
   public void stopSeeding(@NotNull TorrentHash torrentHash) {
     if (myClient == null) return;
-    myClient.removeTorrent(torrentHash);
+    stopSeeding(torrentHash.getHexInfoHash());
+  }
+
+  private void stopSeeding(@NotNull String hexInfoHash) {
+    myTorrentLocations.remove(hexInfoHash);
+    final FastResumeCache fastResume = myFastResumeCache;
+    if (fastResume != null) {
+      fastResume.remove(hexInfoHash);
+    }
+    final TorrentUsageStats usageStats = myUsageStats;
+    if (usageStats != null) {
+      usageStats.remove(hexInfoHash);
+    }
+    removeTorrent(hexInfoHash);
   }
 
   public void stopSeedingByPath(File file){
-    final SharedTorrent torrentByName = myClient.getTorrentByFilePath(file);
-    if (torrentByName != null) {
+    final String hash = mySeededFiles.findHash(file);
+    if (hash != null) {
       LOG.info("Stopped seeding torrent by file: " + file.getAbsolutePath());
-      myClient.removeTorrent(torrentByName);
+      stopSeeding(hash);
     }
  }
 
   public boolean isSeedingByPath(File file){
-    final SharedTorrent torrentByName = myClient.getTorrentByFilePath(file);
-    return torrentByName != null;
+    return mySeededFiles.findHash(file) != null;
   }
 
   private Torrent loadTorrent(File torrentFile) throws IOException, NoSuchAlgorithmException {
@@ -94,7 +587,7 @@ public class TeamcityTorrentClient {
 
   public boolean isSeeding(@NotNull File torrentFile) {
     try {
-      return isSeeding(loadTorrent(torrentFile));
+      return mySeededFiles.contains(myTorrentHashes.getHexInfoHash(torrentFile));
     } catch (IOException e) {
     } catch (NoSuchAlgorithmException e) {
     }
@@ -102,16 +595,12 @@ public class TeamcityTorrentClient {
   }
 
   public boolean isSeeding(@NotNull TorrentHash torrent) {
-    return findSeedingTorrentFolder(torrent) != null;
+    return mySeededFiles.contains(torrent.getHexInfoHash());
   }
 
   public File findSeedingTorrentFolder(@NotNull TorrentHash torrent){
-    for (SharedTorrent st : myClient.getTorrents()) {
-      if (st.getHexInfoHash().equals(torrent.getHexInfoHash())){
-        return st.getParentFile();
-      }
-    }
-    return null;
+    final File srcFile = mySeededFiles.getFile(torrent.getHexInfoHash());
+    return srcFile == null ? null : srcFile.getParentFile();
   }
 
   public void setAnnounceInterval(final int announceInterval){
@@ -119,31 +608,74 @@ public class TeamcityTorrentClient {
   }
 
   public int getNumberOfSeededTorrents() {
-    return myClient.getTorrents().size();
+    return mySeededFiles.size();
   }
 
-  public Thread downloadAndShareOrFailAsync(@NotNull final Torrent torrent,
-                                            @NotNull final File destFile,
-                                            @NotNull final File destDir,
-                                            final long downloadTimeoutSec,
-                                            final int minSeedersCount,
-                                            final AtomicBoolean isInterrupted,
-                                            final AtomicReference<Exception> occuredException) throws IOException, NoSuchAlgorithmException, InterruptedException {
-    final Thread thread = new Thread(new Runnable() {
-      public void run() {
-        try {
-          downloadAndShareOrFail(torrent, destFile, destDir, downloadTimeoutSec, minSeedersCount,isInterrupted);
-        } catch (IOException e) {
-          occuredException.set(e);
-        } catch (NoSuchAlgorithmException e) {
-          occuredException.set(e);
-        } catch (InterruptedException e) {
-          occuredException.set(e);
+  /**
+   * Sets the number of downloads which may run at the same time, takes effect on the next start
+   */
+  public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+    myMaxConcurrentDownloads = Math.max(1, maxConcurrentDownloads);
+  }
+
+  /**
+   * Sets rules aborting stuck downloads, null restores the fixed download timeout
+   */
+  public void setStallPolicy(@Nullable DownloadStallPolicy stallPolicy) {
+    myStallPolicy = stallPolicy;
+  }
+
+  /**
+   * Schedules the download on the downloads pool of the client
+   * @param isInterrupted flag stopping the download, it may be shared by several downloads,
+   *                      {@link TorrentDownload#cancel()} stops this download only
+   */
+  @NotNull
+  public TorrentDownload downloadAndShareOrFailAsync(@NotNull final Torrent torrent,
+                                                    @NotNull final File destFile,
+                                                    @NotNull final File destDir,
+                                                    final long downloadTimeoutSec,
+                                                    final int minSeedersCount,
+                                                    @NotNull final AtomicBoolean isInterrupted) {
+    final TorrentDownload download = new TorrentDownload(torrent, destFile);
+    final AtomicBoolean cancelled = download.getCancelledFlag();
+    cancelled.set(isInterrupted.get());
+    final AtomicReference<ScheduledFuture<?>> interruptWatcher = new AtomicReference<ScheduledFuture<?>>();
+    final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+      public Void call() throws Exception {
+        downloadAndShareOrFail(torrent, destFile, destDir, downloadTimeoutSec, minSeedersCount, cancelled, download);
+        return null;
+      }
+    }) {
+      @Override
+      protected void done() {
+        final ScheduledFuture<?> watcher = interruptWatcher.get();
+        if (watcher != null) {
+          watcher.cancel(false);
         }
       }
-    });
-    thread.start();
-    return thread;
+    };
+    download.setTask(task);
+    final ScheduledExecutorService monitor = myActivityMonitor;
+    if (monitor != null) {
+      interruptWatcher.set(monitor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          if (isInterrupted.get()) {
+            download.cancel();
+          }
+        }
+      }, STALL_CHECK_INTERVAL_MS, STALL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS));
+      if (task.isDone()) {
+        interruptWatcher.get().cancel(false);
+      }
+    }
+    final ExecutorService executor = myDownloadExecutor;
+    if (executor == null) {
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+    return download;
   }
 
   public void downloadAndShareOrFail(@NotNull final Torrent torrent,
@@ -152,6 +684,16 @@ public class TeamcityTorrentClient {
                                      final long downloadTimeoutSec,
                                      final int minSeedersCount,
                                      final AtomicBoolean isInterrupted) throws IOException, NoSuchAlgorithmException, InterruptedException {
+    downloadAndShareOrFail(torrent, destFile, destDir, downloadTimeoutSec, minSeedersCount, isInterrupted, null);
+  }
+
+  private void downloadAndShareOrFail(@NotNull final Torrent torrent,
+                                      @NotNull final File destFile,
+                                      @NotNull final File destDir,
+                                      final long downloadTimeoutSec,
+                                      final int minSeedersCount,
+                                      final AtomicBoolean isInterrupted,
+                                      @Nullable final TorrentDownload download) throws IOException, NoSuchAlgorithmException, InterruptedException {
     boolean torrentContainsFile = false;
     for (String filePath : torrent.getFilenames()) {
       final String destFileAbsolutePath = destFile.getAbsolutePath();
@@ -167,17 +709,121 @@ public class TeamcityTorrentClient {
     }
 
     destDir.mkdirs();
-    if (myClient.getTorrentsMap().containsKey(torrent.getHexInfoHash())){
+    if (mySeededFiles.contains(torrent.getHexInfoHash())){
       LOG.info("Already seeding torrent with hash " + torrent.getHexInfoHash() + ". Will not try to download");
       return;
     }
     SharedTorrent downTorrent = new SharedTorrent(torrent, destDir, false);
-    LOG.info(String.format("Will attempt to download uninterruptibly %s into %s. Timeout:%d",
-            destFile.getAbsolutePath(), destDir.getAbsolutePath(), downloadTimeoutSec));
-    myClient.downloadUninterruptibly(downTorrent, downloadTimeoutSec, minSeedersCount, isInterrupted);
+    if (download != null) {
+      download.setSharedTorrent(downTorrent);
+    }
+    final DownloadStallPolicy stallPolicy = myStallPolicy;
+    final ScheduledExecutorService monitor = myActivityMonitor;
+    if (stallPolicy == null || monitor == null) {
+      LOG.info(String.format("Will attempt to download uninterruptibly %s into %s. Timeout:%d",
+              destFile.getAbsolutePath(), destDir.getAbsolutePath(), downloadTimeoutSec));
+      myClient.downloadUninterruptibly(downTorrent, downloadTimeoutSec, minSeedersCount, isInterrupted);
+    } else {
+      LOG.info(String.format("Will attempt to download uninterruptibly %s into %s until it stalls",
+              destFile.getAbsolutePath(), destDir.getAbsolutePath()));
+      downloadUntilStalled(downTorrent, stallPolicy, monitor, minSeedersCount, isInterrupted);
+    }
+    registerLiveTorrent(downTorrent, new File(destDir, torrent.getName()));
+  }
+
+  /**
+   * Downloads the torrent checking its progress with the stall policy
+   * @throws IOException if the download got stuck
+   */
+  private void downloadUntilStalled(@NotNull final SharedTorrent downTorrent,
+                                    @NotNull final DownloadStallPolicy stallPolicy,
+                                    @NotNull final ScheduledExecutorService monitor,
+                                    final int minSeedersCount,
+                                    @NotNull final AtomicBoolean isInterrupted) throws IOException, InterruptedException {
+    final AtomicBoolean abort = new AtomicBoolean(isInterrupted.get());
+    final AtomicReference<String> stallReason = new AtomicReference<String>();
+    final DownloadStallPolicy.Detector detector =
+            stallPolicy.newDetector(System.currentTimeMillis());
+    final ScheduledFuture<?> watchdog = monitor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        if (isInterrupted.get()) {
+          abort.set(true);
+          return;
+        }
+        final String reason = detector.check(System.currentTimeMillis(), downTorrent.getDownloaded(), getCompletedPiecesCount(downTorrent));
+        if (reason != null && stallReason.compareAndSet(null, reason)) {
+          abort.set(true);
+        }
+      }
+    }, STALL_CHECK_INTERVAL_MS, STALL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    try {
+      myClient.downloadUninterruptibly(downTorrent, STALL_POLICY_BACKSTOP_TIMEOUT_SEC, minSeedersCount, abort);
+    } catch (InterruptedException e) {
+      throwIfStalled(downTorrent, stallReason, isInterrupted);
+      throw e;
+    } catch (IOException e) {
+      throwIfStalled(downTorrent, stallReason, isInterrupted);
+      throw e;
+    } finally {
+      watchdog.cancel(false);
+    }
+  }
+
+  private static void throwIfStalled(@NotNull SharedTorrent downTorrent,
+                                     @NotNull AtomicReference<String> stallReason,
+                                     @NotNull AtomicBoolean isInterrupted) throws IOException {
+    final String reason = stallReason.get();
+    if (reason != null && !isInterrupted.get()) {
+      throw new IOException(String.format("Download of %s aborted: %s", downTorrent.getName(), reason));
+    }
+  }
+
+  private static int getCompletedPiecesCount(@NotNull SharedTorrent torrent) {
+    if (!torrent.isInitialized()) return 0;
+    try {
+      return torrent.getCompletedPieces().cardinality();
+    } catch (IllegalStateException e) {
+      return 0;
+    }
   }
 
   public Collection<SharedTorrent> getSharedTorrents(){
     return myClient.getTorrents();
   }
+
+  private static final class TorrentLocation {
+    @NotNull
+    private final File myTorrentFile;
+    @NotNull
+    private final File mySrcFile;
+
+    private TorrentLocation(@NotNull File torrentFile, @NotNull File srcFile) {
+      myTorrentFile = torrentFile;
+      mySrcFile = srcFile;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof TorrentLocation)) return false;
+      final TorrentLocation that = (TorrentLocation) o;
+      return myTorrentFile.equals(that.myTorrentFile) && mySrcFile.equals(that.mySrcFile);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myTorrentFile.hashCode() + mySrcFile.hashCode();
+    }
+  }
+
+  private static final class TorrentActivity {
+    @NotNull
+    private final TorrentLocation myLocation;
+    private volatile long myUploaded;
+    private volatile long myLastActivityTime = System.currentTimeMillis();
+
+    private TorrentActivity(@NotNull TorrentLocation location) {
+      myLocation = location;
+    }
+  }
 }
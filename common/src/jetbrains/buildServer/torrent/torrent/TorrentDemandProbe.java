@@ -0,0 +1,16 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Tells {@link TeamcityTorrentClient} which dormant torrents should be activated
+ */
+public interface TorrentDemandProbe {
+  /**
+   * @return hex info-hashes of the torrents which have peers looking for them
+   */
+  @NotNull
+  Collection<String> getRequestedTorrents();
+}
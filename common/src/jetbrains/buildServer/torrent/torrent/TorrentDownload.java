@@ -0,0 +1,111 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.common.Torrent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handle of a download started by {@link TeamcityTorrentClient#downloadAndShareOrFailAsync}
+ */
+public class TorrentDownload {
+  @NotNull
+  private final Torrent myTorrent;
+  @NotNull
+  private final File myDestFile;
+  @NotNull
+  private final AtomicBoolean myCancelled = new AtomicBoolean();
+  private volatile FutureTask<Void> myTask;
+  @Nullable
+  private volatile SharedTorrent mySharedTorrent;
+
+  TorrentDownload(@NotNull Torrent torrent, @NotNull File destFile) {
+    myTorrent = torrent;
+    myDestFile = destFile;
+  }
+
+  /**
+   * @return flag stopping this download only
+   */
+  @NotNull
+  AtomicBoolean getCancelledFlag() {
+    return myCancelled;
+  }
+
+  void setTask(@NotNull FutureTask<Void> task) {
+    myTask = task;
+  }
+
+  void setSharedTorrent(@NotNull SharedTorrent sharedTorrent) {
+    mySharedTorrent = sharedTorrent;
+  }
+
+  @NotNull
+  public Torrent getTorrent() {
+    return myTorrent;
+  }
+
+  @NotNull
+  public File getDestFile() {
+    return myDestFile;
+  }
+
+  public long getDownloadedBytes() {
+    final SharedTorrent sharedTorrent = mySharedTorrent;
+    return sharedTorrent == null ? 0 : sharedTorrent.getDownloaded();
+  }
+
+  public long getTotalBytes() {
+    return myTorrent.getSize();
+  }
+
+  /**
+   * @return completion ratio from 0 to 1
+   */
+  public double getProgress() {
+    if (isDone()) return 1;
+    final long total = getTotalBytes();
+    return total <= 0 ? 0 : Math.min(1, (double) getDownloadedBytes() / total);
+  }
+
+  public boolean isDone() {
+    return myTask.isDone();
+  }
+
+  /**
+   * Stops the download and interrupts its thread, {@link #get()} will throw {@link InterruptedException}.
+   * Other downloads are not affected.
+   */
+  public void cancel() {
+    myCancelled.set(true);
+    final FutureTask<Void> task = myTask;
+    if (task != null) {
+      task.cancel(true);
+    }
+  }
+
+  /**
+   * Waits for the download to finish and rethrows its failure
+   */
+  public void get() throws IOException, NoSuchAlgorithmException, InterruptedException {
+    try {
+      myTask.get();
+    } catch (CancellationException e) {
+      throw new InterruptedException("Download of " + myDestFile.getName() + " was cancelled");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) cause;
+      if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+}
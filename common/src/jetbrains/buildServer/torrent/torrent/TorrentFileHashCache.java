@@ -0,0 +1,58 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers info-hashes of .torrent files, a cached hash is used while the size and the modification time
+ * of the file stay the same
+ */
+public class TorrentFileHashCache {
+  private final ConcurrentMap<File, CachedHash> myHashes = new ConcurrentHashMap<File, CachedHash>();
+
+  @NotNull
+  public String getHexInfoHash(@NotNull File torrentFile) throws IOException, NoSuchAlgorithmException {
+    final File key = torrentFile.getAbsoluteFile();
+    final long lastModified = key.lastModified();
+    final long size = key.length();
+    final CachedHash cached = myHashes.get(key);
+    if (cached != null && cached.myLastModified == lastModified && cached.mySize == size) {
+      return cached.myHexInfoHash;
+    }
+    final String hash = Torrent.load(key).getHexInfoHash();
+    myHashes.put(key, new CachedHash(hash, lastModified, size));
+    return hash;
+  }
+
+  public void remember(@NotNull File torrentFile, @NotNull String hexInfoHash) {
+    final File key = torrentFile.getAbsoluteFile();
+    myHashes.put(key, new CachedHash(hexInfoHash, key.lastModified(), key.length()));
+  }
+
+  public void forget(@NotNull File torrentFile) {
+    myHashes.remove(torrentFile.getAbsoluteFile());
+  }
+
+  public void clear() {
+    myHashes.clear();
+  }
+
+  private static final class CachedHash {
+    @NotNull
+    private final String myHexInfoHash;
+    private final long myLastModified;
+    private final long mySize;
+
+    private CachedHash(@NotNull String hexInfoHash, long lastModified, long size) {
+      myHexInfoHash = hexInfoHash;
+      myLastModified = lastModified;
+      mySize = size;
+    }
+  }
+}
@@ -0,0 +1,642 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hashes the pieces of the files torrents are created for. All the torrents of the process are hashed
+ * by the shared worker pool, interactive requests go ahead of the background ones and disk reads are
+ * limited by the read budget. The pieces are read into per-thread direct buffers, hashing does not allocate
+ * heap memory per piece.
+ *
+ * Single-file torrents can be created as hybrid ones (BEP 52): besides the v1 SHA-1 pieces they contain the
+ * SHA-256 merkle root of the file and its piece layer, both computed in the same pass over the file. The piece
+ * length of hybrid torrents grows with the file, so the metadata of large files stays small.
+ */
+public class TorrentHashingService {
+  private final static Logger LOG = Logger.getInstance(TorrentHashingService.class.getName());
+
+  /**
+   * Same as the piece length of the torrents created by ttorrent
+   */
+  public static final int PIECE_LENGTH = 512 * 1024;
+  private static final int PIECE_HASH_SIZE = 20;
+  private static final int PIECES_PER_TASK = 16;
+  private static final long RATE_WINDOW_MS = 10 * 1000;
+  private static final int MAX_HYBRID_PIECES_COUNT = 4096;
+  private static final byte[] ZERO_HASH = new byte[MerkleTree.HASH_SIZE];
+
+  private static final TorrentHashingService ourInstance = new TorrentHashingService(getDefaultThreadsCount(), -1);
+
+  private static final ThreadLocal<ByteBuffer> ourReadBuffers = new ThreadLocal<ByteBuffer>();
+  private static final ThreadLocal<MessageDigest> ourDigests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<MessageDigest> ourMerkleDigests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      return MerkleTree.createDigest();
+    }
+  };
+
+  public enum Priority {
+    INTERACTIVE, BACKGROUND
+  }
+
+  private final ThreadPoolExecutor myExecutor;
+  private final ReadBudget myReadBudget;
+  private final AtomicLong myTaskSequence = new AtomicLong();
+  private final AtomicInteger[] myQueuedTasks;
+  private final AtomicLong myHashedBytes = new AtomicLong();
+  private final LinkedList<long[]> myRecentlyHashed = new LinkedList<long[]>();
+  private volatile boolean myHybridTorrents;
+
+  public TorrentHashingService(int threadsCount, long maxReadBytesPerSec) {
+    final int threads = Math.max(1, threadsCount);
+    myExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              private final AtomicInteger myCounter = new AtomicInteger();
+
+              public Thread newThread(@NotNull Runnable r) {
+                final Thread thread = new Thread(r, "Torrent hashing " + myCounter.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+              }
+            });
+    myExecutor.allowCoreThreadTimeOut(true);
+    myReadBudget = new ReadBudget(maxReadBytesPerSec);
+    myQueuedTasks = new AtomicInteger[Priority.values().length];
+    for (int i = 0; i < myQueuedTasks.length; i++) {
+      myQueuedTasks[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * @return the service shared by all torrent creators of the process
+   */
+  @NotNull
+  public static TorrentHashingService getInstance() {
+    return ourInstance;
+  }
+
+  public static int getDefaultThreadsCount() {
+    return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  }
+
+  /**
+   * @param threadsCount number of hashing threads, non-positive value means half of the cores
+   */
+  public void setThreadsCount(int threadsCount) {
+    final int threads = threadsCount > 0 ? threadsCount : getDefaultThreadsCount();
+    if (threads > myExecutor.getMaximumPoolSize()) {
+      myExecutor.setMaximumPoolSize(threads);
+      myExecutor.setCorePoolSize(threads);
+    } else {
+      myExecutor.setCorePoolSize(threads);
+      myExecutor.setMaximumPoolSize(threads);
+    }
+  }
+
+  public int getThreadsCount() {
+    return myExecutor.getMaximumPoolSize();
+  }
+
+  /**
+   * @param maxReadBytesPerSec limit of the disk reads of all hashing threads, non-positive value means no limit
+   */
+  public void setMaxReadBytesPerSec(long maxReadBytesPerSec) {
+    myReadBudget.setRate(maxReadBytesPerSec);
+  }
+
+  public long getMaxReadBytesPerSec() {
+    return myReadBudget.getRate();
+  }
+
+  /**
+   * @param hybridTorrents true if the single-file torrents should contain the v2 merkle hashes as well
+   */
+  public void setHybridTorrents(boolean hybridTorrents) {
+    myHybridTorrents = hybridTorrents;
+  }
+
+  public boolean isHybridTorrents() {
+    return myHybridTorrents;
+  }
+
+  /**
+   * @return number of queued hashing tasks
+   */
+  public int getQueueSize() {
+    int size = 0;
+    for (AtomicInteger queued : myQueuedTasks) {
+      size += queued.get();
+    }
+    return size;
+  }
+
+  public int getQueueSize(@NotNull Priority priority) {
+    return myQueuedTasks[priority.ordinal()].get();
+  }
+
+  public long getHashedBytes() {
+    return myHashedBytes.get();
+  }
+
+  /**
+   * @return bytes hashed per second over the last seconds
+   */
+  public long getHashingRate() {
+    final long now = System.currentTimeMillis();
+    long bytes = 0;
+    synchronized (myRecentlyHashed) {
+      pruneRecentlyHashed(now);
+      for (long[] sample : myRecentlyHashed) {
+        bytes += sample[1];
+      }
+    }
+    return bytes * 1000 / RATE_WINDOW_MS;
+  }
+
+  /**
+   * Creates a single-file torrent with the same layout as {@link Torrent#create(File, URI, String)},
+   * or a hybrid one if they are enabled
+   */
+  @NotNull
+  public Torrent createTorrent(@NotNull File srcFile,
+                               @NotNull URI announceURI,
+                               @NotNull String createdBy,
+                               @NotNull Priority priority) throws IOException, InterruptedException {
+    if (myHybridTorrents) {
+      return createHybridTorrent(srcFile, announceURI, createdBy, priority);
+    }
+    return createTorrent(srcFile, announceURI, createdBy, hashPieces(srcFile, PIECE_LENGTH, priority));
+  }
+
+  /**
+   * Creates a single-file torrent readable by v1 clients which also contains the v2 file tree with
+   * the merkle root of the file and the piece layer of the root
+   */
+  @NotNull
+  public Torrent createHybridTorrent(@NotNull File srcFile,
+                                     @NotNull URI announceURI,
+                                     @NotNull String createdBy,
+                                     @NotNull Priority priority) throws IOException, InterruptedException {
+    final long length = srcFile.length();
+    final int pieceLength = getHybridPieceLength(length);
+    final int piecesCount = (int) ((length + pieceLength - 1) / pieceLength);
+    final byte[] pieceLayer = new byte[piecesCount * MerkleTree.HASH_SIZE];
+    final byte[] pieces = hashPieces(new FileSequence(Collections.singletonList(srcFile)), pieceLength, priority, pieceLayer);
+
+    final Map<String, BEValue> fileInfo = new HashMap<String, BEValue>();
+    fileInfo.put("length", new BEValue(length));
+    byte[] piecesRoot = null;
+    if (length > 0) {
+      final MessageDigest sha256 = MerkleTree.createDigest();
+      piecesRoot = piecesCount == 1 ? pieceLayer : MerkleTree.getRoot(pieceLayer, (int) MerkleTree.nextPowerOfTwo(piecesCount),
+              MerkleTree.getPaddingHash(pieceLength / MerkleTree.BLOCK_SIZE, sha256), sha256);
+      fileInfo.put("pieces root", new BEValue(piecesRoot));
+    }
+    final Map<String, BEValue> fileEntry = new HashMap<String, BEValue>();
+    fileEntry.put("", new BEValue(fileInfo));
+    final Map<String, BEValue> fileTree = new HashMap<String, BEValue>();
+    fileTree.put(srcFile.getName(), new BEValue(fileEntry));
+
+    final Map<String, BEValue> info = new HashMap<String, BEValue>();
+    info.put("name", new BEValue(srcFile.getName()));
+    info.put("length", new BEValue(length));
+    info.put("piece length", new BEValue(pieceLength));
+    info.put("pieces", new BEValue(pieces));
+    info.put("meta version", new BEValue(2));
+    info.put("file tree", new BEValue(fileTree));
+    // files of a single piece have no piece layer, the root is the hash of the piece
+    return createTorrent(info, announceURI, createdBy, piecesCount > 1 ? piecesRoot : null, pieceLayer);
+  }
+
+  /**
+   * @return power of two not less than {@link #PIECE_LENGTH} keeping the number of pieces of the file
+   * within {@link #MAX_HYBRID_PIECES_COUNT}
+   */
+  public static int getHybridPieceLength(long length) {
+    final long minPieceLength = (length + MAX_HYBRID_PIECES_COUNT - 1) / MAX_HYBRID_PIECES_COUNT;
+    return (int) Math.max(PIECE_LENGTH, MerkleTree.nextPowerOfTwo(minPieceLength));
+  }
+
+  /**
+   * Creates a single-file torrent from the piece hashes computed elsewhere
+   * @param pieces concatenated SHA-1 hashes of the pieces of {@link #PIECE_LENGTH} bytes
+   */
+  @NotNull
+  public Torrent createTorrent(@NotNull File srcFile,
+                               @NotNull URI announceURI,
+                               @NotNull String createdBy,
+                               @NotNull byte[] pieces) throws IOException {
+    final Map<String, BEValue> info = new HashMap<String, BEValue>();
+    info.put("name", new BEValue(srcFile.getName()));
+    info.put("length", new BEValue(srcFile.length()));
+    info.put("piece length", new BEValue(PIECE_LENGTH));
+    info.put("pieces", new BEValue(pieces));
+    return createTorrent(info, announceURI, createdBy, null, null);
+  }
+
+  /**
+   * Encodes the torrent by hand: the keys of the piece layers are binary merkle roots, which can not be
+   * represented by the string keys of the bencoded maps of ttorrent
+   */
+  @NotNull
+  private static Torrent createTorrent(@NotNull Map<String, BEValue> info,
+                                       @NotNull URI announceURI,
+                                       @NotNull String createdBy,
+                                       @Nullable byte[] piecesRoot,
+                                       @Nullable byte[] pieceLayer) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write('d');
+    BEncoder.bencode("announce", out);
+    BEncoder.bencode(announceURI.toString(), out);
+    BEncoder.bencode("created by", out);
+    BEncoder.bencode(createdBy, out);
+    BEncoder.bencode("creation date", out);
+    BEncoder.bencode(new Date().getTime() / 1000, out);
+    BEncoder.bencode("info", out);
+    BEncoder.bencode(info, out);
+    if (piecesRoot != null && pieceLayer != null) {
+      BEncoder.bencode("piece layers", out);
+      out.write('d');
+      BEncoder.bencode(piecesRoot, out);
+      BEncoder.bencode(pieceLayer, out);
+      out.write('e');
+    }
+    out.write('e');
+    try {
+      return new Torrent(out.toByteArray(), true);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.toString());
+    }
+  }
+
+  /**
+   * Creates a multi-file torrent with the same layout as {@link Torrent#create(File, List, URI, String)}:
+   * the torrent is named after the directory and the files are listed in the specified order
+   */
+  @NotNull
+  public Torrent createMultiFileTorrent(@NotNull File dir,
+                                        @NotNull List<File> files,
+                                        @NotNull URI announceURI,
+                                        @NotNull String createdBy,
+                                        @NotNull Priority priority) throws IOException, InterruptedException {
+    final List<BEValue> filesInfo = new ArrayList<BEValue>(files.size());
+    for (File file : files) {
+      final LinkedList<BEValue> path = new LinkedList<BEValue>();
+      for (File f = file; f != null && !f.equals(dir); f = f.getParentFile()) {
+        path.addFirst(new BEValue(f.getName()));
+      }
+      final Map<String, BEValue> fileInfo = new HashMap<String, BEValue>();
+      fileInfo.put("length", new BEValue(file.length()));
+      fileInfo.put("path", new BEValue(path));
+      filesInfo.add(new BEValue(fileInfo));
+    }
+    final Map<String, BEValue> info = new HashMap<String, BEValue>();
+    info.put("name", new BEValue(dir.getName()));
+    info.put("files", new BEValue(filesInfo));
+    info.put("piece length", new BEValue(PIECE_LENGTH));
+    info.put("pieces", new BEValue(hashPieces(new FileSequence(files), PIECE_LENGTH, priority, null)));
+    return createTorrent(info, announceURI, createdBy, null, null);
+  }
+
+  /**
+   * Hashes the file by pieces in the worker pool
+   * @return concatenated SHA-1 hashes of the pieces
+   */
+  @NotNull
+  public byte[] hashPieces(@NotNull final File file,
+                           final int pieceLength,
+                           @NotNull final Priority priority) throws IOException, InterruptedException {
+    return hashPieces(new FileSequence(Collections.singletonList(file)), pieceLength, priority, null);
+  }
+
+  /**
+   * @param pieceLayer receives the SHA-256 merkle hashes of the pieces if not null
+   */
+  @NotNull
+  private byte[] hashPieces(@NotNull final FileSequence files,
+                            final int pieceLength,
+                            @NotNull final Priority priority,
+                            @Nullable final byte[] pieceLayer) throws IOException, InterruptedException {
+    final long length = files.getLength();
+    final int piecesCount = (int) ((length + pieceLength - 1) / pieceLength);
+    final byte[] pieces = new byte[piecesCount * PIECE_HASH_SIZE];
+    final int tasksCount = (piecesCount + PIECES_PER_TASK - 1) / PIECES_PER_TASK;
+    if (tasksCount == 0) return pieces;
+
+    final CountDownLatch done = new CountDownLatch(tasksCount);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    final List<HashingTask> tasks = new ArrayList<HashingTask>(tasksCount);
+    for (int i = 0; i < tasksCount; i++) {
+      final int firstPiece = i * PIECES_PER_TASK;
+      final int lastPiece = Math.min(piecesCount, firstPiece + PIECES_PER_TASK);
+      final HashingTask task = new HashingTask(priority, myTaskSequence.incrementAndGet()) {
+        @Override
+        protected void hash() throws Exception {
+          if (error.get() == null) {
+            hashRange(files, pieceLength, firstPiece, lastPiece, pieces, pieceLayer);
+          }
+        }
+
+        @Override
+        protected void finished(@Nullable Exception e) {
+          if (e != null) {
+            error.compareAndSet(null, e);
+          }
+          done.countDown();
+        }
+      };
+      tasks.add(task);
+    }
+    for (HashingTask task : tasks) {
+      myQueuedTasks[priority.ordinal()].incrementAndGet();
+      myExecutor.execute(task);
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      error.compareAndSet(null, e);
+      for (HashingTask task : tasks) {
+        if (myExecutor.remove(task)) {
+          myQueuedTasks[priority.ordinal()].decrementAndGet();
+        }
+      }
+      throw e;
+    }
+    final Exception e = error.get();
+    if (e instanceof IOException) throw (IOException) e;
+    if (e instanceof InterruptedException) throw (InterruptedException) e;
+    if (e != null) throw new IOException("Failed to hash " + files + ": " + e.toString());
+    return pieces;
+  }
+
+  private void hashRange(@NotNull FileSequence files,
+                         int pieceLength,
+                         int firstPiece,
+                         int lastPiece,
+                         @NotNull byte[] pieces,
+                         @Nullable byte[] pieceLayer) throws IOException, InterruptedException {
+    final MessageDigest sha1 = ourDigests.get();
+    final ByteBuffer buffer = getReadBuffer(pieceLength);
+    final FileSequence.Reader reader = files.newReader();
+    try {
+      for (int piece = firstPiece; piece < lastPiece; piece++) {
+        final long offset = (long) piece * pieceLength;
+        final int size = (int) Math.min(pieceLength, files.getLength() - offset);
+        myReadBudget.acquire(size);
+        buffer.clear();
+        buffer.limit(size);
+        reader.read(buffer, offset);
+        buffer.flip();
+        sha1.reset();
+        sha1.update(buffer);
+        try {
+          sha1.digest(pieces, piece * PIECE_HASH_SIZE, PIECE_HASH_SIZE);
+        } catch (DigestException e) {
+          throw new IOException(e.toString());
+        }
+        if (pieceLayer != null) {
+          buffer.rewind();
+          hashPieceLayer(buffer, pieceLength, piece, pieceLayer);
+        }
+        recordHashed(size);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Computes the merkle hash of the piece from its blocks. The piece of a file of a single piece is the root of
+   * the file: its tree is only as wide as the blocks of the file, the pieces of larger files are padded to the
+   * full piece length.
+   */
+  private static void hashPieceLayer(@NotNull ByteBuffer piece, int pieceLength, int index, @NotNull byte[] pieceLayer) {
+    final MessageDigest sha256 = ourMerkleDigests.get();
+    final byte[] leaves = MerkleTree.hashBlocks(piece, sha256);
+    final int width = pieceLayer.length == MerkleTree.HASH_SIZE
+            ? (int) MerkleTree.nextPowerOfTwo(leaves.length / MerkleTree.HASH_SIZE)
+            : pieceLength / MerkleTree.BLOCK_SIZE;
+    final byte[] hash = MerkleTree.getRoot(leaves, width, ZERO_HASH, sha256);
+    System.arraycopy(hash, 0, pieceLayer, index * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+  }
+
+  /**
+   * @return direct buffer of the hashing thread, the pieces are read into it without copying them to the heap
+   */
+  @NotNull
+  private static ByteBuffer getReadBuffer(int pieceLength) {
+    ByteBuffer buffer = ourReadBuffers.get();
+    if (buffer == null || buffer.capacity() < pieceLength) {
+      buffer = ByteBuffer.allocateDirect(pieceLength);
+      ourReadBuffers.set(buffer);
+    }
+    return buffer;
+  }
+
+  private void recordHashed(long bytes) {
+    myHashedBytes.addAndGet(bytes);
+    final long now = System.currentTimeMillis();
+    synchronized (myRecentlyHashed) {
+      myRecentlyHashed.addLast(new long[]{now, bytes});
+      pruneRecentlyHashed(now);
+    }
+  }
+
+  private void pruneRecentlyHashed(long now) {
+    while (!myRecentlyHashed.isEmpty() && myRecentlyHashed.getFirst()[0] < now - RATE_WINDOW_MS) {
+      myRecentlyHashed.removeFirst();
+    }
+  }
+
+  /**
+   * Files hashed as a single stream of bytes, the pieces of multi-file torrents span the file boundaries
+   */
+  private static final class FileSequence {
+    private final File[] myFiles;
+    private final long[] myOffsets;
+    private final long myLength;
+
+    private FileSequence(@NotNull List<File> files) {
+      myFiles = files.toArray(new File[files.size()]);
+      myOffsets = new long[myFiles.length + 1];
+      for (int i = 0; i < myFiles.length; i++) {
+        myOffsets[i + 1] = myOffsets[i] + myFiles[i].length();
+      }
+      myLength = myOffsets[myFiles.length];
+    }
+
+    private long getLength() {
+      return myLength;
+    }
+
+    @NotNull
+    private Reader newReader() {
+      return new Reader();
+    }
+
+    @Override
+    public String toString() {
+      return myFiles.length == 1 ? myFiles[0].getAbsolutePath() : myFiles.length + " files";
+    }
+
+    /**
+     * Reads the sequence forward, only the file being read is kept open
+     */
+    private final class Reader {
+      private int myIndex = -1;
+      private RandomAccessFile myFile;
+
+      /**
+       * Fills the remaining space of the buffer with the bytes starting at the offset
+       */
+      private void read(@NotNull ByteBuffer buffer, long offset) throws IOException {
+        final int limit = buffer.limit();
+        try {
+          while (buffer.position() < limit) {
+            final long position = offset + buffer.position();
+            final int index = findFile(position);
+            if (index < 0) {
+              throw new EOFException(FileSequence.this + " is shorter than " + myLength + " bytes");
+            }
+            final long fileEnd = myOffsets[index + 1];
+            buffer.limit((int) Math.min(limit, buffer.position() + fileEnd - position));
+            if (open(index).getChannel().read(buffer, position - myOffsets[index]) < 0) {
+              throw new EOFException(myFiles[index].getAbsolutePath() + " is shorter than " + (fileEnd - myOffsets[index]) + " bytes");
+            }
+          }
+        } finally {
+          buffer.limit(limit);
+        }
+      }
+
+      private int findFile(long position) {
+        for (int i = Math.max(0, myIndex); i < myFiles.length; i++) {
+          if (position >= myOffsets[i] && position < myOffsets[i + 1]) return i;
+        }
+        return -1;
+      }
+
+      @NotNull
+      private RandomAccessFile open(int index) throws IOException {
+        if (index != myIndex) {
+          close();
+          myFile = new RandomAccessFile(myFiles[index], "r");
+          myIndex = index;
+        }
+        return myFile;
+      }
+
+      private void close() {
+        FileUtil.close(myFile);
+        myFile = null;
+      }
+    }
+  }
+
+  /**
+   * Hashing task ordered by priority, tasks of the same priority are executed in the order they were queued
+   */
+  private abstract class HashingTask implements Runnable, Comparable<HashingTask> {
+    private final Priority myPriority;
+    private final long mySequence;
+
+    private HashingTask(@NotNull Priority priority, long sequence) {
+      myPriority = priority;
+      mySequence = sequence;
+    }
+
+    public void run() {
+      myQueuedTasks[myPriority.ordinal()].decrementAndGet();
+      Exception error = null;
+      try {
+        hash();
+      } catch (Exception e) {
+        LOG.debug("Hashing failed: " + e.toString());
+        error = e;
+      } finally {
+        finished(error);
+      }
+    }
+
+    protected abstract void hash() throws Exception;
+
+    protected abstract void finished(@Nullable Exception e);
+
+    public int compareTo(@NotNull HashingTask o) {
+      final int byPriority = myPriority.compareTo(o.myPriority);
+      if (byPriority != 0) return byPriority;
+      return mySequence < o.mySequence ? -1 : (mySequence == o.mySequence ? 0 : 1);
+    }
+  }
+
+  /**
+   * Token bucket limiting the bytes read per second, allows bursts of up to one second of reads
+   */
+  private static final class ReadBudget {
+    private long myRate;
+    private long myTokens;
+    private long myLastRefill = System.currentTimeMillis();
+
+    private ReadBudget(long rate) {
+      myRate = rate;
+      myTokens = rate;
+    }
+
+    synchronized void setRate(long rate) {
+      myRate = rate;
+      myTokens = Math.min(myTokens, Math.max(rate, 0));
+      notifyAll();
+    }
+
+    synchronized long getRate() {
+      return myRate;
+    }
+
+    synchronized void acquire(long bytes) throws InterruptedException {
+      while (myRate > 0) {
+        refill();
+        if (myTokens > 0) {
+          myTokens -= bytes;
+          return;
+        }
+        wait(Math.max(1, -myTokens * 1000 / myRate));
+      }
+    }
+
+    private void refill() {
+      final long now = System.currentTimeMillis();
+      myTokens = Math.min(myRate, myTokens + (now - myLastRefill) * myRate / 1000);
+      myLastRefill = now;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-torrent usage counters: uploaded bytes, number of peer requests and the last access time.
+ * The request frequency decays exponentially so that torrents popular long ago lose their priority.
+ * <p/>
+ * The counters are written to a text file, one line per torrent:
+ * <pre>info-hash  uploaded bytes  requests  last access time  frequency  frequency time</pre>
+ */
+public class TorrentUsageStats {
+  private final static Logger LOG = Logger.getInstance(TorrentUsageStats.class.getName());
+
+  public static final String STATE_FILE_NAME = "torrents.usage";
+  public static final long DEFAULT_FREQUENCY_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+  private static final String SEPARATOR = "\t";
+  private static final String STATE_FILE_ENCODING = "UTF-8";
+
+  @NotNull
+  private final File myStateFile;
+  private final long myHalfLifeMs;
+  private final ConcurrentMap<String, Usage> myUsages = new ConcurrentHashMap<String, Usage>();
+  private volatile boolean myDirty;
+
+  public TorrentUsageStats(@NotNull File stateFile) {
+    this(stateFile, DEFAULT_FREQUENCY_HALF_LIFE_MS);
+  }
+
+  public TorrentUsageStats(@NotNull File stateFile, long halfLifeMs) {
+    myStateFile = stateFile;
+    myHalfLifeMs = halfLifeMs;
+    if (myStateFile.isFile()) {
+      load();
+    }
+  }
+
+  public void recordUpload(@NotNull String hexInfoHash, long bytes) {
+    getOrCreate(hexInfoHash).addUpload(bytes);
+    myDirty = true;
+  }
+
+  public void recordRequest(@NotNull String hexInfoHash) {
+    getOrCreate(hexInfoHash).addRequest(System.currentTimeMillis(), myHalfLifeMs);
+    myDirty = true;
+  }
+
+  /**
+   * @return number of requests decayed to the current time
+   */
+  public double getFrequency(@NotNull String hexInfoHash) {
+    final Usage usage = myUsages.get(hexInfoHash);
+    return usage == null ? 0 : usage.getFrequency(System.currentTimeMillis(), myHalfLifeMs);
+  }
+
+  public long getUploadedBytes(@NotNull String hexInfoHash) {
+    final Usage usage = myUsages.get(hexInfoHash);
+    return usage == null ? 0 : usage.myUploaded;
+  }
+
+  public long getRequestsCount(@NotNull String hexInfoHash) {
+    final Usage usage = myUsages.get(hexInfoHash);
+    return usage == null ? 0 : usage.myRequests;
+  }
+
+  public long getLastAccessTime(@NotNull String hexInfoHash) {
+    final Usage usage = myUsages.get(hexInfoHash);
+    return usage == null ? 0 : usage.myLastAccessTime;
+  }
+
+  public void remove(@NotNull String hexInfoHash) {
+    if (myUsages.remove(hexInfoHash) != null) {
+      myDirty = true;
+    }
+  }
+
+  /**
+   * Writes the counters to disk if they were changed since the last save
+   */
+  public synchronized void save() {
+    if (!myDirty) return;
+    myDirty = false;
+    final File tmpFile = new File(myStateFile.getParentFile(), myStateFile.getName() + ".tmp");
+    Writer writer = null;
+    try {
+      FileUtil.createParentDirs(tmpFile);
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), STATE_FILE_ENCODING));
+      for (Map.Entry<String, Usage> e : myUsages.entrySet()) {
+        final Usage usage = e.getValue();
+        synchronized (usage) {
+          writer.write(e.getKey() + SEPARATOR + usage.myUploaded + SEPARATOR + usage.myRequests + SEPARATOR +
+                  usage.myLastAccessTime + SEPARATOR + usage.myFrequency + SEPARATOR + usage.myFrequencyTime);
+        }
+        writer.write('\n');
+      }
+      writer.close();
+      writer = null;
+      if (!tmpFile.renameTo(myStateFile)) {
+        FileUtil.delete(myStateFile);
+        if (!tmpFile.renameTo(myStateFile)) {
+          throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + myStateFile.getAbsolutePath());
+        }
+      }
+    } catch (IOException e) {
+      myDirty = true;
+      LOG.warn("Failed to save torrents usage " + myStateFile.getAbsolutePath() + ": " + e.toString());
+    } finally {
+      FileUtil.close(writer);
+    }
+  }
+
+  @NotNull
+  private Usage getOrCreate(@NotNull String hexInfoHash) {
+    Usage usage = myUsages.get(hexInfoHash);
+    if (usage == null) {
+      final Usage newUsage = new Usage();
+      usage = myUsages.putIfAbsent(hexInfoHash, newUsage);
+      if (usage == null) {
+        usage = newUsage;
+      }
+    }
+    return usage;
+  }
+
+  private void load() {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(myStateFile), STATE_FILE_ENCODING));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split(SEPARATOR);
+        if (parts.length != 6) continue;
+        try {
+          final Usage usage = new Usage();
+          usage.myUploaded = Long.parseLong(parts[1]);
+          usage.myRequests = Long.parseLong(parts[2]);
+          usage.myLastAccessTime = Long.parseLong(parts[3]);
+          usage.myFrequency = Double.parseDouble(parts[4]);
+          usage.myFrequencyTime = Long.parseLong(parts[5]);
+          myUsages.put(parts[0], usage);
+        } catch (NumberFormatException e) {
+          LOG.debug("Skipped malformed torrent usage record: " + line);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read torrents usage " + myStateFile.getAbsolutePath() + ": " + e.toString());
+    } finally {
+      FileUtil.close(reader);
+    }
+  }
+
+  private static final class Usage {
+    private volatile long myUploaded;
+    private volatile long myRequests;
+    private volatile long myLastAccessTime;
+    private double myFrequency;
+    private long myFrequencyTime;
+
+    private synchronized void addUpload(long bytes) {
+      myUploaded += bytes;
+      myLastAccessTime = System.currentTimeMillis();
+    }
+
+    private synchronized void addRequest(long now, long halfLifeMs) {
+      myFrequency = getFrequency(now, halfLifeMs) + 1;
+      myFrequencyTime = now;
+      myRequests++;
+      myLastAccessTime = now;
+    }
+
+    private synchronized double getFrequency(long now, long halfLifeMs) {
+      if (myFrequencyTime == 0 || now <= myFrequencyTime) return myFrequency;
+      return myFrequency * Math.pow(0.5, (double) (now - myFrequencyTime) / halfLifeMs);
+    }
+  }
+}
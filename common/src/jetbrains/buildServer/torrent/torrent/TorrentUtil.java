@@ -39,7 +39,8 @@ public class TorrentUtil {
   }
 
   private static void setHashingThreadsCount() {
-    Torrent.setHashingThreadsCount(2); // limit number of threads generating hashes for a file
+    // ttorrent still hashes pieces when it checks the files of seeded torrents
+    Torrent.setHashingThreadsCount(TorrentHashingService.getInstance().getThreadsCount());
   }
 
   /**
@@ -74,10 +75,20 @@ public class TorrentUtil {
    */
   @Nullable
   public static Torrent createTorrent(@NotNull File srcFile, @NotNull File torrentFile, @NotNull URI announceURI) {
-    setHashingThreadsCount();
+    return createTorrent(srcFile, torrentFile, announceURI, TorrentHashingService.Priority.BACKGROUND);
+  }
 
+  /**
+   * Creates the torrent file for the specified <code>srcFile</code> and announce URI hashing the file
+   * with the given priority.
+   */
+  @Nullable
+  public static Torrent createTorrent(@NotNull File srcFile,
+                                      @NotNull File torrentFile,
+                                      @NotNull URI announceURI,
+                                      @NotNull TorrentHashingService.Priority priority) {
     try {
-      Torrent t = Torrent.create(srcFile, announceURI, "TeamCity");
+      Torrent t = TorrentHashingService.getInstance().createTorrent(srcFile, announceURI, "TeamCity", priority);
       t.save(torrentFile);
       return t;
     } catch (Exception e) {
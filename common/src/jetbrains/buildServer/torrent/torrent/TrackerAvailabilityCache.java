@@ -0,0 +1,44 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.tracker.TrackerHelper;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Remembers results of {@link TrackerHelper#tryTracker} per distinct announce list, so that seeding
+ * of many torrents announced to the same tracker costs a single network round-trip.
+ * Concurrent requests for the same announce list wait for the first check to complete.
+ */
+public class TrackerAvailabilityCache {
+  private final ConcurrentMap<List<List<URI>>, FutureTask<Boolean>> myChecks = new ConcurrentHashMap<List<List<URI>>, FutureTask<Boolean>>();
+
+  public boolean isAvailable(@NotNull final Torrent torrent) throws InterruptedException {
+    final List<List<URI>> announceList = torrent.getAnnounceList();
+    FutureTask<Boolean> check = myChecks.get(announceList);
+    if (check == null) {
+      final FutureTask<Boolean> newCheck = new FutureTask<Boolean>(new Callable<Boolean>() {
+        public Boolean call() throws Exception {
+          return TrackerHelper.tryTracker(torrent);
+        }
+      });
+      check = myChecks.putIfAbsent(announceList, newCheck);
+      if (check == null) {
+        check = newCheck;
+        newCheck.run();
+      }
+    }
+    try {
+      return check.get();
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  public int getCheckedTrackersCount() {
+    return myChecks.size();
+  }
+}
@@ -0,0 +1,229 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Codec of the multi-hash tracker scrape (BEP 48). Info hashes are passed around as upper-case hex strings.
+ *
+ * The bencode support of ttorrent decodes dictionary keys as UTF-8 strings which breaks the binary
+ * info hash keys of the scrape response, so the response is encoded here.
+ */
+public final class TrackerScrape {
+  public static final String PATH = "/trackerScrape.html";
+
+  private static final String INFO_HASH_PARAM = "info_hash";
+  private static final String RAW_CHARSET = "ISO-8859-1";
+  private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
+  private TrackerScrape() {
+  }
+
+  public static final class Stats {
+    private final int myComplete;
+    private final int myIncomplete;
+    private final int myDownloaded;
+
+    public Stats(int complete, int incomplete, int downloaded) {
+      myComplete = complete;
+      myIncomplete = incomplete;
+      myDownloaded = downloaded;
+    }
+
+    /**
+     * @return number of seeders
+     */
+    public int getComplete() {
+      return myComplete;
+    }
+
+    /**
+     * @return number of leechers
+     */
+    public int getIncomplete() {
+      return myIncomplete;
+    }
+
+    public int getDownloaded() {
+      return myDownloaded;
+    }
+  }
+
+  /**
+   * @return query string asking for the given torrents
+   */
+  @NotNull
+  public static String buildQuery(@NotNull Collection<String> hexInfoHashes) {
+    final StringBuilder sb = new StringBuilder();
+    for (String hash : hexInfoHashes) {
+      if (sb.length() > 0) sb.append('&');
+      sb.append(INFO_HASH_PARAM).append('=').append(urlEncode(new String(fromHex(hash), charset())));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return hex info hashes requested in the query string, empty if all torrents are requested
+   */
+  @NotNull
+  public static List<String> parseQuery(@Nullable String queryString) {
+    if (queryString == null) return Collections.emptyList();
+    final List<String> hashes = new ArrayList<String>();
+    for (String param : queryString.split("&")) {
+      final int eq = param.indexOf('=');
+      if (eq < 0 || !INFO_HASH_PARAM.equals(param.substring(0, eq))) continue;
+      final byte[] hash = urlDecode(param.substring(eq + 1)).getBytes(charset());
+      if (hash.length == 20) {
+        hashes.add(toHex(hash));
+      }
+    }
+    return hashes;
+  }
+
+  @NotNull
+  public static byte[] encodeResponse(@NotNull Map<String, Stats> stats) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final SortedMap<String, Stats> sorted = new TreeMap<String, Stats>(stats);
+    write(out, "d5:filesd");
+    for (Map.Entry<String, Stats> entry : sorted.entrySet()) {
+      final byte[] key = fromHex(entry.getKey());
+      write(out, key.length + ":");
+      out.write(key, 0, key.length);
+      final Stats s = entry.getValue();
+      write(out, "d8:completei" + s.getComplete() + "e10:downloadedi" + s.getDownloaded() + "e10:incompletei" + s.getIncomplete() + "ee");
+    }
+    write(out, "ee");
+    return out.toByteArray();
+  }
+
+  /**
+   * @return stats by hex info hash
+   * @throws IOException if the data is not a scrape response
+   */
+  @NotNull
+  public static Map<String, Stats> decodeResponse(@NotNull byte[] data) throws IOException {
+    final Object decoded;
+    try {
+      final int[] pos = new int[]{0};
+      decoded = decode(data, pos);
+    } catch (RuntimeException e) {
+      throw new IOException("Malformed scrape response: " + e.toString());
+    }
+    if (!(decoded instanceof Map)) throw new IOException("Malformed scrape response");
+    final Object files = ((Map) decoded).get("files");
+    if (!(files instanceof Map)) throw new IOException("Scrape response contains no files");
+    final Map<String, Stats> result = new HashMap<String, Stats>();
+    for (Object o : ((Map) files).entrySet()) {
+      final Map.Entry entry = (Map.Entry) o;
+      if (!(entry.getValue() instanceof Map)) continue;
+      final Map fileStats = (Map) entry.getValue();
+      result.put(toHex(((String) entry.getKey()).getBytes(charset())),
+              new Stats(getInt(fileStats, "complete"), getInt(fileStats, "incomplete"), getInt(fileStats, "downloaded")));
+    }
+    return result;
+  }
+
+  @NotNull
+  public static String toHex(@NotNull byte[] bytes) {
+    final char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX_CHARS[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX_CHARS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  @NotNull
+  public static byte[] fromHex(@NotNull String hex) {
+    final byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  private static int getInt(@NotNull Map stats, @NotNull String key) {
+    final Object value = stats.get(key);
+    return value instanceof Long ? ((Long) value).intValue() : 0;
+  }
+
+  /**
+   * Decodes a bencoded value, byte strings are returned as ISO-8859-1 strings to keep binary keys intact
+   */
+  private static Object decode(@NotNull byte[] data, @NotNull int[] pos) {
+    final char c = (char) data[pos[0]];
+    if (c == 'i') {
+      final int end = indexOf(data, 'e', pos[0]);
+      final long value = Long.parseLong(new String(data, pos[0] + 1, end - pos[0] - 1, charset()));
+      pos[0] = end + 1;
+      return value;
+    } else if (c == 'l') {
+      pos[0]++;
+      final List<Object> list = new ArrayList<Object>();
+      while (data[pos[0]] != 'e') {
+        list.add(decode(data, pos));
+      }
+      pos[0]++;
+      return list;
+    } else if (c == 'd') {
+      pos[0]++;
+      final Map<String, Object> map = new HashMap<String, Object>();
+      while (data[pos[0]] != 'e') {
+        final String key = (String) decode(data, pos);
+        map.put(key, decode(data, pos));
+      }
+      pos[0]++;
+      return map;
+    } else if (Character.isDigit(c)) {
+      final int colon = indexOf(data, ':', pos[0]);
+      final int length = Integer.parseInt(new String(data, pos[0], colon - pos[0], charset()));
+      final String value = new String(data, colon + 1, length, charset());
+      pos[0] = colon + 1 + length;
+      return value;
+    }
+    throw new IllegalArgumentException("Unexpected character '" + c + "' at " + pos[0]);
+  }
+
+  private static int indexOf(@NotNull byte[] data, char c, int from) {
+    for (int i = from; i < data.length; i++) {
+      if (data[i] == c) return i;
+    }
+    throw new IllegalArgumentException("'" + c + "' not found after " + from);
+  }
+
+  private static void write(@NotNull ByteArrayOutputStream out, @NotNull String ascii) {
+    final byte[] bytes = ascii.getBytes(charset());
+    out.write(bytes, 0, bytes.length);
+  }
+
+  @NotNull
+  private static String urlEncode(@NotNull String raw) {
+    try {
+      return URLEncoder.encode(raw, RAW_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String urlDecode(@NotNull String encoded) {
+    try {
+      return URLDecoder.decode(encoded, RAW_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static Charset charset() {
+    return Charset.forName(RAW_CHARSET);
+  }
+}
@@ -0,0 +1,124 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+@Test
+public class LinksIndexTest extends BaseTestCase {
+  private File myStorageDir;
+  private final List<LinksIndex> myIndexes = new ArrayList<LinksIndex>();
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myStorageDir = createTempDir();
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    for (LinksIndex index : myIndexes) {
+      index.close();
+    }
+    myIndexes.clear();
+    super.tearDown();
+  }
+
+  public void link_registered_on_creation() throws Exception {
+    final LinksIndex index = open();
+    final File srcFile = createTempFile(65536);
+    final File torrentFile = createTorrentFromFile(srcFile);
+
+    final File linkFile = FileLink.createLink(srcFile, torrentFile, new File(myStorageDir, "bt1/1"));
+
+    final LinksIndex.Entry entry = index.getEntry(linkFile);
+    assertNotNull(entry);
+    assertEquals(srcFile.getAbsoluteFile(), entry.getTargetFile());
+    assertEquals(torrentFile.getAbsoluteFile(), entry.getTorrentFile());
+    assertEquals(Torrent.load(torrentFile).getHexInfoHash(), entry.getInfoHash());
+    assertEquals(srcFile.length(), entry.getSize());
+  }
+
+  public void directory_link_sized_by_its_torrent() throws Exception {
+    final LinksIndex index = open();
+    final File dir = createTempDir();
+    final List<File> files = new ArrayList<File>();
+    for (String name : new String[]{"a.jar", "b.jar"}) {
+      final File file = new File(dir, name);
+      FileUtil.copy(createTempFile(65536), file);
+      files.add(file);
+    }
+    final File torrentFile = new File(createTempDir(), dir.getName() + ".torrent");
+    TorrentHashingService.getInstance().createMultiFileTorrent(
+            dir, files, URI.create("http://localhost:6969/announce"), "test", TorrentHashingService.Priority.INTERACTIVE).save(torrentFile);
+
+    final LinksIndex.Entry entry = index.getEntry(FileLink.createLink(dir, torrentFile, new File(myStorageDir, "bt1/1")));
+    assertNotNull(entry);
+    assertEquals(dir.getAbsoluteFile(), entry.getTargetFile());
+    assertEquals(2 * 65536, entry.getSize());
+  }
+
+  public void index_survives_reopening() throws Exception {
+    final LinksIndex index = open();
+    final File srcFile1 = createTempFile(1024);
+    final File srcFile2 = createTempFile(1024);
+    final File link1 = FileLink.createLink(srcFile1, createTorrentFromFile(srcFile1), myStorageDir);
+    final File link2 = FileLink.createLink(srcFile2, createTorrentFromFile(srcFile2), myStorageDir);
+    index.removeLink(link1);
+    index.flush();
+
+    final LinksIndex reopened = open();
+    assertEquals(1, reopened.size());
+    assertNull(reopened.getEntry(link1));
+    assertNotNull(reopened.getEntry(link2));
+  }
+
+  public void existing_links_imported() throws Exception {
+    final File srcFile = createTempFile(1024);
+    final File torrentFile = createTorrentFromFile(srcFile);
+    final File linkFile = FileLink.createLink(srcFile, torrentFile, new File(myStorageDir, "subdir"));
+    FileUtil.delete(new File(myStorageDir, LinksIndex.INDEX_FILE_NAME));
+
+    final LinksIndex index = open();
+    final LinksIndex.Entry entry = index.getEntry(linkFile);
+    assertNotNull(entry);
+    assertEquals(srcFile.getAbsoluteFile(), entry.getTargetFile());
+    assertTrue(index.getIndexFile().isFile());
+  }
+
+  public void closed_index_not_found_by_link() throws Exception {
+    final LinksIndex index = open();
+    final File linkFile = new File(myStorageDir, "bt1/1/file.link");
+    assertSame(index, LinksIndex.findByLink(linkFile));
+    assertNull(LinksIndex.findByLink(new File(myStorageDir.getAbsolutePath() + "-other", "file.link")));
+
+    index.close();
+    assertNull(LinksIndex.findByLink(linkFile));
+
+    index.reopen();
+    assertSame(index, LinksIndex.findByLink(linkFile));
+  }
+
+  private LinksIndex open() {
+    final LinksIndex index = LinksIndex.open(myStorageDir);
+    myIndexes.add(index);
+    return index;
+  }
+
+  private File createTorrentFromFile(File srcFile) throws Exception {
+    File torrentFile = new File(srcFile.getParentFile(), srcFile.getName() + ".torrent");
+    Torrent.create(srcFile, new URI("http://localhost:6969/announce"), "Test").save(torrentFile);
+    return torrentFile;
+  }
+}
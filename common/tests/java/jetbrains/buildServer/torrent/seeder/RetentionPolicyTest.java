@@ -0,0 +1,70 @@
+package jetbrains.buildServer.torrent.seeder;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.torrent.torrent.TorrentUsageStats;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Test
+public class RetentionPolicyTest extends BaseTestCase {
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  private TorrentUsageStats myUsageStats;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myUsageStats = new TorrentUsageStats(new File(createTempDir(), TorrentUsageStats.STATE_FILE_NAME));
+  }
+
+  public void recent_policy_keeps_newest() {
+    final long now = System.currentTimeMillis();
+    final LinksIndex.Entry old = createEntry("OLD", now - 10 * DAY);
+    final LinksIndex.Entry fresh = createEntry("FRESH", now - 2 * DAY);
+    myUsageStats.recordRequest("OLD");
+
+    final List<LinksIndex.Entry> links = new ArrayList<LinksIndex.Entry>(Arrays.asList(old, fresh));
+    new RecentLinksRetentionPolicy().sortByRetention(links, myUsageStats);
+    assertEquals(Arrays.asList(fresh, old), links);
+  }
+
+  public void frequency_policy_keeps_popular() {
+    final long now = System.currentTimeMillis();
+    final LinksIndex.Entry popular = createEntry("POPULAR", now - 10 * DAY);
+    final LinksIndex.Entry unused = createEntry("UNUSED", now - 2 * DAY);
+    final LinksIndex.Entry justLinked = createEntry("NEW", now - 1000);
+    for (int i = 0; i < 5; i++) {
+      myUsageStats.recordRequest("POPULAR");
+    }
+
+    final List<LinksIndex.Entry> links = new ArrayList<LinksIndex.Entry>(Arrays.asList(unused, popular, justLinked));
+    new FrequencyRetentionPolicy(DAY).sortByRetention(links, myUsageStats);
+    assertEquals(Arrays.asList(justLinked, popular, unused), links);
+  }
+
+  public void usage_survives_reopening() throws IOException {
+    final File stateFile = new File(createTempDir(), TorrentUsageStats.STATE_FILE_NAME);
+    final TorrentUsageStats stats = new TorrentUsageStats(stateFile);
+    stats.recordRequest("HASH");
+    stats.recordUpload("HASH", 1024);
+    stats.save();
+
+    final TorrentUsageStats reopened = new TorrentUsageStats(stateFile);
+    assertEquals(1, reopened.getRequestsCount("HASH"));
+    assertEquals(1024, reopened.getUploadedBytes("HASH"));
+    assertTrue(reopened.getFrequency("HASH") > 0.99);
+  }
+
+  private static LinksIndex.Entry createEntry(String hash, long linkTime) {
+    final File dir = new File("storage");
+    return new LinksIndex.Entry(new File(dir, hash + ".link"), new File(dir, hash), new File(dir, hash + ".torrent"),
+            hash, 1024, linkTime, linkTime);
+  }
+}
@@ -19,12 +19,14 @@ package jetbrains.buildServer.torrent.seeder;
 import com.turn.ttorrent.common.Torrent;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.WaitFor;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
@@ -97,8 +99,74 @@ public class TorrentsDirectorySeederTest extends BaseTestCase {
     assertFalse(linkDir.isDirectory());
   }
 
+  public void warm_start_completes_with_broken_links() throws Exception {
+    final File storageDir = createTempDir();
+    final File srcFile = createTempFile(65536);
+    FileLink.createLink(srcFile, createTorrentFromFile(srcFile, srcFile.getParentFile()), storageDir);
+    final File brokenSrcFile = createTempFile(65536);
+    final File brokenTorrent = new File(brokenSrcFile.getParentFile(), brokenSrcFile.getName() + ".torrent");
+    FileUtil.writeFileAndReportErrors(brokenTorrent, "not a torrent");
+    FileLink.createLink(brokenSrcFile, brokenTorrent, storageDir);
+
+    final TorrentsDirectorySeeder seeder = new TorrentsDirectorySeeder(storageDir, -1, 1);
+    seeder.start(new InetAddress[]{InetAddress.getLocalHost()}, null, 3);
+    try {
+      new WaitFor(10 * 1000) {
+        @Override
+        protected boolean condition() {
+          return seeder.getWarmStartProgress().isCompleted();
+        }
+      };
+      final WarmStartProgress progress = seeder.getWarmStartProgress();
+      assertTrue(progress.isCompleted());
+      assertEquals(2, progress.getTotal());
+      assertEquals(1, progress.getSeeded());
+      assertEquals(1, progress.getFailed());
+    } finally {
+      seeder.stop();
+    }
+  }
+
+  public void restored_file_verified_before_seeding() throws Exception {
+    final File storageDir = createTempDir();
+    final File srcFile = createTempFile(65536);
+    final File torrentFile = createTorrentFromFile(srcFile, srcFile.getParentFile());
+    FileLink.createLink(srcFile, torrentFile, storageDir);
+    final File restoredFile = createTempFile(65536);
+    final File restoredTorrent = createTorrentFromFile(restoredFile, restoredFile.getParentFile());
+    final long timestamp = restoredFile.lastModified();
+    final RandomAccessFile raf = new RandomAccessFile(restoredFile, "rw");
+    try {
+      raf.seek(100);
+      final int b = raf.read();
+      raf.seek(100);
+      raf.write(b + 1);
+    } finally {
+      raf.close();
+    }
+    // restored with its original timestamp, older than the torrent file
+    restoredFile.setLastModified(timestamp);
+    FileLink.createLink(restoredFile, restoredTorrent, storageDir);
+
+    final TorrentsDirectorySeeder seeder = new TorrentsDirectorySeeder(storageDir, -1, 1);
+    seeder.start(new InetAddress[]{InetAddress.getLocalHost()}, announceURI, 3);
+    try {
+      new WaitFor(10 * 1000) {
+        @Override
+        protected boolean condition() {
+          return seeder.getWarmStartProgress().isCompleted() && seeder.getTorrentSeeder().getNumberOfPendingVerifications() == 0;
+        }
+      };
+      assertTrue(seeder.isSeeding(torrentFile));
+      assertFalse(seeder.isSeeding(restoredTorrent));
+    } finally {
+      seeder.stop();
+    }
+  }
+
   public void testStorageVersionTest() throws IOException {
-    int oldVersion = TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION-1;
+    // no migration is available from this version
+    int oldVersion = 0;
     final File storageDir = createTempDir();
     final File innerDir = new File(storageDir, "innerDir");
     innerDir.mkdir();
@@ -111,12 +179,51 @@ public class TorrentsDirectorySeederTest extends BaseTestCase {
             storageVersionFile, String.valueOf(oldVersion));
     assertTrue(link1.exists());
     assertTrue(link2.exists());
-    new TorrentsDirectorySeeder(storageDir, 1, 1);
+    new TorrentsDirectorySeeder(storageDir, 1, 1).getLinksIndex().close();
     assertFalse(link1.exists());
     assertFalse(link2.exists());
     assertEquals(String.valueOf(TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION), FileUtil.readText(storageVersionFile));
   }
 
+  public void testStorageMigratedFromOldVersion() throws Exception {
+    final File storageDir = createTempDir();
+    final File srcFile = createTempFile(65536);
+    final File torrentFile = createTorrentFromFile(srcFile, storageDir);
+    final File oldLink = new File(storageDir, srcFile.getName() + FileLink.LINK_FILE_SUFFIX);
+    FileUtil.writeFileAndReportErrors(oldLink, srcFile.getAbsolutePath());
+    final File brokenLink = new File(storageDir, "missing.link");
+    FileUtil.writeFileAndReportErrors(brokenLink, new File(storageDir, "missing").getAbsolutePath());
+    final File storageVersionFile = new File(storageDir, TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION_FILE);
+    FileUtil.writeFileAndReportErrors(storageVersionFile, "1");
+
+    new TorrentsDirectorySeeder(storageDir, 1, 1).getLinksIndex().close();
+
+    assertTrue(oldLink.exists());
+    assertEquals(torrentFile.getAbsoluteFile(), FileLink.getTorrentFile(oldLink));
+    assertTrue(torrentFile.exists());
+    assertFalse(brokenLink.exists());
+    assertEquals(String.valueOf(TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION), FileUtil.readText(storageVersionFile));
+  }
+
+  public void testStateFilesRebuiltOnMigrationFromVersion2() throws Exception {
+    final File storageDir = createTempDir();
+    final File srcFile = createTempFile(65536);
+    final File torrentFile = createTorrentFromFile(srcFile, storageDir);
+    final File link = FileLink.createLink(srcFile, torrentFile, storageDir);
+    FileUtil.writeFileAndReportErrors(new File(storageDir, LinksIndex.INDEX_FILE_NAME), "+\tstale.link\t/missing\t/missing.torrent\t\t0\t0\t0\n");
+    FileUtil.writeFileAndReportErrors(new File(storageDir, TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION_FILE), "2");
+
+    final LinksIndex index = new TorrentsDirectorySeeder(storageDir, 1, 1).getLinksIndex();
+    try {
+      assertEquals(1, index.size());
+      assertNotNull(index.getEntry(link));
+    } finally {
+      index.close();
+    }
+    assertEquals(String.valueOf(TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION),
+            FileUtil.readText(new File(storageDir, TorrentsDirectorySeeder.TORRENTS_STORAGE_VERSION_FILE)));
+  }
+
   private File createTorrentFromFile(File srcFile, File torrentDir) throws InterruptedException, NoSuchAlgorithmException, IOException {
     File torrentFile = new File(torrentDir, srcFile.getName() + ".torrent");
     final Torrent torrent = Torrent.create(srcFile, announceURI, "Test");
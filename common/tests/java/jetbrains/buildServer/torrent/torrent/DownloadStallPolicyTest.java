@@ -0,0 +1,60 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+@Test
+public class DownloadStallPolicyTest extends BaseTestCase {
+  private static final long PIECE = 1024;
+  private final DownloadStallPolicy myPolicy = new DownloadStallPolicy(10000, 30000, 20000, 100);
+
+  public void no_data_aborted() {
+    final DownloadStallPolicy.Detector detector = myPolicy.newDetector(0);
+    assertNull(detector.check(5000, 0, 0));
+    assertNotNull(detector.check(10001, 0, 0));
+  }
+
+  public void no_first_piece_aborted() {
+    final DownloadStallPolicy.Detector detector = myPolicy.newDetector(0);
+    assertNull(detector.check(20000, PIECE - 1, 0));
+    assertNotNull(detector.check(30001, PIECE - 1, 0));
+  }
+
+  public void bytes_of_partial_pieces_do_not_complete_first_piece() {
+    final DownloadStallPolicy.Detector detector = myPolicy.newDetector(0);
+    // many pieces are being downloaded at once, none of them is complete
+    assertNull(detector.check(20000, 10 * PIECE, 0));
+    assertNotNull(detector.check(30001, 10 * PIECE, 0));
+    assertNull(myPolicy.newDetector(0).check(30001, PIECE, 1));
+  }
+
+  public void progressing_download_not_aborted() {
+    final DownloadStallPolicy.Detector detector = myPolicy.newDetector(0);
+    long downloaded = 0;
+    for (long now = 1000; now <= 600000; now += 500) {
+      downloaded += 100;
+      assertNull(detector.check(now, downloaded, (int) (downloaded / PIECE)));
+    }
+  }
+
+  public void slow_download_aborted_after_window() {
+    final DownloadStallPolicy.Detector detector = myPolicy.newDetector(0);
+    assertNull(detector.check(1000, PIECE, 1));
+    long downloaded = PIECE;
+    String reason = null;
+    long now = 1000;
+    while (reason == null && now < 60000) {
+      now += 500;
+      downloaded += 10;
+      reason = detector.check(now, downloaded, (int) (downloaded / PIECE));
+    }
+    assertNotNull(reason);
+    assertTrue(now >= 21000);
+  }
+
+  public void disabled_rules_never_abort() {
+    final DownloadStallPolicy.Detector detector = new DownloadStallPolicy(0, 0, 0, 0).newDetector(0);
+    assertNull(detector.check(1000000, 0, 0));
+    assertNull(detector.check(2000000, PIECE, 1));
+  }
+}
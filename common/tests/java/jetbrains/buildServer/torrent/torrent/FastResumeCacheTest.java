@@ -0,0 +1,80 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.BitSet;
+
+@Test
+public class FastResumeCacheTest extends BaseTestCase {
+
+  public void state_survives_reopening() throws Exception {
+    final File stateFile = new File(createTempDir(), FastResumeCache.STATE_FILE_NAME);
+    final File srcFile = createTempFile(1024 * 1024);
+    final File torrentFile = createTorrentFromFile(srcFile);
+    final PieceVerifier verifier = PieceVerifier.forTorrentFile(torrentFile);
+    assertNotNull(verifier);
+    final BitSet verified = verifier.verify(srcFile);
+    assertEquals(verifier.getPiecesCount(), verified.cardinality());
+
+    final FastResumeCache cache = new FastResumeCache(stateFile);
+    cache.put("HASH", torrentFile, srcFile, verifier.getPiecesCount(), verified);
+    cache.save();
+
+    final FastResumeCache reopened = new FastResumeCache(stateFile);
+    assertTrue(reopened.canResume("HASH", srcFile));
+    assertEquals(torrentFile, reopened.getTorrentFile("HASH"));
+    assertFalse(reopened.canResume("OTHER", srcFile));
+  }
+
+  public void sampled_file_scrubbed_first() throws Exception {
+    final File srcFile = createTempFile(1024 * 1024);
+    final File torrentFile = createTorrentFromFile(srcFile);
+    final PieceVerifier verifier = PieceVerifier.forTorrentFile(torrentFile);
+    assertNotNull(verifier);
+    final BitSet verified = verifier.verify(srcFile);
+
+    final FastResumeCache cache = new FastResumeCache(new File(createTempDir(), FastResumeCache.STATE_FILE_NAME));
+    cache.put("VERIFIED", torrentFile, srcFile, verifier.getPiecesCount(), verified);
+    cache.put("SAMPLED", torrentFile, srcFile, verifier.getPiecesCount(), verified, 0);
+
+    assertTrue(cache.canResume("SAMPLED", srcFile));
+    assertEquals("SAMPLED", cache.findLeastRecentlyVerified());
+  }
+
+  public void changed_file_not_resumed() throws Exception {
+    final File srcFile = createTempFile(1024 * 1024);
+    final File torrentFile = createTorrentFromFile(srcFile);
+    final PieceVerifier verifier = PieceVerifier.forTorrentFile(torrentFile);
+    assertNotNull(verifier);
+
+    final FastResumeCache cache = new FastResumeCache(new File(createTempDir(), FastResumeCache.STATE_FILE_NAME));
+    cache.put("HASH", torrentFile, srcFile, verifier.getPiecesCount(), verifier.verify(srcFile));
+
+    final RandomAccessFile raf = new RandomAccessFile(srcFile, "rw");
+    try {
+      raf.seek(10);
+      final int b = raf.read();
+      raf.seek(10);
+      raf.write(b + 1);
+    } finally {
+      raf.close();
+    }
+    srcFile.setLastModified(srcFile.lastModified() + 2000);
+
+    assertFalse(cache.canResume("HASH", srcFile));
+    final BitSet verified = verifier.verify(srcFile);
+    assertFalse(verified.get(0));
+    assertEquals(verifier.getPiecesCount() - 1, verified.cardinality());
+  }
+
+  private File createTorrentFromFile(File srcFile) throws Exception {
+    File torrentFile = new File(srcFile.getParentFile(), srcFile.getName() + ".torrent");
+    Torrent.create(srcFile, new URI("http://localhost:6969/announce"), "Test").save(torrentFile);
+    return torrentFile;
+  }
+}
@@ -0,0 +1,98 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.util.FileUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Compares torrent creation by ttorrent, which reads the pieces into heap buffers, with the hashing service.
+ * Not a part of the test suite, run it manually:
+ * <pre>HashingBenchmark [file size in MB] [iterations]</pre>
+ * Run it with a small heap (e.g. -Xmx256m) to see the difference in the number of collections.
+ */
+public class HashingBenchmark {
+  private static final URI ANNOUNCE_URI = URI.create("http://localhost:6969/announce");
+
+  public static void main(String[] args) throws Exception {
+    final int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+    final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    final File file = createFile(sizeMb);
+    try {
+      final TorrentHashingService service = new TorrentHashingService(TorrentHashingService.getDefaultThreadsCount(), -1);
+      Torrent.setHashingThreadsCount(service.getThreadsCount());
+      for (int i = 0; i < iterations; i++) {
+        measure("ttorrent", file, new Creator() {
+          public Torrent create(File srcFile) throws Exception {
+            return Torrent.create(srcFile, ANNOUNCE_URI, "benchmark");
+          }
+        });
+        measure("hashing service", file, new Creator() {
+          public Torrent create(File srcFile) throws Exception {
+            return service.createTorrent(srcFile, ANNOUNCE_URI, "benchmark", TorrentHashingService.Priority.INTERACTIVE);
+          }
+        });
+      }
+    } finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  private static void measure(String name, File file, Creator creator) throws Exception {
+    System.gc();
+    final long collectionsBefore = getCollectionsCount();
+    final long gcTimeBefore = getCollectionTime();
+    final long start = System.nanoTime();
+    final Torrent torrent = creator.create(file);
+    final long elapsedMs = (System.nanoTime() - start) / 1000000;
+    System.out.println(String.format("%-16s %6d ms %8.1f MB/s %5d collections %6d ms in GC  (%s)",
+            name,
+            elapsedMs,
+            file.length() / 1024.0 / 1024.0 * 1000 / Math.max(1, elapsedMs),
+            getCollectionsCount() - collectionsBefore,
+            getCollectionTime() - gcTimeBefore,
+            torrent.getHexInfoHash()));
+  }
+
+  private static long getCollectionsCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, bean.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getCollectionTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, bean.getCollectionTime());
+    }
+    return time;
+  }
+
+  private static File createFile(int sizeMb) throws IOException {
+    final File file = File.createTempFile("hashing-benchmark", ".bin");
+    final byte[] chunk = new byte[1024 * 1024];
+    final Random random = new Random(1);
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      for (int i = 0; i < sizeMb; i++) {
+        random.nextBytes(chunk);
+        out.write(chunk);
+      }
+    } finally {
+      FileUtil.close(out);
+    }
+    return file;
+  }
+
+  private interface Creator {
+    Torrent create(File srcFile) throws Exception;
+  }
+}
@@ -0,0 +1,71 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+@Test
+public class IncrementalPieceHasherTest extends BaseTestCase {
+
+  public void same_pieces_as_full_hashing() throws Exception {
+    final int pieceLength = TorrentHashingService.PIECE_LENGTH;
+    final byte[] data = new byte[3 * pieceLength + 777];
+    new Random(42).nextBytes(data);
+    final File file = createTempFile(0);
+
+    final IncrementalPieceHasher hasher = new IncrementalPieceHasher(pieceLength);
+    int written = 0;
+    final Random chunks = new Random(7);
+    while (written < data.length) {
+      final int size = Math.min(data.length - written, 1 + chunks.nextInt(pieceLength));
+      append(file, data, written, size);
+      written += size;
+      assertTrue(hasher.catchUp(file));
+      assertEquals(written, hasher.getLength());
+    }
+
+    final byte[] expected = new TorrentHashingService(1, -1).hashPieces(file, pieceLength, TorrentHashingService.Priority.INTERACTIVE);
+    assertTrue(Arrays.equals(expected, hasher.finish()));
+  }
+
+  public void truncated_file_is_detected() throws Exception {
+    final File file = createTempFile(1024);
+    final IncrementalPieceHasher hasher = new IncrementalPieceHasher(TorrentHashingService.PIECE_LENGTH);
+    assertTrue(hasher.catchUp(file));
+
+    FileUtil.writeFile(file, "short", "UTF-8");
+    assertFalse(hasher.catchUp(file));
+  }
+
+  public void file_modified_without_growing_is_detected() throws Exception {
+    final File file = createTempFile(1024);
+    file.setLastModified(System.currentTimeMillis() - 10 * 1000);
+    final IncrementalPieceHasher hasher = new IncrementalPieceHasher(TorrentHashingService.PIECE_LENGTH);
+    assertTrue(hasher.catchUp(file));
+    assertTrue(hasher.catchUp(file));
+
+    final RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.seek(10);
+      out.write(1);
+    } finally {
+      out.close();
+    }
+    assertFalse(hasher.catchUp(file));
+  }
+
+  private static void append(File file, byte[] data, int offset, int length) throws Exception {
+    final FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(data, offset, length);
+    } finally {
+      FileUtil.close(out);
+    }
+  }
+}
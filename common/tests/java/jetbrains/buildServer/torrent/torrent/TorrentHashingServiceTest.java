@@ -0,0 +1,173 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Test
+public class TorrentHashingServiceTest extends BaseTestCase {
+
+  public void same_info_hash_as_ttorrent() throws Exception {
+    final File srcFile = createTempFile(3 * TorrentHashingService.PIECE_LENGTH + 12345);
+    final URI announce = new URI("http://localhost:6969/announce");
+    final TorrentHashingService service = new TorrentHashingService(3, -1);
+
+    final Torrent expected = Torrent.create(srcFile, announce, "TeamCity");
+    final Torrent actual = service.createTorrent(srcFile, announce, "TeamCity", TorrentHashingService.Priority.INTERACTIVE);
+
+    assertEquals(expected.getHexInfoHash(), actual.getHexInfoHash());
+    assertEquals(srcFile.length(), service.getHashedBytes());
+    assertEquals(0, service.getQueueSize());
+  }
+
+  public void many_pieces_hashed_in_parallel() throws Exception {
+    final File srcFile = createTempFile(40 * TorrentHashingService.PIECE_LENGTH);
+    final URI announce = new URI("http://localhost:6969/announce");
+    final TorrentHashingService service = new TorrentHashingService(4, -1);
+
+    final Torrent actual = service.createTorrent(srcFile, announce, "TeamCity", TorrentHashingService.Priority.BACKGROUND);
+
+    assertEquals(Torrent.create(srcFile, announce, "TeamCity").getHexInfoHash(), actual.getHexInfoHash());
+  }
+
+  public void multi_file_same_info_hash_as_ttorrent() throws Exception {
+    final File dir = createTempDir();
+    final File subDir = new File(dir, "lib");
+    subDir.mkdirs();
+    final List<File> files = new ArrayList<File>();
+    final int[] sizes = {TorrentHashingService.PIECE_LENGTH / 3, 0, 2 * TorrentHashingService.PIECE_LENGTH + 7, 1234};
+    for (int i = 0; i < sizes.length; i++) {
+      final File file = new File(i % 2 == 0 ? dir : subDir, "file" + i + ".bin");
+      FileUtil.copy(createTempFile(sizes[i]), file);
+      files.add(file);
+    }
+    final URI announce = new URI("http://localhost:6969/announce");
+    final TorrentHashingService service = new TorrentHashingService(2, -1);
+
+    final Torrent expected = Torrent.create(dir, files, announce, "TeamCity");
+    final Torrent actual = service.createMultiFileTorrent(dir, files, announce, "TeamCity", TorrentHashingService.Priority.INTERACTIVE);
+
+    assertEquals(expected.getHexInfoHash(), actual.getHexInfoHash());
+    assertEquals(Arrays.asList("file0.bin", "lib/file1.bin", "file2.bin", "lib/file3.bin"),
+            MultiFileTorrents.getArtifactPaths("", actual));
+    assertEquals(dir.getName() + "/lib/file3.bin", MultiFileTorrents.getPathInTorrent("", actual, "lib/file3.bin"));
+  }
+
+  public void hybrid_torrent_has_v1_and_v2_hashes() throws Exception {
+    final File dir = createTempDir();
+    final File srcFile = new File(dir, "sdk.zip");
+    FileUtil.copy(createTempFile(3 * TorrentHashingService.PIECE_LENGTH + 12345), srcFile);
+    final TorrentHashingService service = new TorrentHashingService(2, -1);
+
+    final Torrent torrent = service.createHybridTorrent(srcFile, new URI("http://localhost:6969/announce"), "TeamCity",
+            TorrentHashingService.Priority.INTERACTIVE);
+
+    final PieceVerifier v1 = PieceVerifier.forTorrent(torrent);
+    assertNotNull(v1);
+    assertEquals(4, v1.verify(srcFile).cardinality());
+    final MerkleVerifier v2 = MerkleVerifier.forTorrent(torrent);
+    assertNotNull(v2);
+    assertEquals(4, v2.getPiecesCount());
+
+    final File copy = new File(createTempDir(), "other-name.zip");
+    FileUtil.copy(srcFile, copy);
+    final Torrent copyTorrent = service.createHybridTorrent(copy, new URI("http://localhost:6969/announce"), "TeamCity",
+            TorrentHashingService.Priority.INTERACTIVE);
+    assertTrue(Arrays.equals(v2.getPiecesRoot(), MerkleVerifier.forTorrent(copyTorrent).getPiecesRoot()));
+
+    final byte[] piece = new byte[v2.getPieceSize(1)];
+    final RandomAccessFile in = new RandomAccessFile(srcFile, "r");
+    try {
+      in.seek(v2.getPieceLength());
+      in.readFully(piece);
+    } finally {
+      in.close();
+    }
+    assertTrue(v2.isValidPiece(1, piece, piece.length));
+    piece[3 * MerkleTree.BLOCK_SIZE + 5] ^= 1;
+    assertFalse(v2.isValidPiece(1, piece, piece.length));
+  }
+
+  public void hybrid_root_of_small_file_is_block_hash() throws Exception {
+    final File srcFile = createTempFile(MerkleTree.BLOCK_SIZE - 100);
+    final TorrentHashingService service = new TorrentHashingService(1, -1);
+
+    final Torrent torrent = service.createHybridTorrent(srcFile, new URI("http://localhost:6969/announce"), "TeamCity",
+            TorrentHashingService.Priority.INTERACTIVE);
+
+    final byte[] data = new byte[(int) srcFile.length()];
+    final RandomAccessFile in = new RandomAccessFile(srcFile, "r");
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+    final MerkleVerifier verifier = MerkleVerifier.forTorrent(torrent);
+    assertNotNull(verifier);
+    assertTrue(Arrays.equals(MerkleTree.hashBlocks(ByteBuffer.wrap(data), MerkleTree.createDigest()), verifier.getPiecesRoot()));
+  }
+
+  public void hybrid_pieces_root_matches_bep52_vectors() throws Exception {
+    final TorrentHashingService service = new TorrentHashingService(2, -1);
+    final URI announce = new URI("http://localhost:6969/announce");
+
+    // a file of a single partial block: the root is the plain SHA-256 of the content
+    final File abc = new File(createTempDir(), "abc.txt");
+    FileUtil.writeFile(abc, "abc", "US-ASCII");
+    final Torrent abcTorrent = service.createHybridTorrent(abc, announce, "TeamCity", TorrentHashingService.Priority.INTERACTIVE);
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+            toHex(MerkleVerifier.forTorrent(abcTorrent).getPiecesRoot()));
+
+    // three pieces, the last one has a partial block and is padded with zero leaf hashes
+    final byte[] content = new byte[2 * TorrentHashingService.PIECE_LENGTH + 3 * MerkleTree.BLOCK_SIZE + 100];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i % 251);
+    }
+    final File srcFile = new File(createTempDir(), "sdk.zip");
+    final RandomAccessFile out = new RandomAccessFile(srcFile, "rw");
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    final Torrent torrent = service.createHybridTorrent(srcFile, announce, "TeamCity", TorrentHashingService.Priority.INTERACTIVE);
+    assertEquals("bbd7f3e97435b6ac2b873fe888bcfa4c63ba56ff24e7ca4abe4cf12b8c47ffc0",
+            toHex(MerkleVerifier.forTorrent(torrent).getPiecesRoot()));
+  }
+
+  public void hybrid_piece_length_keeps_metadata_small() {
+    assertEquals(TorrentHashingService.PIECE_LENGTH, TorrentHashingService.getHybridPieceLength(100L * 1024 * 1024));
+    final long size = 50L * 1024 * 1024 * 1024;
+    final int pieceLength = TorrentHashingService.getHybridPieceLength(size);
+    assertEquals(16 * 1024 * 1024, pieceLength);
+    assertTrue(size / pieceLength <= 4096);
+  }
+
+  public void read_budget_limits_rate() throws Exception {
+    final File srcFile = createTempFile(4 * TorrentHashingService.PIECE_LENGTH);
+    final TorrentHashingService service = new TorrentHashingService(2, 4 * TorrentHashingService.PIECE_LENGTH);
+
+    final long start = System.currentTimeMillis();
+    service.hashPieces(srcFile, TorrentHashingService.PIECE_LENGTH, TorrentHashingService.Priority.BACKGROUND);
+    service.hashPieces(srcFile, TorrentHashingService.PIECE_LENGTH, TorrentHashingService.Priority.BACKGROUND);
+
+    assertTrue(System.currentTimeMillis() - start >= 500);
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    return sb.toString();
+  }
+}
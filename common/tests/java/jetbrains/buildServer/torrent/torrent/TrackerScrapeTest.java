@@ -0,0 +1,44 @@
+package jetbrains.buildServer.torrent.torrent;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Test
+public class TrackerScrapeTest extends BaseTestCase {
+  private static final String HASH1 = "00FF10203040506070809A0B0C0D0E0F25262728";
+  private static final String HASH2 = "2B3D3F26200A0D7F80FEEF4142434445464748E5";
+
+  public void query_round_trip() {
+    final String query = TrackerScrape.buildQuery(Arrays.asList(HASH1, HASH2));
+    final List<String> parsed = TrackerScrape.parseQuery(query + "&other=1");
+    assertEquals(Arrays.asList(HASH1, HASH2), parsed);
+    assertTrue(TrackerScrape.parseQuery(null).isEmpty());
+  }
+
+  public void response_round_trip() throws Exception {
+    final Map<String, TrackerScrape.Stats> stats = new HashMap<String, TrackerScrape.Stats>();
+    stats.put(HASH1, new TrackerScrape.Stats(3, 1, 0));
+    stats.put(HASH2, new TrackerScrape.Stats(0, 12, 7));
+
+    final Map<String, TrackerScrape.Stats> decoded = TrackerScrape.decodeResponse(TrackerScrape.encodeResponse(stats));
+    assertEquals(2, decoded.size());
+    assertEquals(3, decoded.get(HASH1).getComplete());
+    assertEquals(1, decoded.get(HASH1).getIncomplete());
+    assertEquals(12, decoded.get(HASH2).getIncomplete());
+    assertEquals(7, decoded.get(HASH2).getDownloaded());
+  }
+
+  public void empty_response() throws Exception {
+    assertTrue(TrackerScrape.decodeResponse(TrackerScrape.encodeResponse(new HashMap<String, TrackerScrape.Stats>())).isEmpty());
+  }
+
+  @Test(expectedExceptions = java.io.IOException.class)
+  public void malformed_response() throws Exception {
+    TrackerScrape.decodeResponse("d5:files".getBytes("US-ASCII"));
+  }
+}
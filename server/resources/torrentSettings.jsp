@@ -2,7 +2,15 @@
 <jsp:useBean id="torrentConfigurator" type="jetbrains.buildServer.torrent.TorrentConfigurator" scope="request"/>
 <jsp:useBean id="announcedTorrentsNum" type="java.lang.Integer" scope="request"/>
 <jsp:useBean id="connectedClientsNum" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="expiredPeersNum" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="expiredTorrentsNum" type="java.lang.Long" scope="request"/>
+<jsp:useBean id="pendingExpiryChecksNum" type="java.lang.Integer" scope="request"/>
 <jsp:useBean id="seededTorrentsNum" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="warmStartProgress" type="jetbrains.buildServer.torrent.seeder.WarmStartProgress" scope="request"/>
+<jsp:useBean id="hashingQueueSize" type="java.lang.Integer" scope="request"/>
+<jsp:useBean id="hashingRateMb" type="java.lang.String" scope="request"/>
+<jsp:useBean id="announcementQueue" type="jetbrains.buildServer.torrent.ArtifactsAnnouncementQueue" scope="request"/>
+<jsp:useBean id="deferredAnnouncementsNum" type="java.lang.Integer" scope="request"/>
 <form method="post" action="<c:url value='/admin/torrentSettings.html'/>">
   <table class="runnerFormTable">
 <tr>
@@ -16,8 +24,25 @@
           <ul style="margin-top:0; padding-left: 1em;">
             <li>announced torrents: <strong>${announcedTorrentsNum}</strong></li>
             <li>connected/downloading clients: <strong>${connectedClientsNum}</strong></li>
+            <li>expired clients: <strong>${expiredPeersNum}</strong>, expired torrents: <strong>${expiredTorrentsNum}</strong>
+              (<strong>${pendingExpiryChecksNum}</strong> announces waiting for expiry)</li>
             <li>number of currently seeded torrents: <strong>${seededTorrentsNum}
               (of ${torrentConfigurator.maxNumberOfSeededTorrents})</strong></li>
+            <c:if test="${warmStartProgress.total > 0 and not warmStartProgress.completed}">
+              <li>seeding existing torrents: <strong>${warmStartProgress.seeded + warmStartProgress.failed}
+                of ${warmStartProgress.total}</strong></li>
+            </c:if>
+            <c:if test="${hashingQueueSize > 0}">
+              <li>artifacts hashing: <strong>${hashingQueueSize}</strong> queued, <strong>${hashingRateMb}</strong> MB/s</li>
+            </c:if>
+            <li>builds waiting for announcement: <strong>${announcementQueue.queuedBuilds}</strong>,
+              artifacts: <strong>${announcementQueue.queuedArtifacts}</strong></li>
+            <li>listed builds: <strong>${announcementQueue.listingStats.count}</strong>
+              (avg. <strong>${announcementQueue.listingStats.averageTimeMs}</strong> ms per build),
+              announced artifacts: <strong>${announcementQueue.announcingStats.count}</strong>
+              (avg. <strong>${announcementQueue.announcingStats.averageTimeMs}</strong> ms per artifact)</li>
+            <li>builds deferred by the full queue: <strong>${announcementQueue.rejectedBuilds}</strong>,
+              waiting for retry: <strong>${deferredAnnouncementsNum}</strong></li>
           </ul>
         </td>
       </tr>
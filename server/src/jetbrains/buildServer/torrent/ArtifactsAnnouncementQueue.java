@@ -0,0 +1,271 @@
+package jetbrains.buildServer.torrent;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Announces the artifacts of finished builds off the build events thread. A build is processed in two stages:
+ * its artifacts are listed and then each artifact is announced. The artifacts of different builds are
+ * processed in parallel and in round-robin order, so a build with many artifacts does not hold back
+ * the others. Regular builds go ahead of personal ones.
+ *
+ * The number of queued builds is bounded: when the queue is full the build is not accepted and the
+ * caller should defer its announcement. The builds not announced by the shutdown are returned by
+ * {@link #shutdown()}, so that they can be announced after the restart.
+ */
+public class ArtifactsAnnouncementQueue {
+  public static final String THREADS = "torrent.announce.threads";
+  public static final int DEFAULT_THREADS = 2;
+  public static final String MAX_QUEUED_BUILDS = "torrent.announce.max.queued.builds";
+  public static final int DEFAULT_MAX_QUEUED_BUILDS = 200;
+
+  public enum Priority {
+    REGULAR, PERSONAL
+  }
+
+  /**
+   * Announcement of the artifacts of a single build
+   */
+  public interface BuildAnnouncement {
+    long getBuildId();
+
+    /**
+     * @return tasks announcing the artifacts of the build
+     */
+    @NotNull
+    List<Runnable> listArtifacts();
+
+    /**
+     * Called once all the artifacts are announced
+     */
+    void finished();
+  }
+
+  private final int myMaxQueuedBuilds;
+  private final ExecutorService myExecutor;
+  private final List<LinkedList<Job>> myReadyJobs = new LinkedList<LinkedList<Job>>();
+  private final Set<Job> myUnfinishedJobs = new LinkedHashSet<Job>();
+  private int myQueuedBuilds;
+  private int myQueuedArtifacts;
+  private final StageStats myListingStats = new StageStats();
+  private final StageStats myAnnouncingStats = new StageStats();
+  private final AtomicLong myRejectedBuilds = new AtomicLong();
+
+  public ArtifactsAnnouncementQueue(int threadsCount, int maxQueuedBuilds) {
+    myMaxQueuedBuilds = maxQueuedBuilds;
+    myExecutor = ExecutorsFactory.newFixedScheduledExecutor("Torrent artifacts announcement", Math.max(1, threadsCount));
+    for (Priority ignored : Priority.values()) {
+      myReadyJobs.add(new LinkedList<Job>());
+    }
+  }
+
+  /**
+   * @return false if the queue is full, the announcement should be deferred by the caller
+   */
+  public boolean submit(@NotNull Priority priority, @NotNull BuildAnnouncement announcement) {
+    synchronized (myReadyJobs) {
+      if (myQueuedBuilds >= myMaxQueuedBuilds) {
+        myRejectedBuilds.incrementAndGet();
+        return false;
+      }
+      myQueuedBuilds++;
+      final Job job = new Job(priority, announcement);
+      myUnfinishedJobs.add(job);
+      myReadyJobs.get(priority.ordinal()).addLast(job);
+    }
+    scheduleStep();
+    return true;
+  }
+
+  /**
+   * Stops the announcement
+   * @return announcements of the builds which were not announced completely
+   */
+  @NotNull
+  public List<BuildAnnouncement> shutdown() {
+    myExecutor.shutdownNow();
+    final List<BuildAnnouncement> unfinished = new ArrayList<BuildAnnouncement>();
+    synchronized (myReadyJobs) {
+      for (Job job : myUnfinishedJobs) {
+        unfinished.add(job.myAnnouncement);
+      }
+    }
+    return unfinished;
+  }
+
+  /**
+   * @return true if a submitted build would not be accepted
+   */
+  public boolean isFull() {
+    synchronized (myReadyJobs) {
+      return myQueuedBuilds >= myMaxQueuedBuilds;
+    }
+  }
+
+  public int getQueuedBuilds() {
+    synchronized (myReadyJobs) {
+      return myQueuedBuilds;
+    }
+  }
+
+  public int getQueuedArtifacts() {
+    synchronized (myReadyJobs) {
+      return myQueuedArtifacts;
+    }
+  }
+
+  public long getRejectedBuilds() {
+    return myRejectedBuilds.get();
+  }
+
+  @NotNull
+  public StageStats getListingStats() {
+    return myListingStats;
+  }
+
+  @NotNull
+  public StageStats getAnnouncingStats() {
+    return myAnnouncingStats;
+  }
+
+  /**
+   * Each queued build and artifact is a step, the step to execute is chosen when a worker is free
+   */
+  private void scheduleStep() {
+    myExecutor.submit(new Runnable() {
+      public void run() {
+        executeStep();
+      }
+    });
+  }
+
+  private void executeStep() {
+    final Job job;
+    final Runnable artifactTask;
+    synchronized (myReadyJobs) {
+      job = nextJob();
+      if (job == null) return;
+      artifactTask = job.myListed ? job.myArtifacts.removeFirst() : null;
+      if (artifactTask != null) {
+        myQueuedArtifacts--;
+        job.myInProgress++;
+        if (!job.myArtifacts.isEmpty()) {
+          myReadyJobs.get(job.myPriority.ordinal()).addLast(job);
+        }
+      }
+    }
+    if (artifactTask == null) {
+      list(job);
+    } else {
+      announce(job, artifactTask);
+    }
+  }
+
+  @Nullable
+  private Job nextJob() {
+    for (LinkedList<Job> jobs : myReadyJobs) {
+      if (!jobs.isEmpty()) return jobs.removeFirst();
+    }
+    return null;
+  }
+
+  private void list(@NotNull Job job) {
+    final long start = System.currentTimeMillis();
+    List<Runnable> artifacts;
+    try {
+      artifacts = job.myAnnouncement.listArtifacts();
+    } catch (Exception e) {
+      Loggers.SERVER.warn("Failed to list artifacts to announce", e);
+      artifacts = new LinkedList<Runnable>();
+    }
+    myListingStats.record(System.currentTimeMillis() - start);
+    synchronized (myReadyJobs) {
+      job.myListed = true;
+      job.myArtifacts.addAll(artifacts);
+      myQueuedArtifacts += artifacts.size();
+      if (!job.myArtifacts.isEmpty()) {
+        myReadyJobs.get(job.myPriority.ordinal()).addLast(job);
+      }
+    }
+    for (int i = 0; i < artifacts.size(); i++) {
+      scheduleStep();
+    }
+    finishIfDone(job);
+  }
+
+  private void announce(@NotNull Job job, @NotNull Runnable artifactTask) {
+    final long start = System.currentTimeMillis();
+    try {
+      artifactTask.run();
+    } catch (Exception e) {
+      Loggers.SERVER.warn("Failed to announce artifact", e);
+    }
+    myAnnouncingStats.record(System.currentTimeMillis() - start);
+    synchronized (myReadyJobs) {
+      job.myInProgress--;
+    }
+    finishIfDone(job);
+  }
+
+  private void finishIfDone(@NotNull Job job) {
+    synchronized (myReadyJobs) {
+      if (!job.myListed || job.myInProgress > 0 || !job.myArtifacts.isEmpty() || job.myFinished) return;
+      job.myFinished = true;
+      myUnfinishedJobs.remove(job);
+      myQueuedBuilds--;
+    }
+    try {
+      job.myAnnouncement.finished();
+    } catch (Exception e) {
+      Loggers.SERVER.warn("Failed to complete artifacts announcement", e);
+    }
+  }
+
+  private static final class Job {
+    @NotNull
+    private final Priority myPriority;
+    @NotNull
+    private final BuildAnnouncement myAnnouncement;
+    private final LinkedList<Runnable> myArtifacts = new LinkedList<Runnable>();
+    private boolean myListed;
+    private int myInProgress;
+    private boolean myFinished;
+
+    private Job(@NotNull Priority priority, @NotNull BuildAnnouncement announcement) {
+      myPriority = priority;
+      myAnnouncement = announcement;
+    }
+  }
+
+  /**
+   * Number of executed steps of a stage and the time spent in them
+   */
+  public static final class StageStats {
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myTotalTimeMs = new AtomicLong();
+
+    private void record(long timeMs) {
+      myCount.incrementAndGet();
+      myTotalTimeMs.addAndGet(timeMs);
+    }
+
+    public long getCount() {
+      return myCount.get();
+    }
+
+    public long getTotalTimeMs() {
+      return myTotalTimeMs.get();
+    }
+
+    public long getAverageTimeMs() {
+      final long count = myCount.get();
+      return count == 0 ? 0 : myTotalTimeMs.get() / count;
+    }
+  }
+}
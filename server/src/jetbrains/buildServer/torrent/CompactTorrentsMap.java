@@ -0,0 +1,283 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.tracker.TrackedPeer;
+import com.turn.ttorrent.tracker.TrackedTorrent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Torrents of the tracker keyed by their 20-byte info hashes. It is the map served to the tracker request processor,
+ * so its keys are the hex info hashes. The stored torrents are {@link CompactTrackedTorrent}s of the map: a torrent
+ * created elsewhere is converted on put, and {@link #putIfAbsent} returns the stored torrent in that case, so that
+ * the caller goes on with the torrent actually kept by the map.
+ *
+ * The announces of the peers go to a {@link PeerExpiryQueue}, so {@link #expireUnfreshPeers(int)} checks only
+ * the peers due to expire instead of sweeping all of them.
+ */
+public class CompactTorrentsMap extends AbstractMap<String, TrackedTorrent> implements ConcurrentMap<String, TrackedTorrent> {
+  private static final int INFO_HASH_SIZE = 20;
+
+  private final ConcurrentMap<InfoHash, CompactTrackedTorrent> myTorrents = new ConcurrentHashMap<InfoHash, CompactTrackedTorrent>();
+  private final PeerExpiryQueue myExpiryQueue = new PeerExpiryQueue();
+  private final AtomicLong myExpiredPeers = new AtomicLong();
+  private final AtomicLong myExpiredTorrents = new AtomicLong();
+
+  @Override
+  public int size() {
+    return myTorrents.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return myTorrents.isEmpty();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    final InfoHash hash = InfoHash.of(key);
+    return hash != null && myTorrents.containsKey(hash);
+  }
+
+  @Override
+  public TrackedTorrent get(Object key) {
+    final InfoHash hash = InfoHash.of(key);
+    return hash == null ? null : myTorrents.get(hash);
+  }
+
+  @Override
+  public TrackedTorrent put(String key, TrackedTorrent value) {
+    final CompactTrackedTorrent torrent = compact(value);
+    final CompactTrackedTorrent old = myTorrents.put(toInfoHash(key), torrent);
+    scheduleExpiry(torrent);
+    return old;
+  }
+
+  public TrackedTorrent putIfAbsent(@NotNull String key, @NotNull TrackedTorrent value) {
+    final CompactTrackedTorrent torrent = compact(value);
+    final CompactTrackedTorrent old = myTorrents.putIfAbsent(toInfoHash(key), torrent);
+    if (old != null) return old;
+    scheduleExpiry(torrent);
+    return torrent == value ? null : torrent;
+  }
+
+  @Override
+  public TrackedTorrent remove(Object key) {
+    final InfoHash hash = InfoHash.of(key);
+    return hash == null ? null : myTorrents.remove(hash);
+  }
+
+  public boolean remove(@NotNull Object key, Object value) {
+    final InfoHash hash = InfoHash.of(key);
+    return hash != null && myTorrents.remove(hash, value);
+  }
+
+  public boolean replace(@NotNull String key, @NotNull TrackedTorrent oldValue, @NotNull TrackedTorrent newValue) {
+    if (!(oldValue instanceof CompactTrackedTorrent)) return false;
+    final CompactTrackedTorrent torrent = compact(newValue);
+    if (!myTorrents.replace(toInfoHash(key), (CompactTrackedTorrent) oldValue, torrent)) return false;
+    scheduleExpiry(torrent);
+    return true;
+  }
+
+  public TrackedTorrent replace(@NotNull String key, @NotNull TrackedTorrent value) {
+    final CompactTrackedTorrent torrent = compact(value);
+    final CompactTrackedTorrent old = myTorrents.replace(toInfoHash(key), torrent);
+    if (old != null) {
+      scheduleExpiry(torrent);
+    }
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    myTorrents.clear();
+    myExpiryQueue.clear();
+    myExpiredPeers.set(0);
+    myExpiredTorrents.set(0);
+  }
+
+  @NotNull
+  @Override
+  public Collection<TrackedTorrent> values() {
+    return Collections.<TrackedTorrent>unmodifiableCollection(myTorrents.values());
+  }
+
+  @NotNull
+  @Override
+  public Set<Entry<String, TrackedTorrent>> entrySet() {
+    return new AbstractSet<Entry<String, TrackedTorrent>>() {
+      @NotNull
+      @Override
+      public Iterator<Entry<String, TrackedTorrent>> iterator() {
+        final Iterator<Entry<InfoHash, CompactTrackedTorrent>> iterator = myTorrents.entrySet().iterator();
+        return new Iterator<Entry<String, TrackedTorrent>>() {
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          public Entry<String, TrackedTorrent> next() {
+            final Entry<InfoHash, CompactTrackedTorrent> entry = iterator.next();
+            return new SimpleImmutableEntry<String, TrackedTorrent>(entry.getKey().toString(), entry.getValue());
+          }
+
+          public void remove() {
+            iterator.remove();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return myTorrents.size();
+      }
+    };
+  }
+
+  /**
+   * Removes the peers which did not announce within the timeout and the torrents left without peers. Only the
+   * announces older than the timeout are polled from the expiry queue, so the cost depends on the number of
+   * expiring announces rather than on the number of tracked peers.
+   * @return number of the removed peers
+   */
+  public int expireUnfreshPeers(int expireTimeoutSec) {
+    final long expireTime = System.currentTimeMillis() - expireTimeoutSec * 1000L;
+    final int dueTime = PackedPeers.toSeconds(expireTime);
+    int expiredPeers = 0;
+    PeerExpiryQueue.Entry entry;
+    while ((entry = myExpiryQueue.pollDue(dueTime)) != null) {
+      final CompactTrackedTorrent torrent = entry.getTorrent();
+      final byte[] peerId = entry.getPeerId();
+      if (peerId != null && torrent.expirePeer(peerId, expireTime)) {
+        expiredPeers++;
+      }
+      if (torrent.getPeersCount() == 0 && myTorrents.remove(new InfoHash(torrent.getInfoHash()), torrent)) {
+        myExpiredTorrents.incrementAndGet();
+      }
+    }
+    myExpiredPeers.addAndGet(expiredPeers);
+    return expiredPeers;
+  }
+
+  /**
+   * @return number of the distinct peers of all torrents
+   */
+  public int getUniquePeersCount() {
+    final PackedPeers peerIds = new PackedPeers();
+    for (CompactTrackedTorrent torrent : myTorrents.values()) {
+      torrent.addPeerIdsTo(peerIds);
+    }
+    return peerIds.size();
+  }
+
+  /**
+   * @return number of the peers removed since the start of the tracker as they did not announce within the timeout
+   */
+  public long getExpiredPeersCount() {
+    return myExpiredPeers.get();
+  }
+
+  /**
+   * @return number of the torrents removed since the start of the tracker as they were left without peers
+   */
+  public long getExpiredTorrentsCount() {
+    return myExpiredTorrents.get();
+  }
+
+  /**
+   * @return number of the announces waiting in the expiry queue
+   */
+  public int getPendingExpiryChecksCount() {
+    return myExpiryQueue.size();
+  }
+
+  private void scheduleExpiry(@NotNull CompactTrackedTorrent torrent) {
+    // a torrent stored without peers is removed when this entry is due, unless its peers announce before
+    myExpiryQueue.add(torrent, null, PackedPeers.toSeconds(System.currentTimeMillis()));
+  }
+
+  @NotNull
+  private CompactTrackedTorrent compact(@NotNull TrackedTorrent torrent) {
+    if (torrent instanceof CompactTrackedTorrent && ((CompactTrackedTorrent) torrent).getExpiryQueue() == myExpiryQueue) {
+      return (CompactTrackedTorrent) torrent;
+    }
+    final CompactTrackedTorrent compact = new CompactTrackedTorrent(torrent.getInfoHash(), myExpiryQueue);
+    compact.setAnnounceInterval(torrent.getAnnounceInterval());
+    for (TrackedPeer peer : torrent.getPeers().values()) {
+      compact.addPeer(peer);
+    }
+    return compact;
+  }
+
+  @NotNull
+  private static InfoHash toInfoHash(@NotNull String key) {
+    final InfoHash hash = InfoHash.of(key);
+    if (hash == null) {
+      throw new IllegalArgumentException("Not a hex info hash: " + key);
+    }
+    return hash;
+  }
+
+  /**
+   * @return bytes of the hex string or null if it is not a hex string
+   */
+  @Nullable
+  static byte[] parseHex(@Nullable String hex) {
+    if (hex == null || hex.length() % 2 != 0) return null;
+    final byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      final int high = Character.digit(hex.charAt(2 * i), 16);
+      final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) return null;
+      bytes[i] = (byte) (high << 4 | low);
+    }
+    return bytes;
+  }
+
+  private static final class InfoHash {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    @NotNull
+    private final byte[] myBytes;
+    private final int myHashCode;
+
+    private InfoHash(@NotNull byte[] bytes) {
+      myBytes = bytes;
+      myHashCode = Arrays.hashCode(bytes);
+    }
+
+    @Nullable
+    private static InfoHash of(@Nullable Object key) {
+      if (!(key instanceof String)) return null;
+      final byte[] bytes = parseHex((String) key);
+      return bytes == null || bytes.length != INFO_HASH_SIZE ? null : new InfoHash(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o || o instanceof InfoHash && Arrays.equals(myBytes, ((InfoHash) o).myBytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+
+    /**
+     * @return upper-case hex info hash like the ones of ttorrent
+     */
+    @Override
+    public String toString() {
+      final char[] chars = new char[myBytes.length * 2];
+      for (int i = 0; i < myBytes.length; i++) {
+        chars[2 * i] = HEX_DIGITS[(myBytes[i] >> 4) & 0xF];
+        chars[2 * i + 1] = HEX_DIGITS[myBytes[i] & 0xF];
+      }
+      return new String(chars);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package jetbrains.buildServer.torrent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.turn.ttorrent.common.Peer;
+import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceRequestMessage.RequestEvent;
+import com.turn.ttorrent.tracker.TrackedPeer;
+import com.turn.ttorrent.tracker.TrackedTorrent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracked torrent keeping its peers in {@link PackedPeers} instead of a map of peer objects. The peers returned
+ * by the methods of the torrent are snapshots created on demand. Only the address, the port and the completion
+ * of a peer are kept, the transfer counters of the snapshots are zero and the bytes left of a leecher are -1.
+ */
+public class CompactTrackedTorrent extends TrackedTorrent {
+  private final static Logger LOG = Logger.getInstance(CompactTrackedTorrent.class.getName());
+
+  private static final int ANSWER_PEERS = 30;
+  private static final Random ourRandom = new Random();
+  private static final String UNSPECIFIED_ADDRESS = "0.0.0.0";
+
+  private final PackedPeers myPeers = new PackedPeers();
+  private final AtomicInteger myDownloaded = new AtomicInteger();
+  @Nullable
+  private final PeerExpiryQueue myExpiryQueue;
+
+  public CompactTrackedTorrent(@NotNull byte[] infoHash) {
+    this(infoHash, null);
+  }
+
+  /**
+   * @param expiryQueue queue the announces of the peers are added to, the peers of a torrent without the queue
+   *                    expire only by {@link #collectUnfreshPeers(int)}
+   */
+  CompactTrackedTorrent(@NotNull byte[] infoHash, @Nullable PeerExpiryQueue expiryQueue) {
+    super(infoHash);
+    myExpiryQueue = expiryQueue;
+  }
+
+  @Nullable
+  PeerExpiryQueue getExpiryQueue() {
+    return myExpiryQueue;
+  }
+
+  @Override
+  public Map<String, TrackedPeer> getPeers() {
+    final Map<String, TrackedPeer> peers = new LinkedHashMap<String, TrackedPeer>();
+    for (PackedPeers.Record record : myPeers.getAll()) {
+      final TrackedPeer peer = toPeer(record);
+      if (peer != null) {
+        peers.put(peer.getHexPeerId(), peer);
+      }
+    }
+    return Collections.unmodifiableMap(peers);
+  }
+
+  public int getPeersCount() {
+    return myPeers.size();
+  }
+
+  void addPeerIdsTo(@NotNull PackedPeers ids) {
+    myPeers.addPeerIdsTo(ids);
+  }
+
+  /**
+   * @return number of the 'completed' announces received by this tracker
+   */
+  public int getDownloaded() {
+    return myDownloaded.get();
+  }
+
+  @Override
+  public void addPeer(TrackedPeer peer) {
+    store(CompactTorrentsMap.parseHex(peer.getHexPeerId()), toAddress(peer.getIp()), peer.getIp(), peer.getPort(), peer.isCompleted());
+  }
+
+  @Override
+  public TrackedPeer getPeer(String peerId) {
+    final byte[] id = CompactTorrentsMap.parseHex(peerId);
+    if (id == null || id.length != PackedPeers.PEER_ID_SIZE) return null;
+    final PackedPeers.Record record = myPeers.get(id);
+    return record == null ? null : toPeer(record);
+  }
+
+  @Override
+  public TrackedPeer removePeer(String peerId) {
+    final byte[] id = CompactTorrentsMap.parseHex(peerId);
+    if (id == null || id.length != PackedPeers.PEER_ID_SIZE) return null;
+    final PackedPeers.Record record = myPeers.remove(id);
+    return record == null ? null : toPeer(record);
+  }
+
+  @Override
+  public int seeders() {
+    return myPeers.completed();
+  }
+
+  @Override
+  public int leechers() {
+    synchronized (myPeers) {
+      return myPeers.size() - myPeers.completed();
+    }
+  }
+
+  @Override
+  public void collectUnfreshPeers(int expireTimeoutSec) {
+    myPeers.removeAnnouncedBefore(System.currentTimeMillis() - expireTimeoutSec * 1000L);
+  }
+
+  /**
+   * Removes the peer if it did not announce since the time
+   * @return true if the peer was removed
+   */
+  boolean expirePeer(@NotNull byte[] peerId, long timeMs) {
+    return myPeers.removeIfAnnouncedBefore(peerId, timeMs);
+  }
+
+  /**
+   * Stores the announce in the packed peers. A peer announcing without the 'started' event is added as well,
+   * e.g. after the restart of the tracker. The returned peer is created from the parsed address, so a host name
+   * in the announce is never resolved, such a peer is not stored and is returned with the unspecified address.
+   */
+  @Override
+  public TrackedPeer update(RequestEvent event, ByteBuffer peerId, String hexPeerId, String ip, int port,
+                           long uploaded, long downloaded, long left) throws UnsupportedEncodingException {
+    final byte[] id = CompactTorrentsMap.parseHex(hexPeerId);
+    final byte[] address = toAddress(ip);
+    final TrackedPeer.PeerState state;
+    if (RequestEvent.STOPPED.equals(event)) {
+      state = TrackedPeer.PeerState.STOPPED;
+      if (id != null && id.length == PackedPeers.PEER_ID_SIZE) {
+        myPeers.remove(id);
+      }
+    } else {
+      if (RequestEvent.COMPLETED.equals(event)) {
+        myDownloaded.incrementAndGet();
+      }
+      state = RequestEvent.COMPLETED.equals(event) || left == 0 ? TrackedPeer.PeerState.COMPLETED : TrackedPeer.PeerState.STARTED;
+      store(id, address, ip, port, state == TrackedPeer.PeerState.COMPLETED);
+    }
+    final TrackedPeer peer = new TrackedPeer(this, address == null ? UNSPECIFIED_ADDRESS : toLiteral(address), port, peerId);
+    peer.update(state, uploaded, downloaded, left);
+    return peer;
+  }
+
+  /**
+   * @return at most {@value #ANSWER_PEERS} peers starting from a random one, the requesting peer is skipped
+   */
+  @Override
+  public List<Peer> getSomePeers(TrackedPeer peer) {
+    final byte[] peerId = peer == null ? null : CompactTorrentsMap.parseHex(peer.getHexPeerId());
+    final byte[] address = peer == null ? null : toAddress(peer.getIp());
+    final List<Peer> peers = new ArrayList<Peer>();
+    for (PackedPeers.Record record : myPeers.sample(ANSWER_PEERS + 1, ourRandom.nextInt(Integer.MAX_VALUE))) {
+      if (peers.size() >= ANSWER_PEERS) break;
+      if (peer != null && (Arrays.equals(peerId, record.getPeerId()) ||
+              peer.getPort() == record.getPort() && Arrays.equals(address, record.getAddress()))) continue;
+      final TrackedPeer candidate = toPeer(record);
+      if (candidate != null) {
+        peers.add(candidate);
+      }
+    }
+    return peers;
+  }
+
+  private void store(@Nullable byte[] peerId, @Nullable byte[] address, @Nullable String ip, int port, boolean completed) {
+    if (peerId == null || peerId.length != PackedPeers.PEER_ID_SIZE) {
+      LOG.debug("Ignoring peer with malformed id of torrent " + getHexInfoHash());
+      return;
+    }
+    if (address == null) {
+      LOG.debug("Ignoring peer with non-literal address " + ip + " of torrent " + getHexInfoHash());
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    myPeers.put(peerId, address, port, completed, now);
+    if (myExpiryQueue != null) {
+      myExpiryQueue.add(this, peerId, PackedPeers.toSeconds(now));
+    }
+  }
+
+  @Nullable
+  private TrackedPeer toPeer(@NotNull PackedPeers.Record record) {
+    try {
+      final TrackedPeer peer = new TrackedPeer(this, toLiteral(record.getAddress()), record.getPort(), ByteBuffer.wrap(record.getPeerId()));
+      if (record.isCompleted()) {
+        peer.update(TrackedPeer.PeerState.COMPLETED, 0, 0, 0);
+      } else {
+        peer.update(TrackedPeer.PeerState.STARTED, 0, 0, -1);
+      }
+      return peer;
+    } catch (UnknownHostException e) {
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses literal addresses only, a host name is not resolved not to block the tracker requests on DNS
+   * @return raw IPv4 or IPv6 address or null if the string is not a literal address
+   */
+  @Nullable
+  static byte[] toAddress(@Nullable String ip) {
+    if (ip == null || ip.length() == 0) return null;
+    if (ip.indexOf(':') < 0) return parseIPv4(ip);
+    for (int i = 0; i < ip.length(); i++) {
+      final char c = ip.charAt(i);
+      if (c != ':' && c != '.' && Character.digit(c, 16) < 0) return null;
+    }
+    try {
+      // only hex digits, colons and dots are left: InetAddress parses such a string as a literal, a malformed
+      // one fails without a lookup
+      return InetAddress.getByName(ip).getAddress();
+    } catch (UnknownHostException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return literal form of the raw address, which is used by the peers instead of a host name
+   */
+  @NotNull
+  private static String toLiteral(@NotNull byte[] address) throws UnknownHostException {
+    return InetAddress.getByAddress(address).getHostAddress();
+  }
+
+  @Nullable
+  private static byte[] parseIPv4(@NotNull String ip) {
+    final String[] parts = ip.split("\\.", -1);
+    if (parts.length != 4) return null;
+    final byte[] address = new byte[4];
+    for (int i = 0; i < parts.length; i++) {
+      final String part = parts[i];
+      if (part.length() == 0 || part.length() > 3) return null;
+      int value = 0;
+      for (int j = 0; j < part.length(); j++) {
+        final int digit = Character.digit(part.charAt(j), 10);
+        if (digit < 0) return null;
+        value = value * 10 + digit;
+      }
+      if (value > 255) return null;
+      address[i] = (byte) value;
+    }
+    return address;
+  }
+}
@@ -0,0 +1,85 @@
+package jetbrains.buildServer.torrent;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ids of the finished builds whose artifacts were not announced: the announcement queue was full when the build
+ * finished or the server was stopped before the build was announced. Such a build is announced when its torrents
+ * are requested for the first time or when it is retried once the queue has room, the retries start on the server
+ * startup. The ids are kept in a file of the torrents storage between server restarts.
+ */
+public class DeferredAnnouncements {
+  public static final String STATE_FILE_NAME = "announcements.deferred";
+
+  @NotNull
+  private final File myStateFile;
+  private final Set<Long> myBuildIds = new LinkedHashSet<Long>();
+  private boolean myDirty;
+
+  public DeferredAnnouncements(@NotNull File stateFile) {
+    myStateFile = stateFile;
+    load();
+  }
+
+  public synchronized void add(long buildId) {
+    myDirty |= myBuildIds.add(buildId);
+  }
+
+  /**
+   * @return true if the build was deferred
+   */
+  public synchronized boolean remove(long buildId) {
+    final boolean removed = myBuildIds.remove(buildId);
+    myDirty |= removed;
+    return removed;
+  }
+
+  /**
+   * @return ids in the order the builds were deferred
+   */
+  @NotNull
+  public synchronized List<Long> getBuildIds() {
+    return new ArrayList<Long>(myBuildIds);
+  }
+
+  public synchronized int size() {
+    return myBuildIds.size();
+  }
+
+  public synchronized void save() {
+    if (!myDirty) return;
+    final StringBuilder sb = new StringBuilder();
+    for (Long buildId : myBuildIds) {
+      sb.append(buildId).append('\n');
+    }
+    FileUtil.createParentDirs(myStateFile);
+    if (FileUtil.writeFileAndReportErrors(myStateFile, sb.toString())) {
+      myDirty = false;
+    }
+  }
+
+  private synchronized void load() {
+    if (!myStateFile.isFile()) return;
+    try {
+      for (String line : FileUtil.readText(myStateFile).split("\n")) {
+        if (line.trim().length() == 0) continue;
+        try {
+          myBuildIds.add(Long.parseLong(line.trim()));
+        } catch (NumberFormatException e) {
+          Loggers.SERVER.debug("Ignoring malformed build id of deferred announcement: " + line);
+        }
+      }
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to read deferred announcements " + myStateFile.getAbsolutePath() + ": " + e.toString());
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package jetbrains.buildServer.torrent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Peers of a tracked torrent packed into primitive arrays. A peer is a record of its 20-byte id, its address
+ * (16 bytes, an IPv4 address takes the first 4 of them), its port with the flags and the time of its last announce
+ * in seconds. The arrays form an open addressing hash table keyed by the peer id, so a peer costs a few dozen bytes
+ * instead of an object graph per peer.
+ */
+final class PackedPeers {
+  static final int PEER_ID_SIZE = 20;
+
+  private static final int ADDRESS_SIZE = 16;
+  private static final int IPV4_ADDRESS_SIZE = 4;
+  private static final int PORT_MASK = 0xFFFF;
+  private static final int USED = 1 << 16;
+  private static final int COMPLETED = 1 << 17;
+  private static final int IPV6 = 1 << 18;
+  private static final int MIN_CAPACITY = 4;
+  private static final long EPOCH_MS = System.currentTimeMillis();
+
+  private byte[] myPeerIds;
+  private byte[] myAddresses;
+  private int[] myPortsAndFlags;
+  private int[] myAnnounceTimes;
+  private int mySize;
+  private int myCompleted;
+
+  PackedPeers() {
+    allocate(MIN_CAPACITY);
+  }
+
+  synchronized int size() {
+    return mySize;
+  }
+
+  synchronized int completed() {
+    return myCompleted;
+  }
+
+  /**
+   * Adds the peer or updates the record of the peer with the same id
+   * @param address raw IPv4 or IPv6 address
+   */
+  synchronized void put(@NotNull byte[] peerId, @NotNull byte[] address, int port, boolean completed, long timeMs) {
+    checkPeerId(peerId);
+    if (address.length != IPV4_ADDRESS_SIZE && address.length != ADDRESS_SIZE) {
+      throw new IllegalArgumentException("Unexpected address length: " + address.length);
+    }
+    int slot = find(peerId);
+    if (isUsed(slot)) {
+      if (isCompleted(slot)) myCompleted--;
+    } else {
+      if ((mySize + 1) * 2 > capacity()) {
+        rehash(capacity() * 2);
+        slot = find(peerId);
+      }
+      System.arraycopy(peerId, 0, myPeerIds, slot * PEER_ID_SIZE, PEER_ID_SIZE);
+      mySize++;
+    }
+    Arrays.fill(myAddresses, slot * ADDRESS_SIZE, (slot + 1) * ADDRESS_SIZE, (byte) 0);
+    System.arraycopy(address, 0, myAddresses, slot * ADDRESS_SIZE, address.length);
+    myPortsAndFlags[slot] = (port & PORT_MASK) | USED | (completed ? COMPLETED : 0) | (address.length == ADDRESS_SIZE ? IPV6 : 0);
+    myAnnounceTimes[slot] = toSeconds(timeMs);
+    if (completed) myCompleted++;
+  }
+
+  @Nullable
+  synchronized Record get(@NotNull byte[] peerId) {
+    checkPeerId(peerId);
+    final int slot = find(peerId);
+    return isUsed(slot) ? getRecord(slot) : null;
+  }
+
+  @Nullable
+  synchronized Record remove(@NotNull byte[] peerId) {
+    checkPeerId(peerId);
+    final int slot = find(peerId);
+    if (!isUsed(slot)) return null;
+    final Record record = getRecord(slot);
+    removeAt(slot);
+    shrinkIfSparse();
+    return record;
+  }
+
+  /**
+   * Removes the peers which did not announce since the time
+   * @return number of the removed peers
+   */
+  synchronized int removeAnnouncedBefore(long timeMs) {
+    final int time = toSeconds(timeMs);
+    int removed = 0;
+    int slot = 0;
+    while (slot < capacity()) {
+      if (isUsed(slot) && myAnnounceTimes[slot] < time) {
+        // records not checked yet are shifted back into this slot or later ones only
+        removeAt(slot);
+        removed++;
+      } else {
+        slot++;
+      }
+    }
+    shrinkIfSparse();
+    return removed;
+  }
+
+  /**
+   * Removes the peer if it did not announce since the time
+   * @return true if the peer was removed
+   */
+  synchronized boolean removeIfAnnouncedBefore(@NotNull byte[] peerId, long timeMs) {
+    checkPeerId(peerId);
+    final int slot = find(peerId);
+    if (!isUsed(slot) || myAnnounceTimes[slot] >= toSeconds(timeMs)) return false;
+    removeAt(slot);
+    shrinkIfSparse();
+    return true;
+  }
+
+  /**
+   * Adds the ids of the peers to the other table, e.g. to count the distinct peers of several torrents
+   * without creating an object per peer
+   */
+  synchronized void addPeerIdsTo(@NotNull PackedPeers ids) {
+    final byte[] peerId = new byte[PEER_ID_SIZE];
+    final byte[] noAddress = new byte[IPV4_ADDRESS_SIZE];
+    for (int slot = 0; slot < capacity(); slot++) {
+      if (!isUsed(slot)) continue;
+      System.arraycopy(myPeerIds, slot * PEER_ID_SIZE, peerId, 0, PEER_ID_SIZE);
+      ids.put(peerId, noAddress, 0, false, EPOCH_MS);
+    }
+  }
+
+  @NotNull
+  synchronized List<Record> getAll() {
+    return sample(mySize, 0);
+  }
+
+  /**
+   * @param start position in the table to start from, chosen randomly to serve different peers to different requests
+   * @return at most {@code max} peers
+   */
+  @NotNull
+  synchronized List<Record> sample(int max, int start) {
+    final int count = Math.min(max, mySize);
+    final List<Record> records = new ArrayList<Record>(count);
+    final int mask = capacity() - 1;
+    for (int i = 0; i < capacity() && records.size() < count; i++) {
+      final int slot = (start + i) & mask;
+      if (isUsed(slot)) {
+        records.add(getRecord(slot));
+      }
+    }
+    return records;
+  }
+
+  private void allocate(int capacity) {
+    myPeerIds = new byte[capacity * PEER_ID_SIZE];
+    myAddresses = new byte[capacity * ADDRESS_SIZE];
+    myPortsAndFlags = new int[capacity];
+    myAnnounceTimes = new int[capacity];
+  }
+
+  private int capacity() {
+    return myPortsAndFlags.length;
+  }
+
+  private boolean isUsed(int slot) {
+    return (myPortsAndFlags[slot] & USED) != 0;
+  }
+
+  private boolean isCompleted(int slot) {
+    return (myPortsAndFlags[slot] & COMPLETED) != 0;
+  }
+
+  /**
+   * @return slot of the peer or the empty slot to put it to
+   */
+  private int find(@NotNull byte[] peerId) {
+    final int mask = capacity() - 1;
+    int slot = hash(peerId, 0) & mask;
+    while (isUsed(slot) && !idEquals(slot, peerId)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean idEquals(int slot, @NotNull byte[] peerId) {
+    final int offset = slot * PEER_ID_SIZE;
+    for (int i = 0; i < PEER_ID_SIZE; i++) {
+      if (myPeerIds[offset + i] != peerId[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Empties the slot and shifts back the following records of the probe sequence, so lookups need no tombstones
+   */
+  private void removeAt(int slot) {
+    if (isCompleted(slot)) myCompleted--;
+    mySize--;
+    final int mask = capacity() - 1;
+    int empty = slot;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (!isUsed(next)) break;
+      final int home = hash(myPeerIds, next * PEER_ID_SIZE) & mask;
+      // the record stays if its home slot is cyclically in (empty, next]
+      final boolean stays = empty <= next ? empty < home && home <= next : empty < home || home <= next;
+      if (stays) continue;
+      move(next, empty);
+      empty = next;
+    }
+    myPortsAndFlags[empty] = 0;
+  }
+
+  private void move(int from, int to) {
+    System.arraycopy(myPeerIds, from * PEER_ID_SIZE, myPeerIds, to * PEER_ID_SIZE, PEER_ID_SIZE);
+    System.arraycopy(myAddresses, from * ADDRESS_SIZE, myAddresses, to * ADDRESS_SIZE, ADDRESS_SIZE);
+    myPortsAndFlags[to] = myPortsAndFlags[from];
+    myAnnounceTimes[to] = myAnnounceTimes[from];
+  }
+
+  private void shrinkIfSparse() {
+    if (capacity() > MIN_CAPACITY && mySize * 8 < capacity()) {
+      rehash(capacity() / 2);
+    }
+  }
+
+  private void rehash(int capacity) {
+    final byte[] peerIds = myPeerIds;
+    final byte[] addresses = myAddresses;
+    final int[] portsAndFlags = myPortsAndFlags;
+    final int[] announceTimes = myAnnounceTimes;
+    allocate(capacity);
+    final byte[] peerId = new byte[PEER_ID_SIZE];
+    for (int from = 0; from < portsAndFlags.length; from++) {
+      if ((portsAndFlags[from] & USED) == 0) continue;
+      System.arraycopy(peerIds, from * PEER_ID_SIZE, peerId, 0, PEER_ID_SIZE);
+      final int to = find(peerId);
+      System.arraycopy(peerId, 0, myPeerIds, to * PEER_ID_SIZE, PEER_ID_SIZE);
+      System.arraycopy(addresses, from * ADDRESS_SIZE, myAddresses, to * ADDRESS_SIZE, ADDRESS_SIZE);
+      myPortsAndFlags[to] = portsAndFlags[from];
+      myAnnounceTimes[to] = announceTimes[from];
+    }
+  }
+
+  @NotNull
+  private Record getRecord(int slot) {
+    final int flags = myPortsAndFlags[slot];
+    final int addressOffset = slot * ADDRESS_SIZE;
+    final int addressSize = (flags & IPV6) != 0 ? ADDRESS_SIZE : IPV4_ADDRESS_SIZE;
+    return new Record(
+            Arrays.copyOfRange(myPeerIds, slot * PEER_ID_SIZE, (slot + 1) * PEER_ID_SIZE),
+            Arrays.copyOfRange(myAddresses, addressOffset, addressOffset + addressSize),
+            flags & PORT_MASK,
+            (flags & COMPLETED) != 0,
+            EPOCH_MS + myAnnounceTimes[slot] * 1000L);
+  }
+
+  private static int hash(@NotNull byte[] bytes, int offset) {
+    int hash = 1;
+    for (int i = offset; i < offset + PEER_ID_SIZE; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return time of the announces in seconds since the start of the server
+   */
+  static int toSeconds(long timeMs) {
+    return (int) ((timeMs - EPOCH_MS) / 1000);
+  }
+
+  private static void checkPeerId(@NotNull byte[] peerId) {
+    if (peerId.length != PEER_ID_SIZE) {
+      throw new IllegalArgumentException("Unexpected peer id length: " + peerId.length);
+    }
+  }
+
+  /**
+   * Copy of the record of a peer
+   */
+  static final class Record {
+    @NotNull
+    private final byte[] myPeerId;
+    @NotNull
+    private final byte[] myAddress;
+    private final int myPort;
+    private final boolean myCompleted;
+    private final long myLastAnnounceMs;
+
+    private Record(@NotNull byte[] peerId, @NotNull byte[] address, int port, boolean completed, long lastAnnounceMs) {
+      myPeerId = peerId;
+      myAddress = address;
+      myPort = port;
+      myCompleted = completed;
+      myLastAnnounceMs = lastAnnounceMs;
+    }
+
+    @NotNull
+    byte[] getPeerId() {
+      return myPeerId;
+    }
+
+    @NotNull
+    byte[] getAddress() {
+      return myAddress;
+    }
+
+    int getPort() {
+      return myPort;
+    }
+
+    boolean isCompleted() {
+      return myCompleted;
+    }
+
+    long getLastAnnounceMs() {
+      return myLastAnnounceMs;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package jetbrains.buildServer.torrent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Announces of the tracked peers in the order of their time, packed into a ring of primitive arrays. All peers
+ * expire after the same timeout, so the peers due to expire are at the head of the queue and the cleanup polls only
+ * them. A peer announcing again is not looked up in the queue: its older entries are polled when they are due and
+ * dropped since the peer turns out to be fresh.
+ */
+final class PeerExpiryQueue {
+  private static final int MIN_CAPACITY = 16;
+
+  private CompactTrackedTorrent[] myTorrents;
+  private byte[] myPeerIds;
+  private boolean[] myHasPeerIds;
+  private int[] myTimes;
+  private int myHead;
+  private int mySize;
+
+  PeerExpiryQueue() {
+    allocate(MIN_CAPACITY);
+  }
+
+  synchronized int size() {
+    return mySize;
+  }
+
+  /**
+   * @param peerId id of the announced peer or null to check the torrent when it is due, e.g. a torrent added
+   *               without peers
+   * @param time   time of the announce in seconds of {@link PackedPeers#toSeconds(long)}
+   */
+  synchronized void add(@NotNull CompactTrackedTorrent torrent, @Nullable byte[] peerId, int time) {
+    if (mySize == capacity()) {
+      resize(capacity() * 2);
+    }
+    final int slot = (myHead + mySize) & (capacity() - 1);
+    myTorrents[slot] = torrent;
+    myHasPeerIds[slot] = peerId != null;
+    if (peerId != null) {
+      System.arraycopy(peerId, 0, myPeerIds, slot * PackedPeers.PEER_ID_SIZE, PackedPeers.PEER_ID_SIZE);
+    }
+    myTimes[slot] = time;
+    mySize++;
+  }
+
+  /**
+   * @return the oldest entry if it was added before the time, null otherwise
+   */
+  @Nullable
+  synchronized Entry pollDue(int time) {
+    if (mySize == 0 || myTimes[myHead] >= time) return null;
+    final int slot = myHead;
+    final byte[] peerId;
+    if (myHasPeerIds[slot]) {
+      peerId = new byte[PackedPeers.PEER_ID_SIZE];
+      System.arraycopy(myPeerIds, slot * PackedPeers.PEER_ID_SIZE, peerId, 0, PackedPeers.PEER_ID_SIZE);
+    } else {
+      peerId = null;
+    }
+    final Entry entry = new Entry(myTorrents[slot], peerId);
+    myTorrents[slot] = null;
+    myHead = (myHead + 1) & (capacity() - 1);
+    mySize--;
+    if (capacity() > MIN_CAPACITY && mySize * 4 < capacity()) {
+      resize(capacity() / 2);
+    }
+    return entry;
+  }
+
+  synchronized void clear() {
+    allocate(MIN_CAPACITY);
+    myHead = 0;
+    mySize = 0;
+  }
+
+  private int capacity() {
+    return myTimes.length;
+  }
+
+  private void allocate(int capacity) {
+    myTorrents = new CompactTrackedTorrent[capacity];
+    myPeerIds = new byte[capacity * PackedPeers.PEER_ID_SIZE];
+    myHasPeerIds = new boolean[capacity];
+    myTimes = new int[capacity];
+  }
+
+  private void resize(int capacity) {
+    final CompactTrackedTorrent[] torrents = myTorrents;
+    final byte[] peerIds = myPeerIds;
+    final boolean[] hasPeerIds = myHasPeerIds;
+    final int[] times = myTimes;
+    final int mask = times.length - 1;
+    allocate(capacity);
+    for (int i = 0; i < mySize; i++) {
+      final int from = (myHead + i) & mask;
+      myTorrents[i] = torrents[from];
+      System.arraycopy(peerIds, from * PackedPeers.PEER_ID_SIZE, myPeerIds, i * PackedPeers.PEER_ID_SIZE, PackedPeers.PEER_ID_SIZE);
+      myHasPeerIds[i] = hasPeerIds[from];
+      myTimes[i] = times[from];
+    }
+    myHead = 0;
+  }
+
+  static final class Entry {
+    @NotNull
+    private final CompactTrackedTorrent myTorrent;
+    @Nullable
+    private final byte[] myPeerId;
+
+    private Entry(@NotNull CompactTrackedTorrent torrent, @Nullable byte[] peerId) {
+      myTorrent = torrent;
+      myPeerId = peerId;
+    }
+
+    @NotNull
+    CompactTrackedTorrent getTorrent() {
+      return myTorrent;
+    }
+
+    @Nullable
+    byte[] getPeerId() {
+      return myPeerId;
+    }
+  }
+}
@@ -5,9 +5,16 @@
 package jetbrains.buildServer.torrent;
 
 import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.common.Torrent;
 import jetbrains.buildServer.NetworkUtil;
 import jetbrains.buildServer.torrent.seeder.FileLink;
+import jetbrains.buildServer.torrent.seeder.RetentionPolicies;
 import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.seeder.WarmStartProgress;
+import jetbrains.buildServer.torrent.torrent.MultiFileTorrents;
+import jetbrains.buildServer.torrent.torrent.PieceVerifier;
+import jetbrains.buildServer.torrent.torrent.TeamcityTorrentClient;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
 import jetbrains.buildServer.torrent.torrent.TorrentUtil;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.*;
@@ -18,6 +25,7 @@ import jetbrains.buildServer.serverSide.executors.ExecutorServices;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -27,14 +35,28 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Maxim Podkolzine (maxim.podkolzine@jetbrains.com)
  * @since 8.0
  */
 public class ServerTorrentsDirectorySeeder {
+  /**
+   * Packaging of the artifacts into multi-file torrents: off, build or directory, see {@link MultiFileTorrents.Mode}
+   */
+  public static final String MULTI_FILE_MODE = "torrent.multifile.mode";
+  /**
+   * Interval in seconds between the retries of the deferred announcements
+   */
+  public static final String DEFERRED_RETRY_INTERVAL = "torrent.announce.deferred.retry.interval";
+  public static final int DEFAULT_DEFERRED_RETRY_INTERVAL = 60;
+
+  private static final int VERIFIED_PIECES = 4;
+  private static final String MULTI_FILE_LINKS_DIR = "multi";
+
   private final TorrentsDirectorySeeder myTorrentsDirectorySeeder;
   private final TorrentConfigurator myConfigurator;
   private volatile int myFileSizeThreshold;
@@ -42,33 +64,72 @@ public class ServerTorrentsDirectorySeeder {
   private int myMaxTorrentsToSeed;
   private boolean myIsServerStarted;
   private final ExecutorServices myExecutor;
+  private final TorrentMetadataCache myMetadataCache;
+  private final UploadedArtifactsHasher myUploadHasher;
+  private ScheduledFuture<?> myUploadScan;
+  private final ArtifactsAnnouncementQueue myAnnouncementQueue;
+  private final DeferredAnnouncements myDeferredAnnouncements;
+  @Nullable
+  private final BuildsManager myBuildsManager;
+  private ScheduledFuture<?> myDeferredRetry;
 
   public ServerTorrentsDirectorySeeder(@NotNull final ServerPaths serverPaths,
                                        @NotNull final TorrentConfigurator configurator,
                                        @NotNull final ExecutorServices executorServices,
-                                       @NotNull final EventDispatcher<BuildServerListener> eventDispatcher){
-    this(serverPaths, configurator, executorServices, eventDispatcher, TorrentsDirectorySeeder.DIRECTORY_SCAN_INTERVAL_SECONDS);
+                                       @NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
+                                       @NotNull final TorrentTrackerManager trackerManager,
+                                       @NotNull final BuildsManager buildsManager){
+    this(serverPaths, configurator, executorServices, eventDispatcher, trackerManager, buildsManager, TorrentsDirectorySeeder.DIRECTORY_SCAN_INTERVAL_SECONDS);
   }
 
-
+  /**
+   * @param trackerManager tracker of the server, torrents are never kept dormant without it
+   * @param buildsManager finds the builds of the deferred announcements, they are announced only on request without it
+   */
   ServerTorrentsDirectorySeeder(@NotNull final ServerPaths serverPaths,
-                                       @NotNull final TorrentConfigurator configurator,
-                                       @NotNull final ExecutorServices executorServices,
-                                       @NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
-                                       final int scanInterval) {
+                                @NotNull final TorrentConfigurator configurator,
+                                @NotNull final ExecutorServices executorServices,
+                                @NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
+                                @Nullable final TorrentTrackerManager trackerManager,
+                                @Nullable final BuildsManager buildsManager,
+                                final int scanInterval) {
     myIsServerStarted = false;
     myExecutor = executorServices;
+    myBuildsManager = buildsManager;
     File torrentsStorage = new File(serverPaths.getPluginDataDirectory(), "torrents");
     torrentsStorage.mkdirs();
+    myMetadataCache = new TorrentMetadataCache(new File(torrentsStorage, TorrentMetadataCache.INDEX_FILE_NAME));
     myTorrentsDirectorySeeder = new TorrentsDirectorySeeder(torrentsStorage,
             configurator.getMaxNumberOfSeededTorrents(),
             configurator.getFileSizeThresholdMb());
+    if (trackerManager != null) {
+      final TeamcityTorrentClient torrentSeeder = myTorrentsDirectorySeeder.getTorrentSeeder();
+      torrentSeeder.setDemandProbe(trackerManager);
+      torrentSeeder.setMaxActiveTorrents(configurator.getMaxNumberOfActiveTorrents());
+      trackerManager.setServerSeeder(torrentSeeder);
+    }
     setMaxNumberOfSeededTorrents(configurator.getMaxNumberOfSeededTorrents());
+    myTorrentsDirectorySeeder.setMaxSeededBytes(toBytes(configurator.getMaxSeededSizeMb()));
+    myTorrentsDirectorySeeder.setRetentionPolicy(RetentionPolicies.byName(configurator.getRetentionPolicy()));
+    TorrentHashingService.getInstance().setThreadsCount(configurator.getHashingThreads());
+    TorrentHashingService.getInstance().setMaxReadBytesPerSec(toBytes(configurator.getHashingMaxReadMb()));
+    TorrentHashingService.getInstance().setHybridTorrents(configurator.isHybridTorrentsEnabled());
     setFileSizeThreshold(configurator.getFileSizeThresholdMb());
     myConfigurator = configurator;
+    myUploadHasher = new UploadedArtifactsHasher(configurator);
+    myAnnouncementQueue = new ArtifactsAnnouncementQueue(
+            TeamCityProperties.getInteger(ArtifactsAnnouncementQueue.THREADS, ArtifactsAnnouncementQueue.DEFAULT_THREADS),
+            TeamCityProperties.getInteger(ArtifactsAnnouncementQueue.MAX_QUEUED_BUILDS, ArtifactsAnnouncementQueue.DEFAULT_MAX_QUEUED_BUILDS));
+    myDeferredAnnouncements = new DeferredAnnouncements(new File(torrentsStorage, DeferredAnnouncements.STATE_FILE_NAME));
     eventDispatcher.addListener(new BuildServerAdapter() {
       public void serverShutdown() {
+        stopDeferredRetry();
+        for (ArtifactsAnnouncementQueue.BuildAnnouncement announcement : myAnnouncementQueue.shutdown()) {
+          myDeferredAnnouncements.add(announcement.getBuildId());
+        }
+        myDeferredAnnouncements.save();
         stopSeeder();
+        myMetadataCache.save();
       }
 
 
@@ -77,12 +138,29 @@ public class ServerTorrentsDirectorySeeder {
         if (myConfigurator.isSeederEnabled()) {
           startSeederAsync(scanInterval);
         }
+        startDeferredRetry();
       }
 
       @Override
-      public void buildFinished(SRunningBuild build) {
+      public void buildStarted(SRunningBuild build) {
+        // the pieces hashed during the upload make the v1 torrent or confirm the reuse of a hybrid one
         if (myConfigurator.isTorrentEnabled()) {
-          announceBuildArtifacts(build);
+          startUploadHashing(build);
+        }
+      }
+
+      @Override
+      public void buildFinished(SRunningBuild build) {
+        stopUploadHashing(build);
+        if (!myConfigurator.isTorrentEnabled()) {
+          myUploadHasher.forget(build.getArtifactsDirectory());
+          return;
+        }
+        if (!submitAnnouncement(build)) {
+          Loggers.SERVER.debug("Torrent announcement queue is full, artifacts of " + build + " will be announced later");
+          myUploadHasher.forget(build.getArtifactsDirectory());
+          myDeferredAnnouncements.add(build.getBuildId());
+          myDeferredAnnouncements.save();
         }
       }
     });
@@ -95,6 +173,18 @@ public class ServerTorrentsDirectorySeeder {
         } else if (TorrentConfiguration.MAX_NUMBER_OF_SEEDED_TORRENTS.equals(propertyName)){
           setMaxNumberOfSeededTorrents((Integer) evt.getNewValue());
           myTorrentsDirectorySeeder.setMaxTorrentsToSeed(myMaxTorrentsToSeed);
+        } else if (TorrentConfiguration.MAX_SEEDED_SIZE_MB.equals(propertyName)){
+          myTorrentsDirectorySeeder.setMaxSeededBytes(toBytes((Integer) evt.getNewValue()));
+        } else if (TorrentConfiguration.RETENTION_POLICY.equals(propertyName)){
+          myTorrentsDirectorySeeder.setRetentionPolicy(RetentionPolicies.byName(String.valueOf(evt.getNewValue())));
+        } else if (TorrentConfiguration.HASHING_THREADS.equals(propertyName)){
+          TorrentHashingService.getInstance().setThreadsCount((Integer) evt.getNewValue());
+        } else if (TorrentConfiguration.HASHING_MAX_READ_MB.equals(propertyName)){
+          TorrentHashingService.getInstance().setMaxReadBytesPerSec(toBytes((Integer) evt.getNewValue()));
+        } else if (TorrentConfiguration.HYBRID_TORRENTS.equals(propertyName)){
+          TorrentHashingService.getInstance().setHybridTorrents((Boolean) evt.getNewValue());
+        } else if (TorrentConfiguration.MAX_NUMBER_OF_ACTIVE_TORRENTS.equals(propertyName)){
+          myTorrentsDirectorySeeder.getTorrentSeeder().setMaxActiveTorrents((Integer) evt.getNewValue());
         } else if (TorrentConfiguration.ANNOUNCE_INTERVAL.equals(propertyName)){
           myTorrentsDirectorySeeder.setAnnounceInterval((Integer)evt.getNewValue());
         } else if (TorrentConfiguration.ANNOUNCE_URL.equals(propertyName)){
@@ -122,7 +212,83 @@ public class ServerTorrentsDirectorySeeder {
     });
   }
 
+  /**
+   * Starts hashing the artifacts of the build during the upload. The artifacts are scanned only while
+   * there are running builds to track.
+   */
+  private void startUploadHashing(@NotNull SRunningBuild build) {
+    final int interval = TeamCityProperties.getInteger(UploadedArtifactsHasher.SCAN_INTERVAL, UploadedArtifactsHasher.DEFAULT_SCAN_INTERVAL);
+    if (interval <= 0) return;
+    synchronized (myUploadHasher) {
+      myUploadHasher.startTracking(build.getBuildId(), build.getArtifactsDirectory());
+      if (myUploadScan != null) return;
+      myUploadScan = myExecutor.getNormalExecutorService().scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            myUploadHasher.scan();
+          } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to hash uploaded artifacts", e);
+          }
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  private void stopUploadHashing(@NotNull SRunningBuild build) {
+    synchronized (myUploadHasher) {
+      myUploadHasher.stopTracking(build.getBuildId());
+      if (myUploadScan != null && myUploadHasher.getTrackedBuildsCount() == 0) {
+        myUploadScan.cancel(false);
+        myUploadScan = null;
+      }
+    }
+  }
 
+  /**
+   * Resubmits the deferred announcements periodically, the first time right after the server startup
+   */
+  private void startDeferredRetry() {
+    final int interval = TeamCityProperties.getInteger(DEFERRED_RETRY_INTERVAL, DEFAULT_DEFERRED_RETRY_INTERVAL);
+    if (myBuildsManager == null || interval <= 0) return;
+    synchronized (myDeferredAnnouncements) {
+      if (myDeferredRetry != null) return;
+      myDeferredRetry = myExecutor.getNormalExecutorService().scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            retryDeferredAnnouncements();
+          } catch (Exception e) {
+            Loggers.SERVER.warn("Failed to announce deferred artifacts", e);
+          }
+        }
+      }, 0, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  private void stopDeferredRetry() {
+    synchronized (myDeferredAnnouncements) {
+      if (myDeferredRetry != null) {
+        myDeferredRetry.cancel(false);
+        myDeferredRetry = null;
+      }
+    }
+  }
+
+  /**
+   * Queues the deferred announcements while the queue has room, the builds removed since then are forgotten
+   */
+  /*package internal*/ void retryDeferredAnnouncements() {
+    if (myBuildsManager == null || !myConfigurator.isTorrentEnabled()) return;
+    for (Long buildId : myDeferredAnnouncements.getBuildIds()) {
+      if (myAnnouncementQueue.isFull()) break;
+      final SBuild build = myBuildsManager.findBuildInstanceById(buildId);
+      if (build == null) {
+        myDeferredAnnouncements.remove(buildId);
+      } else {
+        announceIfDeferred(build);
+      }
+    }
+    myDeferredAnnouncements.save();
+  }
 
   public void stopSeeder() {
     if (!myTorrentsDirectorySeeder.isStopped()) {
@@ -171,6 +337,7 @@ public class ServerTorrentsDirectorySeeder {
 
   @NotNull
   public Collection<File> getTorrentFiles(@NotNull SBuild build) {
+    announceIfDeferred(build);
     File baseDir = getTorrentFilesBaseDir(build);
     try {
       return FileUtil.findFiles(new FileFilter() {
@@ -188,6 +355,60 @@ public class ServerTorrentsDirectorySeeder {
     return new File(getTorrentFilesBaseDir(build), torrentPath);
   }
 
+  /**
+   * @return torrent of the artifact: its own torrent or the multi-file torrent it is packaged into
+   */
+  @Nullable
+  public File findTorrentFile(@NotNull SBuild build, @NotNull String artifactPath) {
+    announceIfDeferred(build);
+    final File torrentFile = getTorrentFile(build, artifactPath + TorrentUtil.TORRENT_FILE_SUFFIX);
+    if (torrentFile.isFile()) return torrentFile;
+    for (String torrentPath : MultiFileTorrents.getCandidateTorrentPaths(artifactPath)) {
+      final File multiFileTorrent = new File(build.getArtifactsDirectory(), torrentPath);
+      final String group = MultiFileTorrents.getGroupOfTorrent(torrentPath);
+      if (group == null || !multiFileTorrent.isFile()) continue;
+      try {
+        if (MultiFileTorrents.getArtifactPaths(group, TorrentUtil.loadTorrent(multiFileTorrent)).contains(artifactPath)) {
+          return multiFileTorrent;
+        }
+      } catch (IOException e) {
+        Loggers.SERVER.debug("Failed to load torrent " + multiFileTorrent.getAbsolutePath() + ": " + e.toString());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return paths of the artifacts packaged into the multi-file torrents of the build
+   */
+  @NotNull
+  public List<String> getMultiFileTorrentArtifacts(@NotNull SBuild build) {
+    final File baseDir = build.getArtifactsDirectory();
+    final List<String> torrentPaths = new ArrayList<String>();
+    torrentPaths.add(MultiFileTorrents.getTorrentPath(""));
+    final File[] dirTorrents = new File(baseDir, MultiFileTorrents.DIRECTORY_TORRENTS_DIR_PATH).listFiles();
+    if (dirTorrents != null) {
+      for (File torrentFile : dirTorrents) {
+        final String torrentPath = FileUtil.getRelativePath(baseDir, torrentFile);
+        if (torrentPath != null) {
+          torrentPaths.add(torrentPath.replace('\\', '/'));
+        }
+      }
+    }
+    final List<String> artifactPaths = new ArrayList<String>();
+    for (String torrentPath : torrentPaths) {
+      final File torrentFile = new File(baseDir, torrentPath);
+      final String group = MultiFileTorrents.getGroupOfTorrent(torrentPath);
+      if (group == null || !torrentFile.isFile()) continue;
+      try {
+        artifactPaths.addAll(MultiFileTorrents.getArtifactPaths(group, TorrentUtil.loadTorrent(torrentFile)));
+      } catch (IOException e) {
+        Loggers.SERVER.debug("Failed to load torrent " + torrentFile.getAbsolutePath() + ": " + e.toString());
+      }
+    }
+    return artifactPaths;
+  }
+
   public int getNumberOfSeededTorrents() {
     if (myTorrentsDirectorySeeder.isStopped()) {
       return 0;
@@ -195,20 +416,164 @@ public class ServerTorrentsDirectorySeeder {
     return myTorrentsDirectorySeeder.getNumberOfSeededTorrents();
   }
 
-  private void announceBuildArtifacts(@NotNull final SBuild build) {
+  @NotNull
+  public WarmStartProgress getWarmStartProgress() {
+    return myTorrentsDirectorySeeder.getWarmStartProgress();
+  }
+
+  @NotNull
+  public ArtifactsAnnouncementQueue getAnnouncementQueue() {
+    return myAnnouncementQueue;
+  }
+
+  public int getNumberOfDeferredAnnouncements() {
+    return myDeferredAnnouncements.size();
+  }
+
+  /**
+   * @return false if the announcement queue is full
+   */
+  private boolean submitAnnouncement(@NotNull SBuild build) {
+    final ArtifactsAnnouncementQueue.Priority priority = build.isPersonal()
+            ? ArtifactsAnnouncementQueue.Priority.PERSONAL : ArtifactsAnnouncementQueue.Priority.REGULAR;
+    return myAnnouncementQueue.submit(priority, createAnnouncement(build));
+  }
+
+  /**
+   * Queues the announcement of the build deferred when it finished, its torrents are not created yet
+   */
+  private void announceIfDeferred(@NotNull SBuild build) {
+    if (!myConfigurator.isTorrentEnabled() || !myDeferredAnnouncements.remove(build.getBuildId())) return;
+    if (submitAnnouncement(build)) {
+      Loggers.SERVER.debug("Announcing deferred artifacts of " + build);
+    } else {
+      myDeferredAnnouncements.add(build.getBuildId());
+    }
+  }
+
+  /**
+   * Lists the artifacts of the build large enough for torrents, each of them is announced by a separate task
+   */
+  @NotNull
+  private ArtifactsAnnouncementQueue.BuildAnnouncement createAnnouncement(@NotNull final SBuild build) {
     final File torrentsDir = getTorrentFilesBaseDir(build);
-    BuildArtifacts artifacts = build.getArtifacts(BuildArtifactsViewMode.VIEW_DEFAULT);
     final File artifactsDirectory = build.getArtifactsDirectory();
     final File linkDir = getLinkDir(build);
-    torrentsDir.mkdirs();
-    artifacts.iterateArtifacts(new BuildArtifacts.BuildArtifactsProcessor() {
+    return new ArtifactsAnnouncementQueue.BuildAnnouncement() {
+      public long getBuildId() {
+        return build.getBuildId();
+      }
+
       @NotNull
-      public Continuation processBuildArtifact(@NotNull BuildArtifact artifact) {
-        processArtifactInternal(artifact, artifactsDirectory, linkDir, torrentsDir);
-        return BuildArtifacts.BuildArtifactsProcessor.Continuation.CONTINUE;
+      public List<Runnable> listArtifacts() {
+        torrentsDir.mkdirs();
+        final Map<String, BuildArtifact> files = new LinkedHashMap<String, BuildArtifact>();
+        build.getArtifacts(BuildArtifactsViewMode.VIEW_DEFAULT).iterateArtifacts(new BuildArtifacts.BuildArtifactsProcessor() {
+          @NotNull
+          public Continuation processBuildArtifact(@NotNull BuildArtifact artifact) {
+            collectFiles(artifact, files);
+            return BuildArtifacts.BuildArtifactsProcessor.Continuation.CONTINUE;
+          }
+        });
+        final List<Runnable> tasks = new ArrayList<Runnable>(files.size());
+        final MultiFileTorrents.Mode mode = MultiFileTorrents.Mode.byName(TeamCityProperties.getProperty(MULTI_FILE_MODE));
+        for (final Map.Entry<String, List<String>> group : groupArtifacts(mode, files, torrentsDir).entrySet()) {
+          tasks.add(new Runnable() {
+            public void run() {
+              processMultiFileGroup(group.getKey(), group.getValue(), artifactsDirectory, linkDir);
+            }
+          });
+        }
+        for (final BuildArtifact artifact : files.values()) {
+          tasks.add(new Runnable() {
+            public void run() {
+              processArtifactInternal(artifact, artifactsDirectory, linkDir, torrentsDir);
+            }
+          });
+        }
+        return tasks;
       }
 
-    });
+      public void finished() {
+        myUploadHasher.forget(artifactsDirectory);
+        myMetadataCache.save();
+        myDeferredAnnouncements.save();
+      }
+    };
+  }
+
+  private void collectFiles(@NotNull final BuildArtifact artifact, @NotNull final Map<String, BuildArtifact> files) {
+    if (artifact.isDirectory()) {
+      for (BuildArtifact child : artifact.getChildren()) {
+        collectFiles(child, files);
+      }
+    } else if (shouldCreateTorrentFor(artifact)) {
+      files.put(artifact.getRelativePath(), artifact);
+    }
+  }
+
+  /**
+   * Moves the artifacts packaged into multi-file torrents from the files map to the groups. The artifacts
+   * with torrents published by the agent and the groups of a single artifact keep the single-file torrents.
+   * @return artifact paths by group
+   */
+  @NotNull
+  private static Map<String, List<String>> groupArtifacts(@NotNull final MultiFileTorrents.Mode mode,
+                                                          @NotNull final Map<String, BuildArtifact> files,
+                                                          @NotNull final File torrentsDir) {
+    final Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+    if (mode == MultiFileTorrents.Mode.OFF) return groups;
+    for (String path : files.keySet()) {
+      final String group = MultiFileTorrents.getGroup(mode, path);
+      if (group == null || new File(torrentsDir, path + TorrentUtil.TORRENT_FILE_SUFFIX).isFile()) continue;
+      List<String> paths = groups.get(group);
+      if (paths == null) {
+        paths = new ArrayList<String>();
+        groups.put(group, paths);
+      }
+      paths.add(path);
+    }
+    for (Iterator<List<String>> it = groups.values().iterator(); it.hasNext(); ) {
+      final List<String> paths = it.next();
+      if (paths.size() < 2) {
+        it.remove();
+      } else {
+        files.keySet().removeAll(paths);
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * Creates the multi-file torrent of the group of artifacts and seeds it from the artifacts directory.
+   * The directory is linked from the torrents storage, so the torrent is restored after the restart
+   * and evicted by the retention limits like the torrents of single files.
+   */
+  protected void processMultiFileGroup(@NotNull final String group,
+                                       @NotNull final List<String> artifactPaths,
+                                       @NotNull final File artifactsDirectory,
+                                       @NotNull final File linkDir) {
+    final File dir = group.length() == 0 ? artifactsDirectory : new File(artifactsDirectory, group);
+    final List<File> files = new ArrayList<File>(artifactPaths.size());
+    for (String path : artifactPaths) {
+      files.add(new File(artifactsDirectory, path));
+    }
+    final File torrentFile = new File(artifactsDirectory, MultiFileTorrents.getTorrentPath(group));
+    try {
+      final Torrent torrent = TorrentHashingService.getInstance().createMultiFileTorrent(
+              dir, files, myAnnounceURI, "TeamCity", TorrentHashingService.Priority.BACKGROUND);
+      torrentFile.getParentFile().mkdirs();
+      torrent.save(torrentFile);
+      // the link of the directory is restored, cleaned up and evicted like the links of single files
+      FileLink.createLink(dir, torrentFile, new File(new File(linkDir, MULTI_FILE_LINKS_DIR), group));
+      if (myConfigurator.isSeederEnabled()) {
+        myTorrentsDirectorySeeder.getTorrentSeeder().seedTorrent(torrent, dir);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to create multi-file torrent " + torrentFile.getAbsolutePath() + ": " + e.toString());
+    }
   }
 
   protected void processArtifactInternal(@NotNull final BuildArtifact artifact,
@@ -253,13 +618,99 @@ public class ServerTorrentsDirectorySeeder {
     final File parentDir = destPath.getParentFile();
     parentDir.mkdirs();
 
-    return TorrentUtil.getOrCreateTorrent(artifactFile, artifactPath, torrentsDir, myAnnounceURI);
+    final File torrentFile = new File(torrentsDir, artifactPath + TorrentUtil.TORRENT_FILE_SUFFIX);
+    if (torrentFile.isFile()) {
+      if (isValidTorrent(torrentFile, artifactFile)) {
+        // trusted after the sampled check, the scrubber verifies all pieces later
+        markSampled(torrentFile, artifactFile);
+        return torrentFile;
+      }
+      Loggers.SERVER.info("Torrent " + torrentFile.getAbsolutePath() + " does not match artifact " + artifactFile.getAbsolutePath() + ", will create it again");
+      FileUtil.delete(torrentFile);
+    }
+
+    // the pieces hashed while the artifact was uploaded are the checksum of its content
+    final byte[] uploadedPieces = myUploadHasher.finishHashing(artifactFile);
+    final String checksum = uploadedPieces == null ? null : TorrentMetadataCache.checksum(uploadedPieces);
+    final File cachedTorrent = myMetadataCache.findTorrent(artifactFile, checksum, myAnnounceURI);
+    if (cachedTorrent != null) {
+      try {
+        FileUtil.copy(cachedTorrent, torrentFile);
+        myMetadataCache.remember(artifactFile, checksum, torrentFile);
+        markVerified(torrentFile, artifactFile);
+        Loggers.SERVER.debug("Reused torrent " + cachedTorrent.getAbsolutePath() + " for identical artifact " + artifactFile.getAbsolutePath());
+        return torrentFile;
+      } catch (IOException e) {
+        Loggers.SERVER.warn("Failed to copy torrent " + cachedTorrent.getAbsolutePath() + ": " + e.toString());
+      }
+    }
+
+    // hybrid torrents need the v2 hashes as well, the file is hashed again for them
+    if (uploadedPieces != null && !TorrentHashingService.getInstance().isHybridTorrents()) {
+      try {
+        TorrentHashingService.getInstance().createTorrent(artifactFile, myAnnounceURI, "TeamCity", uploadedPieces).save(torrentFile);
+        myMetadataCache.remember(artifactFile, checksum, torrentFile);
+        // the pieces were hashed from this file while it was uploaded
+        markVerified(torrentFile, artifactFile);
+        return torrentFile;
+      } catch (IOException e) {
+        Loggers.SERVER.warn("Failed to save torrent " + torrentFile.getAbsolutePath() + ": " + e.toString());
+      }
+    }
+
+    final File createdTorrent = TorrentUtil.getOrCreateTorrent(artifactFile, artifactPath, torrentsDir, myAnnounceURI);
+    myMetadataCache.remember(artifactFile, checksum, createdTorrent);
+    // the torrent was just hashed from this file
+    markVerified(createdTorrent, artifactFile);
+    return createdTorrent;
+  }
+
+  private void markVerified(@NotNull final File torrentFile, @NotNull final File artifactFile) {
+    try {
+      myTorrentsDirectorySeeder.getTorrentSeeder().markVerified(torrentFile, artifactFile);
+    } catch (Exception e) {
+      Loggers.SERVER.debug("Failed to mark " + artifactFile.getAbsolutePath() + " as verified: " + e.toString());
+    }
+  }
+
+  private void markSampled(@NotNull final File torrentFile, @NotNull final File artifactFile) {
+    try {
+      myTorrentsDirectorySeeder.getTorrentSeeder().markSampled(torrentFile, artifactFile);
+    } catch (Exception e) {
+      Loggers.SERVER.debug("Failed to mark " + artifactFile.getAbsolutePath() + " as verified: " + e.toString());
+    }
+  }
+
+  /**
+   * Checks the torrent published by the agent: it must be announced to our tracker, describe the artifact
+   * and match it in the sampled pieces
+   */
+  private boolean isValidTorrent(@NotNull final File torrentFile, @NotNull final File artifactFile) {
+    try {
+      final Torrent torrent = TorrentUtil.loadTorrent(torrentFile);
+      boolean announced = false;
+      for (List<URI> uris : torrent.getAnnounceList()) {
+        announced |= uris.contains(myAnnounceURI);
+      }
+      if (!announced || !artifactFile.getName().equals(torrent.getName()) || torrent.getSize() != artifactFile.length()) {
+        return false;
+      }
+      final PieceVerifier verifier = PieceVerifier.forTorrentFile(torrentFile);
+      return verifier != null && verifier.verifySample(artifactFile, VERIFIED_PIECES);
+    } catch (Exception e) {
+      Loggers.SERVER.debug("Failed to check torrent " + torrentFile.getAbsolutePath() + ": " + e.toString());
+      return false;
+    }
   }
 
   private boolean shouldCreateTorrentFor(@NotNull BuildArtifact artifact) {
     return TorrentUtil.shouldCreateTorrentFor(artifact.getSize(), myConfigurator);
   }
 
+  private static long toBytes(int sizeMb) {
+    return sizeMb < 0 ? -1 : sizeMb * 1024L * 1024L;
+  }
+
   public void setMaxNumberOfSeededTorrents(int maxNumberOfSeededTorrents) {
     myMaxTorrentsToSeed = maxNumberOfSeededTorrents;
   }
@@ -281,4 +732,14 @@ public class ServerTorrentsDirectorySeeder {
   /*package internal*/ TorrentsDirectorySeeder getTorrentsDirectorySeeder() {
     return myTorrentsDirectorySeeder;
   }
+
+  //for tests
+  /*package internal*/ UploadedArtifactsHasher getUploadHasher() {
+    return myUploadHasher;
+  }
+
+  //for tests
+  /*package internal*/ DeferredAnnouncements getDeferredAnnouncements() {
+    return myDeferredAnnouncements;
+  }
 }
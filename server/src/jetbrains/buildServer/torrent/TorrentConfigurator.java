@@ -70,6 +70,12 @@ public class TorrentConfigurator implements TorrentConfiguration {
         setSeederEnabled(TeamCityProperties.getBooleanOrTrue(SEEDER_ENABLED));
         setTrackerUsesDedicatedPort(TeamCityProperties.getBoolean(TRACKER_DEDICATED_PORT));
         setMaxNumberOfSeededTorrents(TeamCityProperties.getInteger(MAX_NUMBER_OF_SEEDED_TORRENTS, DEFAULT_MAX_NUMBER_OF_SEEDED_TORRENTS));
+        setMaxNumberOfActiveTorrents(TeamCityProperties.getInteger(MAX_NUMBER_OF_ACTIVE_TORRENTS, DEFAULT_MAX_NUMBER_OF_ACTIVE_TORRENTS));
+        setMaxSeededSizeMb(TeamCityProperties.getInteger(MAX_SEEDED_SIZE_MB, DEFAULT_MAX_SEEDED_SIZE_MB));
+        setRetentionPolicy(TeamCityProperties.getProperty(RETENTION_POLICY, DEFAULT_RETENTION_POLICY));
+        setHashingThreads(TeamCityProperties.getInteger(HASHING_THREADS, DEFAULT_HASHING_THREADS));
+        setHashingMaxReadMb(TeamCityProperties.getInteger(HASHING_MAX_READ_MB, DEFAULT_HASHING_MAX_READ_MB));
+        setHybridTorrentsEnabled(TeamCityProperties.getBoolean(HYBRID_TORRENTS));
         setFileSizeThresholdMb(TeamCityProperties.getInteger(FILE_SIZE_THRESHOLD, DEFAULT_FILE_SIZE_THRESHOLD));
         setTrackerTorrentExpireTimeoutSec(TeamCityProperties.getInteger(TRACKER_TORRENT_EXPIRE_TIMEOUT, DEFAULT_TRACKER_TORRENT_EXPIRE_TIMEOUT));
         setAnnounceIntervalSec(TeamCityProperties.getInteger(ANNOUNCE_INTERVAL, DEFAULT_ANNOUNCE_INTERVAL));
@@ -126,6 +132,54 @@ public class TorrentConfigurator implements TorrentConfiguration {
     }
   }
 
+  private void setMaxNumberOfActiveTorrents(int number) {
+    int oldValue = TorrentUtil.getIntegerValue(myConfiguration, MAX_NUMBER_OF_ACTIVE_TORRENTS, DEFAULT_MAX_NUMBER_OF_ACTIVE_TORRENTS);
+    if (oldValue != number){
+      myConfiguration.setProperty(MAX_NUMBER_OF_ACTIVE_TORRENTS, String.valueOf(number));
+      propertyChanged(MAX_NUMBER_OF_ACTIVE_TORRENTS, oldValue, number);
+    }
+  }
+
+  private void setMaxSeededSizeMb(int sizeMb) {
+    int oldValue = TorrentUtil.getIntegerValue(myConfiguration, MAX_SEEDED_SIZE_MB, DEFAULT_MAX_SEEDED_SIZE_MB);
+    if (oldValue != sizeMb){
+      myConfiguration.setProperty(MAX_SEEDED_SIZE_MB, String.valueOf(sizeMb));
+      propertyChanged(MAX_SEEDED_SIZE_MB, oldValue, sizeMb);
+    }
+  }
+
+  private void setRetentionPolicy(@NotNull String policy) {
+    String oldValue = myConfiguration.getProperty(RETENTION_POLICY, DEFAULT_RETENTION_POLICY);
+    if (!oldValue.equals(policy)){
+      myConfiguration.setProperty(RETENTION_POLICY, policy);
+      propertyChanged(RETENTION_POLICY, oldValue, policy);
+    }
+  }
+
+  private void setHashingThreads(int threads) {
+    int oldValue = TorrentUtil.getIntegerValue(myConfiguration, HASHING_THREADS, DEFAULT_HASHING_THREADS);
+    if (oldValue != threads){
+      myConfiguration.setProperty(HASHING_THREADS, String.valueOf(threads));
+      propertyChanged(HASHING_THREADS, oldValue, threads);
+    }
+  }
+
+  private void setHashingMaxReadMb(int readMb) {
+    int oldValue = TorrentUtil.getIntegerValue(myConfiguration, HASHING_MAX_READ_MB, DEFAULT_HASHING_MAX_READ_MB);
+    if (oldValue != readMb){
+      myConfiguration.setProperty(HASHING_MAX_READ_MB, String.valueOf(readMb));
+      propertyChanged(HASHING_MAX_READ_MB, oldValue, readMb);
+    }
+  }
+
+  private void setHybridTorrentsEnabled(boolean enabled) {
+    boolean oldValue = TorrentUtil.getBooleanValue(myConfiguration, HYBRID_TORRENTS, DEFAULT_HYBRID_TORRENTS);
+    if (oldValue != enabled) {
+      myConfiguration.setProperty(HYBRID_TORRENTS, String.valueOf(enabled));
+      propertyChanged(HYBRID_TORRENTS, oldValue, enabled);
+    }
+  }
+
   private void setAnnounceIntervalSec(int sec){
     int oldValue = TorrentUtil.getIntegerValue(myConfiguration, ANNOUNCE_INTERVAL, DEFAULT_ANNOUNCE_INTERVAL);
     if (oldValue != sec){
@@ -182,6 +236,47 @@ public class TorrentConfigurator implements TorrentConfiguration {
     return TeamCityProperties.getInteger(MAX_NUMBER_OF_SEEDED_TORRENTS, DEFAULT_MAX_NUMBER_OF_SEEDED_TORRENTS);
   }
 
+  /**
+   * Returns the maximum number of announced torrents, other seeded torrents are kept dormant until requested.
+   * Negative value means no limit
+   */
+  public int getMaxNumberOfActiveTorrents() {
+    return TeamCityProperties.getInteger(MAX_NUMBER_OF_ACTIVE_TORRENTS, DEFAULT_MAX_NUMBER_OF_ACTIVE_TORRENTS);
+  }
+
+  /**
+   * Returns the limit of the total size of files seeded by the server, negative value means no limit
+   */
+  public int getMaxSeededSizeMb() {
+    return TeamCityProperties.getInteger(MAX_SEEDED_SIZE_MB, DEFAULT_MAX_SEEDED_SIZE_MB);
+  }
+
+  /**
+   * Returns the name of the policy choosing the torrents to keep seeding on the server
+   */
+  @NotNull
+  public String getRetentionPolicy() {
+    return TeamCityProperties.getProperty(RETENTION_POLICY, DEFAULT_RETENTION_POLICY);
+  }
+
+  /**
+   * Returns the number of threads hashing artifacts, non-positive value means half of the cores
+   */
+  public int getHashingThreads() {
+    return TeamCityProperties.getInteger(HASHING_THREADS, DEFAULT_HASHING_THREADS);
+  }
+
+  /**
+   * Returns the limit of disk reads of torrent creation in megabytes per second, negative value means no limit
+   */
+  public int getHashingMaxReadMb() {
+    return TeamCityProperties.getInteger(HASHING_MAX_READ_MB, DEFAULT_HASHING_MAX_READ_MB);
+  }
+
+  public boolean isHybridTorrentsEnabled() {
+    return TeamCityProperties.getBoolean(HYBRID_TORRENTS);
+  }
+
   public int getFileSizeThresholdMb() {
     return TeamCityProperties.getInteger(FILE_SIZE_THRESHOLD, DEFAULT_FILE_SIZE_THRESHOLD);
   }
@@ -333,6 +428,12 @@ public class TorrentConfigurator implements TorrentConfiguration {
       myStoredProperties.put(ANNOUNCE_INTERVAL, TeamCityProperties.getProperty(ANNOUNCE_INTERVAL));
       myStoredProperties.put(TRACKER_TORRENT_EXPIRE_TIMEOUT, TeamCityProperties.getProperty(TRACKER_TORRENT_EXPIRE_TIMEOUT));
       myStoredProperties.put(MAX_NUMBER_OF_SEEDED_TORRENTS, TeamCityProperties.getProperty(MAX_NUMBER_OF_SEEDED_TORRENTS));
+      myStoredProperties.put(MAX_NUMBER_OF_ACTIVE_TORRENTS, TeamCityProperties.getProperty(MAX_NUMBER_OF_ACTIVE_TORRENTS));
+      myStoredProperties.put(MAX_SEEDED_SIZE_MB, TeamCityProperties.getProperty(MAX_SEEDED_SIZE_MB));
+      myStoredProperties.put(RETENTION_POLICY, TeamCityProperties.getProperty(RETENTION_POLICY));
+      myStoredProperties.put(HASHING_THREADS, TeamCityProperties.getProperty(HASHING_THREADS));
+      myStoredProperties.put(HASHING_MAX_READ_MB, TeamCityProperties.getProperty(HASHING_MAX_READ_MB));
+      myStoredProperties.put(HYBRID_TORRENTS, TeamCityProperties.getProperty(HYBRID_TORRENTS));
       myStoredProperties.put(TRACKER_DEDICATED_PORT, TeamCityProperties.getProperty(TRACKER_DEDICATED_PORT));
     }
 
@@ -0,0 +1,194 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import jetbrains.buildServer.torrent.torrent.TrackerScrape;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers .torrent files by a cheap fingerprint of the artifacts they were created for, so that
+ * byte-identical artifacts of later builds reuse the torrent instead of hashing the whole file again.
+ * The fingerprint is the name, the size and a hash of sampled blocks. It only finds the candidate torrent:
+ * files of the same size may differ outside the sampled blocks, so a hit is confirmed by the checksum of
+ * the whole content computed elsewhere, e.g. while the artifact was uploaded. The file is never read in
+ * full to confirm a hit, an artifact without a checksum is a miss.
+ */
+public class TorrentMetadataCache {
+  public static final String INDEX_FILE_NAME = "torrents-metadata.index";
+
+  private static final int MAX_ENTRIES = 10000;
+  private static final int SAMPLED_BLOCKS = 8;
+  private static final int SAMPLED_BLOCK_SIZE = 64 * 1024;
+
+  @NotNull
+  private final File myIndexFile;
+  private final Map<String, Entry> myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private boolean myDirty;
+
+  public TorrentMetadataCache(@NotNull File indexFile) {
+    myIndexFile = indexFile;
+    load();
+  }
+
+  /**
+   * Returns the torrent created earlier for a byte-identical file announced to the given tracker
+   * @param checksum checksum of the whole content of the file, see {@link #checksum(byte[])}
+   */
+  @Nullable
+  public File findTorrent(@NotNull File artifactFile, @Nullable String checksum, @NotNull URI announceURI) {
+    if (checksum == null) return null;
+    final String key;
+    try {
+      key = fingerprint(artifactFile);
+    } catch (IOException e) {
+      Loggers.SERVER.debug("Failed to fingerprint " + artifactFile.getAbsolutePath() + ": " + e.toString());
+      return null;
+    }
+    final Entry entry;
+    synchronized (this) {
+      entry = myEntries.get(key);
+    }
+    if (entry == null) return null;
+    try {
+      if (entry.myChecksum.equals(checksum) && entry.myTorrentFile.isFile() && isAnnouncedTo(entry.myTorrentFile, announceURI)) {
+        return entry.myTorrentFile;
+      }
+    } catch (IOException e) {
+      Loggers.SERVER.debug("Failed to check cached torrent " + entry.myTorrentFile.getAbsolutePath() + ": " + e.toString());
+    }
+    synchronized (this) {
+      myEntries.remove(key);
+      myDirty = true;
+    }
+    return null;
+  }
+
+  /**
+   * @param checksum checksum of the whole content of the file, the torrent is not remembered without it
+   */
+  public void remember(@NotNull File artifactFile, @Nullable String checksum, @NotNull File torrentFile) {
+    if (checksum == null) return;
+    try {
+      final String key = fingerprint(artifactFile);
+      synchronized (this) {
+        myEntries.put(key, new Entry(checksum, torrentFile.getAbsoluteFile()));
+        myDirty = true;
+      }
+    } catch (IOException e) {
+      Loggers.SERVER.debug("Failed to fingerprint " + artifactFile.getAbsolutePath() + ": " + e.toString());
+    }
+  }
+
+  public synchronized int size() {
+    return myEntries.size();
+  }
+
+  public synchronized void save() {
+    if (!myDirty) return;
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Entry> entry : myEntries.entrySet()) {
+      sb.append(entry.getKey()).append('\t').append(entry.getValue().myChecksum).append('\t')
+        .append(entry.getValue().myTorrentFile.getPath()).append('\n');
+    }
+    FileUtil.createParentDirs(myIndexFile);
+    if (FileUtil.writeFileAndReportErrors(myIndexFile, sb.toString())) {
+      myDirty = false;
+    }
+  }
+
+  private synchronized void load() {
+    if (!myIndexFile.isFile()) return;
+    try {
+      for (String line : FileUtil.readText(myIndexFile).split("\n")) {
+        // the entries without a checksum are skipped
+        final String[] fields = line.split("\t", 3);
+        if (fields.length != 3 || fields[0].length() == 0 || fields[1].length() == 0) continue;
+        myEntries.put(fields[0], new Entry(fields[1], new File(fields[2])));
+      }
+    } catch (IOException e) {
+      Loggers.SERVER.warn("Failed to read torrents metadata index " + myIndexFile.getAbsolutePath() + ": " + e.toString());
+    }
+  }
+
+  private static boolean isAnnouncedTo(@NotNull File torrentFile, @NotNull URI announceURI) throws IOException {
+    final Torrent torrent = TorrentUtil.loadTorrent(torrentFile);
+    for (List<URI> uris : torrent.getAnnounceList()) {
+      if (uris.contains(announceURI)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param pieces concatenated SHA-1 hashes of the pieces of {@link TorrentHashingService#PIECE_LENGTH} bytes
+   * @return checksum of the whole content of the file the pieces were hashed from
+   */
+  @NotNull
+  public static String checksum(@NotNull byte[] pieces) {
+    try {
+      return TrackerScrape.toHex(MessageDigest.getInstance("SHA-1").digest(pieces));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return name, size and SHA-1 of evenly spaced blocks of the file
+   */
+  @NotNull
+  static String fingerprint(@NotNull File file) throws IOException {
+    final long length = file.length();
+    final MessageDigest sha1;
+    try {
+      sha1 = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.toString());
+    }
+    final byte[] buffer = new byte[SAMPLED_BLOCK_SIZE];
+    RandomAccessFile in = null;
+    try {
+      in = new RandomAccessFile(file, "r");
+      final long lastBlockOffset = Math.max(0, length - SAMPLED_BLOCK_SIZE);
+      for (int i = 0; i < SAMPLED_BLOCKS; i++) {
+        final long offset = lastBlockOffset * i / (SAMPLED_BLOCKS - 1);
+        final int size = (int) Math.min(SAMPLED_BLOCK_SIZE, length - offset);
+        in.seek(offset);
+        in.readFully(buffer, 0, size);
+        sha1.update(buffer, 0, size);
+      }
+    } finally {
+      FileUtil.close(in);
+    }
+    return file.getName() + ":" + length + ":" + TrackerScrape.toHex(sha1.digest());
+  }
+
+  private static final class Entry {
+    @NotNull
+    private final String myChecksum;
+    @NotNull
+    private final File myTorrentFile;
+
+    private Entry(@NotNull String checksum, @NotNull File torrentFile) {
+      myChecksum = checksum;
+      myTorrentFile = torrentFile;
+    }
+  }
+}
@@ -6,30 +6,34 @@ import com.turn.ttorrent.tracker.Tracker;
 import com.turn.ttorrent.tracker.TrackerRequestProcessor;
 import jetbrains.buildServer.NetworkUtil;
 import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.torrent.torrent.TeamcityTorrentClient;
+import jetbrains.buildServer.torrent.torrent.TorrentDemandProbe;
+import jetbrains.buildServer.torrent.torrent.TrackerScrape;
 import jetbrains.buildServer.torrent.web.TrackerController;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.net.URI;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.*;
 
-public class TorrentTrackerManager {
+public class TorrentTrackerManager implements TorrentDemandProbe {
 
   private final static Logger LOG = Logger.getInstance(TorrentTrackerManager.class.getName());
 
   private final TrackerRequestProcessor myTrackerService;
-  private final ConcurrentMap<String, TrackedTorrent> myTorrents;
+  private final CompactTorrentsMap myTorrents;
   private Tracker myTracker;
   private boolean myTrackerRunning;
   private final TorrentConfigurator myConfigurator;
   private final ScheduledExecutorService myExecutorService;
   private ScheduledFuture<?> myCleanupTaskFuture;
+  private volatile TeamcityTorrentClient myServerSeeder;
 
 
   public TorrentTrackerManager(@NotNull final TorrentConfigurator configurator,
@@ -40,7 +44,7 @@ public class TorrentTrackerManager {
 
     myTrackerService = new TrackerRequestProcessor();
     myTrackerService.setAcceptForeignTorrents(true);
-    myTorrents = new ConcurrentHashMap<String, TrackedTorrent>();
+    myTorrents = new CompactTorrentsMap();
     dispatcher.addListener(new BuildServerAdapter(){
       @Override
       public void serverShutdown() {
@@ -111,16 +115,11 @@ public class TorrentTrackerManager {
       startIndividualPort(myConfigurator.getResolvedOwnAddress());
     }
 
-    //setting peer collection interval to the same as announce interval
+    // only the announces due to expire are checked, see CompactTorrentsMap.expireUnfreshPeers
     myCleanupTaskFuture = myExecutorService.scheduleWithFixedDelay(new Runnable() {
       public void run() {
         try {
-          for (TrackedTorrent torrent : myTorrents.values()) {
-            torrent.collectUnfreshPeers(myConfigurator.getTrackerTorrentExpireTimeoutSec());
-            if (torrent.getPeers().size() == 0) {
-              myTorrents.remove(torrent.getHexInfoHash());
-            }
-          }
+          myTorrents.expireUnfreshPeers(myConfigurator.getTrackerTorrentExpireTimeoutSec());
         } catch (Exception ex) {
           LOG.warn(ex.toString());
         }
@@ -182,11 +181,7 @@ public class TorrentTrackerManager {
     if (!myTrackerRunning){
       return 0;
     }
-    Set<String> uniquePeers = new HashSet<String>();
-    for (TrackedTorrent tt : myTorrents.values()) {
-      uniquePeers.addAll(tt.getPeers().keySet());
-    }
-    return uniquePeers.size();
+    return myTorrents.getUniquePeersCount();
   }
 
   public int getAnnouncedTorrentsNum() {
@@ -196,6 +191,80 @@ public class TorrentTrackerManager {
     return myTorrents.size();
   }
 
+  public long getExpiredPeersNum() {
+    return myTorrents.getExpiredPeersCount();
+  }
+
+  public long getExpiredTorrentsNum() {
+    return myTorrents.getExpiredTorrentsCount();
+  }
+
+  public int getPendingExpiryChecksNum() {
+    return myTorrents.getPendingExpiryChecksCount();
+  }
+
+  /**
+   * Returns hashes of the torrents which are announced by at least one leecher
+   */
+  @NotNull
+  public Collection<String> getRequestedTorrents() {
+    if (!myTrackerRunning){
+      return Collections.emptyList();
+    }
+    List<String> requested = new ArrayList<String>();
+    for (TrackedTorrent tt : myTorrents.values()) {
+      if (tt.leechers() > 0) {
+        requested.add(tt.getHexInfoHash());
+      }
+    }
+    return requested;
+  }
+
+  /**
+   * Sets the seeder of the server. The torrents it keeps dormant are not announced, yet the server is counted
+   * as their seeder on scrape, so that the agents join the swarm and the torrent gets activated.
+   */
+  public void setServerSeeder(@Nullable TeamcityTorrentClient serverSeeder) {
+    myServerSeeder = serverSeeder;
+  }
+
+  /**
+   * Returns scrape stats of the announced torrents and of the torrents kept dormant by the server seeder
+   * @param hexInfoHashes hashes of the torrents, all announced torrents are returned if empty
+   */
+  @NotNull
+  public Map<String, TrackerScrape.Stats> scrape(@NotNull Collection<String> hexInfoHashes) {
+    final Map<String, TrackerScrape.Stats> stats = new HashMap<String, TrackerScrape.Stats>();
+    if (!myTrackerRunning){
+      return stats;
+    }
+    final Collection<TrackedTorrent> torrents;
+    if (hexInfoHashes.isEmpty()) {
+      torrents = myTorrents.values();
+    } else {
+      torrents = new ArrayList<TrackedTorrent>();
+      for (String hash : hexInfoHashes) {
+        final TrackedTorrent tt = myTorrents.get(hash);
+        if (tt != null) {
+          torrents.add(tt);
+        } else if (isDormant(hash)) {
+          stats.put(hash.toUpperCase(), new TrackerScrape.Stats(1, 0, 0));
+        }
+      }
+    }
+    for (TrackedTorrent tt : torrents) {
+      final int seeders = tt.seeders() + (isDormant(tt.getHexInfoHash()) ? 1 : 0);
+      final int downloaded = tt instanceof CompactTrackedTorrent ? ((CompactTrackedTorrent) tt).getDownloaded() : 0;
+      stats.put(tt.getHexInfoHash(), new TrackerScrape.Stats(seeders, tt.leechers(), downloaded));
+    }
+    return stats;
+  }
+
+  private boolean isDormant(@NotNull String hexInfoHash) {
+    final TeamcityTorrentClient serverSeeder = myServerSeeder;
+    return serverSeeder != null && serverSeeder.isDormantTorrent(hexInfoHash.toUpperCase());
+  }
+
   public URI getAnnounceUri() {
     if (myConfigurator.isTrackerDedicatedPort()){
       return myTracker.getAnnounceURI();
@@ -0,0 +1,158 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.torrent.seeder.TorrentsDirectorySeeder;
+import jetbrains.buildServer.torrent.torrent.IncrementalPieceHasher;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import jetbrains.buildServer.torrent.torrent.TorrentUtil;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hashes the artifacts of running builds while they are being published: the artifact directories
+ * of the tracked builds are scanned periodically and the bytes appended since the previous scan are fed
+ * to the piece hashers, so that the pieces are hashed while the build is still running. The artifact
+ * is not read again when the torrent is published: a file modified without growing since the last scan
+ * is considered written in place and is hashed again from scratch.
+ */
+public class UploadedArtifactsHasher {
+  public static final String SCAN_INTERVAL = "torrent.upload.hashing.interval.sec";
+  public static final int DEFAULT_SCAN_INTERVAL = 5;
+
+  private static final String HIDDEN_ARTIFACTS_DIR = ".teamcity";
+
+  @NotNull
+  private final TorrentConfiguration myConfiguration;
+  private final ConcurrentMap<Long, File> myArtifactDirs = new ConcurrentHashMap<Long, File>();
+  private final ConcurrentMap<File, IncrementalPieceHasher> myHashers = new ConcurrentHashMap<File, IncrementalPieceHasher>();
+
+  public UploadedArtifactsHasher(@NotNull TorrentConfiguration configuration) {
+    myConfiguration = configuration;
+  }
+
+  public void startTracking(long buildId, @NotNull File artifactsDir) {
+    myArtifactDirs.put(buildId, artifactsDir);
+  }
+
+  public void stopTracking(long buildId) {
+    myArtifactDirs.remove(buildId);
+  }
+
+  /**
+   * Drops the hashers of the files under the directory which were not used for torrents
+   */
+  public void forget(@NotNull File artifactsDir) {
+    final String prefix = artifactsDir.getAbsolutePath() + File.separator;
+    for (Iterator<File> it = myHashers.keySet().iterator(); it.hasNext(); ) {
+      if (it.next().getAbsolutePath().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  public int getTrackedBuildsCount() {
+    return myArtifactDirs.size();
+  }
+
+  public int getTrackedFilesCount() {
+    return myHashers.size();
+  }
+
+  /**
+   * Feeds the bytes appended to the artifacts of the tracked builds to their hashers
+   */
+  public void scan() {
+    for (File artifactsDir : myArtifactDirs.values()) {
+      scanDir(artifactsDir, artifactsDir);
+    }
+  }
+
+  /**
+   * Creates the torrent from the pieces hashed during the upload, see {@link #finishHashing(File)}
+   * @return null if the file was not hashed during the upload or was modified in place
+   */
+  @Nullable
+  public Torrent createTorrent(@NotNull File artifactFile, @NotNull URI announceURI) {
+    final byte[] pieces = finishHashing(artifactFile);
+    if (pieces == null) return null;
+    try {
+      return TorrentHashingService.getInstance().createTorrent(artifactFile, announceURI, "TeamCity", pieces);
+    } catch (IOException e) {
+      Loggers.SERVER.debug("Failed to create torrent of " + artifactFile.getAbsolutePath() + ": " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Completes the hashing of the file, only the tail written after the last scan is read now
+   * @return concatenated SHA-1 hashes of the pieces of {@link TorrentHashingService#PIECE_LENGTH} bytes or null
+   * if the file was not hashed during the upload or was modified in place
+   */
+  @Nullable
+  public byte[] finishHashing(@NotNull File artifactFile) {
+    final IncrementalPieceHasher hasher = myHashers.remove(artifactFile.getAbsoluteFile());
+    if (hasher == null) return null;
+    try {
+      if (!hasher.catchUp(artifactFile)) {
+        Loggers.SERVER.debug("Artifact " + artifactFile.getAbsolutePath() + " was modified after upload, will hash it again");
+        return null;
+      }
+      return hasher.finish();
+    } catch (IOException e) {
+      Loggers.SERVER.debug("Failed to complete hashing of " + artifactFile.getAbsolutePath() + ": " + e.toString());
+      return null;
+    }
+  }
+
+  private void scanDir(@NotNull File artifactsDir, @NotNull File dir) {
+    final File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        if (!HIDDEN_ARTIFACTS_DIR.equals(file.getName())) {
+          scanDir(artifactsDir, file);
+        }
+      } else if (TorrentUtil.shouldCreateTorrentFor(file.length(), myConfiguration)) {
+        if (isPublishedByAgent(artifactsDir, file)) {
+          myHashers.remove(file.getAbsoluteFile());
+        } else {
+          scanFile(file.getAbsoluteFile());
+        }
+      }
+    }
+  }
+
+  private static boolean isPublishedByAgent(@NotNull File artifactsDir, @NotNull File file) {
+    final String relativePath = FileUtil.getRelativePath(artifactsDir, file);
+    return relativePath != null
+            && new File(new File(artifactsDir, TorrentsDirectorySeeder.TORRENTS_DIT_PATH), relativePath + TorrentUtil.TORRENT_FILE_SUFFIX).isFile();
+  }
+
+  private void scanFile(@NotNull File file) {
+    IncrementalPieceHasher hasher = myHashers.get(file);
+    if (hasher == null) {
+      hasher = new IncrementalPieceHasher(TorrentHashingService.PIECE_LENGTH);
+      final IncrementalPieceHasher existing = myHashers.putIfAbsent(file, hasher);
+      if (existing != null) {
+        hasher = existing;
+      }
+    }
+    try {
+      if (!hasher.catchUp(file)) {
+        myHashers.remove(file, hasher);
+      }
+    } catch (IOException e) {
+      Loggers.SERVER.debug("Failed to hash uploaded artifact " + file.getAbsolutePath() + ": " + e.toString());
+      myHashers.remove(file, hasher);
+    }
+  }
+}
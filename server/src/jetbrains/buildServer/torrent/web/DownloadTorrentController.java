@@ -18,7 +18,6 @@ package jetbrains.buildServer.torrent.web;
 
 import com.intellij.openapi.util.io.StreamUtil;
 import jetbrains.buildServer.torrent.ServerTorrentsDirectorySeeder;
-import jetbrains.buildServer.torrent.torrent.TorrentUtil;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.serverSide.BuildsManager;
 import jetbrains.buildServer.serverSide.SBuild;
@@ -48,16 +47,12 @@ public class DownloadTorrentController extends BaseController {
   protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
     String buildIdParam = request.getParameter("buildId");
     String path = request.getParameter("file");
-    String torrentPath = path + TorrentUtil.TORRENT_FILE_SUFFIX;
 
     File torrentFile = null;
     long buildId = Long.parseLong(buildIdParam);
     SBuild build = myBuildsManager.findBuildInstanceById(buildId);
-    if (build != null) {
-      torrentFile = myTorrentsManager.getTorrentFile(build, torrentPath);
-      if (!torrentFile.isFile()) {
-        torrentFile = null;
-      }
+    if (build != null && path != null) {
+      torrentFile = myTorrentsManager.findTorrentFile(build, path);
     }
 
     if (torrentFile == null) {
@@ -58,6 +58,7 @@ public class TorrentLinksController extends BaseController {
         Collection<File> torrentFiles = myTorrentsManager.getTorrentFiles(build);
         File baseDir = myTorrentsManager.getTorrentFilesBaseDir(build);
         List<String> paths = getArtifactsWithTorrents(baseDir, torrentFiles);
+        paths.addAll(myTorrentsManager.getMultiFileTorrentArtifacts(build));
 
         response.setContentType("text/plain");
         ServletOutputStream output = response.getOutputStream();
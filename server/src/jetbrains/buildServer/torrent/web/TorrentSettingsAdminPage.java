@@ -7,6 +7,7 @@ package jetbrains.buildServer.torrent.web;
 import jetbrains.buildServer.torrent.ServerTorrentsDirectorySeeder;
 import jetbrains.buildServer.torrent.TorrentConfigurator;
 import jetbrains.buildServer.torrent.TorrentTrackerManager;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.controllers.admin.AdminPage;
 import jetbrains.buildServer.web.openapi.PagePlaces;
@@ -64,7 +65,15 @@ public class TorrentSettingsAdminPage extends AdminPage {
     model.put("torrentConfigurator", myTorrentConfigurator);
     model.put("announcedTorrentsNum", myTorrentTrackerManager.getAnnouncedTorrentsNum());
     model.put("connectedClientsNum", myTorrentTrackerManager.getConnectedClientsNum());
+    model.put("expiredPeersNum", myTorrentTrackerManager.getExpiredPeersNum());
+    model.put("expiredTorrentsNum", myTorrentTrackerManager.getExpiredTorrentsNum());
+    model.put("pendingExpiryChecksNum", myTorrentTrackerManager.getPendingExpiryChecksNum());
     model.put("seededTorrentsNum", myTorrentSeeder.getNumberOfSeededTorrents());
+    model.put("warmStartProgress", myTorrentSeeder.getWarmStartProgress());
+    model.put("hashingQueueSize", TorrentHashingService.getInstance().getQueueSize());
+    model.put("announcementQueue", myTorrentSeeder.getAnnouncementQueue());
+    model.put("deferredAnnouncementsNum", myTorrentSeeder.getNumberOfDeferredAnnouncements());
+    model.put("hashingRateMb", String.format("%.1f", TorrentHashingService.getInstance().getHashingRate() / (1024.0 * 1024.0)));
   }
 
   @NotNull
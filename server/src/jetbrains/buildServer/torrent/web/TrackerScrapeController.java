@@ -0,0 +1,46 @@
+package jetbrains.buildServer.torrent.web;
+
+import jetbrains.buildServer.controllers.AuthorizationInterceptor;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.torrent.TorrentTrackerManager;
+import jetbrains.buildServer.torrent.torrent.TrackerScrape;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers multi-hash scrape requests (BEP 48). Torrents of the dedicated-port tracker are kept in the same map,
+ * so the scrape is served here for both tracker modes.
+ */
+public class TrackerScrapeController extends BaseController {
+
+  public static final String PATH = TrackerScrape.PATH;
+
+  private final TorrentTrackerManager myTrackerManager;
+
+  public TrackerScrapeController(@NotNull final WebControllerManager controllerManager,
+                                 @NotNull final TorrentTrackerManager trackerManager,
+                                 @NotNull final AuthorizationInterceptor interceptor) {
+    controllerManager.registerController(PATH, this);
+    myTrackerManager = trackerManager;
+    interceptor.addPathNotRequiringAuth(PATH);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+    if (!myTrackerManager.isTrackerRunning()) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return null;
+    }
+    final byte[] data = TrackerScrape.encodeResponse(myTrackerManager.scrape(TrackerScrape.parseQuery(request.getQueryString())));
+    response.setContentType("text/plain");
+    response.setContentLength(data.length);
+    response.getOutputStream().write(data);
+    return null;
+  }
+}
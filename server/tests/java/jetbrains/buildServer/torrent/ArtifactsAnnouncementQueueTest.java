@@ -0,0 +1,149 @@
+package jetbrains.buildServer.torrent;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class ArtifactsAnnouncementQueueTest extends BaseTestCase {
+
+  private ArtifactsAnnouncementQueue myQueue;
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    if (myQueue != null) {
+      myQueue.shutdown();
+    }
+    super.tearDown();
+  }
+
+  public void small_build_not_starved_by_big_one() throws Exception {
+    myQueue = new ArtifactsAnnouncementQueue(1, 10);
+    final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(2);
+
+    myQueue.submit(ArtifactsAnnouncementQueue.Priority.REGULAR, new TestAnnouncement("big", 50, finished, done));
+    myQueue.submit(ArtifactsAnnouncementQueue.Priority.REGULAR, new TestAnnouncement("small", 2, finished, done));
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals("small", finished.get(0));
+    assertEquals(52, myQueue.getAnnouncingStats().getCount());
+    assertEquals(2, myQueue.getListingStats().getCount());
+    assertEquals(0, myQueue.getQueuedBuilds());
+    assertEquals(0, myQueue.getQueuedArtifacts());
+  }
+
+  public void full_queue_rejects_builds() throws Exception {
+    myQueue = new ArtifactsAnnouncementQueue(1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    assertTrue(myQueue.submit(ArtifactsAnnouncementQueue.Priority.REGULAR, new ArtifactsAnnouncementQueue.BuildAnnouncement() {
+      public long getBuildId() {
+        return 1;
+      }
+
+      @NotNull
+      public List<Runnable> listArtifacts() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return Collections.emptyList();
+      }
+
+      public void finished() {
+        done.countDown();
+      }
+    }));
+
+    assertTrue(myQueue.isFull());
+    assertFalse(myQueue.submit(ArtifactsAnnouncementQueue.Priority.PERSONAL, new TestAnnouncement("rejected", 1, new ArrayList<String>(), new CountDownLatch(1))));
+    assertEquals(1, myQueue.getRejectedBuilds());
+
+    release.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(0, myQueue.getQueuedBuilds());
+    assertFalse(myQueue.isFull());
+  }
+
+  public void unfinished_builds_returned_on_shutdown() throws Exception {
+    myQueue = new ArtifactsAnnouncementQueue(1, 10);
+    final CountDownLatch done = new CountDownLatch(1);
+    final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+    myQueue.submit(ArtifactsAnnouncementQueue.Priority.REGULAR, new TestAnnouncement("small", 1, finished, done));
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    myQueue.submit(ArtifactsAnnouncementQueue.Priority.REGULAR, new TestAnnouncement("big", 1000, finished, new CountDownLatch(1)));
+
+    final List<ArtifactsAnnouncementQueue.BuildAnnouncement> unfinished = myQueue.shutdown();
+    myQueue = null;
+
+    assertEquals(1, unfinished.size());
+    assertEquals("big".hashCode(), unfinished.get(0).getBuildId());
+  }
+
+  public void deferred_announcements_kept_between_restarts() throws Exception {
+    final File stateFile = new File(createTempDir(), DeferredAnnouncements.STATE_FILE_NAME);
+    final DeferredAnnouncements deferred = new DeferredAnnouncements(stateFile);
+    deferred.add(1);
+    deferred.add(2);
+    deferred.save();
+
+    final DeferredAnnouncements restored = new DeferredAnnouncements(stateFile);
+    assertEquals(Arrays.asList(1L, 2L), restored.getBuildIds());
+    assertTrue(restored.remove(2));
+    assertFalse(restored.remove(3));
+    restored.save();
+    assertEquals(1, new DeferredAnnouncements(stateFile).size());
+  }
+
+  private static class TestAnnouncement implements ArtifactsAnnouncementQueue.BuildAnnouncement {
+    private final String myName;
+    private final int myArtifactsCount;
+    private final List<String> myFinished;
+    private final CountDownLatch myDone;
+
+    private TestAnnouncement(String name, int artifactsCount, List<String> finished, CountDownLatch done) {
+      myName = name;
+      myArtifactsCount = artifactsCount;
+      myFinished = finished;
+      myDone = done;
+    }
+
+    public long getBuildId() {
+      return myName.hashCode();
+    }
+
+    @NotNull
+    public List<Runnable> listArtifacts() {
+      final List<Runnable> tasks = new ArrayList<Runnable>();
+      for (int i = 0; i < myArtifactsCount; i++) {
+        tasks.add(new Runnable() {
+          public void run() {
+            try {
+              Thread.sleep(5);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      }
+      return tasks;
+    }
+
+    public void finished() {
+      myFinished.add(myName);
+      myDone.countDown();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceRequestMessage.RequestEvent;
+import com.turn.ttorrent.tracker.TrackedPeer;
+import com.turn.ttorrent.tracker.TrackedTorrent;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+@Test
+public class CompactTorrentsMapTest extends BaseTestCase {
+  private static final String HASH = "3132333435363738393031323334353637383930";
+
+  public void keys_are_case_insensitive_hex_hashes() {
+    final CompactTorrentsMap torrents = new CompactTorrentsMap();
+    final TrackedTorrent torrent = torrents.putIfAbsent(HASH.toLowerCase(), new TrackedTorrent(CompactTorrentsMap.parseHex(HASH)));
+
+    assertSame(torrent, torrents.putIfAbsent(HASH, torrent));
+    assertSame(torrent, torrents.get(HASH));
+    assertNull(torrents.get("not a hash"));
+    assertEquals(HASH, torrents.keySet().iterator().next());
+    assertSame(torrent, torrents.remove(HASH.toLowerCase()));
+    assertTrue(torrents.isEmpty());
+  }
+
+  public void foreign_torrent_is_converted_on_put() {
+    final CompactTorrentsMap torrents = new CompactTorrentsMap();
+    final TrackedTorrent stored = torrents.putIfAbsent(HASH, new TrackedTorrent(CompactTorrentsMap.parseHex(HASH)));
+
+    assertTrue(stored instanceof CompactTrackedTorrent);
+    assertSame(stored, torrents.get(HASH));
+    assertEquals(HASH, stored.getHexInfoHash());
+  }
+
+  public void packed_peers_survive_removals_and_resizes() {
+    final PackedPeers peers = new PackedPeers();
+    final Random random = new Random(1);
+    final Set<String> expected = new HashSet<String>();
+    final byte[][] ids = new byte[1000][];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = new byte[PackedPeers.PEER_ID_SIZE];
+      random.nextBytes(ids[i]);
+      peers.put(ids[i], new byte[]{10, 0, (byte) (i >> 8), (byte) i}, 6881, i % 3 == 0, System.currentTimeMillis());
+      expected.add(Arrays.toString(ids[i]));
+    }
+    int completed = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (i % 2 == 0) {
+        assertNotNull(peers.remove(ids[i]));
+        expected.remove(Arrays.toString(ids[i]));
+      } else if (i % 3 == 0) {
+        completed++;
+      }
+    }
+
+    assertEquals(expected.size(), peers.size());
+    assertEquals(completed, peers.completed());
+    for (int i = 1; i < ids.length; i += 2) {
+      final PackedPeers.Record record = peers.get(ids[i]);
+      assertNotNull(record);
+      assertEquals(6881, record.getPort());
+      assertEquals(i % 3 == 0, record.isCompleted());
+      assertEquals((byte) i, record.getAddress()[3]);
+    }
+    final Set<String> actual = new HashSet<String>();
+    for (PackedPeers.Record record : peers.getAll()) {
+      actual.add(Arrays.toString(record.getPeerId()));
+    }
+    assertEquals(expected, actual);
+  }
+
+  public void unfresh_peers_are_collected() {
+    final PackedPeers peers = new PackedPeers();
+    final long now = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      final byte[] id = new byte[PackedPeers.PEER_ID_SIZE];
+      id[0] = (byte) i;
+      final byte[] address = new byte[16];
+      address[15] = 1;
+      peers.put(id, address, 6881, false, i % 2 == 0 ? now - 60 * 1000 : now);
+    }
+
+    assertEquals(50, peers.removeAnnouncedBefore(now - 30 * 1000));
+    assertEquals(50, peers.size());
+    for (PackedPeers.Record record : peers.getAll()) {
+      assertEquals(1, record.getPeerId()[0] % 2);
+      assertEquals(16, record.getAddress().length);
+      assertTrue(record.getLastAnnounceMs() > now - 30 * 1000);
+    }
+  }
+
+  public void unique_peers_counted_over_packed_ids() {
+    final CompactTorrentsMap torrents = new CompactTorrentsMap();
+    final String otherHash = "4142434445464748494A4B4C4D4E4F5051525354";
+    final TrackedTorrent first = torrents.putIfAbsent(HASH, new TrackedTorrent(CompactTorrentsMap.parseHex(HASH)));
+    final TrackedTorrent second = torrents.putIfAbsent(otherHash, new TrackedTorrent(CompactTorrentsMap.parseHex(otherHash)));
+    first.addPeer(new TrackedPeer(first, "10.0.0.1", 6881, ByteBuffer.wrap("ABCDEFGHIJKLMNOPQRST".getBytes())));
+    first.addPeer(new TrackedPeer(first, "10.0.0.2", 6881, ByteBuffer.wrap("BCDEFGHIJKLMNOPQRSTU".getBytes())));
+    second.addPeer(new TrackedPeer(second, "10.0.0.1", 6881, ByteBuffer.wrap("ABCDEFGHIJKLMNOPQRST".getBytes())));
+    second.addPeer(new TrackedPeer(second, "10.0.0.3", 6881, ByteBuffer.wrap("CDEFGHIJKLMNOPQRSTUV".getBytes())));
+
+    assertEquals(3, torrents.getUniquePeersCount());
+  }
+
+  public void only_literal_addresses_accepted() throws Exception {
+    assertTrue(Arrays.equals(new byte[]{10, 0, 0, (byte) 255}, CompactTrackedTorrent.toAddress("10.0.0.255")));
+    assertEquals(16, CompactTrackedTorrent.toAddress("fe80::1").length);
+    assertNull(CompactTrackedTorrent.toAddress("localhost"));
+    assertNull(CompactTrackedTorrent.toAddress("10.0.0"));
+    assertNull(CompactTrackedTorrent.toAddress("10.0.0.256"));
+    assertNull(CompactTrackedTorrent.toAddress("agent:6881"));
+
+    final CompactTrackedTorrent torrent = new CompactTrackedTorrent(CompactTorrentsMap.parseHex(HASH));
+    torrent.addPeer(new TrackedPeer(torrent, "agent.example.com", 6881, ByteBuffer.wrap("ABCDEFGHIJKLMNOPQRST".getBytes())));
+    assertEquals(0, torrent.getPeersCount());
+
+    final ByteBuffer peerId = ByteBuffer.wrap("ABCDEFGHIJKLMNOPQRST".getBytes());
+    final String hexPeerId = "4142434445464748494A4B4C4D4E4F5051525354";
+    assertEquals("0.0.0.0", torrent.update(RequestEvent.STARTED, peerId, hexPeerId, "agent.example.com", 6881, 0, 0, 100).getIp());
+    assertEquals(0, torrent.getPeersCount());
+    assertEquals("10.0.0.1", torrent.update(RequestEvent.STARTED, peerId, hexPeerId, "10.0.0.1", 6881, 0, 0, 100).getIp());
+    assertEquals(1, torrent.getPeersCount());
+  }
+
+  public void expiry_checks_only_due_announces() throws Exception {
+    final CompactTorrentsMap torrents = new CompactTorrentsMap();
+    final CompactTrackedTorrent torrent = (CompactTrackedTorrent) torrents.putIfAbsent(HASH, new TrackedTorrent(CompactTorrentsMap.parseHex(HASH)));
+    torrent.addPeer(new TrackedPeer(torrent, "127.0.0.1", 6881, ByteBuffer.wrap("ABCDEFGHIJKLMNOPQRST".getBytes())));
+    assertEquals(2, torrents.getPendingExpiryChecksCount());
+
+    assertEquals(0, torrents.expireUnfreshPeers(60));
+    assertEquals(2, torrents.getPendingExpiryChecksCount());
+    assertEquals(1, torrent.getPeersCount());
+
+    Thread.sleep(1100);
+    assertEquals(1, torrents.expireUnfreshPeers(0));
+    assertEquals(0, torrents.getPendingExpiryChecksCount());
+    assertEquals(1, torrents.getExpiredPeersCount());
+    assertEquals(1, torrents.getExpiredTorrentsCount());
+    assertFalse(torrents.containsKey(HASH));
+  }
+}
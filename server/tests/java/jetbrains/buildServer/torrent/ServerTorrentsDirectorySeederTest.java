@@ -22,6 +22,7 @@ import com.turn.ttorrent.common.Torrent;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.XmlRpcHandlerManager;
 import jetbrains.buildServer.torrent.seeder.FileLink;
+import jetbrains.buildServer.torrent.torrent.MultiFileTorrents;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.BuildServerListenerEventDispatcher;
 import jetbrains.buildServer.serverSide.ServerPaths;
@@ -30,6 +31,7 @@ import jetbrains.buildServer.serverSide.impl.*;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -39,7 +41,9 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -56,6 +60,8 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 @Test
 public class ServerTorrentsDirectorySeederTest extends BaseTestCase {
 
+  private static final long REMOVED_BUILD_ID = 42;
+
   private ServerTorrentsDirectorySeeder myDirectorySeeder;
   private TorrentConfigurator myConfigurator;
   private EventDispatcher<BuildServerListener> myDispatcher;
@@ -69,8 +75,10 @@ public class ServerTorrentsDirectorySeederTest extends BaseTestCase {
 
     final ServerPaths serverPaths = new ServerPaths(createTempDir().getAbsolutePath());
     final ServerSettings settings = m.mock(ServerSettings.class);
+    final BuildsManager buildsManager = m.mock(BuildsManager.class);
     m.checking(new Expectations(){{
       allowing(settings).getRootUrl(); will(returnValue("http://localhost:8111/"));
+      allowing(buildsManager).findBuildInstanceById(REMOVED_BUILD_ID); will(returnValue(null));
     }});
 
     myConfigurator = new TorrentConfigurator(serverPaths, settings, new XmlRpcHandlerManager() {
@@ -96,7 +104,7 @@ public class ServerTorrentsDirectorySeederTest extends BaseTestCase {
     myDispatcher = new BuildServerListenerEventDispatcher(new SecurityContextImpl());
 
 
-    myDirectorySeeder = new ServerTorrentsDirectorySeeder(serverPaths, myConfigurator, services, myDispatcher, 3);
+    myDirectorySeeder = new ServerTorrentsDirectorySeeder(serverPaths, myConfigurator, services, myDispatcher, null, buildsManager, 3);
   }
 
   public void max_number_of_seeded_torrents_on_startup() throws IOException, NoSuchAlgorithmException, InterruptedException {
@@ -160,6 +168,14 @@ public class ServerTorrentsDirectorySeederTest extends BaseTestCase {
   }
 
 
+  public void deferred_announcement_of_removed_build_forgotten() {
+    myDirectorySeeder.getDeferredAnnouncements().add(REMOVED_BUILD_ID);
+
+    myDirectorySeeder.retryDeferredAnnouncements();
+
+    assertEquals(0, myDirectorySeeder.getNumberOfDeferredAnnouncements());
+  }
+
   public void new_file_seedeed_old_removed() throws IOException, InterruptedException {
     System.setProperty(TorrentConfiguration.MAX_NUMBER_OF_SEEDED_TORRENTS, "3");
     System.setProperty(TorrentConfiguration.ANNOUNCE_URL, "http://localhost:6969/announce");
@@ -297,11 +313,213 @@ public class ServerTorrentsDirectorySeederTest extends BaseTestCase {
 
   }
 
+  public void identical_artifact_reuses_torrent() throws IOException, NoSuchAlgorithmException {
+    System.setProperty(TorrentConfiguration.ANNOUNCE_URL, "http://localhost:6969/announce");
+    System.setProperty(TorrentConfiguration.FILE_SIZE_THRESHOLD, "1");
+    System.setProperty(TorrentConfiguration.TRACKER_ENABLED, "true");
+    System.setProperty(TorrentConfiguration.SEEDER_ENABLED, "true");
+    myConfigurator.getConfigurationWatcher().checkForModifications();
+    myDispatcher.getMulticaster().serverStartup();
+
+    final File storageDirectory = myDirectorySeeder.getTorrentsDirectorySeeder().getStorageDirectory();
+    final int fileSize = 2 * 1024 * 1024;
+    final File original = createTempFile(fileSize);
+    final List<File> torrentFiles = new ArrayList<File>();
+    for (int build = 1; build <= 2; build++) {
+      final File artifactsDir = createTempDir();
+      final File torrentsDir = createTempDir();
+      final File srcFile = new File(artifactsDir, "sdk.zip");
+      // hashed during the upload, the pieces confirm the reuse of the torrent
+      myDirectorySeeder.getUploadHasher().startTracking(build, artifactsDir);
+      FileUtil.copy(original, srcFile);
+      myDirectorySeeder.getUploadHasher().scan();
+      myDirectorySeeder.getUploadHasher().stopTracking(build);
+      myDirectorySeeder.processArtifactInternal(new DummyBuildArtifactAdapter() {
+        @Override
+        public boolean isFile() {
+          return true;
+        }
+
+        @Override
+        public long getSize() {
+          return fileSize;
+        }
+
+        @NotNull
+        @Override
+        public String getName() {
+          return srcFile.getName();
+        }
+
+        @NotNull
+        @Override
+        public String getRelativePath() {
+          return srcFile.getName();
+        }
+      }, artifactsDir, storageDirectory, torrentsDir);
+      final File torrentFile = new File(torrentsDir, srcFile.getName() + ".torrent");
+      assertTrue(torrentFile.isFile());
+      torrentFiles.add(torrentFile);
+    }
+
+    assertEquals(Torrent.load(torrentFiles.get(0)).getHexInfoHash(), Torrent.load(torrentFiles.get(1)).getHexInfoHash());
+    assertEquals(1, myDirectorySeeder.getNumberOfSeededTorrents());
+  }
+
+  public void published_torrent_validated() throws IOException, NoSuchAlgorithmException {
+    final URI announceURI = URI.create("http://localhost:6969/announce");
+    System.setProperty(TorrentConfiguration.ANNOUNCE_URL, announceURI.toString());
+    System.setProperty(TorrentConfiguration.FILE_SIZE_THRESHOLD, "1");
+    myConfigurator.getConfigurationWatcher().checkForModifications();
+
+    final File artifactsDir = createTempDir();
+    final File torrentsDir = createTempDir();
+    final File storageDirectory = myDirectorySeeder.getTorrentsDirectorySeeder().getStorageDirectory();
+    final int fileSize = 2 * 1024 * 1024;
+    final File goodFile = new File(artifactsDir, "good.zip");
+    final File badFile = new File(artifactsDir, "bad.zip");
+    FileUtil.copy(createTempFile(fileSize), goodFile);
+    FileUtil.copy(createTempFile(fileSize), badFile);
+
+    final Torrent published = Torrent.create(goodFile, announceURI, "agent");
+    published.save(new File(torrentsDir, "good.zip.torrent"));
+    final File otherFile = new File(createTempDir(), "bad.zip");
+    FileUtil.copy(createTempFile(fileSize), otherFile);
+    final Torrent forged = Torrent.create(otherFile, announceURI, "agent");
+    forged.save(new File(torrentsDir, "bad.zip.torrent"));
+
+    for (final File srcFile : new File[]{goodFile, badFile}) {
+      myDirectorySeeder.processArtifactInternal(new DummyBuildArtifactAdapter() {
+        @Override
+        public boolean isFile() {
+          return true;
+        }
+
+        @Override
+        public long getSize() {
+          return fileSize;
+        }
+
+        @NotNull
+        @Override
+        public String getName() {
+          return srcFile.getName();
+        }
+
+        @NotNull
+        @Override
+        public String getRelativePath() {
+          return srcFile.getName();
+        }
+      }, artifactsDir, storageDirectory, torrentsDir);
+    }
+
+    final Torrent good = Torrent.load(new File(torrentsDir, "good.zip.torrent"));
+    assertEquals(published.getHexInfoHash(), good.getHexInfoHash());
+    assertEquals("agent", good.getCreatedBy());
+    final Torrent bad = Torrent.load(new File(torrentsDir, "bad.zip.torrent"));
+    assertFalse(forged.getHexInfoHash().equals(bad.getHexInfoHash()));
+    assertEquals(Torrent.create(badFile, announceURI, "test").getHexInfoHash(), bad.getHexInfoHash());
+  }
+
+  public void artifact_rewritten_after_upload_hashing_gets_valid_torrent() throws IOException, NoSuchAlgorithmException {
+    final URI announceURI = URI.create("http://localhost:6969/announce");
+    System.setProperty(TorrentConfiguration.ANNOUNCE_URL, announceURI.toString());
+    System.setProperty(TorrentConfiguration.FILE_SIZE_THRESHOLD, "1");
+    myConfigurator.getConfigurationWatcher().checkForModifications();
+
+    final File artifactsDir = createTempDir();
+    final File torrentsDir = createTempDir();
+    final File storageDirectory = myDirectorySeeder.getTorrentsDirectorySeeder().getStorageDirectory();
+    final int fileSize = 2 * 1024 * 1024;
+    final File srcFile = new File(artifactsDir, "sdk.zip");
+    final UploadedArtifactsHasher uploadHasher = myDirectorySeeder.getUploadHasher();
+    uploadHasher.startTracking(1, artifactsDir);
+    FileUtil.copy(createTempFile(fileSize), srcFile);
+    srcFile.setLastModified(System.currentTimeMillis() - 10 * 1000);
+    uploadHasher.scan();
+    assertEquals(1, uploadHasher.getTrackedFilesCount());
+    // written in place, the length stays the same
+    final RandomAccessFile out = new RandomAccessFile(srcFile, "rw");
+    try {
+      out.seek(fileSize / 2);
+      final int b = out.read();
+      out.seek(fileSize / 2);
+      out.write(b + 1);
+    } finally {
+      out.close();
+    }
+    uploadHasher.stopTracking(1);
+
+    myDirectorySeeder.processArtifactInternal(new DummyBuildArtifactAdapter() {
+      @Override
+      public boolean isFile() {
+        return true;
+      }
+
+      @Override
+      public long getSize() {
+        return fileSize;
+      }
+
+      @NotNull
+      @Override
+      public String getName() {
+        return srcFile.getName();
+      }
+
+      @NotNull
+      @Override
+      public String getRelativePath() {
+        return srcFile.getName();
+      }
+    }, artifactsDir, storageDirectory, torrentsDir);
+
+    final Torrent torrent = Torrent.load(new File(torrentsDir, "sdk.zip.torrent"));
+    assertEquals(Torrent.create(srcFile, announceURI, "test").getHexInfoHash(), torrent.getHexInfoHash());
+    assertEquals(0, uploadHasher.getTrackedFilesCount());
+  }
+
+  public void multi_file_torrent_per_directory() throws IOException, NoSuchAlgorithmException {
+    System.setProperty(TorrentConfiguration.ANNOUNCE_URL, "http://localhost:6969/announce");
+    myConfigurator.getConfigurationWatcher().checkForModifications();
+
+    final File artifactsDir = createTempDir();
+    final File libDir = new File(artifactsDir, "lib");
+    libDir.mkdirs();
+    final List<String> artifactPaths = Arrays.asList("lib/a.jar", "lib/b.jar");
+    for (String path : artifactPaths) {
+      FileUtil.copy(createTempFile(1024 * 1024), new File(artifactsDir, path));
+    }
+
+    final File linkDir = new File(myDirectorySeeder.getTorrentsDirectorySeeder().getStorageDirectory(), "bt1/1");
+    myDirectorySeeder.processMultiFileGroup("lib", artifactPaths, artifactsDir, linkDir);
+
+    final File torrentFile = new File(artifactsDir, MultiFileTorrents.getTorrentPath("lib"));
+    assertTrue(torrentFile.isFile());
+    final Torrent torrent = Torrent.load(torrentFile);
+    assertEquals("lib", torrent.getName());
+    assertEquals(artifactPaths, MultiFileTorrents.getArtifactPaths("lib", torrent));
+    assertEquals("lib", MultiFileTorrents.getGroupOfTorrent(MultiFileTorrents.getTorrentPath("lib")));
+    assertEquals("lib/b.jar", MultiFileTorrents.getPathInTorrent("lib", torrent, "lib/b.jar"));
+
+    final Collection<File> links = FileUtil.findFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return FileLink.isLink(file);
+      }
+    }, linkDir);
+    assertEquals(1, links.size());
+    final File link = links.iterator().next();
+    assertEquals(libDir.getAbsoluteFile(), FileLink.getTargetFile(link).getAbsoluteFile());
+    assertEquals(torrentFile.getAbsoluteFile(), FileLink.getTorrentFile(link).getAbsoluteFile());
+  }
+
   @AfterMethod
   @Override
   protected void tearDown() throws Exception {
+    // stops the seeder and the announcement queue
+    myDispatcher.getMulticaster().serverShutdown();
     super.tearDown();
-    myDirectorySeeder.stopSeeder();
   }
 
   private File createTorrentFromFile(File srcFile, File torrentDir) throws InterruptedException, NoSuchAlgorithmException, IOException {
@@ -310,5 +528,4 @@ public class ServerTorrentsDirectorySeederTest extends BaseTestCase {
     torrent.save(torrentFile);
     return torrentFile;
   }
-
 }
@@ -0,0 +1,78 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.torrent.torrent.TorrentHashingService;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.URI;
+
+@Test
+public class TorrentMetadataCacheTest extends BaseTestCase {
+  private static final int FILE_SIZE = 4 * 1024 * 1024;
+  // between the second and the third sampled blocks of the fingerprint
+  private static final int UNSAMPLED_OFFSET = 800 * 1024;
+
+  private URI myAnnounceURI;
+  private File myIndexFile;
+  private TorrentMetadataCache myCache;
+  private File myArtifact;
+  private File myTorrentFile;
+  private String myChecksum;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myAnnounceURI = new URI("http://localhost:6969/announce");
+    myIndexFile = new File(createTempDir(), TorrentMetadataCache.INDEX_FILE_NAME);
+    myCache = new TorrentMetadataCache(myIndexFile);
+    myArtifact = new File(createTempDir(), "artifact.zip");
+    FileUtils.copyFile(createTempFile(FILE_SIZE), myArtifact);
+    myTorrentFile = new File(createTempDir(), "artifact.zip.torrent");
+    Torrent.create(myArtifact, myAnnounceURI, "test").save(myTorrentFile);
+    myChecksum = checksum(myArtifact);
+    myCache.remember(myArtifact, myChecksum, myTorrentFile);
+  }
+
+  public void identical_file_reuses_torrent() throws Exception {
+    final File copy = new File(createTempDir(), myArtifact.getName());
+    FileUtils.copyFile(myArtifact, copy);
+
+    assertEquals(myTorrentFile.getAbsoluteFile(), myCache.findTorrent(copy, checksum(copy), myAnnounceURI));
+  }
+
+  public void file_differing_outside_sampled_blocks_does_not_reuse_torrent() throws Exception {
+    final byte[] content = FileUtils.readFileToByteArray(myArtifact);
+    content[UNSAMPLED_OFFSET]++;
+    final File changed = new File(createTempDir(), myArtifact.getName());
+    FileUtils.writeByteArrayToFile(changed, content);
+    assertEquals(TorrentMetadataCache.fingerprint(myArtifact), TorrentMetadataCache.fingerprint(changed));
+
+    assertNull(myCache.findTorrent(changed, checksum(changed), myAnnounceURI));
+    assertEquals(0, myCache.size());
+  }
+
+  public void file_without_checksum_is_a_miss() throws Exception {
+    assertNull(myCache.findTorrent(myArtifact, null, myAnnounceURI));
+    assertEquals(1, myCache.size());
+  }
+
+  public void torrent_of_other_tracker_is_not_reused() throws Exception {
+    assertNull(myCache.findTorrent(myArtifact, myChecksum, new URI("http://otherhost:6969/announce")));
+  }
+
+  public void entries_survive_reopening() throws Exception {
+    myCache.save();
+    final TorrentMetadataCache reopened = new TorrentMetadataCache(myIndexFile);
+    assertEquals(myTorrentFile.getAbsoluteFile(), reopened.findTorrent(myArtifact, myChecksum, myAnnounceURI));
+  }
+
+  private static String checksum(File file) throws Exception {
+    return TorrentMetadataCache.checksum(new TorrentHashingService(1, -1).hashPieces(file, TorrentHashingService.PIECE_LENGTH,
+            TorrentHashingService.Priority.INTERACTIVE));
+  }
+}
@@ -7,6 +7,7 @@ import com.turn.ttorrent.tracker.TrackedTorrent;
 import com.turn.ttorrent.tracker.TrackerRequestProcessor;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.XmlRpcHandlerManager;
+import jetbrains.buildServer.torrent.torrent.TeamcityTorrentClient;
 import jetbrains.buildServer.torrent.torrent.TorrentUtil;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ServerPaths;
@@ -23,8 +24,10 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -50,6 +53,7 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
 
     final ServerPaths serverPaths = new ServerPaths(createTempDir().getAbsolutePath());
     final ServerSettings settings = m.mock(ServerSettings.class);
+    final BuildsManager buildsManager = m.mock(BuildsManager.class);
     m.checking(new Expectations(){{
       allowing(settings).getRootUrl(); will(returnValue("http://localhost:8111"));
     }});
@@ -63,7 +67,7 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
     ExecutorServices services = new ExecutorServices() {
       @NotNull
       public ScheduledExecutorService getNormalExecutorService() {
-        return null;
+        return ExecutorsFactory.newFixedScheduledExecutor("bbb", 1);
       }
 
       @NotNull
@@ -72,8 +76,6 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
       }
     };
 
-    myDirectorySeeder = new ServerTorrentsDirectorySeeder(serverPaths, myConfigurator, services, myDispatcher);
-    myConfigurator.setTorrentEnabled(true);
     myTrackerManager = new TorrentTrackerManager(myConfigurator, new ExecutorServices() {
       @NotNull
       public ScheduledExecutorService getNormalExecutorService() {
@@ -85,6 +87,8 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
         return null;
       }
     }, myDispatcher);
+    myDirectorySeeder = new ServerTorrentsDirectorySeeder(serverPaths, myConfigurator, services, myDispatcher, myTrackerManager, buildsManager);
+    myConfigurator.setTorrentEnabled(true);
 
     myDispatcher.getMulticaster().serverStartup();
 
@@ -211,7 +215,7 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
     final AtomicInteger complete = new AtomicInteger(100);
     final AtomicInteger peersSize = new AtomicInteger(100);
     final String torrentHash = "3132333435363738393031323334353637383930";
-    final ConcurrentHashMap<String, TrackedTorrent> torrents = (ConcurrentHashMap<String, TrackedTorrent>) myTrackerManager.getTorrents();
+    final ConcurrentMap<String, TrackedTorrent> torrents = myTrackerManager.getTorrents();
     new WaitFor(15*1000){
       @Override
       protected boolean condition() {
@@ -242,6 +246,39 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
     assertNotContains(torrents.keySet(), torrentHash);
   }
 
+  public void test_dormant_torrent_scraped_as_seeded_by_server() throws IOException {
+    final String torrentHash = "3132333435363738393031323334353637383930";
+    final TeamcityTorrentClient serverSeeder = new TeamcityTorrentClient();
+    serverSeeder.setDemandProbe(myTrackerManager);
+    serverSeeder.setMaxActiveTorrents(0);
+    final File file = createTempFile();
+    assertTrue(serverSeeder.addDormantTorrent(torrentHash, file, file));
+    myTrackerManager.setServerSeeder(serverSeeder);
+
+    assertEquals(1, myTrackerManager.scrape(Collections.singletonList(torrentHash)).get(torrentHash).getComplete());
+
+    final String uriCompleted = "http://localhost:8111/trackerAnnounce.html" +
+            "?info_hash=12345678901234567890" +
+            "&peer_id=ABCDEFGHIJKLMNOPQRST" +
+            "&ip=172.20.240.249" +
+            "&port=6881" +
+            "&downloaded=1234" +
+            "&left=0" +
+            "&event=completed";
+    myTrackerManager.getTrackerService().process(uriCompleted, "http://localhost:8111/", new TrackerRequestProcessor.RequestHandler() {
+      public void serveResponse(int code, String description, ByteBuffer responseData) {
+      }
+
+      public ConcurrentMap<String, TrackedTorrent> getTorrentsMap() {
+        return myTrackerManager.getTorrents();
+      }
+    });
+    assertEquals(2, myTrackerManager.scrape(Collections.singletonList(torrentHash)).get(torrentHash).getComplete());
+
+    myTrackerManager.setServerSeeder(null);
+    assertEquals(1, myTrackerManager.scrape(Collections.singletonList(torrentHash)).get(torrentHash).getComplete());
+  }
+
   public void test_max_number_of_seeded_torrents(){
     System.setProperty(TorrentConfiguration.MAX_NUMBER_OF_SEEDED_TORRENTS, "3");
     myConfigurator.getConfigurationWatcher().checkForModifications();
@@ -253,7 +290,7 @@ public class TorrentTrackerConfiguratorTest extends BaseTestCase {
   @AfterMethod
   @Override
   protected void tearDown() throws Exception {
-    super.tearDown();
     myDispatcher.getMulticaster().serverShutdown();
+    super.tearDown();
   }
 }
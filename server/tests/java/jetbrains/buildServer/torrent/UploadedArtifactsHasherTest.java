@@ -0,0 +1,110 @@
+package jetbrains.buildServer.torrent;
+
+import com.turn.ttorrent.common.Torrent;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.XmlRpcHandlerManager;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.ServerSettings;
+import jetbrains.buildServer.torrent.torrent.PieceVerifier;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Arrays;
+
+@Test
+public class UploadedArtifactsHasherTest extends BaseTestCase {
+  private static final URI ANNOUNCE_URI = URI.create("http://localhost:6969/announce");
+  private static final int FILE_SIZE = 3 * 1024 * 1024 + 100;
+
+  private UploadedArtifactsHasher myHasher;
+  private File myArtifactsDir;
+  private byte[] myContent;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final Mockery m = new Mockery();
+    final ServerSettings settings = m.mock(ServerSettings.class);
+    m.checking(new Expectations(){{
+      allowing(settings).getRootUrl(); will(returnValue("http://localhost:8111/"));
+    }});
+    final TorrentConfigurator configurator = new TorrentConfigurator(new ServerPaths(createTempDir().getAbsolutePath()), settings, new XmlRpcHandlerManager() {
+      public void addHandler(String handlerName, Object handler) {}
+      public void addSessionHandler(String handlerName, Object handler) {}
+    });
+    System.setProperty(TorrentConfiguration.ANNOUNCE_URL, ANNOUNCE_URI.toString());
+    System.setProperty(TorrentConfiguration.FILE_SIZE_THRESHOLD, "1");
+    configurator.getConfigurationWatcher().checkForModifications();
+
+    myHasher = new UploadedArtifactsHasher(configurator);
+    myArtifactsDir = createTempDir();
+    myContent = FileUtils.readFileToByteArray(createTempFile(FILE_SIZE));
+  }
+
+  public void appended_artifact_hashed_during_upload() throws Exception {
+    myHasher.startTracking(1, myArtifactsDir);
+    final File artifact = new File(myArtifactsDir, "sdk.zip");
+    final int half = FILE_SIZE / 2;
+    append(artifact, 0, half);
+    myHasher.scan();
+    append(artifact, half, FILE_SIZE);
+    myHasher.scan();
+    assertEquals(1, myHasher.getTrackedFilesCount());
+
+    final Torrent torrent = myHasher.createTorrent(artifact, ANNOUNCE_URI);
+    assertNotNull(torrent);
+    assertEquals(Torrent.create(artifact, ANNOUNCE_URI, "TeamCity").getHexInfoHash(), torrent.getHexInfoHash());
+    assertEquals(0, myHasher.getTrackedFilesCount());
+  }
+
+  public void artifact_written_in_place_after_scan_not_published() throws Exception {
+    myHasher.startTracking(1, myArtifactsDir);
+    final File artifact = new File(myArtifactsDir, "sdk.zip");
+    // preallocated file filled in later, the length does not change
+    FileUtils.writeByteArrayToFile(artifact, new byte[FILE_SIZE]);
+    artifact.setLastModified(System.currentTimeMillis() - 10 * 1000);
+    myHasher.scan();
+    final long pieceOffset = PieceVerifier.forTorrent(Torrent.create(artifact, ANNOUNCE_URI, "test")).getPieceOffset(2);
+    final RandomAccessFile out = new RandomAccessFile(artifact, "rw");
+    try {
+      out.seek(pieceOffset + 10);
+      out.write(1);
+    } finally {
+      out.close();
+    }
+
+    assertNull(myHasher.createTorrent(artifact, ANNOUNCE_URI));
+  }
+
+  public void only_running_builds_scanned() throws Exception {
+    final File otherBuildDir = createTempDir();
+    myHasher.startTracking(1, myArtifactsDir);
+    myHasher.startTracking(2, otherBuildDir);
+    myHasher.stopTracking(2);
+    append(new File(myArtifactsDir, "sdk.zip"), 0, FILE_SIZE);
+    append(new File(otherBuildDir, "sdk.zip"), 0, FILE_SIZE);
+
+    myHasher.scan();
+
+    assertEquals(1, myHasher.getTrackedBuildsCount());
+    assertEquals(1, myHasher.getTrackedFilesCount());
+    assertNull(myHasher.createTorrent(new File(otherBuildDir, "sdk.zip"), ANNOUNCE_URI));
+  }
+
+  private void append(File file, int from, int to) throws Exception {
+    final FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(Arrays.copyOfRange(myContent, from, to));
+    } finally {
+      out.close();
+    }
+  }
+}